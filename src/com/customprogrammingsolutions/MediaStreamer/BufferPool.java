@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+/*
+ * The copy buffers of every pump, pipe and relay listener in the process. Each connection used to
+ * allocate its own, so a station switch or a reconnect left a few more for the GC; now they come
+ * from here and go back when the connection ends. No more than MAX_SLABS are kept; under memory
+ * pressure fewer are, and the full count comes back once the system has been quiet for a while.
+ * Always pair acquire() with release() in a finally block.
+ */
+/*package*/ class BufferPool {
+	public static final int SLAB_SIZE = 8192;
+	//256KB, a live stream, its time-shift pump, a relay listener or two and some headroom
+	private static final int MAX_SLABS = 32;
+	//without another trim signal for this long the pressure is taken to be over
+	private static final long RECOVERY_TIME = 60000;
+
+	//guarded by free
+	private static final byte[][] free = new byte[MAX_SLABS][];
+	private static int freeCount = 0;
+	private static int limit = MAX_SLABS;
+	private static long lastTrim = 0;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	//released while the pool was already full, left to the GC
+	private static final AtomicLong discarded = new AtomicLong();
+	private static final AtomicLong trims = new AtomicLong();
+
+	private BufferPool(){}
+
+	public static byte[] acquire(){
+		synchronized(free){
+			if(freeCount > 0){
+				hits.incrementAndGet();
+				byte[] slab = free[--freeCount];
+				free[freeCount] = null;
+				return slab;
+			}
+		}
+		misses.incrementAndGet();
+		return new byte[SLAB_SIZE];
+	}
+
+	public static void release(byte[] slab){
+		if(slab == null || slab.length != SLAB_SIZE)
+			return;
+		synchronized(free){
+			if(limit < MAX_SLABS && SystemClock.elapsedRealtime() - lastTrim > RECOVERY_TIME)
+				limit = MAX_SLABS;
+			if(freeCount < limit){
+				free[freeCount++] = slab;
+				return;
+			}
+		}
+		discarded.incrementAndGet();
+	}
+
+	/*
+	 * A ComponentCallbacks2.TRIM_MEMORY_* level, or TRIM_MEMORY_COMPLETE for onLowMemory(). The
+	 * harder the system is pressed the fewer idle slabs are kept; slabs in use aren't touched.
+	 */
+	public static void trim(int level){
+		int newLimit;
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			newLimit = 0;
+		else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			newLimit = MAX_SLABS / 4;
+		else
+			newLimit = MAX_SLABS / 2;
+		trims.incrementAndGet();
+		synchronized(free){
+			lastTrim = SystemClock.elapsedRealtime();
+			limit = Math.min(limit, newLimit);
+			while(freeCount > limit){
+				free[--freeCount] = null;
+			}
+		}
+	}
+
+	public static void appendStatus(StringBuilder sb){
+		int idle;
+		int currentLimit;
+		synchronized(free){
+			idle = freeCount;
+			currentLimit = limit;
+		}
+		sb.append("Buffer pool: ").append(hits.get()).append(" hits, ").append(misses.get()).append(" misses, ").append(discarded.get()).append(" discarded, ").append(idle).append(" of ").append(currentLimit).append(" idle slabs kept, ").append(trims.get()).append(" trims\n");
+	}
+}
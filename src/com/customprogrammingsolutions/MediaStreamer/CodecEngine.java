@@ -0,0 +1,435 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Plays an MP3 or AAC (ADTS) stream from the proxy with MediaCodec and AudioTrack instead of
+ * MediaPlayer, for a shorter time to first sound: frames go to the decoder as soon as they are
+ * read, and the track starts on the first decoded buffer instead of after MediaPlayer's own
+ * pre-roll. Everything runs on one thread, paced by the track's blocking writes, and the read,
+ * frame and PCM buffers are allocated once, so nothing is allocated per frame.
+ * Needs API 16. Anything that isn't MP3 or ADTS is handed back through onEngineUnsupported().
+ */
+/*package*/ class CodecEngine implements Runnable {
+	private final static String TAG = "MediaStreamer";
+
+	/*package*/ interface Listener{
+		//all called on the engine's thread
+		void onEngineStarted(CodecEngine engine);
+		//nothing was played, the stream isn't something this engine decodes
+		void onEngineUnsupported(CodecEngine engine, String localUrl);
+		void onEngineUnderrun(CodecEngine engine);
+		void onEngineCompleted(CodecEngine engine);
+		void onEngineError(CodecEngine engine);
+	}
+
+	//a few frames of either format, and room to find the first one in
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	//without two frames in this much the stream isn't MP3 or ADTS
+	private static final int MAX_SYNC_SEARCH = 64 * 1024;
+	private static final long DEQUEUE_TIMEOUT_US = 10000;
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+	private static final int[] ADTS_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+	private final String localUrl;
+	private final Listener listener;
+
+	private volatile boolean isStopped = false;
+	private volatile boolean isStarted = false;
+	private volatile HttpURLConnection conn;
+
+	private final byte[] data = new byte[READ_BUFFER_SIZE];
+	private int start = 0;
+	private int end = 0;
+
+	private MediaCodec codec;
+	private ByteBuffer[] inputBuffers;
+	private ByteBuffer[] outputBuffers;
+	private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+	private AudioTrack track;
+	private byte[] pcm = new byte[0];
+	private int sampleRate;
+	private int channels;
+	private long framesWritten = 0;
+	private long inputFrames = 0;
+	private boolean isAdts;
+
+	public CodecEngine(String localUrl, Listener listener){
+		this.localUrl = localUrl;
+		this.listener = listener;
+	}
+
+	public void start(){
+		new Thread(this, "CodecEngine").start();
+	}
+
+	//---any thread, the engine's thread releases everything on its way out---
+	public void stop(){
+		isStopped = true;
+		HttpURLConnection c = conn;
+		if(c != null)
+			c.disconnect();
+	}
+
+	//---true once sound is coming out---
+	public boolean isStarted(){
+		return isStarted;
+	}
+
+	@Override
+	public void run(){
+		Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+		try{
+			conn = (HttpURLConnection) new URL(localUrl).openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			if(isStopped)
+				return;
+			InputStream in = conn.getInputStream();
+			int first = findFirstFrame(in);
+			if(first < 0){
+				if(!isStopped){
+					Log.i(TAG, "CodecEngine.run() - Not MP3 or ADTS, leaving " + localUrl + " to MediaPlayer");
+					listener.onEngineUnsupported(this, localUrl);
+				}
+				return;
+			}
+			start = first;
+			if(!configure())
+				return;
+			decode(in);
+		}
+		catch(IOException e){
+			if(!isStopped){
+				Log.e(TAG, "CodecEngine.run() - Error reading " + localUrl, e);
+				listener.onEngineError(this);
+			}
+		}
+		catch(RuntimeException e){
+			//the codec and the track report everything as IllegalStateException
+			if(!isStopped){
+				Log.e(TAG, "CodecEngine.run() - Error playing " + localUrl, e);
+				listener.onEngineError(this);
+			}
+		}
+		finally{
+			release();
+		}
+	}
+
+	//---reads until two frame headers in a row turn up, returns where the first one is or -1---
+	private int findFirstFrame(InputStream in) throws IOException{
+		int searched = 0;
+		while(searched < MAX_SYNC_SEARCH && !isStopped){
+			if(!fill(in))
+				return -1;
+			int i = StreamSniffer.findFrameStart(data, start, end);
+			if(i >= 0 && i + 6 <= end){
+				int length = frameLength(i);
+				//only trust a header whose successor is in the buffer too
+				if(length > 0 && i + length + 2 <= end)
+					return i;
+				searched += i - start;
+				start = length > 0 ? i : i + 1;
+				continue;
+			}
+			int keep = Math.min(end - start, 8);
+			searched += end - start - keep;
+			start = end - keep;
+		}
+		return -1;
+	}
+
+	private boolean configure(){
+		isAdts = (data[start + 1] & 0xF6) == 0xF0;
+		String mime;
+		MediaFormat format;
+		if(isAdts){
+			int rateIndex = (data[start + 2] >> 2) & 0x0F;
+			if(rateIndex >= ADTS_SAMPLE_RATES.length)
+				return unsupported();
+			sampleRate = ADTS_SAMPLE_RATES[rateIndex];
+			//0 means the channels are described in the stream, the decoder's output format will say
+			channels = Math.max(1, ((data[start + 2] & 0x01) << 2) | ((data[start + 3] >> 6) & 0x03));
+			mime = "audio/mp4a-latm";
+			format = MediaFormat.createAudioFormat(mime, sampleRate, channels);
+			format.setInteger(MediaFormat.KEY_IS_ADTS, 1);
+		}
+		else{
+			int version = (data[start + 1] >> 3) & 0x03;
+			//mpeg 2 halves the sample rate, mpeg 2.5 quarters it, findFrameStart() already ruled out index 3
+			sampleRate = MPEG1_SAMPLE_RATES[(data[start + 2] >> 2) & 0x03] >> (version == 3 ? 0 : (version == 2 ? 1 : 2));
+			channels = ((data[start + 3] >> 6) & 0x03) == 3 ? 1 : 2;
+			mime = "audio/mpeg";
+			format = MediaFormat.createAudioFormat(mime, sampleRate, channels);
+		}
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, READ_BUFFER_SIZE);
+		try{
+			codec = MediaCodec.createDecoderByType(mime);
+			codec.configure(format, null, null, 0);
+			codec.start();
+		}
+		catch(RuntimeException e){
+			//no decoder for it on this device
+			Log.i(TAG, "CodecEngine.configure() - Couldn't start a " + mime + " decoder: " + e);
+			if(codec != null)
+				codec.release();
+			codec = null;
+			return unsupported();
+		}
+		inputBuffers = codec.getInputBuffers();
+		outputBuffers = codec.getOutputBuffers();
+		Log.i(TAG, "CodecEngine.configure() - " + (isAdts ? "AAC" : "MP3") + " " + sampleRate + "Hz " + channels + " channels");
+		return true;
+	}
+
+	private boolean unsupported(){
+		if(!isStopped)
+			listener.onEngineUnsupported(this, localUrl);
+		return false;
+	}
+
+	private void decode(InputStream in) throws IOException{
+		boolean isInputDone = false;
+		while(!isStopped){
+			if(!isInputDone){
+				int length = nextFrame(in);
+				if(length < 0){
+					isInputDone = true;
+					queueInput(0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				}
+				else if(length > 0){
+					queueInput(start, length, 0);
+					start += length;
+				}
+			}
+			if(drainOutput(isInputDone)){
+				waitForTrackToFinish();
+				if(!isStopped)
+					listener.onEngineCompleted(this);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * The length of the frame at start once it is all in the buffer, 0 if some garbage was skipped
+	 * instead, -1 at the end of the stream.
+	 */
+	private int nextFrame(InputStream in) throws IOException{
+		while(end - start < 6){
+			if(!fill(in))
+				return -1;
+		}
+		int length = frameLength(start);
+		if(length <= 0){
+			//lost sync, a dropped byte or an id3 tag in the middle
+			int i = StreamSniffer.findFrameStart(data, start + 1, end);
+			start = i >= 0 ? i : Math.max(start + 1, end - 5);
+			if(i < 0 && !fill(in))
+				return -1;
+			return 0;
+		}
+		while(end - start < length){
+			if(!fill(in))
+				return -1;
+		}
+		return length;
+	}
+
+	//---the frame at i if there is a valid header there, 0 if not---
+	private int frameLength(int i){
+		if((data[i] & 0xFF) != 0xFF || (data[i + 1] & 0xE0) != 0xE0)
+			return 0;
+		int length;
+		if((data[i + 1] & 0xF6) == 0xF0)
+			length = ((data[i + 3] & 0x03) << 11) | ((data[i + 4] & 0xFF) << 3) | ((data[i + 5] & 0xE0) >> 5);
+		else
+			length = StreamSniffer.mpegFrameLength(data[i + 1], data[i + 2]);
+		//no frame is bigger than a third of the buffer, a header claiming more is noise
+		return length >= 7 && length <= READ_BUFFER_SIZE / 3 ? length : 0;
+	}
+
+	/*
+	 * Reads more, moving what is left to the front first if there is no room behind it. Counts an
+	 * underrun if the read took longer than the sound the track had left. False at the end.
+	 */
+	private boolean fill(InputStream in) throws IOException{
+		if(end == data.length){
+			System.arraycopy(data, start, data, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		long queued = getQueuedMillis();
+		long readStart = SystemClock.elapsedRealtime();
+		int count = in.read(data, end, data.length - end);
+		if(count == -1)
+			return false;
+		end += count;
+		if(isStarted && SystemClock.elapsedRealtime() - readStart > queued && !isStopped)
+			listener.onEngineUnderrun(this);
+		return true;
+	}
+
+	//---what the track has been given but hasn't played yet---
+	private long getQueuedMillis(){
+		if(track == null || sampleRate == 0)
+			return 0;
+		long played = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+		return Math.max(0, framesWritten - played) * 1000 / sampleRate;
+	}
+
+	private void queueInput(int offset, int length, int flags){
+		int index;
+		do{
+			index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+			if(index < 0)
+				drainOutput(false);
+		}
+		while(index < 0 && !isStopped);
+		if(isStopped)
+			return;
+		ByteBuffer buffer = inputBuffers[index];
+		buffer.clear();
+		buffer.put(data, offset, length);
+		//1152 samples to an mp3 frame, 1024 to an aac one
+		long presentationTimeUs = inputFrames * (isAdts ? 1024 : 1152) * 1000000L / sampleRate;
+		codec.queueInputBuffer(index, 0, length, presentationTimeUs, flags);
+		inputFrames++;
+	}
+
+	//---writes out whatever the codec has decoded, true once the end of the stream comes out---
+	private boolean drainOutput(boolean isInputDone){
+		while(!isStopped){
+			int index = codec.dequeueOutputBuffer(info, isInputDone ? DEQUEUE_TIMEOUT_US : 0);
+			if(index == MediaCodec.INFO_TRY_AGAIN_LATER)
+				return false;
+			if(index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED){
+				outputBuffers = codec.getOutputBuffers();
+				continue;
+			}
+			if(index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED){
+				MediaFormat format = codec.getOutputFormat();
+				sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+				channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+				releaseTrack();
+				continue;
+			}
+			if(index < 0)
+				continue;
+
+			if(info.size > 0){
+				if(pcm.length < info.size)
+					pcm = new byte[info.size];
+				ByteBuffer buffer = outputBuffers[index];
+				buffer.position(info.offset);
+				buffer.get(pcm, 0, info.size);
+			}
+			codec.releaseOutputBuffer(index, false);
+			if(info.size > 0)
+				write(info.size);
+			if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	private void write(int size){
+		if(track == null)
+			createTrack();
+		int written = 0;
+		while(written < size && !isStopped){
+			int count = track.write(pcm, written, size - written);
+			if(count < 0)
+				throw new IllegalStateException("AudioTrack.write() returned " + count);
+			written += count;
+		}
+		framesWritten += size / (2 * channels);
+		if(!isStarted){
+			//the first decoded buffer is in, sound starts now rather than after a pre-roll
+			track.play();
+			isStarted = true;
+			listener.onEngineStarted(this);
+		}
+	}
+
+	private void createTrack(){
+		int channelConfig = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+		int minSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+		//twice the minimum rides out a scheduling hiccup without adding noticeable delay
+		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT, Math.max(minSize * 2, pcm.length), AudioTrack.MODE_STREAM);
+		if(track.getState() != AudioTrack.STATE_INITIALIZED)
+			throw new IllegalStateException("AudioTrack didn't initialize for " + sampleRate + "Hz " + channels + " channels");
+		framesWritten = 0;
+		if(isStarted)
+			track.play();
+	}
+
+	//---the last buffers are still in the track when the codec is done---
+	private void waitForTrackToFinish(){
+		while(!isStopped && track != null && getQueuedMillis() > 0){
+			try{
+				Thread.sleep(Math.min(getQueuedMillis(), 100));
+			}
+			catch(InterruptedException e){
+				return;
+			}
+		}
+	}
+
+	private void releaseTrack(){
+		if(track == null)
+			return;
+		try{
+			track.stop();
+		}
+		catch(IllegalStateException e){}
+		track.release();
+		track = null;
+	}
+
+	private void release(){
+		releaseTrack();
+		if(codec != null){
+			try{
+				codec.stop();
+			}
+			catch(IllegalStateException e){}
+			codec.release();
+			codec = null;
+		}
+		HttpURLConnection c = conn;
+		if(c != null)
+			c.disconnect();
+	}
+}
@@ -32,18 +32,49 @@ public class FavoritesDBHelper {
     public static final String KEY_NAME = "name";
     public static final String KEY_COUNT = "count";
     public static final String KEY_CREATED = "date";
+    public static final String KEY_STATUS = "status";
+    public static final String KEY_LATENCY = "latency";
+    public static final String KEY_BITRATE = "bitrate";
+    public static final String KEY_CHECKED = "checked";
     
     public static final int COLUMN_ROWID = 0;
     public static final int COLUMN_URL = 1;
     public static final int COLUMN_NAME = 2;
     public static final int COLUMN_COUNT = 3;
     public static final int COLUMN_CREATED = 4;
+    public static final int COLUMN_STATUS = 5;
+    public static final int COLUMN_LATENCY = 6;
+    public static final int COLUMN_BITRATE = 7;
+    public static final int COLUMN_CHECKED = 8;
+    
+    //what the last health check found
+    public static final int STATUS_UNKNOWN = 0;
+    public static final int STATUS_REACHABLE = 1;
+    public static final int STATUS_DEAD = 2;
  
     private static final String DATABASE_TABLE = "favorites";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
  
     private static final String DATABASE_CREATE =
-        "CREATE TABLE " + DATABASE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " + KEY_URL + " text not null, " + KEY_NAME + " text not null, " + KEY_COUNT + " integer not null, " + KEY_CREATED + " date);";
+        "CREATE TABLE " + DATABASE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " + KEY_URL + " text not null, " + KEY_NAME + " text not null, " + KEY_COUNT + " integer not null, " + KEY_CREATED + " date, " +
+        KEY_STATUS + " integer not null default " + STATUS_UNKNOWN + ", " + KEY_LATENCY + " integer not null default -1, " + KEY_BITRATE + " integer not null default 0, " + KEY_CHECKED + " date);";
+    
+    //version 3 added the health check columns
+    private static final String[] HEALTH_COLUMNS_ADD = {
+        "ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_STATUS + " integer not null default " + STATUS_UNKNOWN + ";",
+        "ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_LATENCY + " integer not null default -1;",
+        "ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_BITRATE + " integer not null default 0;",
+        "ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_CHECKED + " date;"
+    };
+    
+    //inserts and updates look up both url and name
+    private static final String URL_INDEX_CREATE =
+        "CREATE INDEX IF NOT EXISTS " + DATABASE_TABLE + "_" + KEY_URL + " ON " + DATABASE_TABLE + " (" + KEY_URL + ");";
+    private static final String NAME_INDEX_CREATE =
+        "CREATE INDEX IF NOT EXISTS " + DATABASE_TABLE + "_" + KEY_NAME + " ON " + DATABASE_TABLE + " (" + KEY_NAME + ");";
+    //version 2 also indexed the count, the list sorts dead stations last first so SQLite never uses it
+    private static final String COUNT_INDEX_DROP =
+        "DROP INDEX IF EXISTS " + DATABASE_TABLE + "_" + KEY_COUNT + ";";
  
     private final Context context; 
     
@@ -65,13 +96,28 @@ public class FavoritesDBHelper {
         @Override
         public void onCreate(SQLiteDatabase db){
             db.execSQL(DATABASE_CREATE);
+            createIndexes(db);
         }
  
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-            onCreate(db);
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if(oldVersion < 2){
+            	createIndexes(db);
+            }
+            if(oldVersion < 3){
+            	for(String alter : HEALTH_COLUMNS_ADD){
+            		db.execSQL(alter);
+            	}
+            }
+            if(oldVersion < 4){
+            	db.execSQL(COUNT_INDEX_DROP);
+            }
+        }
+        
+        private void createIndexes(SQLiteDatabase db){
+            db.execSQL(URL_INDEX_CREATE);
+            db.execSQL(NAME_INDEX_CREATE);
         }
     }    
  
@@ -95,38 +141,38 @@ public class FavoritesDBHelper {
     	}
     	SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); 
     	Date date = new Date();
-    	String q = "INSERT INTO " + DATABASE_TABLE + " VALUES (NULL, '" + url + "', '" + name + "', 1, '" + dateFormat.format(date) + "')";
-    	db.execSQL(q);
+    	String q = "INSERT INTO " + DATABASE_TABLE + " (" + KEY_URL + ", " + KEY_NAME + ", " + KEY_COUNT + ", " + KEY_CREATED + ") VALUES (?, ?, 1, ?)";
+    	db.execSQL(q, new Object[] {url, name, dateFormat.format(date)});
     	return 0;
     }
  
     //---deletes a particular favorite by id---
     public boolean deleteFavorite(long rowId){
         //return db.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
-    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " = " + Long.toString(rowId);
-    	db.execSQL(q);
+    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " = ?";
+    	db.execSQL(q, new Object[] {rowId});
     	return true;
     }
     
     //---deletes a particular favorite by url---
     public boolean deleteFavorite(String url){
         //return db.delete(DATABASE_TABLE, KEY_URL + "=" + url, null) > 0;
-    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_URL + " = '" + url + "'";
-    	db.execSQL(q);
+    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_URL + " = ?";
+    	db.execSQL(q, new Object[] {url});
     	return true;
     }
     
   //---deletes a particular favorite by name---
     public boolean deleteFavoriteByName(String name){
         //return db.delete(DATABASE_TABLE, KEY_NAME + "=" + name, null) > 0;
-    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_NAME + " = '" + name + "'";
-    	db.execSQL(q);
+    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_NAME + " = ?";
+    	db.execSQL(q, new Object[] {name});
     	return true;
     }
  
-    //---retrieves all the favorites---
+    //---retrieves all the favorites, stations that were dead at the last check go last---
     public Cursor getAllFavorites(){
-    	String q = "SELECT * FROM " + DATABASE_TABLE + " ORDER BY " + KEY_COUNT + " DESC";
+    	String q = "SELECT * FROM " + DATABASE_TABLE + " ORDER BY " + KEY_STATUS + " = " + STATUS_DEAD + ", " + KEY_COUNT + " DESC";
     	return db.rawQuery(q, null);
         /*return db.query(DATABASE_TABLE, new String[] {
         		KEY_ROWID, 
@@ -225,8 +271,8 @@ public class FavoritesDBHelper {
         args.put(KEY_COUNT, count);
         args.put(KEY_CREATED, dateFormat.format(date));
         return db.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null);*/
-    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = '" + url + "', " + KEY_NAME + " = '" + name + "', " + KEY_COUNT + " = " + Integer.toString(count) + ", " + KEY_CREATED + " = '" + dateFormat.format(date) + "' WHERE " + KEY_ROWID + " = " + Long.toString(rowId);
-        db.execSQL(q);
+    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = ?, " + KEY_NAME + " = ?, " + KEY_COUNT + " = ?, " + KEY_CREATED + " = ? WHERE " + KEY_ROWID + " = ?";
+        db.execSQL(q, new Object[] {url, name, count, dateFormat.format(date), rowId});
         return 0;
     }
     
@@ -240,68 +286,64 @@ public class FavoritesDBHelper {
     	}
     	SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); 
     	Date date = new Date();
-    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = '" + url + "', " + KEY_NAME + " = '" + name + "', " + KEY_CREATED + " = '" + dateFormat.format(date) + "' WHERE " + KEY_ROWID + " = " + Long.toString(rowId);
-        db.execSQL(q);
+    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = ?, " + KEY_NAME + " = ?, " + KEY_CREATED + " = ? WHERE " + KEY_ROWID + " = ?";
+        db.execSQL(q, new Object[] {url, name, dateFormat.format(date), rowId});
         return 0;
     }
     
-    private boolean isNameTaken(String name){
-    	Cursor c = getFavoriteByName(name);
-    	if(c.getCount() > 0){
-    		c.close();
-    		return true;
+    //---just the ids and urls, for the health check---
+    public Cursor getFavoriteUrls(){
+    	return db.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_URL + " FROM " + DATABASE_TABLE, null);
+    }
+    
+    //---records what the health check found, latency in ms (-1 if it never answered) and bitrate in kbps (0 if unknown)---
+    public void updateHealth(long rowId, int status, long latency, int bitrate){
+    	SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); 
+    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_STATUS + " = ?, " + KEY_LATENCY + " = ?, " + KEY_BITRATE + " = ?, " + KEY_CHECKED + " = ? WHERE " + KEY_ROWID + " = ?";
+    	db.execSQL(q, new Object[] {status, latency, bitrate, dateFormat.format(new Date()), rowId});
+    }
+    
+    //---all the results of one check in a single transaction---
+    public void beginBatch(){
+    	db.beginTransaction();
+    }
+    
+    public void endBatch(){
+    	try{
+    		db.setTransactionSuccessful();
     	}
-    	else{
-    		c.close();
-    		return false;
+    	finally{
+    		db.endTransaction();
     	}
     }
     
+    private boolean isNameTaken(String name){
+    	return findRowId(KEY_NAME, name) >= 0;
+    }
+    
     private boolean isNameTaken(long rowID, String name){
-    	Cursor c = getFavoriteByName(name);
-    	if(c.getCount() > 0){
-    		if(c.getLong(COLUMN_ROWID) == rowID){
-    			c.close();
-    			return false;
-    		}
-    		else{		
-    			c.close();
-    			return true;
-    		}
-    	}
-    	else{
-    		c.close();
-    		return false;
-    	}
+    	long found = findRowId(KEY_NAME, name);
+    	return found >= 0 && found != rowID;
     }
     
     private boolean isUrlStored(String url){
-    	Cursor c = getFavorite(url);
-    	if(c.getCount() > 0){
-    		c.close();
-    		return true;
-    	}
-    	else{
-    		c.close();
-    		return false;
-    	}
+    	return findRowId(KEY_URL, url) >= 0;
     }
     
     private boolean isUrlStored(long rowID, String url){
-    	Cursor c = getFavorite(url);
-    	if(c.getCount() > 0){
-    		if(c.getLong(COLUMN_ROWID) == rowID){
-    			c.close();
-    			return false;
-    		}
-    		else{		
-    			c.close();
-    			return true;
-    		}
+    	long found = findRowId(KEY_URL, url);
+    	return found >= 0 && found != rowID;
+    }
+    
+    //---the id of a favorite whose column equals value, -1 if there is none---
+    private long findRowId(String column, String value){
+    	//only the id is read, so the lookup is answered from the index without touching the table
+    	Cursor c = db.rawQuery("SELECT " + KEY_ROWID + " FROM " + DATABASE_TABLE + " WHERE " + column + " = ? LIMIT 1", new String[] {value});
+    	try{
+    		return c.moveToFirst() ? c.getLong(0) : -1;
     	}
-    	else{
+    	finally{
     		c.close();
-    		return false;
     	}
     }
 }
\ No newline at end of file
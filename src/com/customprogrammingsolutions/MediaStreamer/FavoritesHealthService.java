@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Checks every favorite in the background and records in FavoritesDBHelper whether it answered,
+ * how long it took and what bitrate it advertised, so the list can show which stations are down
+ * and put them last. A check only reads the headers and the first few KB of each station, several
+ * at a time, and gives up on the whole run after a fixed deadline. The twice a day run is skipped
+ * on mobile data or a low battery; one asked for from the menu always goes ahead.
+ */
+public class FavoritesHealthService extends IntentService {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int THREADS = 4;
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 5000;
+	//no matter how many favorites there are
+	private static final long CHECK_DEADLINE = 60000;
+	private static final int MIN_BATTERY_PERCENT = 20;
+
+	private static volatile boolean isChecking = false;
+
+	public FavoritesHealthService(){
+		super("FavoritesHealthService");
+	}
+
+	public static boolean isChecking(){
+		return isChecking;
+	}
+
+	/*
+	 * The periodic check. An alarm that is already set is left alone: setting it again would push
+	 * the next check another interval out every time the app is opened. Alarms don't survive a
+	 * reboot, BootReceiver sets it again then.
+	 */
+	public static void schedule(Context context){
+		Intent i = new Intent(MainActivity.CHECK_FAVORITES_INTENT);
+		if(PendingIntent.getService(context, 0, i, PendingIntent.FLAG_NO_CREATE) != null)
+			return;
+		PendingIntent pending = PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		//inexact and not a wakeup, so it rides along with whatever else wakes the device
+		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HALF_DAY, AlarmManager.INTERVAL_HALF_DAY, pending);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent){
+		boolean isManual = intent != null && intent.getBooleanExtra(MainActivity.MANUAL_EXTRA, false);
+		if(!isManual && !isGoodTimeToCheck())
+			return;
+
+		List<Long> rowIds = new ArrayList<Long>();
+		List<String> urls = new ArrayList<String>();
+		FavoritesDBHelper fdb = new FavoritesDBHelper(this).open();
+		try{
+			Cursor c = fdb.getFavoriteUrls();
+			try{
+				while(c.moveToNext()){
+					rowIds.add(c.getLong(0));
+					urls.add(c.getString(1));
+				}
+			}
+			finally{
+				c.close();
+			}
+		}
+		finally{
+			fdb.close();
+		}
+		if(urls.isEmpty())
+			return;
+
+		isChecking = true;
+		try{
+			Result[] results = checkAll(urls);
+			fdb = new FavoritesDBHelper(this).open();
+			try{
+				fdb.beginBatch();
+				try{
+					for(int i = 0; i < results.length; i++){
+						//a station the deadline cut off is left as it was
+						if(results[i] != null)
+							fdb.updateHealth(rowIds.get(i), results[i].status, results[i].latency, results[i].bitrate);
+					}
+				}
+				finally{
+					fdb.endBatch();
+				}
+			}
+			finally{
+				fdb.close();
+			}
+		}
+		finally{
+			isChecking = false;
+		}
+		sendBroadcast(new Intent(MainActivity.FAVORITES_CHECKED_INTENT), PlaybackState.PERMISSION);
+	}
+
+	private Result[] checkAll(List<String> urls){
+		final Result[] results = new Result[urls.size()];
+		final StreamConnector connector = new StreamConnector(this);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(THREADS, urls.size()));
+		long start = SystemClock.elapsedRealtime();
+		for(int i = 0; i < urls.size(); i++){
+			final int index = i;
+			final String url = urls.get(i);
+			executor.execute(new Runnable(){
+				@Override
+				public void run(){
+					results[index] = check(connector, url);
+				}
+			});
+		}
+		executor.shutdown();
+		try{
+			if(!executor.awaitTermination(CHECK_DEADLINE, TimeUnit.MILLISECONDS)){
+				Log.i(TAG, "FavoritesHealthService.checkAll() - Deadline passed, giving up on the rest");
+				executor.shutdownNow();
+			}
+		}
+		catch(InterruptedException e){
+			executor.shutdownNow();
+		}
+		Log.i(TAG, "FavoritesHealthService.checkAll() - Checked " + urls.size() + " favorites in " + (SystemClock.elapsedRealtime() - start) + "ms");
+		return results;
+	}
+
+	//---headers and the first few KB, enough to tell audio from an error page---
+	private static Result check(StreamConnector connector, String url){
+		Result result = new Result();
+		long start = SystemClock.elapsedRealtime();
+		HttpURLConnection conn = null;
+		try{
+			Map<String, String> headers = new HashMap<String, String>();
+			headers.put("Icy-MetaData", "1");
+			conn = connector.open(url, headers, CONNECT_TIMEOUT, READ_TIMEOUT);
+			if(conn.getResponseCode() >= 400){
+				result.status = FavoritesDBHelper.STATUS_DEAD;
+				return result;
+			}
+			result.bitrate = conn.getHeaderFieldInt("icy-br", 0);
+
+			InputStream in = conn.getInputStream();
+			byte[] probe = new byte[StreamSniffer.PROBE_SIZE];
+			int length = 0;
+			int read;
+			while(length < probe.length && (read = in.read(probe, length, probe.length - length)) != -1){
+				if(length == 0)
+					result.latency = SystemClock.elapsedRealtime() - start;
+				length += read;
+			}
+			int content = StreamSniffer.sniff(conn.getContentType(), probe, length);
+			//a playlist points somewhere else, it answering is as far as a quick check goes
+			boolean isAlive = StreamSniffer.isPlayable(content) || content == StreamSniffer.CONTENT_PLAYLIST;
+			result.status = isAlive ? FavoritesDBHelper.STATUS_REACHABLE : FavoritesDBHelper.STATUS_DEAD;
+		}
+		catch(IOException e){
+			Log.i(TAG, "FavoritesHealthService.check() - " + url + " didn't answer: " + e);
+			result.status = FavoritesDBHelper.STATUS_DEAD;
+			result.latency = -1;
+		}
+		finally{
+			if(conn != null)
+				conn.disconnect();
+		}
+		return result;
+	}
+
+	//---only on wifi or ethernet, and not when the battery is low and not charging---
+	private boolean isGoodTimeToCheck(){
+		ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = cm.getActiveNetworkInfo();
+		if(network == null || !network.isConnected())
+			return false;
+		if(network.getType() != ConnectivityManager.TYPE_WIFI && network.getType() != ConnectivityManager.TYPE_ETHERNET)
+			return false;
+
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if(battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0){
+			int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			if(level >= 0 && scale > 0 && level * 100 / scale < MIN_BATTERY_PERCENT)
+				return false;
+		}
+		return true;
+	}
+
+	private static class Result {
+		int status = FavoritesDBHelper.STATUS_UNKNOWN;
+		long latency = -1;
+		int bitrate = 0;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Parsed form of an HLS (m3u8) playlist. A master playlist only has variants, a media playlist
+ * only has segments.
+ */
+/*package*/ class HlsPlaylist {
+	public static final String TAG_HEADER = "#EXTM3U";
+	private static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF:";
+	private static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+	private static final String TAG_MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+	private static final String TAG_SEGMENT = "#EXTINF:";
+	private static final String TAG_END_LIST = "#EXT-X-ENDLIST";
+
+	/*package*/ static class Variant{
+		final String url;
+		final int bandwidth;
+
+		Variant(String url, int bandwidth){
+			this.url = url;
+			this.bandwidth = bandwidth;
+		}
+	}
+
+	/*package*/ static class Segment{
+		final String url;
+		final long sequence;
+		final double duration;
+
+		Segment(String url, long sequence, double duration){
+			this.url = url;
+			this.sequence = sequence;
+			this.duration = duration;
+		}
+	}
+
+	final List<Variant> variants = new ArrayList<Variant>();
+	final List<Segment> segments = new ArrayList<Segment>();
+	double targetDuration = 10;
+	boolean isEndList = false;
+
+	private HlsPlaylist(){}
+
+	public boolean isMaster(){
+		return !variants.isEmpty();
+	}
+
+	public static boolean isHlsUrl(String url){
+		String path = url;
+		int query = path.indexOf('?');
+		if(query >= 0)
+			path = path.substring(0, query);
+		return path.toLowerCase().endsWith(".m3u8");
+	}
+
+	public static boolean isHlsContentType(String contentType){
+		if(contentType == null)
+			return false;
+		contentType = contentType.toLowerCase();
+		return contentType.startsWith("application/vnd.apple.mpegurl") || contentType.startsWith("application/x-mpegurl") || contentType.startsWith("audio/mpegurl") || contentType.startsWith("audio/x-mpegurl");
+	}
+
+	//---parses playlist text, resolving uris relative to baseUrl---
+	public static HlsPlaylist parse(String baseUrl, String text) throws IOException{
+		String[] lines = text.split("\r?\n");
+		if(lines.length == 0 || !lines[0].trim().startsWith(TAG_HEADER))
+			throw new IOException("Not an m3u8 playlist: " + baseUrl);
+
+		HlsPlaylist playlist = new HlsPlaylist();
+		URL base = new URL(baseUrl);
+		long sequence = 0;
+		int pendingBandwidth = -1;
+		double pendingDuration = -1;
+
+		for(int i = 1; i < lines.length; i++){
+			String line = lines[i].trim();
+			if(line.length() == 0)
+				continue;
+
+			if(line.startsWith(TAG_STREAM_INF)){
+				pendingBandwidth = parseBandwidth(line.substring(TAG_STREAM_INF.length()));
+			}
+			else if(line.startsWith(TAG_TARGET_DURATION)){
+				playlist.targetDuration = parseDouble(line.substring(TAG_TARGET_DURATION.length()), playlist.targetDuration);
+			}
+			else if(line.startsWith(TAG_MEDIA_SEQUENCE)){
+				sequence = (long) parseDouble(line.substring(TAG_MEDIA_SEQUENCE.length()), 0);
+			}
+			else if(line.startsWith(TAG_SEGMENT)){
+				String value = line.substring(TAG_SEGMENT.length());
+				int comma = value.indexOf(',');
+				pendingDuration = parseDouble(comma >= 0 ? value.substring(0, comma) : value, playlist.targetDuration);
+			}
+			else if(line.startsWith(TAG_END_LIST)){
+				playlist.isEndList = true;
+			}
+			else if(!line.startsWith("#")){
+				String url = resolve(base, line);
+				if(pendingBandwidth >= 0){
+					playlist.variants.add(new Variant(url, pendingBandwidth));
+					pendingBandwidth = -1;
+				}
+				else{
+					playlist.segments.add(new Segment(url, sequence++, pendingDuration >= 0 ? pendingDuration : playlist.targetDuration));
+					pendingDuration = -1;
+				}
+			}
+		}
+
+		Collections.sort(playlist.variants, new Comparator<Variant>(){
+			@Override
+			public int compare(Variant lhs, Variant rhs) {
+				return lhs.bandwidth < rhs.bandwidth ? -1 : (lhs.bandwidth == rhs.bandwidth ? 0 : 1);
+			}
+		});
+		return playlist;
+	}
+
+	private static int parseBandwidth(String attributes){
+		for(String attribute : attributes.split(",")){
+			attribute = attribute.trim();
+			if(attribute.startsWith("BANDWIDTH=")){
+				return (int) parseDouble(attribute.substring("BANDWIDTH=".length()), 0);
+			}
+		}
+		return 0;
+	}
+
+	private static double parseDouble(String value, double defaultValue){
+		try{
+			return Double.parseDouble(value.trim());
+		}
+		catch(NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+	private static String resolve(URL base, String uri) throws MalformedURLException{
+		return new URL(base, uri).toString();
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Plays an HLS presentation as one continuous stream. A fetcher thread downloads segments into a
+ * bounded prefetch queue while the calling thread drains the queue into the player's connection.
+ * Every segment download updates the throughput estimate, which together with the number of
+ * prefetched seconds decides which variant the next segment comes from.
+ */
+/*package*/ class HlsStreamer {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int PREFETCH_SEGMENTS = 3;
+	//weight given to the newest throughput sample
+	private static final double THROUGHPUT_SMOOTHING = 0.3;
+	//only use this fraction of the estimate so a single fast segment doesn't cause a switch up
+	private static final double BANDWIDTH_SAFETY = 0.75;
+	private static final double UP_SWITCH_BUFFER_SECONDS = 15;
+	private static final double PANIC_BUFFER_SECONDS = 5;
+	//a live playlist is joined this many target durations from its end, as players usually do
+	private static final int LIVE_START_TARGET_DURATIONS = 3;
+	//a segment that fails is tried again this many times, then skipped
+	private static final int SEGMENT_RETRIES = 1;
+	//this many segments skipped in a row and the stream is gone rather than hiccupping
+	private static final int MAX_SKIPPED_SEGMENTS = 3;
+
+	//the one streaming now, what the diagnostics show; nothing once it has finished
+	private static final AtomicReference<HlsStreamer> active = new AtomicReference<HlsStreamer>();
+
+	private final StreamConnector connector;
+	private final String url;
+	private final StreamProxy.Listener listener;
+	//the playlist at url if the caller has already read it
+	private String initialPlaylist;
+	private String initialPlaylistUrl;
+
+	private volatile int currentBandwidth = 0;
+	private volatile long estimatedThroughput = 0;
+	private final BlockingQueue<FetchedSegment> prefetched = new ArrayBlockingQueue<FetchedSegment>(PREFETCH_SEGMENTS);
+	//added to by the fetcher and taken from by the streaming thread, in milliseconds of audio
+	private final AtomicLong prefetchedMillis = new AtomicLong();
+	private volatile boolean isRunning = true;
+
+	private static class FetchedSegment{
+		final byte[] data;
+		final int length;
+		final double duration;
+		final String contentType;
+
+		FetchedSegment(byte[] data, int length, double duration, String contentType){
+			this.data = data;
+			this.length = length;
+			this.duration = duration;
+			this.contentType = contentType;
+		}
+	}
+
+	//lets a finished download be queued as it is, only size() of its array is data
+	private static class SegmentBuffer extends ByteArrayOutputStream{
+		SegmentBuffer(int size){
+			super(size);
+		}
+
+		byte[] getBuffer(){
+			return buf;
+		}
+	}
+
+	private static final FetchedSegment END_OF_STREAM = new FetchedSegment(null, 0, 0, null);
+
+	public HlsStreamer(StreamConnector connector, String url, StreamProxy.Listener listener){
+		this.connector = connector;
+		this.url = url;
+		this.listener = listener;
+	}
+
+	public static int getCurrentBandwidth(){
+		HlsStreamer streamer = active.get();
+		return streamer != null ? streamer.currentBandwidth : 0;
+	}
+
+	public static long getEstimatedThroughput(){
+		HlsStreamer streamer = active.get();
+		return streamer != null ? streamer.estimatedThroughput : 0;
+	}
+
+	public static int getPrefetchedSeconds(){
+		HlsStreamer streamer = active.get();
+		return streamer != null ? (int) streamer.getBufferedSeconds() : 0;
+	}
+
+	//---as stream(), starting from the playlist the caller already read from playlistUrl (after redirects)---
+	public void stream(OutputStream clientOut, String playlistUrl, String playlist) throws IOException{
+		initialPlaylistUrl = playlistUrl;
+		initialPlaylist = playlist;
+		stream(clientOut);
+	}
+
+	//---blocks until the presentation ends, the player goes away, or the stream fails---
+	public void stream(OutputStream clientOut) throws IOException{
+		active.set(this);
+		Thread fetcher = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					fetch();
+				}
+				catch(InterruptedException e){
+					//the player went away
+				}
+				catch(IOException e){
+					Log.e(TAG, "HlsStreamer.fetch() - Error fetching " + url, e);
+				}
+				finally{
+					try{
+						while(isRunning && !prefetched.offer(END_OF_STREAM, 500, TimeUnit.MILLISECONDS));
+					}
+					catch(InterruptedException e){}
+				}
+			}
+		}, "HlsFetcher");
+		fetcher.start();
+
+		try{
+			boolean sentHeader = false;
+			while(true){
+				FetchedSegment segment = prefetched.take();
+				if(segment == END_OF_STREAM)
+					break;
+				prefetchedMillis.addAndGet(-(long) (segment.duration * 1000));
+
+				if(!sentHeader){
+					String contentType = segment.contentType != null ? segment.contentType : "video/mp2t";
+					clientOut.write(("HTTP/1.1 200 OK\r\nContent-Type: " + contentType + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+					sentHeader = true;
+				}
+				clientOut.write(segment.data, 0, segment.length);
+			}
+			if(!sentHeader)
+				clientOut.write("HTTP/1.1 502 Bad Gateway\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+			clientOut.flush();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		finally{
+			isRunning = false;
+			fetcher.interrupt();
+			active.compareAndSet(this, null);
+		}
+	}
+
+	private double getBufferedSeconds(){
+		return prefetchedMillis.get() / 1000.0;
+	}
+
+	private void fetch() throws IOException, InterruptedException{
+		HlsPlaylist master = initialPlaylist != null ? HlsPlaylist.parse(initialPlaylistUrl, initialPlaylist) : HlsPlaylist.parse(url, download(url).toString("UTF-8"));
+		HlsPlaylist.Variant variant = null;
+		if(master.isMaster()){
+			//start on the lowest variant, the first segments tell us what the link can actually do
+			variant = master.variants.get(0);
+			currentBandwidth = variant.bandwidth;
+			Log.i(TAG, "HlsStreamer.fetch() - " + master.variants.size() + " variants, starting at " + variant.bandwidth + " bps");
+		}
+
+		long nextSequence = -1;
+		int skipped = 0;
+		boolean isFirstLoad = true;
+		while(isRunning){
+			String mediaUrl = variant != null ? variant.url : url;
+			HlsPlaylist media = variant != null || !isFirstLoad ? HlsPlaylist.parse(mediaUrl, download(mediaUrl).toString("UTF-8")) : master;
+			if(isFirstLoad && !media.isEndList)
+				nextSequence = getLiveStartSequence(media);
+			isFirstLoad = false;
+
+			boolean fetchedAny = false;
+			for(HlsPlaylist.Segment segment : media.segments){
+				if(segment.sequence < nextSequence)
+					continue;
+				nextSequence = segment.sequence + 1;
+				fetchedAny = true;
+				if(fetchSegment(segment)){
+					skipped = 0;
+				}
+				else if(++skipped >= MAX_SKIPPED_SEGMENTS){
+					throw new IOException(skipped + " segments in a row failed");
+				}
+
+				HlsPlaylist.Variant next = selectVariant(master, variant);
+				if(next != variant){
+					Log.i(TAG, "HlsStreamer.fetch() - Switching from " + variant.bandwidth + " to " + next.bandwidth + " bps (estimate: " + estimatedThroughput + " bps, buffered: " + (int) getBufferedSeconds() + "s)");
+					variant = next;
+					currentBandwidth = variant.bandwidth;
+					//variants share sequence numbers, so reload the playlist and continue where we are
+					break;
+				}
+				if(!isRunning)
+					return;
+			}
+
+			if(media.isEndList && !fetchedAny)
+				return;
+			if(!fetchedAny){
+				//live playlist hasn't moved yet, wait for the server to publish the next segment
+				Thread.sleep((long) (media.targetDuration * 500));
+			}
+		}
+	}
+
+	//---the first segment to fetch from a live playlist, a few target durations behind its end---
+	private static long getLiveStartSequence(HlsPlaylist media){
+		double behind = 0;
+		for(int i = media.segments.size() - 1; i >= 0; i--){
+			behind += media.segments.get(i).duration;
+			if(behind >= LIVE_START_TARGET_DURATIONS * media.targetDuration)
+				return media.segments.get(i).sequence;
+		}
+		return -1;
+	}
+
+	/*
+	 * Queues segment for the player, trying again if it fails. Returns false if it was given up on, a
+	 * live segment may simply have rotated out of the playlist already, and one lost segment is only
+	 * a skip while giving up would end the whole stream.
+	 */
+	private boolean fetchSegment(HlsPlaylist.Segment segment) throws InterruptedException{
+		for(int attempt = 0; ; attempt++){
+			try{
+				fetchSegmentOnce(segment);
+				return true;
+			}
+			catch(IOException e){
+				if(attempt >= SEGMENT_RETRIES || !isRunning){
+					Log.i(TAG, "HlsStreamer.fetchSegment() - Skipping " + segment.url + ": " + e);
+					return false;
+				}
+			}
+		}
+	}
+
+	private void fetchSegmentOnce(HlsPlaylist.Segment segment) throws IOException, InterruptedException{
+		long start = SystemClock.elapsedRealtime();
+		HttpURLConnection conn = connector.open(segment.url, null);
+		SegmentBuffer data;
+		String contentType;
+		try{
+			contentType = conn.getContentType();
+			data = read(conn);
+		}
+		finally{
+			conn.disconnect();
+		}
+		long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+		long throughput = data.size() * 8L * 1000 / elapsed;
+		estimatedThroughput = estimatedThroughput == 0 ? throughput : (long) (THROUGHPUT_SMOOTHING * throughput + (1 - THROUGHPUT_SMOOTHING) * estimatedThroughput);
+
+		if(listener != null)
+			listener.onBytesReceived(url, data.size());
+		//counted before it is queued, so the streaming thread never takes it off first
+		prefetchedMillis.addAndGet((long) (segment.duration * 1000));
+		//the download's own array, not a copy of it
+		prefetched.put(new FetchedSegment(data.getBuffer(), data.size(), segment.duration, contentType));
+	}
+
+	private HlsPlaylist.Variant selectVariant(HlsPlaylist master, HlsPlaylist.Variant current){
+		if(current == null)
+			return null;
+
+		long usable = (long) (estimatedThroughput * BANDWIDTH_SAFETY);
+		double bufferedSeconds = getBufferedSeconds();
+		HlsPlaylist.Variant best = master.variants.get(0);
+		for(HlsPlaylist.Variant v : master.variants){
+			if(v.bandwidth <= usable)
+				best = v;
+		}
+
+		if(best.bandwidth > current.bandwidth && bufferedSeconds >= UP_SWITCH_BUFFER_SECONDS)
+			return best;
+		if(best.bandwidth < current.bandwidth && (current.bandwidth > estimatedThroughput || bufferedSeconds < PANIC_BUFFER_SECONDS))
+			return best;
+		return current;
+	}
+
+	private SegmentBuffer download(String url) throws IOException{
+		HttpURLConnection conn = connector.open(url, null);
+		try{
+			return read(conn);
+		}
+		finally{
+			conn.disconnect();
+		}
+	}
+
+	private static SegmentBuffer read(HttpURLConnection conn) throws IOException{
+		if(conn.getResponseCode() >= 400)
+			throw new IOException("HTTP " + conn.getResponseCode() + " for " + conn.getURL());
+		int length = conn.getContentLength();
+		SegmentBuffer out = new SegmentBuffer(length > 0 ? length : 64 * 1024);
+		InputStream in = conn.getInputStream();
+		byte[] buffer = BufferPool.acquire();
+		try{
+			int read;
+			while((read = in.read(buffer)) != -1){
+				out.write(buffer, 0, read);
+			}
+		}
+		finally{
+			BufferPool.release(buffer);
+		}
+		return out;
+	}
+}
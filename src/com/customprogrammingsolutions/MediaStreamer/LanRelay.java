@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Serves whatever live station is playing to other devices on the local network, over plain HTTP.
+ * Every listener reads the proxy's TimeShiftBuffer through its own Cursor, so the station is only
+ * connected to once and the audio is never copied per listener. The pump never waits for anyone:
+ * a listener that falls too far behind is moved up to the live edge, and one that keeps falling
+ * behind is dropped. So is one that stops reading altogether, which would otherwise block its
+ * write forever and hold on to one of the MAX_LISTENERS places.
+ */
+/*package*/ class LanRelay implements Runnable {
+	private final static String TAG = "MediaStreamer";
+
+	//the buffer kept for listeners when time-shift itself is off
+	public static final int BUFFER_SECONDS = 30;
+	public static final int DEFAULT_PORT = 8090;
+
+	private static final int MAX_LISTENERS = 8;
+	private static final int MAX_HEADER_LINE = 4096;
+	//new listeners start this far behind live so their player has something to buffer
+	private static final int START_BEHIND_SECONDS = 2;
+	//further behind than this and a listener is moved back up to live
+	private static final int MAX_LAG_SECONDS = 15;
+	//a listener that hasn't sent its request by then isn't going to
+	private static final int HEADER_TIMEOUT = 10000;
+	//how often blocked writes are looked for, a write blocked for MAX_LAG_SECONDS is given up on
+	private static final long WATCHDOG_INTERVAL = 1000;
+	private static final int MAX_RESYNCS = 3;
+	//how long a listener is kept waiting across a station change
+	private static final long SWITCH_WAIT = 10000;
+	private static final long SWITCH_POLL = 250;
+
+	private static final AtomicLong servedBytes = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong resyncs = new AtomicLong();
+
+	private final StreamProxy proxy;
+	private final int port;
+	private ServerSocket serverSocket;
+	private volatile boolean isRunning = false;
+	private Thread watchdogThread;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+
+	private static class Listener{
+		final Socket socket;
+		//when the write in progress started, 0 while the listener isn't being written to
+		volatile long writeStart = 0;
+
+		Listener(Socket socket){
+			this.socket = socket;
+		}
+	}
+
+	private final Runnable writeWatchdog = new Runnable(){
+		@Override
+		public void run(){
+			while(isRunning){
+				try{
+					Thread.sleep(WATCHDOG_INTERVAL);
+				}
+				catch(InterruptedException e){
+					return;
+				}
+				long now = SystemClock.elapsedRealtime();
+				synchronized(listeners){
+					for(Listener listener : listeners){
+						long start = listener.writeStart;
+						if(start > 0 && now - start > MAX_LAG_SECONDS * 1000L){
+							Log.i(TAG, "LanRelay - Dropping " + listener.socket.getInetAddress() + ", it stopped reading");
+							dropped.incrementAndGet();
+							listener.writeStart = 0;
+							//the blocked write fails and its thread cleans up
+							closeQuietly(listener.socket);
+						}
+					}
+				}
+			}
+		}
+	};
+
+	public LanRelay(StreamProxy proxy, int port){
+		this.proxy = proxy;
+		this.port = port;
+	}
+
+	public void start() throws IOException{
+		serverSocket = new ServerSocket(port, 8);
+		isRunning = true;
+		new Thread(this, "LanRelay").start();
+		watchdogThread = new Thread(writeWatchdog, "LanRelayWatchdog");
+		watchdogThread.start();
+		Log.i(TAG, "LanRelay.start() - Listening on port " + port);
+	}
+
+	public void stop(){
+		isRunning = false;
+		try{
+			if(serverSocket != null)
+				serverSocket.close();
+		}
+		catch(IOException e){
+			Log.e(TAG, "LanRelay.stop() - Error closing server socket", e);
+		}
+		if(watchdogThread != null)
+			watchdogThread.interrupt();
+		synchronized(listeners){
+			for(Listener listener : listeners){
+				closeQuietly(listener.socket);
+			}
+			listeners.clear();
+		}
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public int getListenerCount(){
+		synchronized(listeners){
+			return listeners.size();
+		}
+	}
+
+	public static long getServedBytes(){
+		return servedBytes.get();
+	}
+
+	public static long getDropped(){
+		return dropped.get();
+	}
+
+	public static long getResyncs(){
+		return resyncs.get();
+	}
+
+	@Override
+	public void run(){
+		while(isRunning){
+			final Socket client;
+			try{
+				client = serverSocket.accept();
+			}
+			catch(IOException e){
+				if(isRunning)
+					Log.e(TAG, "LanRelay.run() - Error accepting listener", e);
+				continue;
+			}
+			final Listener listener = new Listener(client);
+			synchronized(listeners){
+				if(listeners.size() >= MAX_LISTENERS){
+					respond(client, "503 Service Unavailable");
+					closeQuietly(client);
+					continue;
+				}
+				listeners.add(listener);
+			}
+			new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						serve(listener);
+					}
+					catch(SocketException e){
+						//the listener hung up, or the watchdog hung up on it
+					}
+					catch(SocketTimeoutException e){
+						Log.i(TAG, "LanRelay - " + client.getInetAddress() + " never sent its request");
+					}
+					catch(IOException e){
+						Log.e(TAG, "LanRelay - Error serving " + client.getInetAddress(), e);
+					}
+					finally{
+						synchronized(listeners){
+							listeners.remove(listener);
+						}
+						closeQuietly(client);
+					}
+				}
+			}, "LanRelayListener").start();
+		}
+	}
+
+	private void serve(Listener listener) throws IOException{
+		Socket client = listener.socket;
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		String line;
+		//the request itself doesn't matter, there is only the one stream
+		client.setSoTimeout(HEADER_TIMEOUT);
+		while((line = readLine(in)) != null && line.length() > 0);
+		client.setSoTimeout(0);
+
+		TimeShiftBuffer buffer = proxy.getTimeShift();
+		if(buffer == null || buffer.isClosed()){
+			respond(client, "503 Service Unavailable");
+			return;
+		}
+		StringBuilder response = new StringBuilder("HTTP/1.0 200 OK\r\n");
+		if(buffer.contentType != null)
+			response.append("Content-Type: ").append(buffer.contentType).append("\r\n");
+		response.append("Cache-Control: no-cache\r\nConnection: close\r\n\r\n");
+		OutputStream out = client.getOutputStream();
+		out.write(response.toString().getBytes("US-ASCII"));
+		Log.i(TAG, "LanRelay.serve() - " + client.getInetAddress() + " is listening to " + buffer.url);
+
+		TimeShiftBuffer.Cursor cursor = openNearLive(buffer, START_BEHIND_SECONDS);
+		byte[] chunk = BufferPool.acquire();
+		int listenerResyncs = 0;
+		int overruns = 0;
+		try{
+			while(isRunning){
+				int read = cursor.read(chunk, 0, chunk.length);
+				if(read == -1){
+					//the station changed or stopped, carry on with the next one if it comes soon
+					TimeShiftBuffer next = waitForNextBuffer(buffer);
+					if(next == null)
+						break;
+					buffer = next;
+					cursor = openNearLive(buffer, START_BEHIND_SECONDS);
+					overruns = 0;
+					continue;
+				}
+				listener.writeStart = SystemClock.elapsedRealtime();
+				out.write(chunk, 0, read);
+				listener.writeStart = 0;
+				servedBytes.addAndGet(read);
+
+				//a cursor the writer lapped has already skipped ahead on its own, that counts too
+				boolean isLapped = cursor.getOverruns() > overruns;
+				overruns = cursor.getOverruns();
+				if(isLapped || buffer.getHead() - cursor.getPosition() > MAX_LAG_SECONDS * buffer.getBytesPerSecond()){
+					if(++listenerResyncs > MAX_RESYNCS){
+						Log.i(TAG, "LanRelay.serve() - Dropping " + client.getInetAddress() + ", it can't keep up");
+						dropped.incrementAndGet();
+						return;
+					}
+					resyncs.incrementAndGet();
+					cursor = openNearLive(buffer, START_BEHIND_SECONDS);
+					overruns = 0;
+				}
+			}
+			out.flush();
+		}
+		catch(InterruptedException e){
+			//shutting down
+		}
+		finally{
+			BufferPool.release(chunk);
+		}
+	}
+
+	//---a buffer other than old with the same kind of audio, null if none shows up in time---
+	private TimeShiftBuffer waitForNextBuffer(TimeShiftBuffer old) throws InterruptedException{
+		for(long waited = 0; isRunning && waited < SWITCH_WAIT; waited += SWITCH_POLL){
+			TimeShiftBuffer next = proxy.getTimeShift();
+			if(next != null && next != old && !next.isClosed()){
+				//a player can't switch codecs mid-stream
+				boolean isSameType = next.contentType == null ? old.contentType == null : next.contentType.equals(old.contentType);
+				return isSameType ? next : null;
+			}
+			Thread.sleep(SWITCH_POLL);
+		}
+		return null;
+	}
+
+	private static TimeShiftBuffer.Cursor openNearLive(TimeShiftBuffer buffer, int seconds){
+		return buffer.openAlignedCursor(buffer.getHead() - seconds * buffer.getBytesPerSecond());
+	}
+
+	private static void respond(Socket client, String status){
+		try{
+			client.getOutputStream().write(("HTTP/1.0 " + status + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+		}
+		catch(IOException e){}
+	}
+
+	private static String readLine(InputStream in) throws IOException{
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while((c = in.read()) != -1){
+			if(c == '\n')
+				break;
+			if(c != '\r')
+				sb.append((char) c);
+			if(sb.length() > MAX_HEADER_LINE)
+				throw new IOException("Request header line too long");
+		}
+		if(c == -1 && sb.length() == 0)
+			return null;
+		return sb.toString();
+	}
+
+	private static void closeQuietly(Socket socket){
+		try{
+			socket.close();
+		}
+		catch(IOException e){}
+	}
+}
@@ -16,6 +16,8 @@
 
 package com.customprogrammingsolutions.MediaStreamer;
 
+import java.util.List;
+
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
@@ -28,6 +30,8 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
@@ -44,9 +48,11 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.Button;
 import android.widget.EditText;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
@@ -61,8 +67,43 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 	/*package*/ final static String STOP_INTENT = "com.customprogrammingsolutions.MediaStreamer.STOP";
 	/*package*/ final static String CANCEL_PLAYBACK_INTENT = "com.customprogrammingsolutions.MediaStreamer.CANCEL_PLAYBACK";
 	
+	/*package*/ final static String PAUSE_INTENT = "com.customprogrammingsolutions.MediaStreamer.PAUSE";
+	/*package*/ final static String RESUME_INTENT = "com.customprogrammingsolutions.MediaStreamer.RESUME";
+	/*package*/ final static String REWIND_INTENT = "com.customprogrammingsolutions.MediaStreamer.REWIND";
+	/*package*/ final static String LIVE_INTENT = "com.customprogrammingsolutions.MediaStreamer.LIVE";
+	
+	/*package*/ final static String RECORD_INTENT = "com.customprogrammingsolutions.MediaStreamer.RECORD";
+	/*package*/ final static String STOP_RECORDING_INTENT = "com.customprogrammingsolutions.MediaStreamer.STOP_RECORDING";
+	/*package*/ final static String RECORDING_INTENT = "com.customprogrammingsolutions.MediaStreamer.RECORDING";
+	
+	/*package*/ final static String SCAN_INTENT = "com.customprogrammingsolutions.MediaStreamer.SCAN";
+	/*package*/ final static String STOP_SCAN_INTENT = "com.customprogrammingsolutions.MediaStreamer.STOP_SCAN";
+	
+	/*package*/ final static String ENQUEUE_INTENT = "com.customprogrammingsolutions.MediaStreamer.ENQUEUE";
+	/*package*/ final static String PLAY_QUEUE_INTENT = "com.customprogrammingsolutions.MediaStreamer.PLAY_QUEUE";
+	/*package*/ final static String MOVE_QUEUE_ITEM_INTENT = "com.customprogrammingsolutions.MediaStreamer.MOVE_QUEUE_ITEM";
+	/*package*/ final static String REMOVE_QUEUE_ITEM_INTENT = "com.customprogrammingsolutions.MediaStreamer.REMOVE_QUEUE_ITEM";
+	/*package*/ final static String QUEUE_ITEM_EXTRA = "com.customprogrammingsolutions.MediaStreamer.QUEUE_ITEM_EXTRA";
+	/*package*/ final static String QUEUE_INDEX_EXTRA = "com.customprogrammingsolutions.MediaStreamer.QUEUE_INDEX_EXTRA";
+	
+	/*package*/ final static String CHECK_FAVORITES_INTENT = "com.customprogrammingsolutions.MediaStreamer.CHECK_FAVORITES";
+	/*package*/ final static String FAVORITES_CHECKED_INTENT = "com.customprogrammingsolutions.MediaStreamer.FAVORITES_CHECKED";
+	//a check asked for from the menu goes ahead even on mobile data
+	/*package*/ final static String MANUAL_EXTRA = "manual";
+	//how long a recording runs, 0 until it is stopped
+	/*package*/ final static String MINUTES_EXTRA = "com.customprogrammingsolutions.MediaStreamer.MINUTES_EXTRA";
+	
 	/*package*/ final static String KILL_SERVICE_INTENT = "com.customprogrammingsolutions.MediaStreamer.KILL_SERVICE";
 	
+	//other apps and home screen shortcuts start a station by sending this with one of the extras below (or URL_EXTRA)
+	public final static String PLAY_STATION_ACTION = "com.customprogrammingsolutions.MediaStreamer.action.PLAY_STATION";
+	public final static String FAVORITE_ID_EXTRA = "com.customprogrammingsolutions.MediaStreamer.extra.FAVORITE_ID";
+	public final static String FAVORITE_NAME_EXTRA = "com.customprogrammingsolutions.MediaStreamer.extra.FAVORITE_NAME";
+	public final static String RECENT_ID_EXTRA = "com.customprogrammingsolutions.MediaStreamer.extra.RECENT_ID";
+	//what those turn into on the way to the service
+	/*package*/ final static String PLAY_STATION_INTENT = "com.customprogrammingsolutions.MediaStreamer.PLAY_STATION";
+	private final static String INSTALL_SHORTCUT_INTENT = "com.android.launcher.action.INSTALL_SHORTCUT";
+	
 	/*package*/ final static String URL_EXTRA = "com.customprogrammingsolutions.MediaStreamer.URL_EXTRA";
 	/*package*/ final static String ERROR_EXTRA = "com.customprogrammingsolutions.MediaStreamer.ERROR_EXTRA";
 
@@ -73,11 +114,46 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 	/*package*/ final static String ERROR_INTENT = "com.customprogrammingsolutions.MediaStreamer.ERROR";
 	/*package*/ final static String CLEAR_ERROR_INTENT = "com.customprogrammingsolutions.MediaStreamer.CLEAR_ERROR";
 	
+	/*package*/ final static String TIME_SHIFT_INTENT = "com.customprogrammingsolutions.MediaStreamer.TIME_SHIFT";
+	/*package*/ final static String SECONDS_EXTRA = "com.customprogrammingsolutions.MediaStreamer.SECONDS_EXTRA";
+	
+	/*package*/ final static String METADATA_INTENT = "com.customprogrammingsolutions.MediaStreamer.METADATA";
+	/*package*/ final static String TITLE_EXTRA = "com.customprogrammingsolutions.MediaStreamer.TITLE_EXTRA";
+	
+	//elapsedRealtime() of the tap that asked for playback, for time to audio
+	/*package*/ final static String TAP_TIME_EXTRA = "com.customprogrammingsolutions.MediaStreamer.TAP_TIME_EXTRA";
+	
 	private final static String TAG = "MediaStreamer";
 	
+	//the overlay is for poking at a misbehaving device, once a second is plenty
+	private final static long STATS_REFRESH_INTERVAL = 1000;
+	
 	private EditText urlBar;
 	private TextView errorText;
+	private TextView nowPlayingText;
 	private ImageButton mediaStateButton;
+	private TextView statsOverlay;
+	private View timeShiftControls;
+	private Button rewindButton, pauseButton, liveButton;
+	
+	private final Handler handler = new Handler();
+	private boolean isResumed = false;
+	
+	private final Runnable statsRefresh = new Runnable(){
+		@Override
+		public void run() {
+			//the counters live in the playback process, the answer comes back as DIAGNOSTICS_INTENT
+			if(!PlaybackState.checkAlive(MainActivity.this)){
+				setMediaStateButton();
+				setTimeShiftControls();
+				setNowPlaying(PlaybackState.getNowPlaying());
+			}
+			else if(PlaybackState.isRunning())
+				sendBroadcast(new Intent(PlaybackState.REQUEST_DIAGNOSTICS_INTENT), PlaybackState.PERMISSION);
+			statsOverlay.setText(PlaybackState.getDiagnostics());
+			handler.postDelayed(this, STATS_REFRESH_INTERVAL);
+		}
+	};
 	
 	private boolean isPlayDrawable;
 	private boolean receivedError = false;
@@ -87,11 +163,42 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 	private TabHost tabHost;
 	private ListView recents, favorites;
 	private SimpleCursorAdapter recentsAdapter, favoritesAdapter;
+	
+	//cold start: last time's rows go up at once, the databases aren't touched until the first frame is drawn
+	private StartupSnapshot startupSnapshot;
+	private long createTime;
+	private boolean isFirstFrameDrawn = false;
+	private boolean isColdStartLogged = false;
+	private boolean isFavoritesLoaderStarted = false;
+	
+	private final Runnable startLoaders = new Runnable(){
+		@Override
+		public void run() {
+			isFirstFrameDrawn = true;
+			Log.i(TAG, "MainActivity - First frame drawn " + (SystemClock.elapsedRealtime() - createTime) + "ms after onCreate()");
+			getSupportLoaderManager().initLoader(0, null, MainActivity.this);
+			if(favorites != null)
+				startFavoritesLoader();
+		}
+	};
 
 	private BroadcastReceiver mReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			if(intent.getAction() == ERROR_INTENT){
+			//everything from the service carries its whole state
+			PlaybackState.read(intent);
+			if(intent.getAction() == PlaybackState.STATE_INTENT){
+				//the url bar is left alone, the user may be typing the next station into it
+				setMediaStateButton();
+				setTimeShiftControls();
+				setNowPlaying(PlaybackState.getNowPlaying());
+				return;
+			}
+			else if(intent.getAction() == PlaybackState.DIAGNOSTICS_INTENT){
+				statsOverlay.setText(PlaybackState.getDiagnostics());
+				return;
+			}
+			else if(intent.getAction() == ERROR_INTENT){
 				Log.i(TAG, "MainActivity.mReceiver received an error!");
 				int error = intent.getIntExtra(ERROR_EXTRA, MediaStreamerService.MEDIA_PLAYER_ERROR);
 				switch(error){
@@ -101,6 +208,9 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 					case MediaStreamerService.AUDIO_FOCUS_DENIED_ERROR:
 						errorText.setText(R.string.audio_focus_denied_error);
 						break;
+					case MediaStreamerService.UNSUPPORTED_CONTENT_ERROR:
+						errorText.setText(R.string.unsupported_content_error);
+						break;
 					default:
 						errorText.setText(R.string.media_player_error);
 						break;
@@ -117,8 +227,28 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 			else if(intent.getAction() == STOPPED_PLAYBACK_INTENT){
 				Log.i(TAG, "MainActivity.mReceiver received a stopped playback!");
 			}
+			else if(intent.getAction() == METADATA_INTENT){
+				setNowPlaying(intent.getStringExtra(TITLE_EXTRA));
+				return;
+			}
+			else if(intent.getAction() == TIME_SHIFT_INTENT){
+				setTimeShiftControls();
+				return;
+			}
+			else if(intent.getAction() == RECORDING_INTENT){
+				supportInvalidateOptionsMenu();
+				return;
+			}
+			else if(intent.getAction() == FAVORITES_CHECKED_INTENT){
+				supportInvalidateOptionsMenu();
+		        getSupportLoaderManager().restartLoader(1, null, MainActivity.this);
+				return;
+			}
 			else if(intent.getAction() == STARTED_PLAYBACK_INTENT){
 				Log.i(TAG, "MainActivity.mReceiver received a started playback!");
+				//a scan moves on by itself, show which station it is on
+				if(PlaybackState.isScanning())
+					urlBar.setText(PlaybackState.getUrlToStream());
 				getSupportLoaderManager().restartLoader(0, null, MainActivity.this);
 		        getSupportLoaderManager().restartLoader(1, null, MainActivity.this);
 			}
@@ -129,13 +259,33 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createTime = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_main);
         
         urlBar = (EditText) findViewById(R.id.url_bar);
         errorText = (TextView) findViewById(R.id.stream_error_text);
+        nowPlayingText = (TextView) findViewById(R.id.now_playing_text);
         mediaStateButton = (ImageButton) findViewById(R.id.media_state_indicator_button);
         
+        statsOverlay = (TextView) findViewById(R.id.stats_overlay);
+        timeShiftControls = findViewById(R.id.time_shift_controls);
+        rewindButton = (Button) findViewById(R.id.time_shift_rewind_button);
+        pauseButton = (Button) findViewById(R.id.time_shift_pause_button);
+        liveButton = (Button) findViewById(R.id.time_shift_live_button);
+        
         mediaStateButton.setOnClickListener(this);
+        rewindButton.setOnClickListener(this);
+        pauseButton.setOnClickListener(this);
+        liveButton.setOnClickListener(this);
+        //hidden on purpose, long pressing the play button toggles the stats overlay
+        mediaStateButton.setOnLongClickListener(new OnLongClickListener(){
+			@Override
+			public boolean onLongClick(View v) {
+				statsOverlay.setVisibility(statsOverlay.getVisibility() == View.VISIBLE ? View.GONE : View.VISIBLE);
+				updateStatsRefresh();
+				return true;
+			}
+        });
         
         pd = new ProgressDialog(this);
         pd.setTitle("Connecting");
@@ -156,12 +306,59 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
         myActions.addAction(CLEAR_ERROR_INTENT);
         myActions.addAction(STOPPED_PLAYBACK_INTENT);
         myActions.addAction(STARTED_PLAYBACK_INTENT);
-        registerReceiver(mReceiver, myActions);
+        myActions.addAction(METADATA_INTENT);
+        myActions.addAction(TIME_SHIFT_INTENT);
+        myActions.addAction(RECORDING_INTENT);
+        myActions.addAction(FAVORITES_CHECKED_INTENT);
+        myActions.addAction(PlaybackState.STATE_INTENT);
+        myActions.addAction(PlaybackState.DIAGNOSTICS_INTENT);
+        //only the app itself can send these, they say what is playing
+        registerReceiver(mReceiver, myActions, PlaybackState.PERMISSION, null);
+        //a running service answers with what it is playing, one that isn't running leaves the state as it is
+        sendBroadcast(new Intent(PlaybackState.REQUEST_STATE_INTENT), PlaybackState.PERMISSION);
+        
+        FavoritesHealthService.schedule(this);
         
         setUpTabs();  
         
         registerForContextMenu(recents);
-        registerForContextMenu(favorites);
+        
+        showStartupSnapshot();
+        getWindow().getDecorView().post(new Runnable(){
+			@Override
+			public void run() {
+				//this runs as part of the first layout, posting again waits until that frame is drawn
+				handler.post(startLoaders);
+			}
+        });
+    }
+    
+    //---puts up the rows saved last time, they are replaced as soon as the real queries finish---
+    private void showStartupSnapshot(){
+    	Tracing.begin("MainActivity.showStartupSnapshot");
+    	try{
+	    	startupSnapshot = new StartupSnapshot(this);
+	    	List<Cursor> lists = startupSnapshot.read();
+	    	if(lists == null || lists.size() != 2)
+	    		return;
+	    	//an empty list has no columns for the adapter to bind
+	    	if(lists.get(0).getCount() > 0)
+	    		recentsAdapter.swapCursor(lists.get(0));
+	    	if(lists.get(1).getCount() > 0)
+	    		favoritesAdapter.swapCursor(lists.get(1));
+	    	Log.i(TAG, "MainActivity.showStartupSnapshot() - Showing " + lists.get(0).getCount() + " recents and " + lists.get(1).getCount() + " favorites from the snapshot");
+    	}
+    	finally{
+    		Tracing.end();
+    	}
+    }
+    
+    //---the favorites tab is only built the first time it is shown---
+    private void startFavoritesLoader(){
+    	if(isFavoritesLoaderStarted)
+    		return;
+    	isFavoritesLoaderStarted = true;
+    	getSupportLoaderManager().initLoader(1, null, this);
     }
     
     @Override
@@ -170,53 +367,84 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 		
         sendBroadcast(new Intent(Intent.ACTION_CLOSE_SYSTEM_DIALOGS));
 		
+		//the playback process may have been killed while the activity was away
+		PlaybackState.checkAlive(this);
 		setMediaStateRepresentation();
+		setNowPlaying(PlaybackState.getNowPlaying());
 		
-		if(MediaStreamerService.isStreamError()){
+		if(PlaybackState.isStreamError()){
 			errorText.setVisibility(View.VISIBLE);
 		}
 		else{
 			errorText.setVisibility(View.INVISIBLE);
 		}
+		
+		isResumed = true;
+		updateStatsRefresh();
     }
     
     @Override
 	public void onClick(View v) {
 		if(v == mediaStateButton){
-			if(isPlayDrawable){
-				String urlToStream = urlBar.getText().toString().trim();
-				if(urlToStream.compareTo("") == 0){
-					Toast.makeText(MainActivity.this, getString(R.string.error_empty_url), Toast.LENGTH_SHORT).show();
-					return;
-				}
-				else if(!urlToStream.startsWith("http://") && !urlToStream.startsWith("rtsp://")){
-					Toast.makeText(MainActivity.this, getString(R.string.error_invalid_url), Toast.LENGTH_SHORT).show();
-					return;
-				}
-				
-				//reset this here for the loop in WaitForStreamConnectionTask
-				receivedError = false;
-				
-				Activity act = MainActivity.this;
-				WaitForStreamConnectionTask t = new WaitForStreamConnectionTask(act, urlToStream);
-				t.start();
+			Tracing.begin("MainActivity.onClick");
+			try{
+				onMediaStateClick();
 			}
-			else{
-				isPlayDrawable = true;
-				mediaStateButton.setImageResource(R.drawable.play_button);
-				startService(new Intent(STOP_INTENT));
+			finally{
+				Tracing.end();
 			}
 		}
+		else if(v == rewindButton){
+			Intent i = new Intent(REWIND_INTENT);
+			i.putExtra(SECONDS_EXTRA, 30);
+			startService(i);
+		}
+		else if(v == pauseButton){
+			startService(new Intent(PlaybackState.isPaused() ? RESUME_INTENT : PAUSE_INTENT));
+		}
+		else if(v == liveButton){
+			startService(new Intent(LIVE_INTENT));
+		}
 	}
     
+    private void onMediaStateClick(){
+		long tapTime = SystemClock.elapsedRealtime();
+		if(isPlayDrawable){
+			String urlToStream = urlBar.getText().toString().trim();
+			if(urlToStream.compareTo("") == 0){
+				Toast.makeText(MainActivity.this, getString(R.string.error_empty_url), Toast.LENGTH_SHORT).show();
+				return;
+			}
+			else if(!urlToStream.startsWith("http://") && !urlToStream.startsWith("https://") && !urlToStream.startsWith("rtsp://")){
+				Toast.makeText(MainActivity.this, getString(R.string.error_invalid_url), Toast.LENGTH_SHORT).show();
+				return;
+			}
+			
+			//reset this here for the loop in WaitForStreamConnectionTask
+			receivedError = false;
+			
+			Activity act = MainActivity.this;
+			WaitForStreamConnectionTask t = new WaitForStreamConnectionTask(act, urlToStream, tapTime);
+			t.start();
+		}
+		else{
+			isPlayDrawable = true;
+			mediaStateButton.setImageResource(R.drawable.play_button);
+			startService(new Intent(STOP_INTENT));
+		}
+    }
+    
     private void setMediaStateRepresentation(){
-    	if(MediaStreamerService.isPlaying()){
+    	setMediaStateButton();
+    	if(PlaybackState.isPlaying())
+			urlBar.setText(PlaybackState.getUrlToStream());
+    	setTimeShiftControls();
+    }
+    
+    private void setMediaStateButton(){
+    	if(PlaybackState.isPlaying()){
 			mediaStateButton.setImageResource(R.drawable.stop_button);
 			isPlayDrawable = false;
-			String urlToStream = MediaStreamerService.getUrlToStream();
-			if(urlToStream == null)
-				urlToStream = "";
-			urlBar.setText(urlToStream);
 		}
 		else{
 			mediaStateButton.setImageResource(R.drawable.play_button);
@@ -224,9 +452,45 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 		}
     }
     
+    private void setTimeShiftControls(){
+    	if(PlaybackState.isPlaying() && PlaybackState.isTimeShiftAvailable()){
+    		pauseButton.setText(PlaybackState.isPaused() ? R.string.time_shift_resume : R.string.time_shift_pause);
+    		timeShiftControls.setVisibility(View.VISIBLE);
+    	}
+    	else{
+    		timeShiftControls.setVisibility(View.GONE);
+    	}
+    }
+    
+    //---only refreshes the overlay while it is showing and the activity is in front---
+    private void updateStatsRefresh(){
+    	handler.removeCallbacks(statsRefresh);
+    	if(isResumed && statsOverlay.getVisibility() == View.VISIBLE)
+    		statsRefresh.run();
+    }
+    
+    private void setNowPlaying(String title){
+    	if(title == null || title.length() == 0){
+    		nowPlayingText.setVisibility(View.GONE);
+    	}
+    	else{
+    		nowPlayingText.setText(title);
+    		nowPlayingText.setVisibility(View.VISIBLE);
+    	}
+    }
+    
     @Override
     public void onPause(){
     	super.onPause();
+    	isResumed = false;
+    	updateStatsRefresh();
+    }
+    
+    @Override
+    public void onStop(){
+    	super.onStop();
+    	//whatever is showing now is what the next cold start shows first
+    	startupSnapshot.save(new Cursor[] {recentsAdapter.getCursor(), favoritesAdapter.getCursor()});
     }
     
     @Override
@@ -246,6 +510,14 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
         return true;
     }
     
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+    	menu.findItem(R.id.menu_record).setTitle(PlaybackState.isRecording() ? R.string.menu_stop_recording : R.string.menu_record);
+    	menu.findItem(R.id.menu_check_favorites).setEnabled(!FavoritesHealthService.isChecking());
+    	menu.findItem(R.id.menu_scan).setTitle(PlaybackState.isScanning() ? R.string.menu_stop_scan : R.string.menu_scan);
+    	return super.onPrepareOptionsMenu(menu);
+    }
+    
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -255,6 +527,37 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
         	case R.id.menu_add_favorite:
         		showFavoritesDialog(false, true, false, "", "", -1);
         		break;
+        	case R.id.menu_record:
+        		if(PlaybackState.isRecording()){
+        			startService(new Intent(STOP_RECORDING_INTENT));
+        			break;
+        		}
+        		String url = urlBar.getText().toString().trim();
+        		if(!url.startsWith("http://") && !url.startsWith("https://")){
+        			Toast.makeText(MainActivity.this, getString(url.length() == 0 ? R.string.error_empty_url : R.string.error_invalid_url), Toast.LENGTH_SHORT).show();
+        			break;
+        		}
+        		Intent i = new Intent(RECORD_INTENT);
+        		i.putExtra(URL_EXTRA, url);
+        		startService(i);
+        		break;
+        	case R.id.menu_schedule_recording:
+        		showRecordingDialog(urlBar.getText().toString().trim());
+        		break;
+        	case R.id.menu_play_queue:
+        		Intent playQueue = new Intent(PLAY_QUEUE_INTENT);
+        		playQueue.putExtra(TAP_TIME_EXTRA, SystemClock.elapsedRealtime());
+        		startService(playQueue);
+        		break;
+        	case R.id.menu_scan:
+        		startService(new Intent(PlaybackState.isScanning() ? STOP_SCAN_INTENT : SCAN_INTENT));
+        		break;
+        	case R.id.menu_check_favorites:
+        		Intent check = new Intent(CHECK_FAVORITES_INTENT);
+        		check.putExtra(MANUAL_EXTRA, true);
+        		startService(check);
+        		Toast.makeText(MainActivity.this, getString(R.string.checking_favorites), Toast.LENGTH_SHORT).show();
+        		break;
         }
         return true;
     }
@@ -294,6 +597,14 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
       		getSupportLoaderManager().restartLoader(0, null, MainActivity.this);
 	        getSupportLoaderManager().restartLoader(1, null, MainActivity.this);
     	  return true;
+      	case R.id.add_recent_to_queue:
+      		url = ((TextView)recents.getChildAt(info.position).findViewById(R.id.recent_url)).getText().toString();
+      		enqueue(url);
+      		return true;
+      	case R.id.add_favorite_to_queue:
+      		url = ((TextView)favorites.getChildAt(info.position).findViewById(R.id.favorite_url)).getText().toString();
+      		enqueue(url);
+      		return true;
       	case R.id.add_recent_to_favorites:
       		url = ((TextView)recents.getChildAt(info.position).findViewById(R.id.recent_url)).getText().toString();
       		showFavoritesDialog(true, false, false, "", url, -1);
@@ -304,11 +615,26 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
       		rowId = Long.parseLong(((TextView)favorites.getChildAt(info.position).findViewById(R.id.favorite_row_id)).getText().toString());
       		showFavoritesDialog(false, false, true, name, url, rowId);
       		return true;
+      	case R.id.add_favorite_shortcut:
+      		name = ((TextView)favorites.getChildAt(info.position).findViewById(R.id.favorite_name)).getText().toString();
+      		rowId = Long.parseLong(((TextView)favorites.getChildAt(info.position).findViewById(R.id.favorite_row_id)).getText().toString());
+      		addShortcut(rowId, name);
+      		return true;
+      	case R.id.schedule_favorite_recording:
+      		url = ((TextView)favorites.getChildAt(info.position).findViewById(R.id.favorite_url)).getText().toString();
+      		showRecordingDialog(url);
+      		return true;
       	default:
       		return super.onContextItemSelected(item);
       }
     }
     
+    private void enqueue(String url){
+    	Intent i = new Intent(ENQUEUE_INTENT);
+    	i.putExtra(URL_EXTRA, url);
+    	startService(i);
+    }
+    
     private void showFavoritesDialog(boolean addFromRecents, boolean addFromUser, boolean edit, String name, String url, long rowId){
     	FragmentManager fragmentManager = getSupportFragmentManager();
         FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
@@ -320,19 +646,72 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
         favoritesDialog.show(fragmentTransaction, "favorite_dialog");
     }
     
+    private void showRecordingDialog(String url){
+    	FragmentManager fragmentManager = getSupportFragmentManager();
+        FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
+        RecordingDialog tPrev =  (RecordingDialog) fragmentManager.findFragmentByTag("recording_dialog");
+        if(tPrev!=null)
+            fragmentTransaction.remove(tPrev);
+        
+        RecordingDialog recordingDialog = RecordingDialog.newInstance(url);
+        recordingDialog.show(fragmentTransaction, "recording_dialog");
+    }
+    
+    //---what the last health check found, nothing if it never ran---
+    private void setFavoriteStatus(TextView view, Cursor cursor){
+    	int status = cursor.getInt(FavoritesDBHelper.COLUMN_STATUS);
+    	if(status == FavoritesDBHelper.STATUS_UNKNOWN){
+    		view.setVisibility(View.GONE);
+    		return;
+    	}
+    	view.setVisibility(View.VISIBLE);
+    	if(status == FavoritesDBHelper.STATUS_DEAD){
+    		view.setText(R.string.favorite_status_dead);
+    		return;
+    	}
+    	StringBuilder sb = new StringBuilder(getString(R.string.favorite_status_reachable));
+    	long latency = cursor.getLong(FavoritesDBHelper.COLUMN_LATENCY);
+    	if(latency >= 0)
+    		sb.append(" \u00b7 ").append(latency).append(" ms");
+    	int bitrate = cursor.getInt(FavoritesDBHelper.COLUMN_BITRATE);
+    	if(bitrate > 0)
+    		sb.append(" \u00b7 ").append(bitrate).append(" kbps");
+    	view.setText(sb.toString());
+    }
+    
+    //---a home screen icon that starts the favorite without opening the app---
+    private void addShortcut(long rowId, String name){
+    	Intent shortcut = new Intent(this, PlayShortcutActivity.class);
+    	shortcut.setAction(PLAY_STATION_ACTION);
+    	shortcut.putExtra(FAVORITE_ID_EXTRA, rowId);
+    	
+    	Intent install = new Intent(INSTALL_SHORTCUT_INTENT);
+    	install.putExtra(Intent.EXTRA_SHORTCUT_INTENT, shortcut);
+    	install.putExtra(Intent.EXTRA_SHORTCUT_NAME, name);
+    	install.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, Intent.ShortcutIconResource.fromContext(this, R.drawable.ic_launcher));
+    	sendBroadcast(install);
+    	Toast.makeText(MainActivity.this, getString(R.string.shortcut_added, name), Toast.LENGTH_SHORT).show();
+    }
+    
     private void setUpTabs(){
         Resources res = getResources();
         tabHost = (TabHost) findViewById(R.id.tabhost);
         tabHost.setup();
         
         recentsAdapter = new SimpleCursorAdapter(this, R.layout.recent_item_layout, null, new String[] {RecentsDBHelper.KEY_URL}, new int[] {R.id.recent_url}, 0);
-        favoritesAdapter = new SimpleCursorAdapter(this, R.layout.favorite_item_layout, null, new String[] {FavoritesDBHelper.KEY_URL, FavoritesDBHelper.KEY_NAME, FavoritesDBHelper.KEY_ROWID}, new int[] {R.id.favorite_url, R.id.favorite_name, R.id.favorite_row_id}, 0);
+        favoritesAdapter = new SimpleCursorAdapter(this, R.layout.favorite_item_layout, null, new String[] {FavoritesDBHelper.KEY_URL, FavoritesDBHelper.KEY_NAME, FavoritesDBHelper.KEY_ROWID, FavoritesDBHelper.KEY_STATUS}, new int[] {R.id.favorite_url, R.id.favorite_name, R.id.favorite_row_id, R.id.favorite_status}, 0);
+        favoritesAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder(){
+			@Override
+			public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+				if(view.getId() != R.id.favorite_status)
+					return false;
+				setFavoriteStatus((TextView) view, cursor);
+				return true;
+			}
+        });
         recents = (ListView) findViewById(R.id.recents_tab);
         recents.setLayoutParams(new FrameLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-        favorites = (ListView) findViewById(R.id.favorites_tab);
-        favorites.setLayoutParams(new FrameLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
         recents.setAdapter(recentsAdapter);
-        favorites.setAdapter(favoritesAdapter);
         
         recents.setOnItemClickListener(new OnItemClickListener(){
 
@@ -353,6 +732,22 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
         	
         });
         
+        TabHost.TabSpec spec;  // Resusable TabSpec for each tab
+        spec = tabHost.newTabSpec("recents").setIndicator("Recents", res.getDrawable(R.drawable.ic_action_search)).setContent(R.id.recents_tab);
+        tabHost.addTab(spec);
+        spec = tabHost.newTabSpec("favorites").setIndicator("Favorites", res.getDrawable(R.drawable.ic_action_search)).setContent(new TabHost.TabContentFactory(){
+			@Override
+			public View createTabContent(String tag) {
+				return createFavoritesList();
+			}
+        });
+        tabHost.addTab(spec);
+    }
+    
+    private ListView createFavoritesList(){
+        favorites = new ListView(this);
+        favorites.setAdapter(favoritesAdapter);
+        
         favorites.setOnItemClickListener(new OnItemClickListener(){
 
 			@Override
@@ -371,15 +766,12 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 			}
         	
         });
+        registerForContextMenu(favorites);
         
-        getSupportLoaderManager().initLoader(0, null, this);
-        getSupportLoaderManager().initLoader(1, null, this);
-        
-        TabHost.TabSpec spec;  // Resusable TabSpec for each tab
-        spec = tabHost.newTabSpec("recents").setIndicator("Recents", res.getDrawable(R.drawable.ic_action_search)).setContent(R.id.recents_tab);
-        tabHost.addTab(spec);
-        spec = tabHost.newTabSpec("favorites").setIndicator("Favorites", res.getDrawable(R.drawable.ic_action_search)).setContent(R.id.favorites_tab);
-        tabHost.addTab(spec);
+        //before the first frame is drawn startLoaders takes care of it
+        if(isFirstFrameDrawn)
+        	startFavoritesLoader();
+        return favorites;
     }
     
 	@Override
@@ -387,10 +779,13 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 		CursorLoader loader = null;;
 		if(id == 0){
 			loader = new CursorLoader(MainActivity.this) {
-				final RecentsDBHelper rdb = new RecentsDBHelper(MainActivity.this).open();      
+				//opened on the loader's thread, not the main thread
+				private RecentsDBHelper rdb;
 	        	@Override
 	        	public Cursor loadInBackground() {
 	        		Cursor c = null;
+	        		if(rdb == null)
+	        			rdb = new RecentsDBHelper(MainActivity.this).open();
 	        		c = rdb.getAllRecents();
 	        		return c;
 	        	}
@@ -399,10 +794,12 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 		}
 		else if(id == 1){
 			loader = new CursorLoader(MainActivity.this) {
-				final FavoritesDBHelper fdb = new FavoritesDBHelper(MainActivity.this).open();      
+				private FavoritesDBHelper fdb;
 	        	@Override
 	        	public Cursor loadInBackground() {
 	        		Cursor c = null;
+	        		if(fdb == null)
+	        			fdb = new FavoritesDBHelper(MainActivity.this).open();
 	        		c = fdb.getAllFavorites();
 	        		return c;
 	        	}
@@ -417,6 +814,10 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 	public void onLoadFinished(Loader<Cursor> loader, Cursor c) {
 		if(loader.getId() == 0){
 			recentsAdapter.swapCursor(c);
+			if(!isColdStartLogged){
+				isColdStartLogged = true;
+				Log.i(TAG, "MainActivity.onLoadFinished() - Recents loaded " + (SystemClock.elapsedRealtime() - createTime) + "ms after onCreate()");
+			}
 		}
 		else if(loader.getId() == 1){
 			favoritesAdapter.swapCursor(c);
@@ -436,28 +837,46 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
     private class WaitForStreamConnectionTask extends Thread{
     	private Activity act;
     	private String urlToStream;
+    	private long tapTime;
     	private int timer = 0;
+    	//WaitForStreamConnectionTask checks for a connection every TICK milliseconds
+    	private static final int TICK = 500;
     	
-    	public WaitForStreamConnectionTask(Activity act, String urlToStream){
+    	public WaitForStreamConnectionTask(Activity act, String urlToStream, long tapTime){
     		this.act = act;
     		this.urlToStream = urlToStream;
+    		this.tapTime = tapTime;
     	}
     	
 		@Override
 		public void run(){
+			long sendTime = SystemClock.elapsedRealtime();
 			act.runOnUiThread(new Runnable(){
 				@Override
 				public void run(){
+					Tracing.begin("MainActivity.sendPlayIntent");
 					pd.show();
 					Log.i(TAG, "WaitForStreamConnectionTask.run() - Sending play intent with " + urlToStream + " url");
 		        	Intent playIntent = new Intent(PLAY_INTENT);
 					playIntent.putExtra(URL_EXTRA, urlToStream);
+					playIntent.putExtra(TAP_TIME_EXTRA, tapTime);
 					startService(playIntent);
+					Tracing.end();
 				}
 			});
 			
-			while(!MediaStreamerService.isPlaying()){
-				/*if(MediaStreamerService.isStreamError()){
+			//the service starts connecting while the timeout is looked up, nothing waits on the database
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
+			long defaultTimeout = Integer.parseInt(prefs.getString(getString(R.string.pref_timeout_key), getString(R.string.pref_timeout_default))) * (long) TICK;
+			RecentsDBHelper rdb = new RecentsDBHelper(MainActivity.this).open();
+			long stationTimeout = rdb.getConnectTimeout(urlToStream, defaultTimeout);
+			rdb.close();
+			//the time the lookup took already counts against it
+			int timeout = (int) ((stationTimeout - (SystemClock.elapsedRealtime() - sendTime) + TICK - 1) / TICK);
+			Log.i(TAG, "WaitForStreamConnectionTask.run() - Using a " + stationTimeout + "ms timeout for " + urlToStream);
+			
+			while(!PlaybackState.isPlaying()){
+				/*if(PlaybackState.isStreamError()){
 					act.runOnUiThread(new Runnable(){
 						@Override
 						public void run(){
@@ -470,11 +889,9 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 				if(receivedError)
 					return;
 				
-				try {Thread.sleep(500);}catch(InterruptedException e){}
+				try {Thread.sleep(TICK);}catch(InterruptedException e){}
 				timer++;
 				
-				SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
-				int timeout = Integer.parseInt(prefs.getString(getString(R.string.pref_timeout_key), getString(R.string.pref_timeout_default)));
 				if(timer >= timeout){
 					act.runOnUiThread(new Runnable(){
 						@Override
@@ -482,7 +899,7 @@ public class MainActivity extends FragmentActivity implements OnClickListener, L
 							if(pd.isShowing())
 								pd.dismiss();
 							Toast.makeText(act, getString(R.string.connection_timeout_msg), Toast.LENGTH_LONG).show();
-							act.sendBroadcast(new Intent(MainActivity.PLAYBACK_TIMEOUT_INTENT));
+							act.sendBroadcast(new Intent(MainActivity.PLAYBACK_TIMEOUT_INTENT), PlaybackState.PERMISSION);
 						}
 					});
 					return;
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * On-disk cache of on-demand media (podcasts, files - never live streams) for the proxy. Each
+ * resource is one sparse data file holding whichever byte ranges have been fetched so far, plus a
+ * small index file listing those ranges. Entries are keyed by url and the ETag or Last-Modified the
+ * server sent, so a changed file is never served from an old copy.
+ * Total size is bounded; least recently used entries are evicted on a background thread.
+ */
+/*package*/ class MediaCache {
+	private final static String TAG = "MediaStreamer";
+
+	private static final String DATA_SUFFIX = ".data";
+	private static final String INDEX_SUFFIX = ".index";
+
+	//bytes served from disk and from the network, for the hit ratio
+	private static final AtomicLong hitBytes = new AtomicLong();
+	private static final AtomicLong missBytes = new AtomicLong();
+	//the newest cache, what the diagnostics report the size of
+	private static volatile MediaCache current;
+
+	//what this cache holds on disk; not static, a process can outlive one cache and load the next
+	private final AtomicLong cachedBytes = new AtomicLong();
+
+	private final File dir;
+	private final long maxSize;
+	private final HandlerThread thread;
+	private final Handler handler;
+
+	//access ordered, the eldest is the least recently used; guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private boolean isLoaded = false;
+
+	private final Runnable trim = new Runnable(){
+		@Override
+		public void run() {
+			trimToSize();
+		}
+	};
+
+	/*package*/ class Entry{
+		public final String url;
+		public final String validator;
+		public final long length;
+		public final String contentType;
+		private final String key;
+		private final File dataFile;
+		private final File indexFile;
+
+		//cached ranges, start to end (exclusive), never overlapping or touching; all guarded by this
+		private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+		private long size = 0;
+		private RandomAccessFile data;
+		private int users = 0;
+		private boolean isEvicted = false;
+		private boolean isDirty = false;
+
+		private Entry(String key, String url, String validator, long length, String contentType){
+			this.key = key;
+			this.url = url;
+			this.validator = validator;
+			this.length = length;
+			this.contentType = contentType;
+			dataFile = new File(dir, key + DATA_SUFFIX);
+			indexFile = new File(dir, key + INDEX_SUFFIX);
+		}
+
+		//---where the cached run containing position ends, or position itself if it isn't cached---
+		public synchronized long getCachedEnd(long position){
+			Long start = floorKey(position);
+			if(start == null || ranges.get(start) <= position)
+				return position;
+			return ranges.get(start);
+		}
+
+		//---the start of the next cached run after position, length if there is none---
+		public synchronized long getNextCachedStart(long position){
+			SortedMap<Long, Long> after = ranges.tailMap(position + 1);
+			return after.isEmpty() ? length : after.firstKey();
+		}
+
+		public synchronized int read(long position, byte[] buffer, int count) throws IOException{
+			count = (int) Math.min(count, getCachedEnd(position) - position);
+			if(count <= 0)
+				return 0;
+			RandomAccessFile file = getData();
+			file.seek(position);
+			file.readFully(buffer, 0, count);
+			hitBytes.addAndGet(count);
+			return count;
+		}
+
+		public synchronized void write(long position, byte[] buffer, int count) throws IOException{
+			missBytes.addAndGet(count);
+			if(isEvicted || position + count > length)
+				return;
+			RandomAccessFile file = getData();
+			file.seek(position);
+			file.write(buffer, 0, count);
+			addRange(position, position + count);
+			isDirty = true;
+			notifyAll();
+		}
+
+		//---waits up to timeout ms for position to be cached by someone else, true if it is---
+		public synchronized boolean waitForData(long position, long timeout) throws InterruptedException{
+			long deadline = SystemClock.elapsedRealtime() + timeout;
+			long left;
+			while(getCachedEnd(position) <= position && (left = deadline - SystemClock.elapsedRealtime()) > 0){
+				wait(left);
+			}
+			return getCachedEnd(position) > position;
+		}
+
+		private void addRange(long start, long end){
+			Long before = floorKey(start);
+			if(before != null && ranges.get(before) >= start){
+				end = Math.max(end, ranges.get(before));
+				start = before;
+				removeRange(before);
+			}
+			SortedMap<Long, Long> after;
+			while(!(after = ranges.tailMap(start)).isEmpty() && after.firstKey() <= end){
+				end = Math.max(end, after.get(after.firstKey()));
+				removeRange(after.firstKey());
+			}
+			ranges.put(start, end);
+			size += end - start;
+			cachedBytes.addAndGet(end - start);
+		}
+
+		//the navigable TreeMap methods are API 9, this does floorKey() with what API 8 has
+		private Long floorKey(long position){
+			SortedMap<Long, Long> before = ranges.headMap(position + 1);
+			return before.isEmpty() ? null : before.lastKey();
+		}
+
+		private void removeRange(long start){
+			long removed = ranges.remove(start) - start;
+			size -= removed;
+			cachedBytes.addAndGet(-removed);
+		}
+
+		//must hold the lock
+		private RandomAccessFile getData() throws IOException{
+			if(data == null)
+				data = new RandomAccessFile(dataFile, "rw");
+			return data;
+		}
+
+		//must hold the lock
+		private void writeIndex() throws IOException{
+			FileWriter writer = new FileWriter(indexFile);
+			try{
+				writer.write(url + "\n" + validator + "\n" + length + "\n" + (contentType == null ? "" : contentType) + "\n");
+				for(Map.Entry<Long, Long> range : ranges.entrySet()){
+					writer.write(range.getKey() + "-" + range.getValue() + "\n");
+				}
+			}
+			finally{
+				writer.close();
+			}
+		}
+
+		//must hold the lock
+		private void closeData(){
+			if(data == null)
+				return;
+			try{
+				data.close();
+			}
+			catch(IOException e){}
+			data = null;
+		}
+	}
+
+	//must be created on the main thread
+	public MediaCache(File dir, long maxSize){
+		this.dir = dir;
+		this.maxSize = maxSize;
+		thread = new HandlerThread("MediaCache", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		current = this;
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				load();
+			}
+		});
+	}
+
+	/*
+	 * The entry for url as the server describes it right now, created empty if there is none or the
+	 * cached copy is out of date. The caller must release() it. Returns null until the index has been
+	 * read, and for resources too large to cache.
+	 */
+	public Entry open(String url, String validator, long length, String contentType){
+		if(length <= 0 || length > maxSize / 2)
+			return null;
+		String key = hash(url);
+		Entry stale = null;
+		Entry entry;
+		synchronized(this){
+			if(!isLoaded)
+				return null;
+			entry = entries.get(key);
+			if(entry != null && (!entry.validator.equals(validator) || entry.length != length)){
+				stale = entry;
+				entries.remove(key);
+				entry = null;
+			}
+			if(entry == null){
+				entry = new Entry(key, url, validator, length, contentType);
+				entries.put(key, entry);
+			}
+			synchronized(entry){
+				entry.users++;
+			}
+		}
+		if(stale != null)
+			evict(stale);
+		return entry;
+	}
+
+	//---takes another reference to entry, or opens a fresh one if entry was evicted in the meantime---
+	public Entry reopen(Entry entry){
+		synchronized(this){
+			synchronized(entry){
+				if(!entry.isEvicted){
+					entry.users++;
+					//counts as a use for the eviction order
+					entries.get(entry.key);
+					return entry;
+				}
+			}
+		}
+		return open(entry.url, entry.validator, entry.length, entry.contentType);
+	}
+
+	//---saves what was fetched and lets the entry be evicted again---
+	public void release(final Entry entry){
+		synchronized(entry){
+			entry.users--;
+			if(entry.users > 0)
+				return;
+			entry.closeData();
+		}
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				synchronized(entry){
+					if(entry.isEvicted || !entry.isDirty || entry.users > 0)
+						return;
+					try{
+						entry.writeIndex();
+						entry.isDirty = false;
+					}
+					catch(IOException e){
+						Log.e(TAG, "MediaCache.release() - Error writing the index of " + entry.url, e);
+					}
+				}
+			}
+		});
+		handler.removeCallbacks(trim);
+		handler.post(trim);
+	}
+
+	//---waits for pending index writes and stops the background thread---
+	public void shutdown(){
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				Looper.myLooper().quit();
+			}
+		});
+	}
+
+	public static long getHitBytes(){
+		return hitBytes.get();
+	}
+
+	public static long getMissBytes(){
+		return missBytes.get();
+	}
+
+	public static long getCachedBytes(){
+		MediaCache cache = current;
+		return cache != null ? cache.cachedBytes.get() : 0;
+	}
+
+	//background thread
+	private void trimToSize(){
+		List<Entry> victims = new ArrayList<Entry>();
+		synchronized(this){
+			long total = cachedBytes.get();
+			Iterator<Entry> i = entries.values().iterator();
+			while(total > maxSize && i.hasNext()){
+				Entry entry = i.next();
+				synchronized(entry){
+					if(entry.users > 0)
+						continue;
+					total -= entry.size;
+				}
+				i.remove();
+				victims.add(entry);
+			}
+		}
+		for(Entry entry : victims){
+			Log.i(TAG, "MediaCache.trimToSize() - Evicting " + entry.url);
+			evict(entry);
+		}
+	}
+
+	private void evict(Entry entry){
+		synchronized(entry){
+			entry.isEvicted = true;
+			entry.closeData();
+			cachedBytes.addAndGet(-entry.size);
+			entry.size = 0;
+			entry.ranges.clear();
+		}
+		entry.indexFile.delete();
+		entry.dataFile.delete();
+	}
+
+	//background thread, reads back the indexes in least recently used order
+	private void load(){
+		dir.mkdirs();
+		File[] files = dir.listFiles();
+		List<File> indexes = new ArrayList<File>();
+		if(files != null){
+			for(File f : files){
+				if(f.getName().endsWith(INDEX_SUFFIX))
+					indexes.add(f);
+				else if(f.getName().endsWith(DATA_SUFFIX) && !new File(dir, f.getName().replace(DATA_SUFFIX, INDEX_SUFFIX)).exists())
+					f.delete();
+			}
+		}
+		TreeMap<Long, List<Entry>> byAge = new TreeMap<Long, List<Entry>>();
+		for(File index : indexes){
+			String key = index.getName().substring(0, index.getName().length() - INDEX_SUFFIX.length());
+			Entry entry = readIndex(key, index);
+			if(entry == null){
+				index.delete();
+				new File(dir, key + DATA_SUFFIX).delete();
+				continue;
+			}
+			List<Entry> sameAge = byAge.get(index.lastModified());
+			if(sameAge == null){
+				sameAge = new ArrayList<Entry>();
+				byAge.put(index.lastModified(), sameAge);
+			}
+			sameAge.add(entry);
+		}
+		synchronized(this){
+			for(List<Entry> sameAge : byAge.values()){
+				for(Entry entry : sameAge){
+					entries.put(entry.key, entry);
+				}
+			}
+			isLoaded = true;
+		}
+		Log.i(TAG, "MediaCache.load() - " + entries.size() + " entries, " + cachedBytes.get() / 1024 + "KB");
+		trimToSize();
+	}
+
+	private Entry readIndex(String key, File index){
+		try{
+			BufferedReader reader = new BufferedReader(new FileReader(index));
+			try{
+				String url = reader.readLine();
+				String validator = reader.readLine();
+				long length = Long.parseLong(reader.readLine());
+				String contentType = reader.readLine();
+				Entry entry = new Entry(key, url, validator, length, contentType == null || contentType.length() == 0 ? null : contentType);
+				String line;
+				while((line = reader.readLine()) != null){
+					int dash = line.indexOf('-');
+					entry.addRange(Long.parseLong(line.substring(0, dash)), Long.parseLong(line.substring(dash + 1)));
+				}
+				//a range past what actually made it to disk would serve garbage
+				if(entry.ranges.isEmpty() || entry.ranges.get(entry.ranges.lastKey()) > entry.dataFile.length()){
+					cachedBytes.addAndGet(-entry.size);
+					return null;
+				}
+				return entry;
+			}
+			finally{
+				reader.close();
+			}
+		}
+		catch(Exception e){
+			Log.i(TAG, "MediaCache.readIndex() - Dropping unreadable index " + index.getName());
+			return null;
+		}
+	}
+
+	private static String hash(String url){
+		try{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+			return String.format("%032x", new BigInteger(1, digest));
+		}
+		catch(NoSuchAlgorithmException e){
+			return Integer.toHexString(url.hashCode());
+		}
+		catch(IOException e){
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+}
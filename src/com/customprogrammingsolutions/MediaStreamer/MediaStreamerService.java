@@ -16,6 +16,17 @@
 
 package com.customprogrammingsolutions.MediaStreamer;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -23,41 +34,249 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
+import android.os.Environment;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
-import android.support.v4.app.NotificationCompat;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.RemoteViews;
+import android.widget.Toast;
 
-public class MediaStreamerService extends Service implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, AudioManager.OnAudioFocusChangeListener{	
+public class MediaStreamerService extends Service implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnInfoListener, MediaPlayer.OnBufferingUpdateListener, AudioManager.OnAudioFocusChangeListener, StreamProxy.Listener, StreamProxy.OpenCallback, CodecEngine.Listener, PlayerPipeline.Listener{	
 	private final static String TAG = "MediaStreamer";
 	
 
 	public static final int AUDIO_FOCUS_DENIED_ERROR = 0;
 	public static final int MEDIA_PLAYER_ERROR = 1;
+	public static final int UNSUPPORTED_CONTENT_ERROR = 2;
 	
 	public static final int NOTIFICATION_ID = 1;
+	
+	//chatty stations can change titles every few seconds, don't rebuild the notification faster than this
+	private static final long MIN_TITLE_UPDATE_INTERVAL = 3000;
+	
+	//going back to live starts this far behind the head so the player has something to prepare with
+	private static final int LIVE_EDGE_SECONDS = 2;
+	
+	//the stats overlay hasn't asked for this long, so it is closed and the stall monitor can stop
+	private static final long STATS_HIDDEN_TIMEOUT = 5000;
+	
+	//sessions listed by dumpsys, after the station averages
+	private static final int DUMP_RECENT_SESSIONS = 20;
+	
+	//request codes, so the scheduled start and stop of a recording don't replace each other
+	private static final int RECORD_REQUEST = 1;
+	private static final int STOP_RECORDING_REQUEST = 2;
+	//a recording can end on its own (disk full, station gone), check for that this often
+	private static final long RECORDING_CHECK_INTERVAL = 10000;
+	//how often the session is saved while playing, keeps the saved position and age fresh
+	private static final long SESSION_SAVE_INTERVAL = 30000;
+	
+	//on-demand media cache, never more than a quarter of the free space
+	private static final long MEDIA_CACHE_SIZE = 100 * 1024 * 1024;
 
 	
 	private MediaPlayer mMediaPlayer;
+	//used instead of mMediaPlayer when the low latency engine is picked in the settings
+	private CodecEngine codecEngine;
+	//what mMediaPlayer or codecEngine plays from, the proxy keeps it registered until they are released
+	private String playerLocalUrl;
+	private boolean isCodecEngineSelected = false;
+	//for the cpu cost of each engine
+	private long playStartTime = 0;
+	private long playStartCpu = 0;
 	private static boolean isPlaying = false;
 	private static boolean isPreparing = false;
 	private static boolean isStreamError = false;
+	private static boolean isPaused = false;
+	private static boolean isTimeShiftAvailable = false;
+	private static boolean isRecording = false;
 	
 	private static String urlToStream = "";
+	private static String nowPlaying = "";
 	
 	private static boolean isRunning = false;
 	
+	private volatile PlaybackSession session;
+	private long tapTime = 0;
+	private boolean isSwitch = false;
+	
+	//time-shift state: where in the buffer the current player started, and where a pause left off
+	private long timeShiftStart = 0;
+	private long pausedPosition = 0;
+	private boolean isSeeking = false;
+	private boolean isPausedForFocus = false;
+	private MetricsRecorder metricsRecorder;
+	
+	private StreamConnector streamConnector;
+	private StreamProxy streamProxy;
+	private MediaCache mediaCache;
+	private LanRelay lanRelay;
+	private NotificationController notificationController;
+	private StallMonitor stallMonitor;
+	
+	//what to pick up again if the process is killed mid-listen
+	private SessionStore sessionStore;
+	private String resumeResolvedUrl = null;
+	private int resumePosition = -1;
+	
+	private final Runnable sessionSave = new Runnable(){
+		@Override
+		public void run() {
+			if(!isPlaying)
+				return;
+			saveSession();
+			handler.postDelayed(this, SESSION_SAVE_INTERVAL);
+		}
+	};
+	//the buffer can be there just for the relay, the controls only show when time-shift is on
+	private boolean isTimeShiftEnabled = false;
+	
+	//held only while recording, playback alone doesn't keep the device awake
+	private PowerManager.WakeLock recordingWakeLock;
+	private WifiManager.WifiLock recordingWifiLock;
+	//held only for the length of each low power burst, guarded by this
+	private PowerManager.WakeLock burstWakeLock;
+	private WifiManager.WifiLock burstWifiLock;
+	private boolean isLowPowerSelected = false;
+	
+	private final Handler handler = new Handler();
+	
+	//previewing the favorites one after another, null when not scanning
+	private PlayerPipeline scanPipeline;
+	private long scanInterval;
+	//the preview ran out before the next station was ready, switch as soon as it is
+	private boolean isScanOverdue = false;
+	//set while the scan switches stations, so that stop() doesn't end the scan doing it
+	private boolean isScanHandover = false;
+	
+	private final Runnable scanAdvance = new Runnable(){
+		@Override
+		public void run() {
+			advanceScan();
+		}
+	};
+	
+	//the QueueDBHelper row of what is playing, -1 when it didn't come from the queue
+	private long queueItemId = -1;
+	//the next item while it is being prepared, and once it is, with the row it was prepared for
+	private PlayerPipeline queuePipeline;
+	private PlayerPipeline.Item queueNext;
+	private long queueNextId = -1;
+	private long queuePrefetchLead;
+	
+	private final Runnable queuePrefetch = new Runnable(){
+		@Override
+		public void run() {
+			prefetchQueue();
+		}
+	};
+	
+	//what the UI process was last told, see PlaybackState
+	private int publishedFlags = -1;
+	private String publishedUrl;
+	private String publishedNowPlaying;
+	
+	private final Runnable statePublish = new Runnable(){
+		@Override
+		public void run() {
+			int flags = getStateFlags();
+			if(flags == publishedFlags && urlToStream.equals(publishedUrl) && nowPlaying.equals(publishedNowPlaying))
+				return;
+			publishedFlags = flags;
+			publishedUrl = urlToStream;
+			publishedNowPlaying = nowPlaying;
+			sendBroadcast(withState(new Intent(PlaybackState.STATE_INTENT)), PlaybackState.PERMISSION);
+		}
+	};
+	
+	private volatile String pendingTitle = "";
+	private long lastTitleUpdate = 0;
+	
+	private final Runnable titleUpdate = new Runnable(){
+		@Override
+		public void run() {
+			if(pendingTitle.equals(nowPlaying))
+				return;
+			nowPlaying = pendingTitle;
+			lastTitleUpdate = SystemClock.elapsedRealtime();
+			Log.i(TAG, "MediaStreamerService - Now playing " + nowPlaying);
+			
+			if(isPlaying || isPreparing)
+				startNotification();
+			
+			Intent i = new Intent(MainActivity.METADATA_INTENT);
+			i.putExtra(MainActivity.TITLE_EXTRA, nowPlaying);
+			broadcast(i);
+		}
+	};
+	
+	private final Runnable recordingCheck = new Runnable(){
+		@Override
+		public void run() {
+			StreamRecorder recorder = streamProxy != null ? streamProxy.getRecorder() : null;
+			if(recorder == null || recorder.isClosed())
+				stopRecording();
+			else
+				handler.postDelayed(this, RECORDING_CHECK_INTERVAL);
+		}
+	};
+	
 	private BroadcastReceiver audioTooNoisyReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
+			//unplugged headphones pause when there is a buffer to pause in
+			if(AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction()) && pause())
+				return;
 			stop();
         }
     };
 	
+	private boolean isStatsShowing = false;
+	
+	private final Runnable statsHidden = new Runnable(){
+		@Override
+		public void run() {
+			isStatsShowing = false;
+			stallMonitor.stop();
+		}
+	};
+	
+	//from the UI process only, and only registered while the service is alive, so asking for the state or diagnostics never starts it
+	private BroadcastReceiver uiRequestReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if(intent.getAction() == MainActivity.PLAYBACK_TIMEOUT_INTENT){
+				stop();
+				return;
+			}
+			if(intent.getAction() == PlaybackState.REQUEST_STATE_INTENT){
+				//a new receiver in the UI, it hasn't heard any of what was already published
+				publishedFlags = -1;
+				handler.removeCallbacks(statePublish);
+				statePublish.run();
+				return;
+			}
+			//the overlay asks every second while it is showing, that is when stalls are worth measuring
+			isStatsShowing = true;
+			handler.removeCallbacks(statsHidden);
+			handler.postDelayed(statsHidden, STATS_HIDDEN_TIMEOUT);
+			if(isPlaying)
+				stallMonitor.start();
+			StringBuilder sb = new StringBuilder();
+			PlayerDiagnostics.snapshot(sb);
+			broadcast(PlaybackState.writeDiagnostics(new Intent(PlaybackState.DIAGNOSTICS_INTENT), sb.toString()));
+		}
+	};
+	
 	@Override
     public void onCreate() {
         Log.i(TAG, "MediaStreamerService.onCreate()");
@@ -67,22 +286,77 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
         
         IntentFilter inf = new IntentFilter();
         inf.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
-        inf.addAction(MainActivity.PLAYBACK_TIMEOUT_INTENT);
         
-        registerReceiver(audioTooNoisyReceiver, inf);        
+        registerReceiver(audioTooNoisyReceiver, inf);
+        IntentFilter requests = new IntentFilter(PlaybackState.REQUEST_STATE_INTENT);
+        requests.addAction(PlaybackState.REQUEST_DIAGNOSTICS_INTENT);
+        requests.addAction(MainActivity.PLAYBACK_TIMEOUT_INTENT);
+        registerReceiver(uiRequestReceiver, requests, PlaybackState.PERMISSION, null);
+        
+        metricsRecorder = new MetricsRecorder(this);
+        notificationController = new NotificationController(this, NOTIFICATION_ID);
+        stallMonitor = new StallMonitor();
+        sessionStore = new SessionStore(this);
+        
+        streamConnector = new StreamConnector(this);
+        streamProxy = new StreamProxy(streamConnector, this);
+        streamProxy.setTimeShift(new File(getCacheDir(), "timeshift"), 0);
+        StatFs stat = new StatFs(getCacheDir().getPath());
+        mediaCache = new MediaCache(new File(getCacheDir(), "media"), Math.min(MEDIA_CACHE_SIZE, (long) stat.getAvailableBlocks() * stat.getBlockSize() / 4));
+        streamProxy.setCache(mediaCache);
+        try{
+        	streamProxy.start();
+        }
+        catch(IOException e){
+        	Log.e(TAG, "MediaStreamerService.onCreate() - Error starting the stream proxy", e);
+        	streamProxy = null;
+        }
+        publishState();
     }
 	
 	@Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        // No intent, tell the system not to restart us.
+		Tracing.begin("MediaStreamerService.onStartCommand");
+		try{
+			return handleCommand(intent);
+		}
+		finally{
+			Tracing.end();
+		}
+	}
+	
+	private int handleCommand(Intent intent) {
+        // No intent, the system restarted us after killing the process
         if (intent == null) {
-            stopSelf();
+        	SessionStore.Record record = SessionStore.read(this);
+        	//a paused session stays paused, there is nothing to resume it into
+        	if(record == null || record.isPaused){
+        		stopSelf();
+        		return START_STICKY;
+        	}
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Restarted, resuming " + record.url);
+        	tapTime = SystemClock.elapsedRealtime();
+        	isSwitch = false;
+        	urlToStream = record.url;
+        	resumeResolvedUrl = record.resolvedUrl;
+        	resumePosition = record.position;
+        	//the queue lives in the database, so whatever comes after this still does
+        	QueueDBHelper qdb = new QueueDBHelper(this).open();
+        	try{
+        		queueItemId = qdb.findItem(record.url);
+        	}
+        	finally{
+        		qdb.close();
+        	}
+        	play();
             return START_STICKY;
         }
 
         if(intent.getAction() == MainActivity.PLAY_INTENT){
         	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received play intent");
         	
+        	isSwitch = isPlaying || isPreparing;
+        	tapTime = intent.getLongExtra(MainActivity.TAP_TIME_EXTRA, SystemClock.elapsedRealtime());
         	stop();
         	
         	urlToStream = intent.getStringExtra(MainActivity.URL_EXTRA);
@@ -91,6 +365,60 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
         	
         	play();
         }
+        else if(intent.getAction() == MainActivity.PLAY_STATION_INTENT){
+        	String url = findStationUrl(intent);
+        	if(url == null){
+        		Log.i(TAG, "MediaStreamerService.onStartCommand() - Play station request for a station that doesn't exist");
+        		if(!isPlaying && !isPreparing && !isRecording)
+        			stopSelf();
+        		return START_STICKY;
+        	}
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received play station intent for " + url);
+        	
+        	isSwitch = isPlaying || isPreparing;
+        	tapTime = intent.getLongExtra(MainActivity.TAP_TIME_EXTRA, SystemClock.elapsedRealtime());
+        	stop();
+        	urlToStream = url;
+        	play();
+        }
+        else if(intent.getAction() == MainActivity.SCAN_INTENT){
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received scan intent");
+        	
+        	startScan();
+        }
+        else if(intent.getAction() == MainActivity.STOP_SCAN_INTENT){
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received stop scan intent");
+        	
+        	stopScan();
+        }
+        else if(intent.getAction() == MainActivity.ENQUEUE_INTENT){
+        	String url = intent.getStringExtra(MainActivity.URL_EXTRA);
+        	if(url != null && isProxied(url))
+        		enqueue(url);
+        }
+        else if(intent.getAction() == MainActivity.PLAY_QUEUE_INTENT){
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received play queue intent");
+        	
+        	playQueue(intent.getLongExtra(MainActivity.TAP_TIME_EXTRA, SystemClock.elapsedRealtime()));
+        }
+        else if(intent.getAction() == MainActivity.MOVE_QUEUE_ITEM_INTENT || intent.getAction() == MainActivity.REMOVE_QUEUE_ITEM_INTENT){
+        	long rowId = intent.getLongExtra(MainActivity.QUEUE_ITEM_EXTRA, -1);
+        	QueueDBHelper qdb = new QueueDBHelper(this).open();
+        	try{
+        		if(intent.getAction() == MainActivity.MOVE_QUEUE_ITEM_INTENT)
+        			qdb.moveItem(rowId, intent.getIntExtra(MainActivity.QUEUE_INDEX_EXTRA, 0));
+        		else
+        			qdb.deleteItem(rowId);
+        	}
+        	finally{
+        		qdb.close();
+        	}
+        	//what comes next may have changed, prepare it again
+        	if(queueItemId >= 0){
+        		resetQueuePrefetch();
+        		handler.post(queuePrefetch);
+        	}
+        }
         else if(intent.getAction() == MainActivity.STOP_INTENT){
         	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received stop intent");
         	
@@ -100,7 +428,32 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
         	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received cancel playback intent");
         	
         	stop();
-        	sendBroadcast(new Intent(MainActivity.STOPPED_PLAYBACK_INTENT));
+        	broadcast(new Intent(MainActivity.STOPPED_PLAYBACK_INTENT));
+        }
+        else if(intent.getAction() == MainActivity.PAUSE_INTENT){
+        	isPausedForFocus = false;
+        	pause();
+        }
+        else if(intent.getAction() == MainActivity.RESUME_INTENT){
+        	resume();
+        }
+        else if(intent.getAction() == MainActivity.REWIND_INTENT){
+        	rewind(intent.getIntExtra(MainActivity.SECONDS_EXTRA, 30));
+        }
+        else if(intent.getAction() == MainActivity.LIVE_INTENT){
+        	goLive();
+        }
+        else if(intent.getAction() == MainActivity.RECORD_INTENT){
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received record intent");
+        	
+        	String url = intent.getStringExtra(MainActivity.URL_EXTRA);
+        	if(url != null && url.length() > 0)
+        		startRecording(url, intent.getIntExtra(MainActivity.MINUTES_EXTRA, 0));
+        }
+        else if(intent.getAction() == MainActivity.STOP_RECORDING_INTENT){
+        	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received stop recording intent");
+        	
+        	stopRecording();
         }
         else if(intent.getAction() == MainActivity.KILL_SERVICE_INTENT){
         	Log.i(TAG, "MediaStreamerService.onStartCommand() - Received kill intent");
@@ -115,39 +468,218 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
 		Log.i(TAG, "MediaStreamerService.play()");
 		
 		isPreparing = true;
+		session = new PlaybackSession(urlToStream);
+		PlayerDiagnostics.onPlay();
+		PlayerDiagnostics.setBitrate(0);
+		PlayerDiagnostics.setBufferPercent(-1);
+		PlayerDiagnostics.transition("PREPARING", urlToStream);
         startNotification();
 		
+		isCodecEngineSelected = false;
+		if(streamProxy != null){
+			SharedPreferences prefs = getSettings();
+			int minutes = Integer.parseInt(prefs.getString(getString(R.string.pref_time_shift_key), getString(R.string.pref_time_shift_default)));
+			boolean isRelayEnabled = prefs.getBoolean(getString(R.string.pref_relay_key), Boolean.parseBoolean(getString(R.string.pref_relay_default)));
+			isTimeShiftEnabled = minutes > 0;
+			streamProxy.setTimeShift(new File(getCacheDir(), "timeshift"), Math.max(minutes * 60, isRelayEnabled ? LanRelay.BUFFER_SECONDS : 0));
+			setRelayEnabled(isRelayEnabled);
+			//the codec engine plays straight through, it can't seek in the buffer or in on-demand media
+			String engine = prefs.getString(getString(R.string.pref_engine_key), getString(R.string.pref_engine_default));
+			isLowPowerSelected = prefs.getBoolean(getString(R.string.pref_low_power_key), Boolean.parseBoolean(getString(R.string.pref_low_power_default)));
+			streamProxy.setBurstMode(isLowPowerSelected);
+			//nor hand over to the next item in the queue
+			isCodecEngineSelected = Build.VERSION.SDK_INT >= 16 && engine.equals(getString(R.string.pref_engine_codec)) && !isTimeShiftEnabled && resumePosition <= 0 && queueItemId < 0;
+			queuePrefetchLead = Integer.parseInt(prefs.getString(getString(R.string.pref_queue_prefetch_key), getString(R.string.pref_queue_prefetch_default))) * 1000L;
+		}
+		
 		if(!requestAudioFocus()){
 			Log.i(TAG, "MediaStreamerService.play() - AudioFocus request denied");
 			
 			notifyStreamError(AUDIO_FOCUS_DENIED_ERROR);
 		}
 		
+		if(isProxied(urlToStream)){
+			//MediaPlayer only gets the stream once the proxy has seen that it looks like audio
+			streamProxy.open(urlToStream, resumeResolvedUrl, this);
+			resumeResolvedUrl = null;
+		}
+		else{
+			startMediaPlayer(urlToStream);
+		}
+	}
+	
+	private void startMediaPlayer(String dataSource){
 		mMediaPlayer = new MediaPlayer();
+		playerLocalUrl = dataSource;
         mMediaPlayer.setOnErrorListener(this);
         mMediaPlayer.setOnPreparedListener(this);
+        mMediaPlayer.setOnCompletionListener(this);
+        mMediaPlayer.setOnInfoListener(this);
+        mMediaPlayer.setOnBufferingUpdateListener(this);
         
         mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);  
         mMediaPlayer.setVolume(1.0f, 1.0f);
+    	Tracing.begin("MediaPlayer.setDataSource");
     	try {
-        	mMediaPlayer.setDataSource(this, Uri.parse(urlToStream));
+        	mMediaPlayer.setDataSource(this, Uri.parse(dataSource));
 		} catch (Exception e){
-    		Log.e(TAG, "MediaStreamerService.play() - Error setting data source for the media player", e);
-    		stop();
+    		Log.e(TAG, "MediaStreamerService.startMediaPlayer() - Error setting data source for the media player", e);
     		notifyStreamError(MEDIA_PLAYER_ERROR);
+    		stop();
     		return;
+    	} finally {
+    		Tracing.end();
     	}
+    	Tracing.begin("MediaPlayer.prepareAsync");
     	try{
             mMediaPlayer.prepareAsync(); // prepare async to not block main thread
 		} catch (Exception e){
-    		Log.e(TAG, "MediaStreamerService.play() - Error preparing the media player", e);
-    		stop();
+    		Log.e(TAG, "MediaStreamerService.startMediaPlayer() - Error preparing the media player", e);
     		notifyStreamError(MEDIA_PLAYER_ERROR);
+    		stop();
     		return;
+		} finally {
+			Tracing.end();
 		}
         
 	}
 	
+	//---starts or stops sharing live stations with the local network---
+	private void setRelayEnabled(boolean isEnabled){
+		if(isEnabled && lanRelay == null){
+			lanRelay = new LanRelay(streamProxy, LanRelay.DEFAULT_PORT);
+			try{
+				lanRelay.start();
+			}
+			catch(IOException e){
+				Log.e(TAG, "MediaStreamerService.setRelayEnabled() - Error starting the relay", e);
+				lanRelay = null;
+			}
+		}
+		else if(!isEnabled && lanRelay != null){
+			lanRelay.stop();
+			lanRelay = null;
+		}
+	}
+	
+	//---where other devices can listen, null without wifi---
+	private String getRelayUrl(){
+		WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+		int ip = wifiManager.getConnectionInfo() != null ? wifiManager.getConnectionInfo().getIpAddress() : 0;
+		if(ip == 0 || lanRelay == null)
+			return null;
+		return "http://" + (ip & 0xff) + "." + (ip >> 8 & 0xff) + "." + (ip >> 16 & 0xff) + "." + (ip >> 24 & 0xff) + ":" + lanRelay.getPort() + "/";
+	}
+	
+	private boolean isProxied(String url){
+		//http(s) goes through the proxy so that https works and TLS sessions get reused
+		return streamProxy != null && (url.startsWith("http://") || url.startsWith("https://"));
+	}
+	
+	@Override
+	public void onStreamOpened(final String url, final String localUrl) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(!isPreparing || mMediaPlayer != null || codecEngine != null || !url.equals(urlToStream))
+					return;
+				PlayerDiagnostics.transition("OPENED", localUrl);
+				if(isCodecEngineSelected){
+					playerLocalUrl = localUrl;
+					codecEngine = new CodecEngine(localUrl, MediaStreamerService.this);
+					codecEngine.start();
+				}
+				else{
+					startMediaPlayer(localUrl);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void onEngineStarted(final CodecEngine engine) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(engine == codecEngine)
+					startPlayback();
+			}
+		});
+	}
+	
+	@Override
+	public void onEngineUnsupported(final CodecEngine engine, final String localUrl) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(engine != codecEngine)
+					return;
+				codecEngine = null;
+				PlayerDiagnostics.transition("OPENED", "not for the codec engine, using MediaPlayer");
+				startMediaPlayer(localUrl);
+			}
+		});
+	}
+	
+	@Override
+	public void onEngineUnderrun(final CodecEngine engine) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				PlaybackSession s = session;
+				if(engine != codecEngine || s == null)
+					return;
+				//only noticed once the data is back, so it counts but takes no time
+				s.onBufferingStart();
+				s.onBufferingEnd();
+				PlayerDiagnostics.onRebuffer();
+			}
+		});
+	}
+	
+	@Override
+	public void onEngineCompleted(final CodecEngine engine) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(engine == codecEngine)
+					stop();
+			}
+		});
+	}
+	
+	@Override
+	public void onEngineError(final CodecEngine engine) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(engine != codecEngine)
+					return;
+				PlayerDiagnostics.transition("PLAYER_ERROR", "codec engine");
+				isPreparing = false;
+				notifyStreamError(MEDIA_PLAYER_ERROR);
+				stop();
+				startNotification();
+			}
+		});
+	}
+	
+	@Override
+	public void onStreamRejected(final String url, final boolean isUnsupportedContent) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(!isPreparing || mMediaPlayer != null || !url.equals(urlToStream))
+					return;
+				Log.i(TAG, "MediaStreamerService.onStreamRejected() - " + (isUnsupportedContent ? "Not an audio stream: " : "Could not connect to: ") + url);
+				isPreparing = false;
+				notifyStreamError(isUnsupportedContent ? UNSUPPORTED_CONTENT_ERROR : MEDIA_PLAYER_ERROR);
+				stop();
+				startNotification();
+			}
+		});
+	}
+	
 	private boolean requestAudioFocus(){
 		AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
 		int result = audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
@@ -160,114 +692,290 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
 	
 	@Override
 	public void onPrepared(MediaPlayer mp) {
+		Tracing.begin("MediaStreamerService.onPrepared");
 		try{
-        	mMediaPlayer.start();
+			startPlayback();
+		}
+		finally{
+			Tracing.end();
+		}
+	}
+	
+	private void startPlayback(){
+		if(isSeeking){
+			//a time-shift seek, the session is still the same one
+			isSeeking = false;
+			try{
+				mMediaPlayer.start();
+			} catch (Exception e){
+				Log.e(TAG, "MediaStreamerService.startPlayback() - Error restarting the media player", e);
+				notifyStreamError(MEDIA_PLAYER_ERROR);
+				stop();
+				return;
+			}
+			PlayerDiagnostics.transition("PLAYING", getTimeShiftDelay() + "s behind live");
+			notifyTimeShift();
+			saveSession();
+			return;
+		}
+		
+		try{
+			if(codecEngine == null)
+				mMediaPlayer.start();
         	isPreparing = false;
 		} catch (Exception e){
     		Log.e(TAG, "MediaStreamerService.play() - onPreparedProxy - Error starting the media player", e);
-    		stop();
     		notifyStreamError(MEDIA_PLAYER_ERROR);
+    		stop();
     		return;
     	}
 		
         isPlaying = true;
+		session.onPrepared();
+		long timeToAudio = SystemClock.elapsedRealtime() - tapTime;
+		PlayerDiagnostics.recordTimeToAudio(timeToAudio, isSwitch, codecEngine != null);
+		PlayerDiagnostics.transition("PLAYING", "prepared in " + session.getTimeToPrepared() + "ms, " + (isSwitch ? "switched" : "audible") + " " + timeToAudio + "ms after the tap" + (codecEngine != null ? " (codec engine)" : ""));
+		playStartTime = SystemClock.elapsedRealtime();
+		playStartCpu = Process.getElapsedCpuTime();
 		notifyClearStreamError();
 		
+		isTimeShiftAvailable = isTimeShiftEnabled && streamProxy != null && streamProxy.getTimeShift() != null;
+		timeShiftStart = 0;
+		
+		handler.removeCallbacks(sessionSave);
+		if(resumePosition > 0 && mMediaPlayer != null){
+			//picking up on-demand media where it was when the process died, the saved record stays
+			//as it is until the seek has had time to land
+			try{
+				if(mMediaPlayer.getDuration() > 0)
+					mMediaPlayer.seekTo(resumePosition);
+			}
+			catch(IllegalStateException e){
+				Log.e(TAG, "MediaStreamerService.startPlayback() - Error seeking to " + resumePosition, e);
+			}
+			handler.postDelayed(sessionSave, SESSION_SAVE_INTERVAL);
+		}
+		else{
+			sessionSave.run();
+		}
+		resumePosition = -1;
+		
 		startNotification();
 		
-		addToRecents();
+		//a preview isn't a listen, only the station the scan is stopped on counts
+		if(scanPipeline == null)
+			addToRecents(session.getTimeToPrepared());
+		if(isStatsShowing)
+			stallMonitor.start();
+		if(queueItemId >= 0){
+			handler.removeCallbacks(queuePrefetch);
+			handler.post(queuePrefetch);
+		}
 		
-		sendBroadcast(new Intent(MainActivity.STARTED_PLAYBACK_INTENT));
+		broadcast(new Intent(MainActivity.STARTED_PLAYBACK_INTENT));
 	}
 	
 	private void startNotification(){
-		NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
-		
-		RemoteViews contentView = new RemoteViews(getPackageName(), R.layout.custom_notification_layout);
-		contentView.setImageViewResource(R.id.notification_icon, R.drawable.notification_icon);
-		contentView.setTextViewText(R.id.notification_title, getString(R.string.notification_title));
-		contentView.setTextViewText(R.id.notification_text, urlToStream);
-		if(isPreparing){
-			contentView.setImageViewResource(R.id.media_state_indicator_icon, R.drawable.notification_playback_loading);
-			contentView.setOnClickPendingIntent(R.id.media_state_indicator_icon, PendingIntent.getActivity(getApplicationContext(), 0, new Intent(), 0));
+		Tracing.begin("MediaStreamerService.startNotification");
+		try{
+			buildNotification();
+			publishState();
 		}
-		else if(isStreamError){
-			contentView.setImageViewResource(R.id.media_state_indicator_icon, R.drawable.notification_playback_error);
-			contentView.setOnClickPendingIntent(R.id.media_state_indicator_icon, PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0));
+		finally{
+			Tracing.end();
 		}
-		else if(isPlaying){
-			contentView.setImageViewResource(R.id.media_state_indicator_icon, R.drawable.stop_button);
-			PendingIntent stopIntentPending = PendingIntent.getService(this, 0, new Intent(MainActivity.STOP_INTENT), PendingIntent.FLAG_CANCEL_CURRENT);
-			contentView.setOnClickPendingIntent(R.id.media_state_indicator_icon, stopIntentPending);
+	}
+	
+	//---describes the notification, the controller decides if and when it actually goes up---
+	private void buildNotification(){
+		int indicator;
+		if(isPreparing)
+			indicator = NotificationController.INDICATOR_LOADING;
+		else if(isStreamError)
+			indicator = NotificationController.INDICATOR_ERROR;
+		else if(isPaused)
+			indicator = NotificationController.INDICATOR_PAUSED;
+		else if(isPlaying)
+			indicator = NotificationController.INDICATOR_PLAYING;
+		else
+			indicator = NotificationController.INDICATOR_STOPPED;
+		notificationController.update(isRecording ? R.string.notification_title_recording : R.string.notification_title, nowPlaying.length() > 0 ? nowPlaying : urlToStream, indicator, urlToStream);
+	}
+	
+	@Override
+	public boolean onInfo(MediaPlayer mp, int what, int extra) {
+		PlaybackSession s = session;
+		if(s == null)
+			return false;
+		if(what == MediaPlayer.MEDIA_INFO_BUFFERING_START){
+			Log.i(TAG, "MediaStreamerService.onInfo() - Rebuffering");
+			s.onBufferingStart();
+			PlayerDiagnostics.onRebuffer();
+			PlayerDiagnostics.transition("BUFFERING", null);
 		}
-		else{
-			contentView.setImageViewResource(R.id.media_state_indicator_icon, R.drawable.play_button);
-			Intent playIntent = new Intent(MainActivity.PLAY_INTENT);
-			playIntent.putExtra(MainActivity.URL_EXTRA, urlToStream);
-			
-			PendingIntent playIntentPending = PendingIntent.getService(this, 0, playIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-			contentView.setOnClickPendingIntent(R.id.media_state_indicator_icon, playIntentPending);
+		else if(what == MediaPlayer.MEDIA_INFO_BUFFERING_END){
+			s.onBufferingEnd();
+			PlayerDiagnostics.transition("PLAYING", "rebuffered");
+		}
+		return false;
+	}
+	
+	@Override
+	public void onBufferingUpdate(MediaPlayer mp, int percent) {
+		PlayerDiagnostics.setBufferPercent(percent);
+	}
+	
+	@Override
+	public void onUpstreamConnected(String url) {
+		PlaybackSession s = session;
+		if(s != null && s.url.equals(url))
+			s.onUpstreamConnected();
+	}
+	
+	@Override
+	public void onBytesReceived(String url, int count) {
+		PlaybackSession s = session;
+		if(s != null && s.url.equals(url))
+			s.onBytesReceived(count);
+	}
+	
+	@Override
+	public void onStreamTitle(final String url, String title) {
+		//proxy thread - only remember the newest title and let the main thread pick it up at a bounded rate
+		if(!url.equals(urlToStream) || title.equals(pendingTitle))
+			return;
+		pendingTitle = title;
+		long delay = Math.max(0, lastTitleUpdate + MIN_TITLE_UPDATE_INTERVAL - SystemClock.elapsedRealtime());
+		handler.removeCallbacks(titleUpdate);
+		handler.postDelayed(titleUpdate, delay);
+	}
+	
+	@Override
+	public synchronized void onBurstStarted(String url) {
+		//proxy thread - the device may be asleep between bursts, it has to stay up while one runs
+		if(burstWakeLock == null){
+			PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+			burstWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MediaStreamerBurst");
+			WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+			burstWifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, "MediaStreamerBurst");
+		}
+		burstWakeLock.acquire();
+		burstWifiLock.acquire();
+	}
+	
+	@Override
+	public synchronized void onBurstEnded(String url, long bytes, long time) {
+		burstWifiLock.release();
+		burstWakeLock.release();
+		PlayerDiagnostics.recordBurst(bytes, time);
+		Log.i(TAG, "MediaStreamerService.onBurstEnded() - " + bytes / 1024 + "KB of " + url + " in " + time + "ms");
+	}
+	
+	private void clearNowPlaying(){
+		handler.removeCallbacks(titleUpdate);
+		pendingTitle = "";
+		if(nowPlaying.length() > 0){
+			nowPlaying = "";
+			Intent i = new Intent(MainActivity.METADATA_INTENT);
+			i.putExtra(MainActivity.TITLE_EXTRA, nowPlaying);
+			broadcast(i);
 		}
-		
-		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
-		contentView.setOnClickPendingIntent(R.id.notification_layout, contentIntent);
-		
-		PendingIntent killIntentPending = PendingIntent.getService(this, 0, new Intent(MainActivity.KILL_SERVICE_INTENT), 0);
-		contentView.setOnClickPendingIntent(R.id.close_notification_icon, killIntentPending);
-		
-		builder.setContent(contentView);
-		
-		builder.setSmallIcon(R.drawable.notification_icon);
-
-		builder.setAutoCancel(false);
-		
-		startForeground(NOTIFICATION_ID, builder.build());
 	}
 	
 	private void stopNotification(){
-		stopForeground(true);
+		notificationController.stop();
 	}
 	
-	private void addToRecents(){
+	private void addToRecents(long connectTime){
+		Tracing.begin("MediaStreamerService.addToRecents");
 		RecentsDBHelper rdb = new RecentsDBHelper(this).open();
-		rdb.insertRecent(urlToStream);
-		rdb.close();
+		try{
+			rdb.insertRecent(urlToStream);
+			rdb.recordConnectTime(urlToStream, connectTime);
+		}
+		finally{
+			rdb.close();
+			Tracing.end();
+		}
 	}
 	
 	@Override
 	public boolean onError(MediaPlayer mp, int what, int extra) {
 		Log.e(TAG, "Error occurred while playing audio. What = " + what + " - Extra = " + extra);
+		PlayerDiagnostics.transition("PLAYER_ERROR", "what=" + what + " extra=" + extra);
 		isPreparing = false;
-		stop();
 		notifyStreamError(MEDIA_PLAYER_ERROR);
+		stop();
 		startNotification();
 		return false;
     }
 	
 	@Override
 	public void onCompletion(MediaPlayer mp) {
+		if(mp != mMediaPlayer)
+			return;
+		if(queueItemId >= 0 && advanceQueue())
+			return;
 		stop();
 	}
 	
 	/*package*/ void stop(){
 		Log.i(TAG, "MediaStreamerService.stop() - Just dropping by");
+		if(!isScanHandover)
+			endScan();
+		resetQueuePrefetch();
+		queueItemId = -1;
 		if(isPlaying)
     		isPlaying = false;
 		
 		isPreparing = false;
+		isSeeking = false;
+		isTimeShiftAvailable = false;
+		boolean wasPaused = isPaused;
+		isPaused = false;
+		
+		handler.removeCallbacks(sessionSave);
+		sessionStore.clear();
+		stallMonitor.stop();
+		publishState();
+		
+		if(session != null || mMediaPlayer != null)
+			PlayerDiagnostics.transition("STOPPED", null);
+		
+		clearNowPlaying();
+		
+		if(streamProxy != null){
+			streamProxy.cancelPending();
+			streamProxy.stopTimeShift();
+		}
+		
+		if(wasPaused)
+			onPlaybackStopped();
+		
+		if(session != null){
+			metricsRecorder.record(session);
+			session = null;
+		}
+		
+		if(playStartTime > 0){
+			PlayerDiagnostics.recordEngineUsage(codecEngine != null, Process.getElapsedCpuTime() - playStartCpu, SystemClock.elapsedRealtime() - playStartTime);
+			if(isLowPowerSelected)
+				PlayerDiagnostics.recordLowPowerPlayTime(SystemClock.elapsedRealtime() - playStartTime);
+			playStartTime = 0;
+		}
+		if(codecEngine != null){
+			if(codecEngine.isStarted())
+				onPlaybackStopped();
+			codecEngine.stop();
+			codecEngine = null;
+		}
 
     	if (mMediaPlayer != null) {
             try{
             	if(mMediaPlayer.isPlaying()){
             		Log.i(TAG, "MediaStreamerService.stop() - Stopping media player");
             		mMediaPlayer.stop();
-            		sendBroadcast(new Intent(MainActivity.STOPPED_PLAYBACK_INTENT));
-            		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            		boolean persistentNotification = prefs.getBoolean(getString(R.string.pref_notification_key), Boolean.parseBoolean(getString(R.string.pref_notification_default))); 
-            		if(persistentNotification)
-            			startNotification();
-            		else
-					    stopNotification();
+            		onPlaybackStopped();
             	}
             }
             catch(Exception e){
@@ -283,52 +991,787 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
             Log.i(TAG, "MediaStreamerService.stop() - mMediaPlayer = null");
             mMediaPlayer = null;
     	}
+    	discardPlayerUrl();
+	}
+	
+	private void onPlaybackStopped(){
+		broadcast(new Intent(MainActivity.STOPPED_PLAYBACK_INTENT));
+		SharedPreferences prefs = getSettings();
+		boolean persistentNotification = prefs.getBoolean(getString(R.string.pref_notification_key), Boolean.parseBoolean(getString(R.string.pref_notification_default))); 
+		//a recording keeps the service in the foreground on its own
+		if(persistentNotification || isRecording)
+			startNotification();
+		else
+		    stopNotification();
+	}
+	
+	/*
+	 * Plays each favorite for a few seconds in turn until the user stops or keeps one. The stations
+	 * coming up are prepared by a PlayerPipeline while the one before them plays, so switching to the
+	 * next is just starting its player.
+	 */
+	private void startScan(){
+		List<String> urls = getScanStations();
+		if(urls.size() < 2){
+			Log.i(TAG, "MediaStreamerService.startScan() - " + urls.size() + " stations to scan");
+			Toast.makeText(this, R.string.scan_not_enough_favorites, Toast.LENGTH_LONG).show();
+			if(!isPlaying && !isPreparing && !isRecording)
+				stopSelf();
+			return;
+		}
+		isSwitch = isPlaying || isPreparing;
+		tapTime = SystemClock.elapsedRealtime();
+		stop();
+		
+		SharedPreferences prefs = getSettings();
+		scanInterval = Integer.parseInt(prefs.getString(getString(R.string.pref_scan_seconds_key), getString(R.string.pref_scan_seconds_default))) * 1000L;
+		if(!requestAudioFocus()){
+			Log.i(TAG, "MediaStreamerService.startScan() - AudioFocus request denied");
+			
+			notifyStreamError(AUDIO_FOCUS_DENIED_ERROR);
+		}
+		
+		urlToStream = urls.get(0);
+		isPreparing = true;
+		PlayerDiagnostics.transition("SCANNING", urls.size() + " stations, " + scanInterval / 1000 + "s each");
+		scanPipeline = new PlayerPipeline(this, streamProxy, urls, PlayerPipeline.MAX_DEPTH, true, this);
+		scanPipeline.start();
+		startNotification();
+	}
+	
+	//---switches to the next station of the scan if it is prepared, or as soon as it is---
+	private void advanceScan(){
+		handler.removeCallbacks(scanAdvance);
+		PlayerPipeline.Item station = scanPipeline != null ? scanPipeline.take() : null;
+		if(station == null){
+			//the station playing keeps playing until the next one is ready
+			isScanOverdue = true;
+			return;
+		}
+		isScanOverdue = false;
+		if(isPlaying){
+			isSwitch = true;
+			tapTime = SystemClock.elapsedRealtime();
+		}
+		isScanHandover = true;
+		stop();
+		isScanHandover = false;
+		
+		startPrepared(station, "scan");
+		if(isPlaying && scanPipeline != null)
+			handler.postDelayed(scanAdvance, scanInterval);
+	}
+	
+	//---makes a player a PlayerPipeline prepared the one playing, in place of what stop() released---
+	private void startPrepared(PlayerPipeline.Item item, String reason){
+		urlToStream = item.url;
+		session = item.session;
+		PlayerDiagnostics.onPlay();
+		PlayerDiagnostics.setBitrate(0);
+		PlayerDiagnostics.setBufferPercent(-1);
+		PlayerDiagnostics.transition("PREPARING", urlToStream + " (" + reason + ", prepared in " + session.getTimeToPrepared() + "ms)");
+		mMediaPlayer = item.player;
+		playerLocalUrl = item.localUrl;
+		mMediaPlayer.setOnErrorListener(this);
+		mMediaPlayer.setOnPreparedListener(this);
+		mMediaPlayer.setOnCompletionListener(this);
+		mMediaPlayer.setOnInfoListener(this);
+		mMediaPlayer.setOnBufferingUpdateListener(this);
+		mMediaPlayer.setVolume(1.0f, 1.0f);
+		isPreparing = true;
+		//a player that setNextMediaPlayer() already started takes another start() as a no-op
+		startPlayback();
+	}
+	
+	@Override
+	public void onPlayerReady(PlayerPipeline pipeline) {
+		if(pipeline == scanPipeline){
+			if(!isPlaying || isScanOverdue)
+				advanceScan();
+		}
+		else if(pipeline == queuePipeline){
+			queueNext = pipeline.take();
+			pipeline.close();
+			queuePipeline = null;
+			if(Build.VERSION.SDK_INT >= 16 && mMediaPlayer != null){
+				//from here on the player starts the next item itself the moment this one ends
+				try{
+					mMediaPlayer.setNextMediaPlayer(queueNext.player);
+				}
+				catch(RuntimeException e){
+					Log.e(TAG, "MediaStreamerService.onPlayerReady() - Error chaining the next item", e);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void onPipelineFailed(PlayerPipeline pipeline) {
+		if(pipeline == scanPipeline){
+			Log.i(TAG, "MediaStreamerService.onPipelineFailed() - None of the stations could be prepared");
+			isPreparing = false;
+			notifyStreamError(MEDIA_PLAYER_ERROR);
+			stop();
+			startNotification();
+		}
+		else if(pipeline == queuePipeline){
+			//left to play() once this item ends, which reports the error if there still is one
+			Log.i(TAG, "MediaStreamerService.onPipelineFailed() - The next item in the queue could not be prepared");
+			queuePipeline = null;
+		}
+	}
+	
+	//---stops scanning and stays on the station the scan is on---
+	private void stopScan(){
+		if(scanPipeline == null)
+			return;
+		if(!isPlaying){
+			//nothing was ready yet, so there is nothing to stay on
+			stop();
+			return;
+		}
+		endScan();
+		addToRecents(session.getTimeToPrepared());
+		publishState();
+		broadcast(new Intent(MainActivity.STARTED_PLAYBACK_INTENT));
+	}
+	
+	//---drops the stations the scan prepared, what is playing is left alone---
+	private void endScan(){
+		handler.removeCallbacks(scanAdvance);
+		isScanOverdue = false;
+		if(scanPipeline != null){
+			scanPipeline.close();
+			scanPipeline = null;
+		}
+	}
+	
+	//---the favorites to scan in the order the settings ask for, leaving out stations found dead---
+	private List<String> getScanStations(){
+		List<String> urls = new ArrayList<String>();
+		FavoritesDBHelper fdb = new FavoritesDBHelper(this).open();
+		try{
+			Cursor c = fdb.getAllFavorites();
+			try{
+				while(c.moveToNext()){
+					String url = c.getString(FavoritesDBHelper.COLUMN_URL);
+					if(c.getInt(FavoritesDBHelper.COLUMN_STATUS) != FavoritesDBHelper.STATUS_DEAD && isProxied(url))
+						urls.add(url);
+				}
+			}
+			finally{
+				c.close();
+			}
+		}
+		finally{
+			fdb.close();
+		}
+		
+		SharedPreferences prefs = getSettings();
+		if(!prefs.getString(getString(R.string.pref_scan_order_key), getString(R.string.pref_scan_order_default)).equals(getString(R.string.pref_scan_order_frecency)))
+			return urls;
+		final Map<String, Integer> frecencies;
+		RecentsDBHelper rdb = new RecentsDBHelper(this).open();
+		try{
+			frecencies = rdb.getFrecencies();
+		}
+		finally{
+			rdb.close();
+		}
+		//the sort is stable, stations with the same score (or never played) keep their list order
+		Collections.sort(urls, new Comparator<String>(){
+			@Override
+			public int compare(String lhs, String rhs) {
+				Integer l = frecencies.get(lhs);
+				Integer r = frecencies.get(rhs);
+				return (r != null ? r : 0) - (l != null ? l : 0);
+			}
+		});
+		return urls;
+	}
+	
+	//---adds url to the end of the queue, and starts the queue if nothing is playing---
+	private void enqueue(String url){
+		QueueDBHelper qdb = new QueueDBHelper(this).open();
+		try{
+			qdb.appendItem(url);
+		}
+		finally{
+			qdb.close();
+		}
+		Toast.makeText(this, R.string.queue_added, Toast.LENGTH_SHORT).show();
+		if(!isPlaying && !isPreparing){
+			playQueue(SystemClock.elapsedRealtime());
+		}
+		else if(queueItemId >= 0 && queueNext == null && queuePipeline == null){
+			//the end of the queue may just have stopped being the end
+			handler.removeCallbacks(queuePrefetch);
+			handler.post(queuePrefetch);
+		}
+	}
+	
+	//---plays the queue from its first item---
+	private void playQueue(long tapTime){
+		QueueDBHelper qdb = new QueueDBHelper(this).open();
+		try{
+			Cursor c = qdb.getNextItem(-1);
+			try{
+				if(c.getCount() == 0){
+					Toast.makeText(this, R.string.queue_empty, Toast.LENGTH_SHORT).show();
+					if(!isPlaying && !isPreparing && !isRecording)
+						stopSelf();
+					return;
+				}
+				this.tapTime = tapTime;
+				isSwitch = isPlaying || isPreparing;
+				stop();
+				urlToStream = c.getString(QueueDBHelper.COLUMN_URL);
+				queueItemId = c.getLong(QueueDBHelper.COLUMN_ROWID);
+			}
+			finally{
+				c.close();
+			}
+		}
+		finally{
+			qdb.close();
+		}
+		play();
+	}
+	
+	/*
+	 * Starts preparing the next item in the queue once the one playing has less than the prefetch
+	 * lead left. Until then it only checks back, so a seek or a late duration is taken into account.
+	 */
+	private void prefetchQueue(){
+		if(queueItemId < 0 || mMediaPlayer == null || streamProxy == null || queuePipeline != null || queueNext != null || isPreparing)
+			return;
+		long remaining;
+		try{
+			int duration = mMediaPlayer.getDuration();
+			//a live stream has no end to get ready for
+			if(duration <= 0)
+				return;
+			remaining = duration - mMediaPlayer.getCurrentPosition();
+		}
+		catch(IllegalStateException e){
+			return;
+		}
+		if(remaining > queuePrefetchLead){
+			handler.postDelayed(queuePrefetch, remaining - queuePrefetchLead);
+			return;
+		}
+		
+		String url;
+		QueueDBHelper qdb = new QueueDBHelper(this).open();
+		try{
+			Cursor c = qdb.getNextItem(queueItemId);
+			try{
+				if(c.getCount() == 0)
+					return;
+				url = c.getString(QueueDBHelper.COLUMN_URL);
+				queueNextId = c.getLong(QueueDBHelper.COLUMN_ROWID);
+			}
+			finally{
+				c.close();
+			}
+		}
+		finally{
+			qdb.close();
+		}
+		Log.i(TAG, "MediaStreamerService.prefetchQueue() - " + remaining / 1000 + "s left, preparing " + url);
+		queuePipeline = new PlayerPipeline(this, streamProxy, Collections.singletonList(url), 1, false, this);
+		queuePipeline.start();
+	}
+	
+	/*
+	 * The item playing has ended: takes it off the queue and goes on with the next one, handing over
+	 * to its prepared player if there is one. Returns false if the queue is done.
+	 */
+	private boolean advanceQueue(){
+		long nextId;
+		String nextUrl;
+		QueueDBHelper qdb = new QueueDBHelper(this).open();
+		try{
+			qdb.deleteItem(queueItemId);
+			Cursor c = qdb.getNextItem(queueItemId);
+			try{
+				if(c.getCount() == 0)
+					return false;
+				nextId = c.getLong(QueueDBHelper.COLUMN_ROWID);
+				nextUrl = c.getString(QueueDBHelper.COLUMN_URL);
+			}
+			finally{
+				c.close();
+			}
+		}
+		finally{
+			qdb.close();
+		}
+		
+		PlayerPipeline.Item next = queueNextId == nextId ? queueNext : null;
+		if(next != null)
+			queueNext = null;
+		tapTime = SystemClock.elapsedRealtime();
+		isSwitch = true;
+		stop();
+		queueItemId = nextId;
+		if(next == null){
+			//it wasn't ready in time, or the queue changed under it
+			Log.i(TAG, "MediaStreamerService.advanceQueue() - Next item not prepared, starting " + nextUrl);
+			urlToStream = nextUrl;
+			play();
+			return true;
+		}
+		startPrepared(next, "queue");
+		return true;
+	}
+	
+	//---drops the prepared next item, if any, so that the queue can be asked again---
+	private void resetQueuePrefetch(){
+		handler.removeCallbacks(queuePrefetch);
+		if(queuePipeline != null){
+			queuePipeline.close();
+			queuePipeline = null;
+		}
+		if(queueNext != null){
+			if(Build.VERSION.SDK_INT >= 16 && mMediaPlayer != null){
+				try{
+					mMediaPlayer.setNextMediaPlayer(null);
+				}
+				catch(RuntimeException e){
+					Log.e(TAG, "MediaStreamerService.resetQueuePrefetch() - Error unchaining the next item", e);
+				}
+			}
+			try{
+				queueNext.player.release();
+			}
+			catch(Exception e){
+				Log.e(TAG, "MediaStreamerService.resetQueuePrefetch() - Error releasing the next item", e);
+			}
+			if(streamProxy != null)
+				streamProxy.discard(queueNext.localUrl);
+			queueNext = null;
+		}
+		queueNextId = -1;
+	}
+	
+	/*
+	 * Records url to the music folder until stopRecording(), or for minutes if that is more than 0.
+	 * If url is what is playing the recording shares the player's connection.
+	 */
+	private void startRecording(String url, int minutes){
+		if(streamProxy == null || !isProxied(url))
+			return;
+		if(!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())){
+			Log.i(TAG, "MediaStreamerService.startRecording() - External storage is not available");
+			Toast.makeText(this, R.string.recording_storage_error, Toast.LENGTH_LONG).show();
+			return;
+		}
+		SharedPreferences prefs = getSettings();
+		int segmentMinutes = Integer.parseInt(prefs.getString(getString(R.string.pref_recording_segment_key), getString(R.string.pref_recording_segment_default)));
+		File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), getString(R.string.app_name));
+		String host = Uri.parse(url).getHost();
+		streamProxy.startRecording(new StreamRecorder(dir, url, host != null ? host : "recording", segmentMinutes * 60 * 1000L));
+		
+		if(!isRecording){
+			PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+			recordingWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MediaStreamerRecording");
+			recordingWakeLock.acquire();
+			WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+			recordingWifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, "MediaStreamerRecording");
+			recordingWifiLock.acquire();
+		}
+		isRecording = true;
+		
+		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		PendingIntent stopPending = PendingIntent.getService(this, STOP_RECORDING_REQUEST, new Intent(MainActivity.STOP_RECORDING_INTENT), PendingIntent.FLAG_UPDATE_CURRENT);
+		if(minutes > 0)
+			alarmManager.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + minutes * 60 * 1000L, stopPending);
+		else
+			alarmManager.cancel(stopPending);
+		
+		handler.removeCallbacks(recordingCheck);
+		handler.postDelayed(recordingCheck, RECORDING_CHECK_INTERVAL);
+		startNotification();
+		broadcast(new Intent(MainActivity.RECORDING_INTENT));
+	}
+	
+	private void stopRecording(){
+		handler.removeCallbacks(recordingCheck);
+		if(streamProxy != null)
+			streamProxy.stopRecording();
+		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		alarmManager.cancel(PendingIntent.getService(this, STOP_RECORDING_REQUEST, new Intent(MainActivity.STOP_RECORDING_INTENT), PendingIntent.FLAG_UPDATE_CURRENT));
+		if(!isRecording)
+			return;
+		isRecording = false;
+		if(recordingWakeLock != null && recordingWakeLock.isHeld())
+			recordingWakeLock.release();
+		if(recordingWifiLock != null && recordingWifiLock.isHeld())
+			recordingWifiLock.release();
+		recordingWakeLock = null;
+		recordingWifiLock = null;
+		
+		if(isPlaying || isPreparing || isPaused)
+			startNotification();
+		else
+			onPlaybackStopped();
+		broadcast(new Intent(MainActivity.RECORDING_INTENT));
+	}
+	
+	/*
+	 * The service intent for a play station request from outside the app. Only the station extras
+	 * are carried over, and a raw url only if isUrlAllowed, for callers that checked permission.
+	 */
+	/*package*/ static Intent newPlayStationIntent(Intent request, boolean isUrlAllowed){
+		Intent i = new Intent(MainActivity.PLAY_STATION_INTENT);
+		if(request.hasExtra(MainActivity.FAVORITE_ID_EXTRA))
+			i.putExtra(MainActivity.FAVORITE_ID_EXTRA, request.getLongExtra(MainActivity.FAVORITE_ID_EXTRA, -1));
+		if(request.hasExtra(MainActivity.FAVORITE_NAME_EXTRA))
+			i.putExtra(MainActivity.FAVORITE_NAME_EXTRA, request.getStringExtra(MainActivity.FAVORITE_NAME_EXTRA));
+		if(request.hasExtra(MainActivity.RECENT_ID_EXTRA))
+			i.putExtra(MainActivity.RECENT_ID_EXTRA, request.getLongExtra(MainActivity.RECENT_ID_EXTRA, -1));
+		if(isUrlAllowed && request.hasExtra(MainActivity.URL_EXTRA))
+			i.putExtra(MainActivity.URL_EXTRA, request.getStringExtra(MainActivity.URL_EXTRA));
+		i.putExtra(MainActivity.TAP_TIME_EXTRA, SystemClock.elapsedRealtime());
+		return i;
+	}
+	
+	//---the url a play station request names, by favorite, recent or url in that order, null if none---
+	private String findStationUrl(Intent intent){
+		String url = null;
+		long favoriteId = intent.getLongExtra(MainActivity.FAVORITE_ID_EXTRA, -1);
+		String favoriteName = intent.getStringExtra(MainActivity.FAVORITE_NAME_EXTRA);
+		long recentId = intent.getLongExtra(MainActivity.RECENT_ID_EXTRA, -1);
+		if(favoriteId >= 0 || favoriteName != null){
+			FavoritesDBHelper fdb = new FavoritesDBHelper(this).open();
+			try{
+				Cursor c = favoriteId >= 0 ? fdb.getFavorite(favoriteId) : fdb.getFavoriteByName(favoriteName);
+				try{
+					if(c.getCount() > 0)
+						url = c.getString(FavoritesDBHelper.COLUMN_URL);
+				}
+				finally{
+					c.close();
+				}
+			}
+			finally{
+				fdb.close();
+			}
+		}
+		else if(recentId >= 0){
+			RecentsDBHelper rdb = new RecentsDBHelper(this).open();
+			try{
+				Cursor c = rdb.getRecent(recentId);
+				try{
+					if(c.getCount() > 0)
+						url = c.getString(RecentsDBHelper.COLUMN_URL);
+				}
+				finally{
+					c.close();
+				}
+			}
+			finally{
+				rdb.close();
+			}
+		}
+		else{
+			url = intent.getStringExtra(MainActivity.URL_EXTRA);
+		}
+		if(url == null || !(url.startsWith("http://") || url.startsWith("https://") || url.startsWith("rtsp://")))
+			return null;
+		return url;
+	}
+	
+	/*
+	 * Wakes the service at startTime (wall clock ms) to record url for minutes. Only one recording
+	 * is scheduled at a time, scheduling another replaces it.
+	 */
+	public static void scheduleRecording(Context context, String url, long startTime, int minutes){
+		Intent recordIntent = new Intent(MainActivity.RECORD_INTENT);
+		recordIntent.putExtra(MainActivity.URL_EXTRA, url);
+		recordIntent.putExtra(MainActivity.MINUTES_EXTRA, minutes);
+		AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.set(AlarmManager.RTC_WAKEUP, startTime, PendingIntent.getService(context, RECORD_REQUEST, recordIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+		Log.i(TAG, "MediaStreamerService.scheduleRecording() - Recording " + url + " for " + minutes + " minutes at " + startTime);
+	}
+	
+	//---the position in the time-shift buffer that is being heard right now---
+	private long getPlaybackPosition(TimeShiftBuffer buffer){
+		if(isPaused || mMediaPlayer == null || isSeeking)
+			return pausedPosition;
+		long played = 0;
+		try{
+			played = mMediaPlayer.getCurrentPosition() * buffer.getBytesPerSecond() / 1000;
+		}
+		catch(Exception e){
+			Log.e(TAG, "MediaStreamerService.getPlaybackPosition() - Error getting the player position", e);
+		}
+		return buffer.clamp(timeShiftStart + played);
+	}
+	
+	/*
+	 * Pausing releases the player but keeps the live stream filling the buffer. Returns false if
+	 * there is no buffer, in which case the caller should stop instead.
+	 */
+	private boolean pause(){
+		TimeShiftBuffer buffer = streamProxy != null ? streamProxy.getTimeShift() : null;
+		if(buffer == null || !isTimeShiftAvailable || isPaused || isPreparing)
+			return false;
+		pausedPosition = getPlaybackPosition(buffer);
+		isPaused = true;
+		isSeeking = false;
+		releaseMediaPlayer();
+		PlayerDiagnostics.transition("PAUSED", null);
+		notifyTimeShift();
+		saveSession();
+		return true;
+	}
+	
+	private void resume(){
+		if(!isPaused)
+			return;
+		isPaused = false;
+		isPausedForFocus = false;
+		seekTo(pausedPosition);
+	}
+	
+	private void rewind(int seconds){
+		TimeShiftBuffer buffer = streamProxy != null ? streamProxy.getTimeShift() : null;
+		if(buffer == null || !isTimeShiftAvailable)
+			return;
+		long position = getPlaybackPosition(buffer) - seconds * buffer.getBytesPerSecond();
+		if(isPaused){
+			pausedPosition = buffer.clamp(position);
+			notifyTimeShift();
+		}
+		else{
+			seekTo(position);
+		}
+	}
+	
+	private void goLive(){
+		TimeShiftBuffer buffer = streamProxy != null ? streamProxy.getTimeShift() : null;
+		if(buffer == null || !isTimeShiftAvailable)
+			return;
+		isPaused = false;
+		seekTo(buffer.getHead() - LIVE_EDGE_SECONDS * buffer.getBytesPerSecond());
+	}
+	
+	//---restarts the player at position in the buffer, no new upstream connection involved---
+	private void seekTo(long position){
+		TimeShiftBuffer buffer = streamProxy.getTimeShift();
+		String localUrl = buffer != null ? streamProxy.registerTimeShift(buffer.clamp(position)) : null;
+		if(localUrl == null){
+			stop();
+			return;
+		}
+		timeShiftStart = buffer.clamp(position);
+		pausedPosition = timeShiftStart;
+		releaseMediaPlayer();
+		isSeeking = true;
+		PlayerDiagnostics.transition("SEEKING", (buffer.getHead() - timeShiftStart) / buffer.getBytesPerSecond() + "s behind live");
+		startMediaPlayer(localUrl);
+	}
+	
+	/*
+	 * What a sticky restart after the process is killed should pick up. Time-shift buffers don't
+	 * outlive the process, so a shifted live stream comes back at the live edge.
+	 */
+	private void saveSession(){
+		if(urlToStream.length() == 0)
+			return;
+		int position = -1;
+		if(mMediaPlayer != null && !isTimeShiftAvailable && !isSeeking){
+			try{
+				if(mMediaPlayer.getDuration() > 0)
+					position = mMediaPlayer.getCurrentPosition();
+			}
+			catch(IllegalStateException e){}
+		}
+		sessionStore.save(urlToStream, streamProxy != null ? streamProxy.getResolvedUrl(urlToStream) : null, position, isPaused);
+	}
+	
+	private void releaseMediaPlayer(){
+		if(mMediaPlayer == null)
+			return;
+		try{
+			mMediaPlayer.release();
+		}
+		catch(Exception e){
+			Log.e(TAG, "MediaStreamerService.releaseMediaPlayer() - Error while attempting to release media player - ", e);
+		}
+		mMediaPlayer = null;
+		discardPlayerUrl();
+	}
+	
+	//---lets the proxy forget the local url of the player that was just released---
+	private void discardPlayerUrl(){
+		if(playerLocalUrl != null && streamProxy != null)
+			streamProxy.discard(playerLocalUrl);
+		playerLocalUrl = null;
+	}
+	
+	//---seconds between what is being heard and the live edge---
+	private long getTimeShiftDelay(){
+		TimeShiftBuffer buffer = streamProxy != null ? streamProxy.getTimeShift() : null;
+		if(buffer == null)
+			return 0;
+		return (buffer.getHead() - getPlaybackPosition(buffer)) / buffer.getBytesPerSecond();
+	}
+	
+	private void notifyTimeShift(){
+		startNotification();
+		broadcast(new Intent(MainActivity.TIME_SHIFT_INTENT));
 	}
 	
 	private void notifyStreamError(int error){
 		isStreamError = true;
+		if(session != null)
+			session.onError(error);
+		PlayerDiagnostics.onError();
+		PlayerDiagnostics.transition("ERROR", Integer.toString(error));
 		Intent i = new Intent(MainActivity.ERROR_INTENT);
 		i.putExtra(MainActivity.ERROR_EXTRA, error);
-		sendBroadcast(i);
+		broadcast(i);
 	}
 	
 	private void notifyClearStreamError(){
 		if(isStreamError){
 			isStreamError = false;
-			sendBroadcast(new Intent(MainActivity.CLEAR_ERROR_INTENT));
+			broadcast(new Intent(MainActivity.CLEAR_ERROR_INTENT));
 		}
 	}
 	
-	public static boolean isRunning(){
-		return isRunning;
+	/*
+	 * Sends an event to the UI process with the whole state attached, so the UI never has to ask
+	 * for it, and schedules STATE_INTENT to catch up once this round of changes is done.
+	 */
+	private void broadcast(Intent intent){
+		sendBroadcast(withState(intent), PlaybackState.PERMISSION);
+		publishState();
+	}
+	
+	//---coalesced, everything changed while handling one command goes out as a single broadcast---
+	private void publishState(){
+		handler.removeCallbacks(statePublish);
+		handler.post(statePublish);
+	}
+	
+	private Intent withState(Intent intent){
+		//nothing outside the app needs to know what is playing
+		intent.setPackage(getPackageName());
+		return PlaybackState.write(intent, getStateFlags(), urlToStream, nowPlaying);
 	}
 	
-	public static boolean isPlaying(){
-		return isPlaying;
+	private int getStateFlags(){
+		int flags = 0;
+		if(isRunning)
+			flags |= PlaybackState.RUNNING;
+		if(isPlaying)
+			flags |= PlaybackState.PLAYING;
+		if(isPreparing)
+			flags |= PlaybackState.PREPARING;
+		if(isPaused)
+			flags |= PlaybackState.PAUSED;
+		if(isStreamError)
+			flags |= PlaybackState.STREAM_ERROR;
+		if(isTimeShiftAvailable)
+			flags |= PlaybackState.TIME_SHIFT_AVAILABLE;
+		if(isRecording)
+			flags |= PlaybackState.RECORDING;
+		if(scanPipeline != null)
+			flags |= PlaybackState.SCANNING;
+		return flags;
 	}
 	
-	public static boolean isStreamError(){
-		return isStreamError;
+	/*
+	 * The app's settings as the Preferences screen last saved them. That runs in the UI process, so
+	 * the cached copy every process keeps has to be reloaded when the file changes.
+	 */
+	private SharedPreferences getSettings(){
+		return getSharedPreferences(getPackageName() + "_preferences", MODE_MULTI_PROCESS);
 	}
 	
+	//---these are only meaningful in the service's own process, the UI reads PlaybackState---
 	public static String getUrlToStream(){
 		return urlToStream;
 	}
 	
+	public static String getNowPlaying(){
+		return nowPlaying;
+	}
+	
 	@Override
     public void onDestroy() {
 		Log.i("UrlMediaStreamer", "MediaStreamerService.onDestroy()");
+		//before stop(), or the recording would reconnect on its own as the player goes away
+		stopRecording();
 		stop();
 		isRunning = false;
 		if(mMediaPlayer != null)
 			mMediaPlayer.release();
+		//not posted, the UI has to hear that the service is gone before the process is
+		handler.removeCallbacks(statePublish);
+		statePublish.run();
 		
 		unregisterReceiver(audioTooNoisyReceiver);
+		unregisterReceiver(uiRequestReceiver);
+		
+		if(lanRelay != null)
+			lanRelay.stop();
+		
+		if(streamProxy != null)
+			streamProxy.stop();
+		
+		metricsRecorder.shutdown();
+		mediaCache.shutdown();
+		sessionStore.shutdown();
+		handler.removeCallbacks(statsHidden);
+		stallMonitor.shutdown();
 		
 		stopNotification();
 		
     }
 
+	@Override
+	public void onTrimMemory(int level) {
+		Log.i(TAG, "MediaStreamerService.onTrimMemory() - Level " + level);
+		BufferPool.trim(level);
+	}
+	
+	@Override
+	public void onLowMemory() {
+		Log.i(TAG, "MediaStreamerService.onLowMemory()");
+		//before API 14 this is the only warning there is
+		BufferPool.trim(TRIM_MEMORY_COMPLETE);
+	}
+	
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		StringBuilder sb = new StringBuilder();
+		PlayerDiagnostics.snapshot(sb);
+		PlaybackSession s = session;
+		if(s != null){
+			sb.append("Session: ttfb=").append(s.getTimeToFirstByte()).append("ms ttp=").append(s.getTimeToPrepared()).append("ms rebuffers=").append(s.getRebuffers()).append(" reconnects=").append(s.getReconnects()).append(" bytes=").append(s.getBytes()).append(" errors=").append(s.getErrors()).append('\n');
+		}
+		StreamRecorder recorder = streamProxy != null ? streamProxy.getRecorder() : null;
+		if(recorder != null)
+			recorder.appendStatus(sb);
+		notificationController.appendStatus(sb);
+		MetricsDBHelper mdb = new MetricsDBHelper(this).open();
+		try{
+			mdb.appendStatus(sb, DUMP_RECENT_SESSIONS);
+		}
+		finally{
+			mdb.close();
+		}
+		if(lanRelay != null)
+			sb.append("LAN relay: ").append(getRelayUrl()).append(" - ").append(lanRelay.getListenerCount()).append(" listeners, ").append(LanRelay.getServedBytes() / 1024).append("KB served, ").append(LanRelay.getResyncs()).append(" resyncs, ").append(LanRelay.getDropped()).append(" dropped\n");
+		writer.print(sb);
+		writer.flush();
+	}
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		return null;
@@ -339,7 +1782,18 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
 		//very inefficient...try optimizing when you have time  
 		switch (focusChange) {
         case AudioManager.AUDIOFOCUS_GAIN:
+        	if(isPaused){
+        		//only pick up where we left off if it was the focus loss that paused us
+        		if(isPausedForFocus)
+        			resume();
+        		break;
+        	}
+            long itemId = queueItemId;
             stop();
+            //still the same place in the queue
+            queueItemId = itemId;
+            tapTime = SystemClock.elapsedRealtime();
+            isSwitch = false;
             play();
             break;
 
@@ -350,12 +1804,21 @@ public class MediaStreamerService extends Service implements MediaPlayer.OnPrepa
 
         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
             // Lost focus for a short time, but we have to stop
+        	// With a time-shift buffer nothing said in the meantime is lost
+        	if(pause()){
+        		isPausedForFocus = true;
+        		break;
+        	}
             stop();
             break;
 
         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
             // Lost focus for a short time, but it's ok to keep playing
             // at an attenuated level
+        	if(pause()){
+        		isPausedForFocus = true;
+        		break;
+        	}
             stop();
             break;
     }
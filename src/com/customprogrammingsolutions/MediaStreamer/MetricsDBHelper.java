@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+public class MetricsDBHelper {
+    public static final String KEY_ROWID = "_id";
+    public static final String KEY_URL = "url";
+    public static final String KEY_STARTED = "started";
+    public static final String KEY_TTFB = "ttfb";
+    public static final String KEY_TTP = "ttp";
+    public static final String KEY_REBUFFERS = "rebuffers";
+    public static final String KEY_REBUFFER_TIME = "rebuffer_time";
+    public static final String KEY_RECONNECTS = "reconnects";
+    public static final String KEY_BYTES = "bytes";
+    public static final String KEY_LISTEN_TIME = "listen_time";
+    public static final String KEY_ERRORS = "errors";
+
+    //station aggregates reuse the keys above as rolling totals, plus these
+    public static final String KEY_SESSIONS = "sessions";
+    public static final String KEY_FAILED_SESSIONS = "failed_sessions";
+    //how many sessions went into the ttfb and ttp totals, the ones that never got that far don't
+    public static final String KEY_TTFB_COUNT = "ttfb_count";
+    public static final String KEY_TTP_COUNT = "ttp_count";
+    public static final String KEY_LAST_STARTED = "last_started";
+
+    private static final String DATABASE_NAME = "metrics";
+    private static final String SESSIONS_TABLE = "sessions";
+    private static final String STATIONS_TABLE = "station_stats";
+    private static final int DATABASE_VERSION = 2;
+
+    //only this many sessions are kept
+    private static final int MAX_SESSIONS = 1000;
+    /*
+     * The station aggregates decay by this much with every new session, so they follow roughly the
+     * last ROLLING_SESSIONS sessions and a station that has been fixed stops looking broken.
+     */
+    private static final int ROLLING_SESSIONS = 20;
+    private static final String DECAY = Double.toString(1 - 1.0 / ROLLING_SESSIONS);
+
+    private static final String SESSIONS_CREATE =
+        "CREATE TABLE " + SESSIONS_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " + KEY_URL + " text not null, " + KEY_STARTED + " integer not null, " + KEY_TTFB + " integer, " + KEY_TTP + " integer, " + KEY_REBUFFERS + " integer, " + KEY_REBUFFER_TIME + " integer, " + KEY_RECONNECTS + " integer, " + KEY_BYTES + " integer, " + KEY_LISTEN_TIME + " integer, " + KEY_ERRORS + " text);";
+
+    private static final String STATIONS_CREATE =
+        "CREATE TABLE " + STATIONS_TABLE + " (" + KEY_URL + " text primary key, " + KEY_SESSIONS + " real not null, " + KEY_FAILED_SESSIONS + " real not null, " + KEY_TTFB + " real not null, " + KEY_TTFB_COUNT + " real not null, " + KEY_TTP + " real not null, " + KEY_TTP_COUNT + " real not null, " + KEY_REBUFFERS + " real not null, " + KEY_REBUFFER_TIME + " real not null, " + KEY_RECONNECTS + " real not null, " + KEY_BYTES + " real not null, " + KEY_LISTEN_TIME + " real not null, " + KEY_LAST_STARTED + " integer not null);";
+
+    private static final String SESSION_INSERT =
+        "INSERT INTO " + SESSIONS_TABLE + " VALUES (NULL, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String STATION_UPDATE =
+        "UPDATE " + STATIONS_TABLE + " SET " + decayed(KEY_SESSIONS) + " + 1, " + decayed(KEY_FAILED_SESSIONS) + " + ?, " + decayed(KEY_TTFB) + " + ?, " + decayed(KEY_TTFB_COUNT) + " + ?, " + decayed(KEY_TTP) + " + ?, " + decayed(KEY_TTP_COUNT) + " + ?, " + decayed(KEY_REBUFFERS) + " + ?, " + decayed(KEY_REBUFFER_TIME) + " + ?, " + decayed(KEY_RECONNECTS) + " + ?, " + decayed(KEY_BYTES) + " + ?, " + decayed(KEY_LISTEN_TIME) + " + ?, " + KEY_LAST_STARTED + " = ? WHERE " + KEY_URL + " = ?";
+
+    private static final String STATION_INSERT =
+        "INSERT INTO " + STATIONS_TABLE + " VALUES (?, 1, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final Context context;
+
+    private final static String TAG = "MediaStreamer";
+
+    private DatabaseHelper DBHelper;
+    private SQLiteDatabase db;
+
+    public MetricsDBHelper(Context ctx){
+        this.context = ctx;
+        DBHelper = new DatabaseHelper(context);
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper{
+        DatabaseHelper(Context context){
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db){
+            db.execSQL(SESSIONS_CREATE);
+            db.execSQL(STATIONS_CREATE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + SESSIONS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + STATIONS_TABLE);
+            onCreate(db);
+        }
+    }
+
+    //---opens the database---
+    public MetricsDBHelper open() throws SQLException{
+        db = DBHelper.getWritableDatabase();
+        return this;
+    }
+
+    //---closes the database---
+    public void close(){
+        DBHelper.close();
+    }
+
+    //---writes a batch of finished sessions and folds them into the station aggregates---
+    public void insertSessions(List<PlaybackSession> sessions){
+    	SQLiteStatement insertSession = db.compileStatement(SESSION_INSERT);
+    	SQLiteStatement updateStation = db.compileStatement(STATION_UPDATE);
+    	SQLiteStatement insertStation = db.compileStatement(STATION_INSERT);
+    	//executeUpdateDelete() needs honeycomb, changes() works everywhere
+    	SQLiteStatement changes = db.compileStatement("SELECT changes()");
+    	db.beginTransaction();
+    	try{
+    		for(PlaybackSession s : sessions){
+    			insertSession.bindString(1, s.url);
+    			insertSession.bindLong(2, s.startTime);
+    			bindOptional(insertSession, 3, s.getTimeToFirstByte());
+    			bindOptional(insertSession, 4, s.getTimeToPrepared());
+    			insertSession.bindLong(5, s.getRebuffers());
+    			insertSession.bindLong(6, s.getRebufferTime());
+    			insertSession.bindLong(7, s.getReconnects());
+    			insertSession.bindLong(8, s.getBytes());
+    			insertSession.bindLong(9, s.getListenTime());
+    			insertSession.bindString(10, s.getErrors());
+    			insertSession.executeInsert();
+
+    			//rolling totals, so reading a station's averages never needs the sessions table
+    			long failed = s.isFailed() ? 1 : 0;
+    			long ttfb = s.getTimeToFirstByte();
+    			long ttp = s.getTimeToPrepared();
+    			updateStation.bindLong(1, failed);
+    			bindMeasured(updateStation, 2, ttfb);
+    			bindMeasured(updateStation, 4, ttp);
+    			updateStation.bindLong(6, s.getRebuffers());
+    			updateStation.bindLong(7, s.getRebufferTime());
+    			updateStation.bindLong(8, s.getReconnects());
+    			updateStation.bindLong(9, s.getBytes());
+    			updateStation.bindLong(10, s.getListenTime());
+    			updateStation.bindLong(11, s.startTime);
+    			updateStation.bindString(12, s.url);
+    			updateStation.execute();
+    			if(changes.simpleQueryForLong() == 0){
+    				insertStation.bindString(1, s.url);
+    				insertStation.bindLong(2, failed);
+    				bindMeasured(insertStation, 3, ttfb);
+    				bindMeasured(insertStation, 5, ttp);
+    				insertStation.bindLong(7, s.getRebuffers());
+    				insertStation.bindLong(8, s.getRebufferTime());
+    				insertStation.bindLong(9, s.getReconnects());
+    				insertStation.bindLong(10, s.getBytes());
+    				insertStation.bindLong(11, s.getListenTime());
+    				insertStation.bindLong(12, s.startTime);
+    				insertStation.executeInsert();
+    			}
+    		}
+    		//rowids only grow, so trimming by rowid is a range delete on the primary key
+    		db.execSQL("DELETE FROM " + SESSIONS_TABLE + " WHERE " + KEY_ROWID + " <= (SELECT MAX(" + KEY_ROWID + ") FROM " + SESSIONS_TABLE + ") - " + MAX_SESSIONS);
+    		db.setTransactionSuccessful();
+    	}
+    	finally{
+    		db.endTransaction();
+    		insertSession.close();
+    		updateStation.close();
+    		insertStation.close();
+    		changes.close();
+    	}
+    }
+
+    private static void bindOptional(SQLiteStatement statement, int index, long value){
+    	if(value < 0)
+    		statement.bindNull(index);
+    	else
+    		statement.bindLong(index, value);
+    }
+
+    //---a total and its count, both left as they are when the session never got that far---
+    private static void bindMeasured(SQLiteStatement statement, int index, long value){
+    	statement.bindLong(index, Math.max(0, value));
+    	statement.bindLong(index + 1, value >= 0 ? 1 : 0);
+    }
+
+    private static String decayed(String column){
+    	return column + " = " + column + " * " + DECAY;
+    }
+
+    //---retrieves the aggregates of every station, the worst failure rate first---
+    public Cursor getAllStationStats(){
+    	String q = "SELECT * FROM " + STATIONS_TABLE + " ORDER BY CAST(" + KEY_FAILED_SESSIONS + " AS REAL) / " + KEY_SESSIONS + " DESC, " + KEY_REBUFFERS + " DESC";
+    	return db.rawQuery(q, null);
+    }
+
+    //---retrieves the most recent sessions---
+    public Cursor getRecentSessions(int limit){
+    	String q = "SELECT * FROM " + SESSIONS_TABLE + " ORDER BY " + KEY_ROWID + " DESC LIMIT " + Integer.toString(limit);
+    	return db.rawQuery(q, null);
+    }
+
+    //---appends the station averages and the latest sessions, used by dumpsys---
+    public void appendStatus(StringBuilder sb, int recentSessions){
+    	Cursor c = getAllStationStats();
+    	try{
+    		sb.append("Stations (last ").append(ROLLING_SESSIONS).append(" sessions or so):\n");
+    		while(c.moveToNext()){
+    			double sessions = c.getDouble(c.getColumnIndex(KEY_SESSIONS));
+    			sb.append("  ").append(c.getString(c.getColumnIndex(KEY_URL)));
+    			sb.append(" - ").append(Math.round(c.getDouble(c.getColumnIndex(KEY_FAILED_SESSIONS)) * 100 / sessions)).append("% failed");
+    			appendAverage(sb, " - ttfb ", c.getDouble(c.getColumnIndex(KEY_TTFB)), c.getDouble(c.getColumnIndex(KEY_TTFB_COUNT)));
+    			appendAverage(sb, " - ttp ", c.getDouble(c.getColumnIndex(KEY_TTP)), c.getDouble(c.getColumnIndex(KEY_TTP_COUNT)));
+    			sb.append(" - ").append(String.format("%.1f", c.getDouble(c.getColumnIndex(KEY_REBUFFERS)) / sessions)).append(" rebuffers and ");
+    			sb.append(String.format("%.1f", c.getDouble(c.getColumnIndex(KEY_RECONNECTS)) / sessions)).append(" reconnects a session\n");
+    		}
+    	}
+    	finally{
+    		c.close();
+    	}
+    	c = getRecentSessions(recentSessions);
+    	try{
+    		sb.append("Recent sessions:\n");
+    		while(c.moveToNext()){
+    			sb.append("  ").append(c.getString(c.getColumnIndex(KEY_URL)));
+    			sb.append(" - ttfb=").append(c.isNull(c.getColumnIndex(KEY_TTFB)) ? "-" : c.getLong(c.getColumnIndex(KEY_TTFB)) + "ms");
+    			sb.append(" ttp=").append(c.isNull(c.getColumnIndex(KEY_TTP)) ? "-" : c.getLong(c.getColumnIndex(KEY_TTP)) + "ms");
+    			sb.append(" rebuffers=").append(c.getLong(c.getColumnIndex(KEY_REBUFFERS)));
+    			sb.append(" reconnects=").append(c.getLong(c.getColumnIndex(KEY_RECONNECTS)));
+    			sb.append(" listened=").append(c.getLong(c.getColumnIndex(KEY_LISTEN_TIME)) / 1000).append('s');
+    			String errors = c.getString(c.getColumnIndex(KEY_ERRORS));
+    			if(errors != null && errors.length() > 0)
+    				sb.append(" errors=").append(errors);
+    			sb.append('\n');
+    		}
+    	}
+    	finally{
+    		c.close();
+    	}
+    }
+
+    private static void appendAverage(StringBuilder sb, String label, double total, double count){
+    	sb.append(label).append(count > 0 ? Math.round(total / count) + "ms" : "-");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/*
+ * Collects finished sessions on the main thread and writes them to MetricsDBHelper in batches on
+ * a background thread.
+ */
+/*package*/ class MetricsRecorder {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int BATCH_SIZE = 10;
+	private static final long FLUSH_DELAY = 5 * 60 * 1000;
+
+	private final Context context;
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final Handler mainHandler = new Handler();
+
+	//only touched on the main thread
+	private List<PlaybackSession> pending = new ArrayList<PlaybackSession>();
+
+	private final Runnable flushPending = new Runnable(){
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	//must be created on the main thread
+	public MetricsRecorder(Context context){
+		this.context = context.getApplicationContext();
+		thread = new HandlerThread("MetricsRecorder", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	public void record(PlaybackSession session){
+		session.finish();
+		pending.add(session);
+		if(pending.size() >= BATCH_SIZE){
+			flush();
+		}
+		else if(pending.size() == 1){
+			//a lone session still gets written if nothing else comes along
+			mainHandler.postDelayed(flushPending, FLUSH_DELAY);
+		}
+	}
+
+	public void flush(){
+		mainHandler.removeCallbacks(flushPending);
+		if(pending.isEmpty())
+			return;
+		final List<PlaybackSession> batch = pending;
+		pending = new ArrayList<PlaybackSession>();
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				MetricsDBHelper mdb = new MetricsDBHelper(context).open();
+				try{
+					mdb.insertSessions(batch);
+				}
+				catch(Exception e){
+					Log.e(TAG, "MetricsRecorder - Error writing " + batch.size() + " sessions", e);
+				}
+				finally{
+					mdb.close();
+				}
+			}
+		});
+	}
+
+	//---writes whatever is pending and stops the writer thread once it is done---
+	public void shutdown(){
+		flush();
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				Looper.myLooper().quit();
+			}
+		});
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+/*
+ * Owns the service's foreground notification. A single playback transition asks for the
+ * notification several times over, so the service only describes what it wants shown and this
+ * posts it when that differs from what is already up, no more often than MIN_UPDATE_INTERVAL.
+ * The pending intents are made once and reused for every post.
+ */
+/*package*/ class NotificationController {
+	private final static String TAG = "MediaStreamer";
+
+	public static final int INDICATOR_LOADING = 0;
+	public static final int INDICATOR_ERROR = 1;
+	public static final int INDICATOR_PAUSED = 2;
+	public static final int INDICATOR_PLAYING = 3;
+	public static final int INDICATOR_STOPPED = 4;
+
+	private static final long MIN_UPDATE_INTERVAL = 1000;
+
+	private final Service service;
+	private final int id;
+	private final NotificationManager notificationManager;
+	private final Handler handler = new Handler();
+	private final NotificationCompat.Builder builder;
+
+	private final PendingIntent contentIntent;
+	private final PendingIntent killIntent;
+	private final PendingIntent stopIntent;
+	private final PendingIntent resumeIntent;
+	//a click that does nothing, while the stream is loading
+	private final PendingIntent noOpIntent;
+	private PendingIntent playIntent;
+	private String playUrl;
+
+	//what the service wants shown
+	private int title;
+	private String text = "";
+	private int indicator;
+	private String url = "";
+
+	//what is up now, title 0 means nothing is
+	private int postedTitle = 0;
+	private String postedText;
+	private int postedIndicator;
+	private String postedUrl;
+	private long lastPost = 0;
+
+	private int posts = 0;
+	private int skipped = 0;
+
+	private final Runnable post = new Runnable(){
+		@Override
+		public void run(){
+			post();
+		}
+	};
+
+	//must be created on the main thread
+	public NotificationController(Service service, int id){
+		this.service = service;
+		this.id = id;
+		notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+		contentIntent = PendingIntent.getActivity(service, 0, new Intent(service, MainActivity.class), 0);
+		killIntent = PendingIntent.getService(service, 0, new Intent(MainActivity.KILL_SERVICE_INTENT), 0);
+		stopIntent = PendingIntent.getService(service, 0, new Intent(MainActivity.STOP_INTENT), 0);
+		resumeIntent = PendingIntent.getService(service, 0, new Intent(MainActivity.RESUME_INTENT), 0);
+		noOpIntent = PendingIntent.getActivity(service.getApplicationContext(), 0, new Intent(), 0);
+
+		builder = new NotificationCompat.Builder(service);
+		builder.setSmallIcon(R.drawable.notification_icon);
+		builder.setAutoCancel(false);
+	}
+
+	/*
+	 * Asks for the notification to show title (a string resource), text and indicator, with url
+	 * being what the play button starts. The first call after stop() goes up at once so the
+	 * service is in the foreground straight away; after that it is posted only if it changed.
+	 */
+	public void update(int title, String text, int indicator, String url){
+		this.title = title;
+		this.text = text;
+		this.indicator = indicator;
+		this.url = url;
+
+		if(postedTitle == 0){
+			handler.removeCallbacks(post);
+			post();
+			return;
+		}
+		if(!isChanged()){
+			handler.removeCallbacks(post);
+			skipped++;
+			return;
+		}
+		long delay = Math.max(0, lastPost + MIN_UPDATE_INTERVAL - SystemClock.elapsedRealtime());
+		handler.removeCallbacks(post);
+		handler.postDelayed(post, delay);
+	}
+
+	//---takes the notification down and the service out of the foreground---
+	public void stop(){
+		handler.removeCallbacks(post);
+		service.stopForeground(true);
+		postedTitle = 0;
+	}
+
+	public void appendStatus(StringBuilder sb){
+		sb.append("Notification: ").append(posts).append(" posted, ").append(skipped).append(" unchanged updates skipped\n");
+	}
+
+	private boolean isChanged(){
+		return title != postedTitle || indicator != postedIndicator || !text.equals(postedText) || (indicator == INDICATOR_STOPPED && !url.equals(postedUrl));
+	}
+
+	private void post(){
+		if(postedTitle != 0 && !isChanged())
+			return;
+		Tracing.begin("NotificationController.post");
+		try{
+			//a RemoteViews keeps every action applied to it, so a fresh one is cheaper than reusing one
+			RemoteViews contentView = new RemoteViews(service.getPackageName(), R.layout.custom_notification_layout);
+			contentView.setImageViewResource(R.id.notification_icon, R.drawable.notification_icon);
+			contentView.setTextViewText(R.id.notification_title, service.getString(title));
+			contentView.setTextViewText(R.id.notification_text, text);
+			contentView.setImageViewResource(R.id.media_state_indicator_icon, getIndicatorDrawable());
+			contentView.setOnClickPendingIntent(R.id.media_state_indicator_icon, getIndicatorIntent());
+			contentView.setOnClickPendingIntent(R.id.notification_layout, contentIntent);
+			contentView.setOnClickPendingIntent(R.id.close_notification_icon, killIntent);
+			builder.setContent(contentView);
+
+			if(postedTitle == 0)
+				service.startForeground(id, builder.build());
+			else
+				notificationManager.notify(id, builder.build());
+		}
+		catch(RuntimeException e){
+			Log.e(TAG, "NotificationController.post() - Error posting the notification", e);
+			return;
+		}
+		finally{
+			Tracing.end();
+		}
+		postedTitle = title;
+		postedText = text;
+		postedIndicator = indicator;
+		postedUrl = url;
+		lastPost = SystemClock.elapsedRealtime();
+		posts++;
+	}
+
+	private int getIndicatorDrawable(){
+		switch(indicator){
+			case INDICATOR_LOADING:
+				return R.drawable.notification_playback_loading;
+			case INDICATOR_ERROR:
+				return R.drawable.notification_playback_error;
+			case INDICATOR_PLAYING:
+				return R.drawable.stop_button;
+			default:
+				return R.drawable.play_button;
+		}
+	}
+
+	private PendingIntent getIndicatorIntent(){
+		switch(indicator){
+			case INDICATOR_LOADING:
+				return noOpIntent;
+			case INDICATOR_ERROR:
+				return contentIntent;
+			case INDICATOR_PAUSED:
+				return resumeIntent;
+			case INDICATOR_PLAYING:
+				return stopIntent;
+			default:
+				return getPlayIntent();
+		}
+	}
+
+	//---only rebuilt when the url it plays changes---
+	private PendingIntent getPlayIntent(){
+		if(playIntent == null || !url.equals(playUrl)){
+			Intent i = new Intent(MainActivity.PLAY_INTENT);
+			i.putExtra(MainActivity.URL_EXTRA, url);
+			playIntent = PendingIntent.getService(service, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+			playUrl = url;
+		}
+		return playIntent;
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+/*
+ * What home screen shortcuts open. Launchers can only start activities, so this one has no window
+ * (Theme.NoDisplay), inflates nothing and finishes as soon as it has handed the request to the
+ * service. Launchers hold no permission of ours, so unlike PlayStationReceiver this only plays
+ * stations already saved as a favorite or recent, never a url it is given.
+ */
+public class PlayShortcutActivity extends Activity {
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		startService(MediaStreamerService.newPlayStationIntent(getIntent(), false));
+		finish();
+	}
+}
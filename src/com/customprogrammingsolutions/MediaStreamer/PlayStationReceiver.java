@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/*
+ * The entry point for other apps (automation, widgets) to start a station. The manifest only lets
+ * apps holding the PLAY_STATIONS permission send here. The request goes straight to the service,
+ * nothing in the UI is created on the way.
+ */
+public class PlayStationReceiver extends BroadcastReceiver {
+	private final static String TAG = "MediaStreamer";
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Log.i(TAG, "PlayStationReceiver.onReceive() - Play station request");
+		context.startService(MediaStreamerService.newPlayStationIntent(intent, true));
+	}
+}
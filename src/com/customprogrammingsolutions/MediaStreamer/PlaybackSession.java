@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/*
+ * Quality of experience for one listening session, from play() until stop(). Byte and connection
+ * counts are updated from proxy threads, everything else from the main thread.
+ */
+/*package*/ class PlaybackSession {
+	final String url;
+	final long startTime = System.currentTimeMillis();
+	private final long startElapsed = SystemClock.elapsedRealtime();
+
+	private volatile long timeToFirstByte = -1;
+	private long timeToPrepared = -1;
+	private int rebuffers = 0;
+	private long rebufferTime = 0;
+	private long rebufferStart = -1;
+	private long listenTime = 0;
+	private final AtomicInteger connects = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final StringBuilder errors = new StringBuilder();
+	private boolean isFinished = false;
+
+	public PlaybackSession(String url){
+		this.url = url;
+	}
+
+	private long elapsed(){
+		return SystemClock.elapsedRealtime() - startElapsed;
+	}
+
+	public void onUpstreamConnected(){
+		connects.incrementAndGet();
+	}
+
+	public void onBytesReceived(int count){
+		if(timeToFirstByte < 0)
+			timeToFirstByte = elapsed();
+		bytes.addAndGet(count);
+	}
+
+	//only the first time counts, a prepared player can wait a while before it is started
+	public void onPrepared(){
+		if(timeToPrepared < 0)
+			timeToPrepared = elapsed();
+	}
+
+	public void onBufferingStart(){
+		if(rebufferStart < 0){
+			rebuffers++;
+			rebufferStart = SystemClock.elapsedRealtime();
+		}
+	}
+
+	public void onBufferingEnd(){
+		if(rebufferStart >= 0){
+			rebufferTime += SystemClock.elapsedRealtime() - rebufferStart;
+			rebufferStart = -1;
+		}
+	}
+
+	public void onError(int error){
+		if(errors.length() > 0)
+			errors.append(',');
+		errors.append(error);
+	}
+
+	public void finish(){
+		if(isFinished)
+			return;
+		onBufferingEnd();
+		if(timeToPrepared >= 0)
+			listenTime = elapsed() - timeToPrepared;
+		isFinished = true;
+	}
+
+	public long getTimeToFirstByte(){
+		return timeToFirstByte;
+	}
+
+	public long getTimeToPrepared(){
+		return timeToPrepared;
+	}
+
+	public int getRebuffers(){
+		return rebuffers;
+	}
+
+	public long getRebufferTime(){
+		return rebufferTime;
+	}
+
+	//the first connection is expected, every connection after it is a reconnect
+	public int getReconnects(){
+		return Math.max(0, connects.get() - 1);
+	}
+
+	public long getBytes(){
+		return bytes.get();
+	}
+
+	public long getListenTime(){
+		return listenTime;
+	}
+
+	public String getErrors(){
+		return errors.toString();
+	}
+
+	public boolean isFailed(){
+		return timeToPrepared < 0 || errors.length() > 0;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.List;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Process;
+
+/*
+ * The player's state as the UI sees it. MediaStreamerService runs in its own process, so its
+ * fields can't be read from the UI; instead every broadcast it sends carries the whole state in a
+ * few extras (one flags word and two strings), and a newly registered receiver asks for the current
+ * copy with REQUEST_STATE_INTENT. Commands still go the other way as service intents, so there is
+ * never more than one IPC per change in either direction. The state names the station and what it
+ * is playing, so every broadcast either way needs PERMISSION, which only this app can hold. A
+ * process that is killed never gets to say so, so the state names the process it came from and
+ * checkAlive() drops it once that process is gone.
+ */
+/*package*/ class PlaybackState {
+	//signature level, held by the app itself and nothing else
+	/*package*/ final static String PERMISSION = "com.customprogrammingsolutions.MediaStreamer.permission.PLAYBACK_STATE";
+	//the current state whenever it changes, and in answer to REQUEST_STATE_INTENT
+	/*package*/ final static String STATE_INTENT = "com.customprogrammingsolutions.MediaStreamer.PLAYBACK_STATE";
+	//asks a running service for STATE_INTENT, nothing answers if it isn't running
+	/*package*/ final static String REQUEST_STATE_INTENT = "com.customprogrammingsolutions.MediaStreamer.REQUEST_PLAYBACK_STATE";
+	//asks a running service for DIAGNOSTICS_INTENT, which also carries the stats overlay text; a
+	//broadcast rather than a service intent, so that it can't start a service that has died
+	/*package*/ final static String REQUEST_DIAGNOSTICS_INTENT = "com.customprogrammingsolutions.MediaStreamer.REQUEST_DIAGNOSTICS";
+	/*package*/ final static String DIAGNOSTICS_INTENT = "com.customprogrammingsolutions.MediaStreamer.DIAGNOSTICS";
+
+	private final static String FLAGS_EXTRA = "com.customprogrammingsolutions.MediaStreamer.STATE_FLAGS";
+	private final static String PID_EXTRA = "com.customprogrammingsolutions.MediaStreamer.STATE_PID";
+	private final static String URL_EXTRA = "com.customprogrammingsolutions.MediaStreamer.STATE_URL";
+	private final static String NOW_PLAYING_EXTRA = "com.customprogrammingsolutions.MediaStreamer.STATE_NOW_PLAYING";
+	private final static String DIAGNOSTICS_EXTRA = "com.customprogrammingsolutions.MediaStreamer.STATE_DIAGNOSTICS";
+
+	/*package*/ static final int RUNNING = 1;
+	/*package*/ static final int PLAYING = 2;
+	/*package*/ static final int PREPARING = 4;
+	/*package*/ static final int PAUSED = 8;
+	/*package*/ static final int STREAM_ERROR = 16;
+	/*package*/ static final int TIME_SHIFT_AVAILABLE = 32;
+	/*package*/ static final int RECORDING = 64;
+	/*package*/ static final int SCANNING = 128;
+
+	//the UI process's copy, written on the main thread, read by WaitForStreamConnectionTask too
+	private static volatile int flags = 0;
+	private static volatile int pid = 0;
+	private static volatile String url = "";
+	private static volatile String nowPlaying = "";
+	private static volatile String diagnostics = "";
+
+	private PlaybackState(){}
+
+	//---service side, adds the state to an outgoing broadcast---
+	public static Intent write(Intent intent, int flags, String url, String nowPlaying){
+		intent.putExtra(FLAGS_EXTRA, flags);
+		intent.putExtra(PID_EXTRA, Process.myPid());
+		intent.putExtra(URL_EXTRA, url);
+		intent.putExtra(NOW_PLAYING_EXTRA, nowPlaying);
+		return intent;
+	}
+
+	public static Intent writeDiagnostics(Intent intent, String text){
+		intent.putExtra(DIAGNOSTICS_EXTRA, text);
+		return intent;
+	}
+
+	//---UI side, takes the state from a broadcast if it has one---
+	public static void read(Intent intent){
+		if(intent == null || !intent.hasExtra(FLAGS_EXTRA))
+			return;
+		flags = intent.getIntExtra(FLAGS_EXTRA, 0);
+		pid = intent.getIntExtra(PID_EXTRA, 0);
+		url = nonNull(intent.getStringExtra(URL_EXTRA));
+		nowPlaying = nonNull(intent.getStringExtra(NOW_PLAYING_EXTRA));
+		if(intent.hasExtra(DIAGNOSTICS_EXTRA))
+			diagnostics = nonNull(intent.getStringExtra(DIAGNOSTICS_EXTRA));
+	}
+
+	//---UI side, forgets a state whose process has died without saying so, returns false if it did---
+	public static boolean checkAlive(Context context){
+		if(flags == 0)
+			return true;
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		List<ActivityManager.RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+		if(processes != null){
+			for(ActivityManager.RunningAppProcessInfo process : processes){
+				if(process.pid == pid && process.processName.startsWith(context.getPackageName()))
+					return true;
+			}
+		}
+		flags = 0;
+		nowPlaying = "";
+		return false;
+	}
+
+	public static boolean isRunning(){
+		return (flags & RUNNING) != 0;
+	}
+
+	public static boolean isPlaying(){
+		return (flags & PLAYING) != 0;
+	}
+
+	public static boolean isPreparing(){
+		return (flags & PREPARING) != 0;
+	}
+
+	public static boolean isPaused(){
+		return (flags & PAUSED) != 0;
+	}
+
+	public static boolean isStreamError(){
+		return (flags & STREAM_ERROR) != 0;
+	}
+
+	public static boolean isTimeShiftAvailable(){
+		return (flags & TIME_SHIFT_AVAILABLE) != 0;
+	}
+
+	public static boolean isRecording(){
+		return (flags & RECORDING) != 0;
+	}
+
+	public static boolean isScanning(){
+		return (flags & SCANNING) != 0;
+	}
+
+	public static String getUrlToStream(){
+		return url;
+	}
+
+	public static String getNowPlaying(){
+		return nowPlaying;
+	}
+
+	public static String getDiagnostics(){
+		return diagnostics;
+	}
+
+	private static String nonNull(String s){
+		return s == null ? "" : s;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.os.Process;
+
+/*
+ * Process wide counters and a ring of the last state transitions. Everything is written without
+ * locks so that the player threads never wait on someone reading a snapshot.
+ */
+/*package*/ class PlayerDiagnostics {
+	private static final int HISTORY_SIZE = 64;
+	private static final int LATENCY_SAMPLES = 100;
+	//shorter than this is scheduling noise, not the process standing still
+	private static final long STALL_THRESHOLD = 20;
+
+	private static class Transition{
+		final long time;
+		final String state;
+		final String detail;
+
+		Transition(long time, String state, String detail){
+			this.time = time;
+			this.state = state;
+			this.detail = detail;
+		}
+	}
+
+	private static final AtomicReferenceArray<Transition> history = new AtomicReferenceArray<Transition>(HISTORY_SIZE);
+	private static final AtomicLong transitions = new AtomicLong();
+
+	private static final AtomicLong plays = new AtomicLong();
+	private static final AtomicLong errors = new AtomicLong();
+	private static final AtomicLong rebuffers = new AtomicLong();
+
+	//tap to audible sound, a fresh start and a switch away from a playing station are kept apart
+	private static final AtomicLongArray timeToAudio = new AtomicLongArray(LATENCY_SAMPLES);
+	private static final AtomicLong timeToAudioCount = new AtomicLong();
+	private static final AtomicLongArray switchLatency = new AtomicLongArray(LATENCY_SAMPLES);
+	private static final AtomicLong switchLatencyCount = new AtomicLong();
+	//the MediaCodec engine's tap to audible sound, starts and switches together
+	private static final AtomicLongArray codecTimeToAudio = new AtomicLongArray(LATENCY_SAMPLES);
+	private static final AtomicLong codecTimeToAudioCount = new AtomicLong();
+
+	//cpu time this process spent per engine, against how long that engine played
+	private static final AtomicLong playerCpuTime = new AtomicLong();
+	private static final AtomicLong playerPlayTime = new AtomicLong();
+	private static final AtomicLong codecCpuTime = new AtomicLong();
+	private static final AtomicLong codecPlayTime = new AtomicLong();
+
+	//low power mode, how long the network was busy against how long was played
+	private static final AtomicLong bursts = new AtomicLong();
+	private static final AtomicLong burstBytes = new AtomicLong();
+	private static final AtomicLong burstTime = new AtomicLong();
+	private static final AtomicLong lowPowerPlayTime = new AtomicLong();
+
+	//how long the player's process stopped running while playing, see StallMonitor
+	private static final AtomicLongArray stalls = new AtomicLongArray(LATENCY_SAMPLES);
+	private static final AtomicLong stallCount = new AtomicLong();
+	private static final AtomicLong worstStall = new AtomicLong();
+
+	private static volatile String state = "IDLE";
+	private static volatile int bitrate = 0;
+	private static volatile int bufferPercent = -1;
+
+	private PlayerDiagnostics(){}
+
+	public static void transition(String newState, String detail){
+		long index = transitions.getAndIncrement();
+		history.set((int) (index % HISTORY_SIZE), new Transition(System.currentTimeMillis(), newState, detail));
+		state = newState;
+	}
+
+	public static void onPlay(){
+		plays.incrementAndGet();
+	}
+
+	public static void onError(){
+		errors.incrementAndGet();
+	}
+
+	public static void onRebuffer(){
+		rebuffers.incrementAndGet();
+	}
+
+	public static void recordTimeToAudio(long ms, boolean isSwitch, boolean isCodecEngine){
+		if(isCodecEngine)
+			codecTimeToAudio.set((int) (codecTimeToAudioCount.getAndIncrement() % LATENCY_SAMPLES), ms);
+		else if(isSwitch)
+			switchLatency.set((int) (switchLatencyCount.getAndIncrement() % LATENCY_SAMPLES), ms);
+		else
+			timeToAudio.set((int) (timeToAudioCount.getAndIncrement() % LATENCY_SAMPLES), ms);
+	}
+
+	public static void recordEngineUsage(boolean isCodecEngine, long cpuMs, long playMs){
+		(isCodecEngine ? codecCpuTime : playerCpuTime).addAndGet(cpuMs);
+		(isCodecEngine ? codecPlayTime : playerPlayTime).addAndGet(playMs);
+	}
+
+	public static void recordBurst(long bytes, long ms){
+		bursts.incrementAndGet();
+		burstBytes.addAndGet(bytes);
+		burstTime.addAndGet(ms);
+	}
+
+	public static void recordLowPowerPlayTime(long ms){
+		lowPowerPlayTime.addAndGet(ms);
+	}
+
+	public static void recordStall(long ms){
+		if(ms < STALL_THRESHOLD)
+			return;
+		stalls.set((int) (stallCount.getAndIncrement() % LATENCY_SAMPLES), ms);
+		//StallMonitor's thread is the only writer
+		if(ms > worstStall.get())
+			worstStall.set(ms);
+	}
+
+	//---advertised bitrate of the current stream in kbps, 0 if it didn't say---
+	public static void setBitrate(int kbps){
+		bitrate = kbps;
+	}
+
+	public static void setBufferPercent(int percent){
+		bufferPercent = percent;
+	}
+
+	public static String getState(){
+		return state;
+	}
+
+	//---appends a human readable snapshot, used by dumpsys and the stats overlay---
+	public static void snapshot(StringBuilder sb){
+		SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+
+		sb.append("State: ").append(state).append('\n');
+		sb.append("Url: ").append(MediaStreamerService.getUrlToStream()).append('\n');
+		sb.append("Now playing: ").append(MediaStreamerService.getNowPlaying()).append('\n');
+		sb.append("Bitrate: ").append(bitrate > 0 ? bitrate + " kbps" : "unknown");
+		if(HlsStreamer.getCurrentBandwidth() > 0)
+			sb.append(" (hls variant ").append(HlsStreamer.getCurrentBandwidth() / 1000).append(" kbps, estimate ").append(HlsStreamer.getEstimatedThroughput() / 1000).append(" kbps, ").append(HlsStreamer.getPrefetchedSeconds()).append("s prefetched)");
+		sb.append('\n');
+		sb.append("Buffer: ").append(bufferPercent >= 0 ? bufferPercent + "%" : "live").append('\n');
+		sb.append("Plays: ").append(plays.get()).append(" - errors: ").append(errors.get()).append(" - rebuffers: ").append(rebuffers.get()).append('\n');
+		sb.append("Process: pid ").append(Process.myPid()).append(" - ").append(stallCount.get()).append(" stalls over ").append(STALL_THRESHOLD).append("ms while the overlay was open, worst ").append(worstStall.get()).append("ms\n");
+		appendPercentiles(sb, "Stalls", stalls, stallCount.get());
+		appendPercentiles(sb, "Time to audio", timeToAudio, timeToAudioCount.get());
+		appendPercentiles(sb, "Switch latency", switchLatency, switchLatencyCount.get());
+		appendPercentiles(sb, "Time to audio (codec engine)", codecTimeToAudio, codecTimeToAudioCount.get());
+		sb.append("CPU per minute played: ");
+		appendCpu(sb, "MediaPlayer", playerCpuTime.get(), playerPlayTime.get());
+		sb.append(", ");
+		appendCpu(sb, "codec", codecCpuTime.get(), codecPlayTime.get());
+		sb.append('\n');
+		long hits = MediaCache.getHitBytes();
+		long misses = MediaCache.getMissBytes();
+		sb.append("Media cache: ").append(hits + misses > 0 ? hits * 100 / (hits + misses) + "% hit ratio, " : "").append(hits / 1024).append("KB from disk, ").append(misses / 1024).append("KB from the network, ").append(MediaCache.getCachedBytes() / 1024).append("KB cached\n");
+		BufferPool.appendStatus(sb);
+		//the radio stays up for a few seconds after each burst too, that tail isn't counted
+		sb.append("Low power: network busy ").append(burstTime.get() / 1000).append("s of ").append(lowPowerPlayTime.get() / 1000).append("s played, ").append(bursts.get()).append(" bursts, ").append(burstBytes.get() / 1024).append("KB\n");
+		sb.append("TLS handshakes: ").append(StreamConnector.getFullHandshakeCount()).append(" full, ").append(StreamConnector.getResumedHandshakeCount()).append(" resumed\n");
+
+		sb.append("Recent transitions:\n");
+		long end = transitions.get();
+		for(long i = Math.max(0, end - HISTORY_SIZE); i < end; i++){
+			Transition t = history.get((int) (i % HISTORY_SIZE));
+			if(t == null)
+				continue;
+			sb.append("  ").append(timeFormat.format(new Date(t.time))).append(' ').append(t.state);
+			if(t.detail != null)
+				sb.append(" - ").append(t.detail);
+			sb.append('\n');
+		}
+	}
+
+	//---p50/p95/p99 over the newest samples, nearest rank---
+	private static void appendPercentiles(StringBuilder sb, String label, AtomicLongArray samples, long count){
+		int n = (int) Math.min(count, LATENCY_SAMPLES);
+		sb.append(label).append(": ");
+		if(n == 0){
+			sb.append("no samples\n");
+			return;
+		}
+		long[] sorted = new long[n];
+		for(int i = 0; i < n; i++)
+			sorted[i] = samples.get(i);
+		Arrays.sort(sorted);
+		sb.append("p50 ").append(sorted[rank(n, 50)]).append("ms, p95 ").append(sorted[rank(n, 95)]).append("ms, p99 ").append(sorted[rank(n, 99)]).append("ms (").append(n).append(" samples)\n");
+	}
+
+	private static void appendCpu(StringBuilder sb, String label, long cpuMs, long playMs){
+		sb.append(label).append(' ');
+		if(playMs < 1000)
+			sb.append("unused");
+		else
+			sb.append(cpuMs * 60000 / playMs).append("ms (").append(playMs / 60000).append(" min)");
+	}
+
+	private static int rank(int n, int percentile){
+		return Math.max(0, (n * percentile + 99) / 100 - 1);
+	}
+}
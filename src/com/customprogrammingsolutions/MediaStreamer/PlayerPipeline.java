@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+/*
+ * What is coming up after the url playing now (the next stations of a scan, the next item of the
+ * queue) connected and prepared in the background, so that switching to it only has to start a
+ * player that is already prepared. Urls are taken in order, and a repeating pipeline wraps around
+ * to the first. No more than the given depth are kept ready, and an item only starts connecting
+ * once all the ones ahead of it are prepared, so a pipeline never has more than depth connections
+ * of its own and never more than one being set up. Only used from the main thread.
+ */
+/*package*/ class PlayerPipeline implements StreamProxy.OpenCallback, MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+	private final static String TAG = "MediaStreamer";
+
+	//each one holds an upstream connection and a MediaPlayer while it waits
+	/*package*/ static final int MAX_DEPTH = 2;
+
+	/*package*/ interface Listener{
+		//the next item has just been prepared, take() will return it
+		void onPlayerReady(PlayerPipeline pipeline);
+		//every url failed in a row, there is nothing left to prepare
+		void onPipelineFailed(PlayerPipeline pipeline);
+	}
+
+	/*package*/ static class Item{
+		final String url;
+		//started when the item starts connecting, so the time to prepared is the real one
+		final PlaybackSession session;
+		String localUrl;
+		MediaPlayer player;
+		boolean isPrepared = false;
+
+		Item(String url){
+			this.url = url;
+			this.session = new PlaybackSession(url);
+		}
+	}
+
+	private final Context context;
+	private final StreamProxy proxy;
+	private final Listener listener;
+	private final Handler handler = new Handler();
+	private final List<String> urls;
+	private final boolean isRepeating;
+	private final int depth;
+	private final LinkedList<Item> items = new LinkedList<Item>();
+	private int next = 0;
+	private int failures = 0;
+	private boolean isClosed = false;
+
+	public PlayerPipeline(Context context, StreamProxy proxy, List<String> urls, int maxDepth, boolean isRepeating, Listener listener){
+		this.context = context;
+		this.proxy = proxy;
+		this.urls = urls;
+		this.isRepeating = isRepeating;
+		this.listener = listener;
+		//when it repeats, the url that is playing mustn't be opened a second time behind itself
+		depth = Math.max(1, Math.min(Math.min(maxDepth, MAX_DEPTH), isRepeating ? urls.size() - 1 : urls.size()));
+	}
+
+	public void start(){
+		fill();
+	}
+
+	//---the next item if it is prepared, null if it isn't ready yet; the caller owns its player---
+	public Item take(){
+		if(isClosed || items.isEmpty() || !items.getFirst().isPrepared)
+			return null;
+		Item item = items.removeFirst();
+		item.player.setOnPreparedListener(null);
+		item.player.setOnErrorListener(null);
+		fill();
+		return item;
+	}
+
+	//---releases every item that wasn't taken---
+	public void close(){
+		isClosed = true;
+		for(Item item : items){
+			release(item);
+		}
+		items.clear();
+	}
+
+	private void fill(){
+		if(isClosed || items.size() >= depth || (!items.isEmpty() && !items.getLast().isPrepared))
+			return;
+		if(next >= urls.size()){
+			if(!isRepeating)
+				return;
+			next = 0;
+		}
+		Item item = new Item(urls.get(next++));
+		items.add(item);
+		Log.i(TAG, "PlayerPipeline.fill() - Opening " + item.url + ", " + items.size() + " of " + depth + " in the pipeline");
+		proxy.preopen(item.url, this);
+	}
+
+	@Override
+	public void onStreamOpened(final String url, final String localUrl) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				Item item = find(url, null);
+				if(item == null){
+					//closed, or dropped while it connected
+					proxy.discard(localUrl);
+					return;
+				}
+				item.localUrl = localUrl;
+				item.player = new MediaPlayer();
+				item.player.setOnPreparedListener(PlayerPipeline.this);
+				item.player.setOnErrorListener(PlayerPipeline.this);
+				item.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+				try{
+					item.player.setDataSource(context, Uri.parse(localUrl));
+					item.player.prepareAsync();
+				}
+				catch(Exception e){
+					Log.e(TAG, "PlayerPipeline.onStreamOpened() - Error preparing " + url, e);
+					fail(item);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onStreamRejected(final String url, boolean isUnsupportedContent) {
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				Item item = find(url, null);
+				if(item != null)
+					fail(item);
+			}
+		});
+	}
+
+	@Override
+	public void onPrepared(MediaPlayer mp) {
+		Item item = find(null, mp);
+		if(item == null)
+			return;
+		item.isPrepared = true;
+		item.session.onPrepared();
+		failures = 0;
+		Log.i(TAG, "PlayerPipeline.onPrepared() - " + item.url + " ready in " + item.session.getTimeToPrepared() + "ms");
+		boolean isNext = item == items.getFirst();
+		fill();
+		if(isNext)
+			listener.onPlayerReady(this);
+	}
+
+	@Override
+	public boolean onError(MediaPlayer mp, int what, int extra) {
+		Item item = find(null, mp);
+		if(item != null){
+			Log.i(TAG, "PlayerPipeline.onError() - " + item.url + " failed while waiting, what = " + what + " - extra = " + extra);
+			fail(item);
+		}
+		return true;
+	}
+
+	//---drops an item that couldn't be prepared and moves on to the one after it---
+	private void fail(Item item){
+		boolean wasNext = item == items.getFirst();
+		items.remove(item);
+		release(item);
+		if(++failures >= urls.size()){
+			isClosed = true;
+			listener.onPipelineFailed(this);
+			return;
+		}
+		fill();
+		//a prepared item that dropped its connection leaves the one behind it at the front
+		if(wasNext && !items.isEmpty() && items.getFirst().isPrepared)
+			listener.onPlayerReady(this);
+	}
+
+	//---the waiting item for url or player, the oldest one if a short list has url twice---
+	private Item find(String url, MediaPlayer player){
+		if(isClosed)
+			return null;
+		for(Item item : items){
+			if(player != null ? item.player == player : item.url.equals(url) && item.player == null)
+				return item;
+		}
+		return null;
+	}
+
+	private void release(Item item){
+		if(item.player != null){
+			try{
+				item.player.release();
+			}
+			catch(Exception e){
+				Log.e(TAG, "PlayerPipeline.release() - Error releasing the player for " + item.url, e);
+			}
+			item.player = null;
+		}
+		if(item.localUrl != null)
+			proxy.discard(item.localUrl);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/*
+ * The play queue, on-demand media to play one after the other. The item playing stays in the queue
+ * until it ends. Items are ordered by a position with gaps between neighbours, so moving one is a
+ * single update that puts it halfway between its new neighbours; only when there is no gap left is
+ * the queue renumbered.
+ */
+public class QueueDBHelper {
+    public static final String KEY_ROWID = "_id";
+    public static final String KEY_URL = "url";
+    public static final String KEY_POSITION = "position";
+    public static final String KEY_CREATED = "date";
+
+    public static final int COLUMN_ROWID = 0;
+    public static final int COLUMN_URL = 1;
+    public static final int COLUMN_POSITION = 2;
+    public static final int COLUMN_CREATED = 3;
+
+    private static final String DATABASE_TABLE = "queue";
+    private static final int DATABASE_VERSION = 1;
+
+    //room for ten moves into the same gap before the queue has to be renumbered
+    private static final long POSITION_STEP = 1024;
+
+    private static final String DATABASE_CREATE =
+        "CREATE TABLE " + DATABASE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " + KEY_URL + " text not null, " + KEY_POSITION + " integer not null, " + KEY_CREATED + " date);";
+
+    //the queue is always read in order
+    private static final String POSITION_INDEX_CREATE =
+        "CREATE INDEX IF NOT EXISTS " + DATABASE_TABLE + "_" + KEY_POSITION + " ON " + DATABASE_TABLE + " (" + KEY_POSITION + ");";
+
+    private final Context context;
+
+    private final static String TAG = "MediaStreamer";
+
+    private DatabaseHelper DBHelper;
+    private SQLiteDatabase db;
+
+    public QueueDBHelper(Context ctx){
+        this.context = ctx;
+        DBHelper = new DatabaseHelper(context);
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper{
+        DatabaseHelper(Context context){
+            super(context, DATABASE_TABLE, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db){
+            db.execSQL(DATABASE_CREATE);
+            db.execSQL(POSITION_INDEX_CREATE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        }
+    }
+
+    //---opens the database---
+    public QueueDBHelper open() throws SQLException{
+        db = DBHelper.getWritableDatabase();
+        return this;
+    }
+
+    //---closes the database---
+    public void close(){
+        DBHelper.close();
+    }
+
+    //---adds url to the end of the queue---
+    public void appendItem(String url){
+    	SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    	db.execSQL("INSERT INTO " + DATABASE_TABLE + " (" + KEY_URL + ", " + KEY_POSITION + ", " + KEY_CREATED + ") SELECT ?, IFNULL(MAX(" + KEY_POSITION + "), 0) + " + POSITION_STEP + ", ? FROM " + DATABASE_TABLE,
+    			new Object[] {url, dateFormat.format(new Date())});
+    }
+
+    //---deletes a particular item by id---
+    public boolean deleteItem(long rowId){
+    	db.execSQL("DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " = ?", new Object[] {rowId});
+    	return true;
+    }
+
+    //---retrieves the whole queue in order---
+    public Cursor getQueue(){
+    	return db.rawQuery("SELECT * FROM " + DATABASE_TABLE + " ORDER BY " + KEY_POSITION, null);
+    }
+
+    //---the first item in the queue other than rowId (-1 for none), empty if there is none---
+    public Cursor getNextItem(long rowId){
+    	Cursor mCursor = db.rawQuery("SELECT * FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " != ? ORDER BY " + KEY_POSITION + " LIMIT 1", new String[] {Long.toString(rowId)});
+        if (mCursor != null) {
+            mCursor.moveToFirst();
+        }
+        return mCursor;
+    }
+
+    //---the id of the first item for url, -1 if it isn't queued---
+    public long findItem(String url){
+    	Cursor c = db.rawQuery("SELECT " + KEY_ROWID + " FROM " + DATABASE_TABLE + " WHERE " + KEY_URL + " = ? ORDER BY " + KEY_POSITION + " LIMIT 1", new String[] {url});
+    	try{
+    		return c.moveToFirst() ? c.getLong(0) : -1;
+    	}
+    	finally{
+    		c.close();
+    	}
+    }
+
+    //---moves an item so that index items come before it, the rest of the queue stays where it is---
+    public void moveItem(long rowId, int index){
+    	long[] gap = getGap(rowId, index);
+    	if(gap[1] - gap[0] < 2){
+    		renumber();
+    		gap = getGap(rowId, index);
+    	}
+    	db.execSQL("UPDATE " + DATABASE_TABLE + " SET " + KEY_POSITION + " = ? WHERE " + KEY_ROWID + " = ?", new Object[] {gap[0] + (gap[1] - gap[0]) / 2, rowId});
+    }
+
+    //---the positions of what would be just before and just after rowId at index---
+    private long[] getGap(long rowId, int index){
+    	SQLiteStatement count = db.compileStatement("SELECT COUNT(*) FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " != ?");
+    	try{
+    		count.bindLong(1, rowId);
+    		index = (int) Math.min(index, count.simpleQueryForLong());
+    	}
+    	finally{
+    		count.close();
+    	}
+    	long before = 0;
+    	long after = -1;
+    	Cursor c = db.rawQuery("SELECT " + KEY_POSITION + " FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " != ? ORDER BY " + KEY_POSITION + " LIMIT 2 OFFSET ?",
+    			new String[] {Long.toString(rowId), Integer.toString(Math.max(0, index - 1))});
+    	try{
+    		if(index > 0 && c.moveToNext())
+    			before = c.getLong(0);
+    		if(c.moveToNext())
+    			after = c.getLong(0);
+    	}
+    	finally{
+    		c.close();
+    	}
+    	return new long[] {before, after >= 0 ? after : before + 2 * POSITION_STEP};
+    }
+
+    //---spreads the queue out again, keeping its order---
+    private void renumber(){
+    	Cursor c = db.rawQuery("SELECT " + KEY_ROWID + " FROM " + DATABASE_TABLE + " ORDER BY " + KEY_POSITION, null);
+    	SQLiteStatement update = db.compileStatement("UPDATE " + DATABASE_TABLE + " SET " + KEY_POSITION + " = ? WHERE " + KEY_ROWID + " = ?");
+    	db.beginTransaction();
+    	try{
+    		long position = 0;
+    		while(c.moveToNext()){
+    			position += POSITION_STEP;
+    			update.bindLong(1, position);
+    			update.bindLong(2, c.getLong(0));
+    			update.execute();
+    		}
+    		db.setTransactionSuccessful();
+    	}
+    	finally{
+    		db.endTransaction();
+    		update.close();
+    		c.close();
+    	}
+    }
+}
@@ -17,13 +17,17 @@
 package com.customprogrammingsolutions.MediaStreamer;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 public class RecentsDBHelper {
@@ -31,17 +35,40 @@ public class RecentsDBHelper {
     public static final String KEY_URL = "url";
     public static final String KEY_COUNT = "count";
     public static final String KEY_CREATED = "date";
+    public static final String KEY_CONNECT_TIMES = "connect_times";
     
     public static final int COLUMN_ROWID = 0;
     public static final int COLUMN_URL = 1;
     public static final int COLUMN_COUNT = 2;
     public static final int COLUMN_CREATED = 3;
+    public static final int COLUMN_CONNECT_TIMES = 4;
  
     private static final String DATABASE_TABLE = "recents";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
  
     private static final String DATABASE_CREATE =
-        "CREATE TABLE " + DATABASE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " + KEY_URL + " text not null, " + KEY_COUNT + " integer not null, " + KEY_CREATED + " date);";
+        "CREATE TABLE " + DATABASE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " + KEY_URL + " text not null, " + KEY_COUNT + " integer not null, " + KEY_CREATED + " date, " + KEY_CONNECT_TIMES + " text);";
+    
+    //every lookup is by url, without it each one is a full table scan
+    private static final String URL_INDEX_CREATE =
+        "CREATE INDEX IF NOT EXISTS " + DATABASE_TABLE + "_" + KEY_URL + " ON " + DATABASE_TABLE + " (" + KEY_URL + ");";
+    //version 3 also indexed the date, walking it for the sorted list was no faster than sorting (tests/jvm/results/persistence.txt)
+    private static final String CREATED_INDEX_DROP =
+        "DROP INDEX IF EXISTS " + DATABASE_TABLE + "_" + KEY_CREATED + ";";
+    
+    //how many time-to-prepared samples are kept per station
+    private static final int MAX_CONNECT_SAMPLES = 20;
+    //below this many samples the global timeout is used
+    private static final int MIN_CONNECT_SAMPLES = 3;
+    private static final double CONNECT_PERCENTILE = 0.9;
+    private static final int CONNECT_HEADROOM = 2;
+    private static final long MIN_CONNECT_TIMEOUT = 5000;
+    private static final long MAX_CONNECT_TIMEOUT = 120000;
+    
+    //frecency: each play is worth more the more recently the station was last played
+    private static final int[] FRECENCY_AGE_DAYS = {4, 14, 31, 90};
+    private static final int[] FRECENCY_WEIGHTS = {100, 70, 50, 30};
+    private static final int FRECENCY_OLD_WEIGHT = 10;
  
     private final Context context; 
     
@@ -63,13 +90,21 @@ public class RecentsDBHelper {
         @Override
         public void onCreate(SQLiteDatabase db){
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(URL_INDEX_CREATE);
         }
  
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-            onCreate(db);
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if(oldVersion < 2){
+            	db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN " + KEY_CONNECT_TIMES + " text");
+            }
+            if(oldVersion < 3){
+            	db.execSQL(URL_INDEX_CREATE);
+            }
+            if(oldVersion < 4){
+            	db.execSQL(CREATED_INDEX_DROP);
+            }
         }
     }    
  
@@ -86,31 +121,38 @@ public class RecentsDBHelper {
  
     //---insert a recent into the database---
     public long insertRecent(String url){
-    	Cursor c = getRecent(url);
-    	if(c.getCount() > 0){
-    		updateRecent(url, c.getInt(COLUMN_COUNT) + 1);
-    		c.close();
-    		return -1;
-    	}
-    	c.close();
     	SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); 
-    	Date date = new Date();
-    	String q = "INSERT INTO " + DATABASE_TABLE + " VALUES (NULL, '" + url + "', 1, '" + dateFormat.format(date) + "')";
-    	db.execSQL(q);
+    	String date = dateFormat.format(new Date());
+    	//bump the count in place and only insert when nothing was there to bump
+    	db.execSQL("UPDATE " + DATABASE_TABLE + " SET " + KEY_COUNT + " = " + KEY_COUNT + " + 1, " + KEY_CREATED + " = ? WHERE " + KEY_URL + " = ?", new Object[] {date, url});
+    	if(changes() > 0)
+    		return -1;
+    	db.execSQL("INSERT INTO " + DATABASE_TABLE + " VALUES (NULL, ?, 1, ?, NULL)", new Object[] {url, date});
     	return 0;
     }
+    
+    //executeUpdateDelete() needs honeycomb, changes() works everywhere
+    private long changes(){
+    	SQLiteStatement changes = db.compileStatement("SELECT changes()");
+    	try{
+    		return changes.simpleQueryForLong();
+    	}
+    	finally{
+    		changes.close();
+    	}
+    }
  
     //---deletes a particular recent by id---
     public boolean deleteRecent(long rowId){
-    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " = " + Long.toString(rowId);
-    	db.execSQL(q);
+    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " = ?";
+    	db.execSQL(q, new Object[] {rowId});
     	return true;
     }
     
     //---deletes a particular recent by url---
     public boolean deleteRecent(String url){
-    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_URL + " = '" + url + "'";
-    	db.execSQL(q);
+    	String q = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_URL + " = ?";
+    	db.execSQL(q, new Object[] {url});
     	return true;
     }
  
@@ -183,8 +225,8 @@ public class RecentsDBHelper {
         args.put(KEY_COUNT, count);
         args.put(KEY_CREATED, dateFormat.format(date));
         return db.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;*/
-        String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = '" + url + "', " + KEY_COUNT + " = " + Integer.toString(count) + ", " + KEY_CREATED + " = '" + dateFormat.format(date) + "' WHERE " + KEY_ROWID + " = " + Long.toString(rowId);
-        db.execSQL(q);
+        String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = ?, " + KEY_COUNT + " = ?, " + KEY_CREATED + " = ? WHERE " + KEY_ROWID + " = ?";
+        db.execSQL(q, new Object[] {url, count, dateFormat.format(date), rowId});
         return true;
     }
     
@@ -197,8 +239,79 @@ public class RecentsDBHelper {
         args.put(KEY_COUNT, count);
         args.put(KEY_CREATED, dateFormat.format(date));
         return db.update(DATABASE_TABLE, args, KEY_URL + "=" + url, null) > 0;*/
-    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_URL + " = '" + url + "', " + KEY_COUNT + " = " + Integer.toString(count) + ", " + KEY_CREATED + " = '" + dateFormat.format(date) + "' WHERE " + KEY_URL + " = '" + url + "'";
-        db.execSQL(q);
+    	String q = "UPDATE " + DATABASE_TABLE + " SET " + KEY_COUNT + " = ?, " + KEY_CREATED + " = ? WHERE " + KEY_URL + " = ?";
+        db.execSQL(q, new Object[] {count, dateFormat.format(date), url});
         return true;
     }
+    
+    //---how often and how recently each url was played, as one score per url, higher first---
+    public Map<String, Integer> getFrecencies(){
+    	Map<String, Integer> frecencies = new HashMap<String, Integer>();
+    	//dates are stored in local time
+    	Cursor c = db.rawQuery("SELECT " + KEY_URL + ", " + KEY_COUNT + ", julianday('now', 'localtime') - julianday(" + KEY_CREATED + ") FROM " + DATABASE_TABLE, null);
+    	try{
+    		while(c.moveToNext()){
+    			frecencies.put(c.getString(0), c.getInt(1) * getFrecencyWeight(c.isNull(2) ? Double.MAX_VALUE : c.getDouble(2)));
+    		}
+    	}
+    	finally{
+    		c.close();
+    	}
+    	return frecencies;
+    }
+    
+    private static int getFrecencyWeight(double ageDays){
+    	for(int i = 0; i < FRECENCY_AGE_DAYS.length; i++){
+    		if(ageDays <= FRECENCY_AGE_DAYS[i])
+    			return FRECENCY_WEIGHTS[i];
+    	}
+    	return FRECENCY_OLD_WEIGHT;
+    }
+    
+    //---remembers how long url took to get from play to prepared---
+    public boolean recordConnectTime(String url, long millis){
+    	Cursor c = getRecent(url);
+    	if(c.getCount() == 0){
+    		c.close();
+    		return false;
+    	}
+    	String samples = c.isNull(COLUMN_CONNECT_TIMES) ? "" : c.getString(COLUMN_CONNECT_TIMES);
+    	c.close();
+    	
+    	String[] old = samples.length() == 0 ? new String[0] : samples.split(",");
+    	StringBuilder sb = new StringBuilder();
+    	for(int i = Math.max(0, old.length - MAX_CONNECT_SAMPLES + 1); i < old.length; i++){
+    		sb.append(old[i]).append(',');
+    	}
+    	sb.append(millis);
+    	db.execSQL("UPDATE " + DATABASE_TABLE + " SET " + KEY_CONNECT_TIMES + " = ? WHERE " + KEY_URL + " = ?", new Object[] {sb.toString(), url});
+    	return true;
+    }
+    
+    //---the connect timeout for url, learned from how long it took to connect before---
+    public long getConnectTimeout(String url, long defaultTimeout){
+    	Cursor c = getRecent(url);
+    	if(c.getCount() == 0 || c.isNull(COLUMN_CONNECT_TIMES)){
+    		c.close();
+    		return defaultTimeout;
+    	}
+    	String[] samples = c.getString(COLUMN_CONNECT_TIMES).split(",");
+    	c.close();
+    	if(samples.length < MIN_CONNECT_SAMPLES)
+    		return defaultTimeout;
+    	
+    	long[] times = new long[samples.length];
+    	try{
+    		for(int i = 0; i < samples.length; i++){
+    			times[i] = Long.parseLong(samples[i]);
+    		}
+    	}
+    	catch(NumberFormatException e){
+    		return defaultTimeout;
+    	}
+    	Arrays.sort(times);
+    	int index = (int) Math.ceil(CONNECT_PERCENTILE * times.length) - 1;
+    	long timeout = times[Math.max(0, index)] * CONNECT_HEADROOM;
+    	return Math.min(MAX_CONNECT_TIMEOUT, Math.max(MIN_CONNECT_TIMEOUT, timeout));
+    }
 }
\ No newline at end of file
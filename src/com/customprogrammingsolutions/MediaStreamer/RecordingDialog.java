@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.Calendar;
+
+import android.os.Bundle;
+import android.support.v4.app.DialogFragment;
+import android.text.format.DateFormat;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TimePicker;
+import android.widget.Toast;
+
+public class RecordingDialog extends DialogFragment {
+
+	private EditText urlBox;
+	private TimePicker startPicker;
+	private EditText minutesBox;
+
+	public static RecordingDialog newInstance(String url) {
+		RecordingDialog frag = new RecordingDialog();
+        Bundle args = new Bundle();
+        args.putString("url", url);
+        frag.setArguments(args);
+        return frag;
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState){
+		View layout = inflater.inflate(R.layout.recording_dialog, null);
+
+		urlBox = (EditText)layout.findViewById(R.id.recording_dialog_url);
+		startPicker = (TimePicker)layout.findViewById(R.id.recording_dialog_start);
+		minutesBox = (EditText)layout.findViewById(R.id.recording_dialog_minutes);
+
+		urlBox.setText(getArguments().getString("url"));
+		startPicker.setIs24HourView(DateFormat.is24HourFormat(getActivity()));
+
+		Button positiveButton = (Button)layout.findViewById(R.id.recording_dialog_positive_button);
+		positiveButton.setOnClickListener(new OnClickListener(){
+
+			@Override
+			public void onClick(View v) {
+				String url = urlBox.getText().toString().trim();
+				if(url.length() == 0){
+					Toast.makeText(getActivity(), getString(R.string.error_empty_url), Toast.LENGTH_LONG).show();
+					return;
+				}
+				if(!url.startsWith("http://") && !url.startsWith("https://")){
+					Toast.makeText(getActivity(), getString(R.string.error_invalid_url), Toast.LENGTH_LONG).show();
+					return;
+				}
+				int minutes;
+				try{
+					minutes = Integer.parseInt(minutesBox.getText().toString().trim());
+				}
+				catch(NumberFormatException e){
+					minutes = 0;
+				}
+				if(minutes <= 0){
+					Toast.makeText(getActivity(), getString(R.string.recording_dialog_minutes_error), Toast.LENGTH_LONG).show();
+					return;
+				}
+
+				//a time that already went by today means tomorrow
+				Calendar start = Calendar.getInstance();
+				start.set(Calendar.HOUR_OF_DAY, startPicker.getCurrentHour());
+				start.set(Calendar.MINUTE, startPicker.getCurrentMinute());
+				start.set(Calendar.SECOND, 0);
+				start.set(Calendar.MILLISECOND, 0);
+				if(start.getTimeInMillis() < System.currentTimeMillis())
+					start.add(Calendar.DAY_OF_MONTH, 1);
+
+				MediaStreamerService.scheduleRecording(getActivity(), url, start.getTimeInMillis(), minutes);
+				Toast.makeText(getActivity(), getString(R.string.recording_scheduled), Toast.LENGTH_SHORT).show();
+				getDialog().dismiss();
+			}
+		});
+
+		Button negativeButton = (Button)layout.findViewById(R.id.recording_dialog_negative_button);
+		negativeButton.setOnClickListener(new OnClickListener(){
+
+			@Override
+			public void onClick(View v) {
+				getDialog().dismiss();
+			}
+
+		});
+
+		getDialog().setTitle(R.string.recording_dialog_title);
+
+        return layout;
+    }
+
+}
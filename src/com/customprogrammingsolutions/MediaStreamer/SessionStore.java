@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/*
+ * Remembers what the service is playing in a small file, so that when the system kills the process
+ * and restarts the sticky service it can carry on without the activity. Writes go through a
+ * background thread and only the newest one is kept; read() is a single synchronous read, since a
+ * restarted service has nothing better to do until it knows what to play.
+ */
+/*package*/ class SessionStore {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int VERSION = 1;
+	private static final String FILE_NAME = "last_session";
+	//two urls and a few numbers, anything bigger isn't ours
+	private static final int MAX_FILE_SIZE = 16 * 1024;
+	//a restart later than this would be a surprise, not a resume
+	private static final long MAX_AGE = 30 * 60 * 1000;
+
+	/*package*/ static class Record {
+		final String url;
+		//where url led, null if it is the stream itself
+		final String resolvedUrl;
+		//ms into on-demand media, -1 for a live stream
+		final int position;
+		final boolean isPaused;
+		final long savedAt;
+
+		Record(String url, String resolvedUrl, int position, boolean isPaused, long savedAt){
+			this.url = url;
+			this.resolvedUrl = resolvedUrl;
+			this.position = position;
+			this.isPaused = isPaused;
+			this.savedAt = savedAt;
+		}
+	}
+
+	private final File file;
+	private final Handler handler;
+
+	//must be created on the main thread
+	public SessionStore(Context context){
+		file = new File(context.getFilesDir(), FILE_NAME);
+		HandlerThread thread = new HandlerThread("SessionStore", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	//---the session that was going on, null if none was or it is too old to pick up again---
+	public static Record read(Context context){
+		File file = new File(context.getFilesDir(), FILE_NAME);
+		long length = file.length();
+		if(length <= 0 || length > MAX_FILE_SIZE)
+			return null;
+		//the whole file in one read, then parsed from memory rather than a read per field
+		byte[] data = new byte[(int) length];
+		FileInputStream fin = null;
+		try{
+			fin = new FileInputStream(file);
+			int read = 0;
+			while(read < data.length){
+				int count = fin.read(data, read, data.length - read);
+				if(count == -1)
+					return null;
+				read += count;
+			}
+		}
+		catch(IOException e){
+			return null;
+		}
+		finally{
+			if(fin != null){
+				try{
+					fin.close();
+				}
+				catch(IOException e){}
+			}
+		}
+
+		try{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			if(in.readInt() != VERSION)
+				return null;
+			String url = in.readUTF();
+			String resolvedUrl = in.readBoolean() ? in.readUTF() : null;
+			Record record = new Record(url, resolvedUrl, in.readInt(), in.readBoolean(), in.readLong());
+			long age = System.currentTimeMillis() - record.savedAt;
+			if(age < 0 || age > MAX_AGE){
+				Log.i(TAG, "SessionStore.read() - Not resuming " + url + ", it was saved " + age / 1000 + "s ago");
+				return null;
+			}
+			return record;
+		}
+		catch(IOException e){
+			//from an older version, or cut short
+			return null;
+		}
+	}
+
+	public void save(String url, String resolvedUrl, int position, boolean isPaused){
+		final byte[] data;
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(VERSION);
+			out.writeUTF(url);
+			out.writeBoolean(resolvedUrl != null);
+			if(resolvedUrl != null)
+				out.writeUTF(resolvedUrl);
+			out.writeInt(position);
+			out.writeBoolean(isPaused);
+			out.writeLong(System.currentTimeMillis());
+			out.flush();
+			data = bytes.toByteArray();
+		}
+		catch(IOException e){
+			return;
+		}
+		//a write still waiting is out of date now
+		handler.removeCallbacksAndMessages(null);
+		handler.post(new Runnable(){
+			@Override
+			public void run(){
+				write(data);
+			}
+		});
+	}
+
+	//---nothing to resume anymore---
+	public void clear(){
+		handler.removeCallbacksAndMessages(null);
+		handler.post(new Runnable(){
+			@Override
+			public void run(){
+				file.delete();
+			}
+		});
+	}
+
+	//---finishes whatever write is pending and stops the thread---
+	public void shutdown(){
+		handler.post(new Runnable(){
+			@Override
+			public void run(){
+				Looper.myLooper().quit();
+			}
+		});
+	}
+
+	//writer thread
+	private void write(byte[] data){
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try{
+			out = new FileOutputStream(temp);
+			out.write(data);
+			out.close();
+			out = null;
+			if(!temp.renameTo(file))
+				Log.e(TAG, "SessionStore.write() - Couldn't replace " + file);
+		}
+		catch(IOException e){
+			Log.e(TAG, "SessionStore.write() - Error writing " + temp, e);
+		}
+		finally{
+			if(out != null){
+				try{
+					out.close();
+				}
+				catch(IOException e){}
+			}
+		}
+	}
+}
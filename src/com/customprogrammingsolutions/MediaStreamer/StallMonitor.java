@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/*
+ * Measures how long the player's process stops running. A tick is asked for every TICK ms on a
+ * thread of its own and anything it comes late by is time every thread in the process lost, which
+ * on Dalvik is mostly garbage collection. The worst ones go to PlayerDiagnostics next to the
+ * rebuffer count, so a build with the service in its own process can be compared with one without.
+ * Ticking 20 times a second keeps the device from idling, so it only runs while something plays
+ * and the stats overlay is open.
+ */
+/*package*/ class StallMonitor {
+	private static final long TICK = 50;
+
+	private final Handler handler;
+	private long expected;
+	private boolean isRunning = false;
+
+	private final Runnable tick = new Runnable(){
+		@Override
+		public void run() {
+			long now = SystemClock.uptimeMillis();
+			PlayerDiagnostics.recordStall(now - expected);
+			expected = now + TICK;
+			handler.postDelayed(this, TICK);
+		}
+	};
+
+	public StallMonitor(){
+		//above the proxy and relay threads, so a late tick means the process stopped and not that it was busy
+		HandlerThread thread = new HandlerThread("StallMonitor", Process.THREAD_PRIORITY_DISPLAY);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	//---only while something is playing, an idle process has nothing to lose---
+	public void start(){
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				if(isRunning)
+					return;
+				isRunning = true;
+				expected = SystemClock.uptimeMillis() + TICK;
+				handler.postDelayed(tick, TICK);
+			}
+		});
+	}
+
+	public void stop(){
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				isRunning = false;
+				handler.removeCallbacks(tick);
+			}
+		});
+	}
+
+	public void shutdown(){
+		handler.post(new Runnable(){
+			@Override
+			public void run() {
+				handler.removeCallbacks(tick);
+				Looper.myLooper().quit();
+			}
+		});
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Process;
+import android.util.Log;
+
+/*
+ * The top rows of each list as they were last shown, so MainActivity can put them up on a cold
+ * start before any database is opened. The rows are kept with the cursor's own column names and
+ * come back as a MatrixCursor, which the real adapters bind like a query result until the real
+ * query replaces it. The whole file is a few KB and is read in one go.
+ */
+/*package*/ class StartupSnapshot {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int VERSION = 1;
+	//more than fit on any screen
+	public static final int MAX_ROWS = 15;
+	private static final int MAX_FILE_SIZE = 256 * 1024;
+
+	private final File file;
+
+	public StartupSnapshot(Context context){
+		file = new File(context.getFilesDir(), "startup_snapshot");
+	}
+
+	/*
+	 * The lists saved last time, in the order they were saved, or null if there is no snapshot
+	 * or it can't be used.
+	 */
+	public List<Cursor> read(){
+		long length = file.length();
+		if(length <= 0 || length > MAX_FILE_SIZE)
+			return null;
+		byte[] data = new byte[(int) length];
+		FileInputStream in = null;
+		try{
+			in = new FileInputStream(file);
+			int read = 0;
+			while(read < data.length){
+				int count = in.read(data, read, data.length - read);
+				if(count == -1)
+					return null;
+				read += count;
+			}
+		}
+		catch(IOException e){
+			return null;
+		}
+		finally{
+			closeQuietly(in);
+		}
+
+		try{
+			DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+			if(din.readInt() != VERSION)
+				return null;
+			int lists = din.readInt();
+			List<Cursor> cursors = new ArrayList<Cursor>(lists);
+			for(int l = 0; l < lists; l++){
+				String[] columns = new String[din.readInt()];
+				for(int i = 0; i < columns.length; i++){
+					columns[i] = din.readUTF();
+				}
+				int rows = din.readInt();
+				MatrixCursor cursor = new MatrixCursor(columns, rows);
+				for(int r = 0; r < rows; r++){
+					Object[] row = new Object[columns.length];
+					for(int i = 0; i < row.length; i++){
+						row[i] = din.readBoolean() ? din.readUTF() : null;
+					}
+					cursor.addRow(row);
+				}
+				cursors.add(cursor);
+			}
+			return cursors;
+		}
+		catch(IOException e){
+			//written by an older version or cut short, the real queries will fix it up
+			Log.i(TAG, "StartupSnapshot.read() - Ignoring an unreadable snapshot: " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * Copies the top rows of each cursor on the calling thread, since a cursor belongs to whoever
+	 * made it, and writes them out on a background thread. A null cursor is saved as an empty list.
+	 */
+	public void save(Cursor[] cursors){
+		final byte[] data;
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(VERSION);
+			out.writeInt(cursors.length);
+			for(Cursor c : cursors){
+				writeRows(out, c);
+			}
+			out.flush();
+			data = bytes.toByteArray();
+		}
+		catch(IOException e){
+			Log.e(TAG, "StartupSnapshot.save() - Error copying the lists", e);
+			return;
+		}
+
+		new Thread(new Runnable(){
+			@Override
+			public void run(){
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				//written aside and renamed, so a cold start never sees half a file
+				File temp = new File(file.getPath() + ".tmp");
+				FileOutputStream out = null;
+				try{
+					out = new FileOutputStream(temp);
+					out.write(data);
+					out.close();
+					out = null;
+					if(!temp.renameTo(file))
+						Log.e(TAG, "StartupSnapshot.save() - Couldn't replace " + file);
+				}
+				catch(IOException e){
+					Log.e(TAG, "StartupSnapshot.save() - Error writing " + temp, e);
+				}
+				finally{
+					closeQuietly(out);
+				}
+			}
+		}, "StartupSnapshot").start();
+	}
+
+	private static void writeRows(DataOutputStream out, Cursor c) throws IOException{
+		if(c == null || c.isClosed()){
+			out.writeInt(0);
+			out.writeInt(0);
+			return;
+		}
+		String[] columns = c.getColumnNames();
+		out.writeInt(columns.length);
+		for(String column : columns){
+			out.writeUTF(column);
+		}
+		int rows = Math.min(c.getCount(), MAX_ROWS);
+		out.writeInt(rows);
+		int position = c.getPosition();
+		for(int r = 0; r < rows; r++){
+			c.moveToPosition(r);
+			for(int i = 0; i < columns.length; i++){
+				String value = c.isNull(i) ? null : c.getString(i);
+				out.writeBoolean(value != null);
+				if(value != null)
+					out.writeUTF(value);
+			}
+		}
+		c.moveToPosition(position);
+	}
+
+	private static void closeQuietly(Closeable c){
+		if(c == null)
+			return;
+		try{
+			c.close();
+		}
+		catch(IOException e){}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The .pls and plain .m3u files that a lot of stations link to instead of the stream itself.
+ * Only the stream urls are kept, in the order the playlist lists them.
+ */
+/*package*/ class StationPlaylist {
+	private StationPlaylist(){}
+
+	public static boolean isPlaylistContentType(String contentType){
+		if(contentType == null)
+			return false;
+		contentType = contentType.toLowerCase();
+		return contentType.startsWith("audio/x-scpls") || contentType.startsWith("audio/scpls") || contentType.startsWith("application/pls");
+	}
+
+	//---the stream urls in a pls or m3u playlist, resolved against baseUrl---
+	public static List<String> parse(String baseUrl, String text){
+		List<String> urls = new ArrayList<String>();
+		boolean isPls = text.trim().toLowerCase().startsWith("[playlist]");
+		for(String line : text.split("\r?\n")){
+			line = line.trim();
+			if(line.length() == 0 || line.startsWith("#"))
+				continue;
+			if(isPls){
+				//File1=http://...
+				int equals = line.indexOf('=');
+				if(equals < 0 || !line.toLowerCase().startsWith("file"))
+					continue;
+				line = line.substring(equals + 1).trim();
+			}
+			String url = resolve(baseUrl, line);
+			if(url != null && (url.startsWith("http://") || url.startsWith("https://")))
+				urls.add(url);
+		}
+		return urls;
+	}
+
+	private static String resolve(String baseUrl, String uri){
+		try{
+			return new URL(new URL(baseUrl), uri).toString();
+		}
+		catch(MalformedURLException e){
+			return null;
+		}
+	}
+}
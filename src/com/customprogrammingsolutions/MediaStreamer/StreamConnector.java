@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+/*package*/ class StreamConnector {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int HANDSHAKE_TIMEOUT = 15000;
+	private static final int MAX_REDIRECTS = 5;
+
+	private static final AtomicInteger fullHandshakes = new AtomicInteger();
+	private static final AtomicInteger resumedHandshakes = new AtomicInteger();
+
+	private final SSLSocketFactory sslSocketFactory;
+
+	public StreamConnector(Context ctx){
+		//the session cache is file backed, so sessions survive station switches and process restarts
+		SSLSessionCache sessionCache = new SSLSessionCache(ctx);
+		sslSocketFactory = new SessionTrackingSocketFactory(SSLCertificateSocketFactory.getDefault(HANDSHAKE_TIMEOUT, sessionCache));
+	}
+
+	//---opens a connection to url, following redirects across http and https---
+	public HttpURLConnection open(String url, Map<String, String> requestHeaders) throws IOException{
+		return open(url, requestHeaders, CONNECT_TIMEOUT, READ_TIMEOUT);
+	}
+
+	//---the same with tighter timeouts, for quick checks that mustn't hang on a dead host---
+	public HttpURLConnection open(String url, Map<String, String> requestHeaders, int connectTimeout, int readTimeout) throws IOException{
+		String location = url;
+		for(int redirects = 0; redirects <= MAX_REDIRECTS; redirects++){
+			HttpURLConnection conn = (HttpURLConnection) new URL(location).openConnection();
+			if(conn instanceof HttpsURLConnection){
+				((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory);
+			}
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(readTimeout);
+			//HttpURLConnection won't follow a redirect that changes protocol, so we do it ourselves
+			conn.setInstanceFollowRedirects(false);
+			if(requestHeaders != null){
+				for(Map.Entry<String, String> header : requestHeaders.entrySet()){
+					conn.setRequestProperty(header.getKey(), header.getValue());
+				}
+			}
+
+			int responseCode = conn.getResponseCode();
+			if(responseCode < 300 || responseCode >= 400 || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED){
+				return conn;
+			}
+
+			String next = conn.getHeaderField("Location");
+			conn.disconnect();
+			if(next == null){
+				throw new IOException("Redirect from " + location + " without a Location header");
+			}
+			location = new URL(new URL(location), next).toString();
+			Log.i(TAG, "StreamConnector.open() - Redirected to " + location);
+		}
+		throw new IOException("Too many redirects while connecting to " + url);
+	}
+
+	public static int getFullHandshakeCount(){
+		return fullHandshakes.get();
+	}
+
+	public static int getResumedHandshakeCount(){
+		return resumedHandshakes.get();
+	}
+
+	/*
+	 * Wraps the session caching factory so that every TLS socket reports whether its handshake
+	 * resumed a cached session or had to negotiate a new one.
+	 */
+	private static class SessionTrackingSocketFactory extends SSLSocketFactory{
+		private final SSLSocketFactory delegate;
+
+		SessionTrackingSocketFactory(SSLSocketFactory delegate){
+			this.delegate = delegate;
+		}
+
+		private Socket track(Socket socket){
+			if(socket instanceof SSLSocket){
+				final long connectTime = System.currentTimeMillis();
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener(){
+					@Override
+					public void handshakeCompleted(HandshakeCompletedEvent event) {
+						//a resumed session keeps the creation time of the handshake that negotiated it
+						if(event.getSession().getCreationTime() < connectTime){
+							resumedHandshakes.incrementAndGet();
+						}
+						else{
+							fullHandshakes.incrementAndGet();
+						}
+						Log.i(TAG, "StreamConnector - TLS handshake with " + event.getSession().getPeerHost() + " - full: " + fullHandshakes.get() + " - resumed: " + resumedHandshakes.get());
+					}
+				});
+			}
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return track(delegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return track(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return track(delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return track(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return track(delegate.createSocket(address, port, localAddress, localPort));
+		}
+	}
+}
@@ -0,0 +1,1436 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Loopback HTTP server that MediaPlayer reads from. Every upstream connection goes through
+ * StreamConnector, which lets MediaPlayer play https streams and keeps TLS sessions cached.
+ * HLS playlists are handed to HlsStreamer and served to the player as a single stream.
+ * ICY metadata is requested from every station and stripped out before the player sees it.
+ * Playlist files (pls, m3u) are resolved to the stream they point at, and a live stream that drops
+ * is reconnected behind the player's back so MediaPlayer only sees a short stall.
+ * With time-shift on, a live stream is pumped into a TimeShiftBuffer on its own thread and players
+ * read from the buffer, so a player can go away and come back at any point still in the buffer.
+ * On-demand responses (a length, byte ranges and an ETag or Last-Modified) go through the
+ * MediaCache, so replays and seeks are served from disk and only missing ranges are fetched.
+ * A StreamRecorder is fed from whichever live pump is already running for its station, so recording
+ * what is playing doesn't open a second connection. With nothing playing it gets a pump of its own.
+ */
+/*package*/ class StreamProxy implements Runnable {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int MAX_HEADER_LINE = 4096;
+	private static final String STREAM_TITLE = "StreamTitle='";
+
+	private static final int MAX_PLAYLIST_SIZE = 64 * 1024;
+	private static final int MAX_PLAYLIST_ENTRIES = 5;
+	//urls remembered for getResolvedUrl(), favorites and history rarely hold more
+	private static final int MAX_RESOLVED_URLS = 32;
+	//a playlist pointing at a playlist is common, deeper than this is a loop
+	private static final int MAX_PLAYLIST_DEPTH = 3;
+
+	private static final int MAX_RECONNECT_ATTEMPTS = 6;
+	private static final long INITIAL_RECONNECT_DELAY = 500;
+	private static final long MAX_RECONNECT_DELAY = 8000;
+	//a connection that lasted this long earns a fresh set of reconnect attempts
+	private static final long HEALTHY_CONNECTION_TIME = 30000;
+
+	private static final String TIME_SHIFT_PREFIX = "timeshift";
+	//assumed when the station doesn't say, 192 kbps
+	private static final long DEFAULT_BYTES_PER_SECOND = 24000;
+	//an hour at 320 kbps
+	private static final long MAX_TIME_SHIFT_SIZE = 3600L * 40000;
+	private static final long MIN_TIME_SHIFT_SIZE = 256 * 1024;
+	//never fill the disk to the last byte for it
+	private static final long MIN_FREE_SPACE = 16 * 1024 * 1024;
+
+	//low power read-ahead: about 4 minutes of a 128 kbps file per burst, the next one starts with
+	//about 30 seconds left
+	private static final long BURST_SIZE = 4 * 1024 * 1024;
+	private static final long BURST_LOW_WATER = 512 * 1024;
+	//how long the player waits on a burst before fetching the gap itself
+	private static final long BURST_WAIT = 10000;
+	private static final long BURST_RETRY_DELAY = 5000;
+
+	/*package*/ interface Listener{
+		//called on a proxy thread whenever a stream announces a (possibly unchanged) title
+		void onStreamTitle(String url, String title);
+		//called on a proxy thread every time a connection to url is made
+		void onUpstreamConnected(String url);
+		//called on a proxy thread for every read from url, keep it cheap
+		void onBytesReceived(String url, int count);
+		//called on a proxy thread around each burst of low power read-ahead, the network is idle in between
+		void onBurstStarted(String url);
+		void onBurstEnded(String url, long bytes, long time);
+	}
+
+	//something a live pump fills that can be shut down from another thread
+	/*package*/ interface Sink{
+		boolean isClosed();
+	}
+
+	/*package*/ interface OpenCallback{
+		//called on a proxy thread once the response looks playable, with the url to give MediaPlayer
+		void onStreamOpened(String url, String localUrl);
+		//called on a proxy thread if the stream can't be reached or isn't audio
+		void onStreamRejected(String url, boolean isUnsupportedContent);
+	}
+
+	//an upstream response that was already probed, waiting for the player to connect
+	private static class UpstreamStream{
+		final String upstreamUrl;
+		final HttpURLConnection conn;
+		final InputStream in;
+		int content = StreamSniffer.CONTENT_UNKNOWN;
+
+		UpstreamStream(String upstreamUrl, HttpURLConnection conn, InputStream in){
+			this.upstreamUrl = upstreamUrl;
+			this.conn = conn;
+			this.in = in;
+		}
+	}
+
+	//the url the service asked for, and the one actually streamed once playlists are resolved
+	private static class Registration{
+		final String url;
+		final String upstreamUrl;
+		//where to start reading the time-shift buffer, -1 for a normal stream
+		final long timeShiftPosition;
+		//set once the first response turns out to be cacheable, later requests (seeks) go straight to it
+		volatile MediaCache.Entry cacheEntry;
+
+		Registration(String url, String upstreamUrl, long timeShiftPosition){
+			this.url = url;
+			this.upstreamUrl = upstreamUrl;
+			this.timeShiftPosition = timeShiftPosition;
+		}
+	}
+
+	//copies what a live pump writes to the recorder, if the recorder is for this pump's station
+	private class RecordingTee extends OutputStream{
+		private final String url;
+		private final String contentType;
+		private final OutputStream out;
+
+		RecordingTee(String url, String contentType, OutputStream out){
+			this.url = url;
+			this.contentType = contentType;
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException{
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException{
+			StreamRecorder r = recorder;
+			if(r != null && r.url.equals(url) && r.claim(this, contentType))
+				r.write(buffer, offset, count);
+			out.write(buffer, offset, count);
+		}
+
+		@Override
+		public void flush() throws IOException{
+			out.flush();
+		}
+	}
+
+	/*
+	 * Keeps the next BURST_SIZE bytes after the player's position in the cache entry, fetching them
+	 * at full speed whenever less than BURST_LOW_WATER is left and hanging up as soon as it has them.
+	 * The player's side only reads the entry, see serveCached().
+	 */
+	private class BurstFetcher implements Runnable{
+		private final String url;
+		private final String upstreamUrl;
+		private final MediaCache.Entry entry;
+		//the last byte the player asked for
+		private final long end;
+		//a connection reading from the start of the resource, used for the first burst if it fits
+		private UpstreamStream initial;
+
+		private volatile long position;
+		private volatile boolean isStopped = false;
+		private volatile HttpURLConnection conn;
+
+		BurstFetcher(String url, String upstreamUrl, MediaCache.Entry entry, long start, long end, UpstreamStream initial){
+			this.url = url;
+			this.upstreamUrl = upstreamUrl;
+			this.entry = entry;
+			this.position = start;
+			this.end = end;
+			this.initial = initial;
+		}
+
+		//---the player has everything before position---
+		void setPosition(long position){
+			this.position = position;
+		}
+
+		//---the player is waiting, start a burst now---
+		synchronized void wake(){
+			notifyAll();
+		}
+
+		void stop(){
+			isStopped = true;
+			HttpURLConnection c = conn;
+			if(c != null)
+				c.disconnect();
+			wake();
+		}
+
+		@Override
+		public void run(){
+			try{
+				while(isRunning && !isStopped){
+					long from = entry.getCachedEnd(position);
+					if(from > end)
+						break;
+					if(from - position >= BURST_LOW_WATER){
+						//checked once a second, a player doesn't go through 30 seconds in less
+						synchronized(this){
+							wait(1000);
+						}
+						continue;
+					}
+					try{
+						burst(from, Math.min(position + BURST_SIZE, end + 1));
+					}
+					catch(IOException e){
+						if(isStopped)
+							break;
+						Log.i(TAG, "StreamProxy.BurstFetcher - Burst from " + upstreamUrl + " failed: " + e);
+						synchronized(this){
+							wait(BURST_RETRY_DELAY);
+						}
+					}
+				}
+			}
+			catch(InterruptedException e){
+				//shutting down
+			}
+			finally{
+				if(initial != null)
+					initial.conn.disconnect();
+			}
+		}
+
+		private void burst(long from, long to) throws IOException{
+			if(listener != null)
+				listener.onBurstStarted(url);
+			long start = SystemClock.elapsedRealtime();
+			long bytes = 0;
+			byte[] buffer = BufferPool.acquire();
+			try{
+				while(from < to && !isStopped){
+					long gapEnd = Math.min(entry.getNextCachedStart(from), to);
+					InputStream in;
+					if(initial != null && from != 0){
+						initial.conn.disconnect();
+						initial = null;
+					}
+					if(initial != null){
+						conn = initial.conn;
+						in = new UpstreamInputStream(initial.in);
+					}
+					else{
+						UpstreamStream stream = connect(url, upstreamUrl, "bytes=" + from + "-" + (gapEnd - 1));
+						conn = stream.conn;
+						if(conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+							throw new UpstreamException(upstreamUrl + " answered a range request with " + conn.getResponseCode());
+						in = new UpstreamInputStream(stream.in);
+					}
+					//the first connection is only good for one burst either way
+					initial = null;
+					try{
+						while(from < gapEnd && !isStopped){
+							int read = in.read(buffer, 0, (int) Math.min(buffer.length, gapEnd - from));
+							if(read == -1)
+								throw new UpstreamException(upstreamUrl + " ended at " + from + " of " + entry.length);
+							entry.write(from, buffer, read);
+							if(listener != null)
+								listener.onBytesReceived(url, read);
+							from += read;
+							bytes += read;
+						}
+					}
+					finally{
+						//hanging up is what lets the radio sleep
+						conn.disconnect();
+						conn = null;
+					}
+					from = entry.getCachedEnd(from);
+				}
+			}
+			finally{
+				BufferPool.release(buffer);
+				if(listener != null)
+					listener.onBurstEnded(url, bytes, SystemClock.elapsedRealtime() - start);
+			}
+		}
+	}
+
+	//thrown for read failures on the upstream side, as opposed to the player going away
+	private static class UpstreamException extends IOException{
+		private static final long serialVersionUID = 1L;
+
+		UpstreamException(String message){
+			super(message);
+		}
+	}
+
+	private static class UpstreamInputStream extends FilterInputStream{
+		UpstreamInputStream(InputStream in){
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException{
+			try{
+				return super.read();
+			}
+			catch(IOException e){
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException{
+			try{
+				return super.read(buffer, offset, count);
+			}
+			catch(IOException e){
+				throw wrap(e);
+			}
+		}
+
+		private static IOException wrap(IOException e){
+			UpstreamException wrapped = new UpstreamException(e.toString());
+			wrapped.initCause(e);
+			return wrapped;
+		}
+	}
+
+	private final StreamConnector connector;
+	private final Listener listener;
+
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+	private volatile boolean isRunning = false;
+
+	private final Map<String, Registration> streams = new HashMap<String, Registration>();
+	private final Map<String, UpstreamStream> probedStreams = new HashMap<String, UpstreamStream>();
+	//probed by preopen(), cancelPending() leaves these alone
+	private final Map<String, UpstreamStream> preopenedStreams = new HashMap<String, UpstreamStream>();
+	private int openGeneration = 0;
+	//url to the stream it resolved to, the least recently used dropped past MAX_RESOLVED_URLS, guarded by streams
+	private final Map<String, String> resolvedUrls = new LinkedHashMap<String, String>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest){
+			return size() > MAX_RESOLVED_URLS;
+		}
+	};
+	private final List<Socket> clients = new ArrayList<Socket>();
+	private int nextStreamId = 0;
+
+	private volatile File timeShiftDir;
+	private volatile int timeShiftSeconds = 0;
+	//guarded by streams
+	private TimeShiftBuffer timeShift;
+	private final Map<String, Integer> livePumps = new HashMap<String, Integer>();
+	private volatile StreamRecorder recorder;
+	private volatile MediaCache cache;
+	private volatile boolean isBurstMode = false;
+
+	public StreamProxy(StreamConnector connector, Listener listener){
+		this.connector = connector;
+		this.listener = listener;
+	}
+
+	public void start() throws IOException{
+		serverSocket = new ServerSocket(0, 8, InetAddress.getByAddress(new byte[] {127, 0, 0, 1}));
+		isRunning = true;
+		acceptThread = new Thread(this, "StreamProxy");
+		acceptThread.start();
+		Log.i(TAG, "StreamProxy.start() - Listening on port " + serverSocket.getLocalPort());
+	}
+
+	public void stop(){
+		isRunning = false;
+		try{
+			if(serverSocket != null)
+				serverSocket.close();
+		}
+		catch(IOException e){
+			Log.e(TAG, "StreamProxy.stop() - Error closing server socket", e);
+		}
+		synchronized(clients){
+			for(Socket client : clients){
+				closeQuietly(client);
+			}
+			clients.clear();
+		}
+		synchronized(streams){
+			for(UpstreamStream stream : preopenedStreams.values()){
+				stream.conn.disconnect();
+			}
+			preopenedStreams.clear();
+		}
+		stopTimeShift();
+		stopRecording();
+	}
+
+	//---returns the local url that MediaPlayer should use to play url---
+	public String register(String url){
+		return register(url, url);
+	}
+
+	private String register(String url, String upstreamUrl){
+		return register(new Registration(url, upstreamUrl, -1));
+	}
+
+	private String register(Registration registration){
+		synchronized(streams){
+			String id = Integer.toString(nextStreamId++);
+			streams.put(id, registration);
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + id;
+		}
+	}
+
+	//---the id of a url register() returned, null if localUrl isn't one of ours---
+	private String getStreamId(String localUrl){
+		String prefix = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+		return localUrl != null && localUrl.startsWith(prefix) ? localUrl.substring(prefix.length()) : null;
+	}
+
+	//---on-demand media is cached in cache from now on, null turns caching off---
+	public void setCache(MediaCache cache){
+		this.cache = cache;
+	}
+
+	/*
+	 * Cached on-demand media opened from now on is read ahead in large bursts with the connection
+	 * closed in between, so the radio can drop to low power while the player works through it.
+	 * Live streams can't be read faster than they are sent and always stream continuously.
+	 */
+	public void setBurstMode(boolean isEnabled){
+		isBurstMode = isEnabled;
+	}
+
+	/*
+	 * Live streams opened from now on are buffered for up to seconds in a ring file in dir, 0 turns
+	 * it off. Leftovers from a previous process are deleted.
+	 */
+	public void setTimeShift(File dir, int seconds){
+		if(timeShiftDir == null && dir != null){
+			File[] stale = dir.listFiles();
+			if(stale != null){
+				for(File f : stale){
+					if(f.getName().startsWith(TIME_SHIFT_PREFIX))
+						f.delete();
+				}
+			}
+		}
+		timeShiftDir = dir;
+		timeShiftSeconds = seconds;
+	}
+
+	//---the buffer of the live stream that is playing, null if there is none---
+	public TimeShiftBuffer getTimeShift(){
+		synchronized(streams){
+			return timeShift;
+		}
+	}
+
+	//---the local url that plays the time-shift buffer from position on, null if there is no buffer---
+	public String registerTimeShift(long position){
+		TimeShiftBuffer buffer = getTimeShift();
+		if(buffer == null)
+			return null;
+		return register(new Registration(buffer.url, buffer.url, position));
+	}
+
+	//---disconnects the live stream and throws the buffer away---
+	public void stopTimeShift(){
+		TimeShiftBuffer buffer;
+		synchronized(streams){
+			buffer = timeShift;
+			timeShift = null;
+		}
+		if(buffer != null)
+			buffer.close();
+	}
+
+	/*
+	 * Starts feeding recorder from the live stream of its url. If that station is playing the recorder
+	 * shares its connection, otherwise the proxy connects just for the recording. Replaces any
+	 * recording already running.
+	 */
+	public void startRecording(StreamRecorder newRecorder){
+		StreamRecorder old;
+		boolean isPumping;
+		synchronized(streams){
+			old = recorder;
+			recorder = newRecorder;
+			isPumping = livePumps.containsKey(newRecorder.url);
+		}
+		if(old != null)
+			old.close();
+		Log.i(TAG, "StreamProxy.startRecording() - Recording " + newRecorder.url + (isPumping ? " from the playing stream" : " on its own connection"));
+		if(!isPumping)
+			startRecordingPump(newRecorder);
+	}
+
+	public void stopRecording(){
+		StreamRecorder old;
+		synchronized(streams){
+			old = recorder;
+			recorder = null;
+		}
+		if(old != null)
+			old.close();
+	}
+
+	public StreamRecorder getRecorder(){
+		return recorder;
+	}
+
+	/*
+	 * Connects to url and sniffs the response on a new thread. The probed connection is kept and
+	 * handed to the player when it connects, so probing doesn't cost an extra round trip.
+	 */
+	public void open(String url, OpenCallback callback){
+		open(url, null, callback);
+	}
+
+	/*
+	 * The same, but tries resolvedUrl first if it isn't null: where url led last time, so a station
+	 * behind a playlist doesn't have to fetch the playlist again. Falls back to url if it doesn't work.
+	 */
+	public void open(String url, String resolvedUrl, OpenCallback callback){
+		open(url, resolvedUrl, callback, true);
+	}
+
+	/*
+	 * Opens url for a player that isn't the one playing yet, as open() would but in the background:
+	 * cancelPending() doesn't touch it, so the station that is playing can change while it connects.
+	 * If no player ever connects to the local url, give it back with discard().
+	 */
+	public void preopen(String url, OpenCallback callback){
+		open(url, getResolvedUrl(url), callback, false);
+	}
+
+	/*
+	 * Forgets localUrl once the player that was given it is released, disconnecting what preopen()
+	 * left waiting there if the player never took it. Until then the player may come back to it at
+	 * any time, to seek or to retry, so it stays registered for as long as the player lives.
+	 */
+	public void discard(String localUrl){
+		String id = getStreamId(localUrl);
+		if(id == null)
+			return;
+		UpstreamStream stream;
+		synchronized(streams){
+			streams.remove(id);
+			stream = preopenedStreams.remove(id);
+		}
+		if(stream != null)
+			stream.conn.disconnect();
+	}
+
+	private void open(final String url, final String resolvedUrl, final OpenCallback callback, final boolean isCancellable){
+		final int generation;
+		synchronized(streams){
+			generation = isCancellable ? openGeneration : -1;
+		}
+		new Thread(new Runnable(){
+			@Override
+			public void run(){
+				long start = SystemClock.elapsedRealtime();
+				UpstreamStream stream = null;
+				Tracing.begin("StreamProxy.open");
+				try{
+					if(resolvedUrl != null && !resolvedUrl.equals(url))
+						stream = openResolved(url, resolvedUrl);
+					if(stream == null){
+						stream = connect(url, url, null);
+						if(stream.conn.getResponseCode() >= 400){
+							Log.i(TAG, "StreamProxy.open() - " + url + " responded with " + stream.conn.getResponseCode());
+							stream.conn.disconnect();
+							if(!isCancelled(generation))
+								callback.onStreamRejected(url, false);
+							return;
+						}
+						probe(stream);
+						if(stream.content == StreamSniffer.CONTENT_PLAYLIST)
+							stream = resolvePlaylist(url, stream, 1);
+					}
+				}
+				catch(IOException e){
+					Log.e(TAG, "StreamProxy.open() - Error connecting to " + url, e);
+					if(!isCancelled(generation))
+						callback.onStreamRejected(url, false);
+					return;
+				}
+				finally{
+					Tracing.end();
+				}
+
+				Log.i(TAG, "StreamProxy.open() - Probed " + url + " in " + (SystemClock.elapsedRealtime() - start) + "ms - content type: " + stream.conn.getContentType() + " - detected: " + stream.content);
+				if(!StreamSniffer.isPlayable(stream.content)){
+					stream.conn.disconnect();
+					if(!isCancelled(generation))
+						callback.onStreamRejected(url, true);
+					return;
+				}
+
+				String localUrl;
+				synchronized(streams){
+					if(isCancellable && generation != openGeneration){
+						//cancelled while we were probing
+						stream.conn.disconnect();
+						return;
+					}
+					localUrl = register(url, stream.upstreamUrl);
+					resolvedUrls.put(url, stream.upstreamUrl);
+					(isCancellable ? probedStreams : preopenedStreams).put(getStreamId(localUrl), stream);
+				}
+				callback.onStreamOpened(url, localUrl);
+			}
+		}, "StreamProxyOpen").start();
+	}
+
+	//---the probed stream at resolvedUrl, null if it no longer answers with audio---
+	private UpstreamStream openResolved(String url, String resolvedUrl){
+		try{
+			UpstreamStream stream = connect(url, resolvedUrl, null);
+			if(stream.conn.getResponseCode() < 300){
+				probe(stream);
+				if(StreamSniffer.isPlayable(stream.content))
+					return stream;
+			}
+			stream.conn.disconnect();
+		}
+		catch(IOException e){
+			Log.i(TAG, "StreamProxy.openResolved() - " + resolvedUrl + " didn't work, starting from " + url + ": " + e);
+		}
+		return null;
+	}
+
+	//---where url led the last time it was opened, null if it hasn't been---
+	public String getResolvedUrl(String url){
+		synchronized(streams){
+			return resolvedUrls.get(url);
+		}
+	}
+
+	/*
+	 * Reads the playlist and returns the first entry that connects and looks playable. Entries that
+	 * are playlists themselves are followed up to MAX_PLAYLIST_DEPTH.
+	 */
+	private UpstreamStream resolvePlaylist(String url, UpstreamStream playlist, int depth) throws IOException{
+		String text;
+		try{
+			text = readText(playlist.in, MAX_PLAYLIST_SIZE);
+		}
+		finally{
+			playlist.conn.disconnect();
+		}
+		List<String> entries = StationPlaylist.parse(playlist.conn.getURL().toString(), text);
+		Log.i(TAG, "StreamProxy.resolvePlaylist() - " + playlist.upstreamUrl + " lists " + entries.size() + " streams");
+
+		for(int i = 0; i < entries.size() && i < MAX_PLAYLIST_ENTRIES; i++){
+			String entry = entries.get(i);
+			try{
+				UpstreamStream stream = connect(url, entry, null);
+				if(stream.conn.getResponseCode() >= 300){
+					stream.conn.disconnect();
+					continue;
+				}
+				probe(stream);
+				if(stream.content == StreamSniffer.CONTENT_PLAYLIST){
+					if(depth < MAX_PLAYLIST_DEPTH)
+						return resolvePlaylist(url, stream, depth + 1);
+					stream.conn.disconnect();
+					continue;
+				}
+				if(!StreamSniffer.isPlayable(stream.content)){
+					stream.conn.disconnect();
+					continue;
+				}
+				return stream;
+			}
+			catch(IOException e){
+				Log.i(TAG, "StreamProxy.resolvePlaylist() - Skipping " + entry + ": " + e);
+			}
+		}
+		throw new IOException("No playable stream in playlist " + playlist.upstreamUrl);
+	}
+
+	private static String readText(InputStream in, int maxLength) throws IOException{
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		byte[] buffer = BufferPool.acquire();
+		try{
+			int read;
+			while(text.size() < maxLength && (read = in.read(buffer)) != -1){
+				text.write(buffer, 0, read);
+			}
+		}
+		finally{
+			BufferPool.release(buffer);
+		}
+		return text.toString("UTF-8");
+	}
+
+	private boolean isCancelled(int generation){
+		synchronized(streams){
+			return generation >= 0 && generation != openGeneration;
+		}
+	}
+
+	//---drops probed connections the player never picked up, with their local urls, and any probe still running---
+	public void cancelPending(){
+		synchronized(streams){
+			openGeneration++;
+			for(Map.Entry<String, UpstreamStream> probed : probedStreams.entrySet()){
+				probed.getValue().conn.disconnect();
+				streams.remove(probed.getKey());
+			}
+			probedStreams.clear();
+		}
+	}
+
+	@Override
+	public void run(){
+		while(isRunning){
+			final Socket client;
+			try{
+				client = serverSocket.accept();
+			}
+			catch(IOException e){
+				if(isRunning)
+					Log.e(TAG, "StreamProxy.run() - Error accepting client", e);
+				continue;
+			}
+			synchronized(clients){
+				clients.add(client);
+			}
+			new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						serve(client);
+					}
+					catch(SocketException e){
+						//the player closed its connection, nothing to report
+					}
+					catch(IOException e){
+						Log.e(TAG, "StreamProxy - Error while serving stream", e);
+					}
+					finally{
+						synchronized(clients){
+							clients.remove(client);
+						}
+						closeQuietly(client);
+					}
+				}
+			}, "StreamProxyClient").start();
+		}
+	}
+
+	private void serve(Socket client) throws IOException{
+		InputStream clientIn = new BufferedInputStream(client.getInputStream());
+		String requestLine = readLine(clientIn);
+		if(requestLine == null)
+			return;
+
+		Map<String, String> requestHeaders = new HashMap<String, String>();
+		String line;
+		while((line = readLine(clientIn)) != null && line.length() > 0){
+			int colon = line.indexOf(':');
+			if(colon > 0)
+				requestHeaders.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+		}
+
+		String[] parts = requestLine.split(" ");
+		String id = parts.length > 1 && parts[1].length() > 1 ? parts[1].substring(1) : "";
+		Registration registration;
+		UpstreamStream stream;
+		TimeShiftBuffer buffer;
+		//a preopened station must not replace the buffer of the one playing
+		boolean isPreopened = false;
+		synchronized(streams){
+			registration = streams.get(id);
+			stream = probedStreams.remove(id);
+			if(stream == null){
+				stream = preopenedStreams.remove(id);
+				isPreopened = stream != null;
+			}
+			buffer = timeShift;
+		}
+		OutputStream clientOut = client.getOutputStream();
+		if(registration == null || (registration.timeShiftPosition >= 0 && buffer == null)){
+			clientOut.write("HTTP/1.1 404 Not Found\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+			return;
+		}
+		if(registration.timeShiftPosition >= 0){
+			StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n");
+			appendHeader(response, "Content-Type", buffer.contentType);
+			response.append("Connection: close\r\n\r\n");
+			clientOut.write(response.toString().getBytes("US-ASCII"));
+			try{
+				pipe(buffer.openAlignedCursor(registration.timeShiftPosition), clientOut);
+			}
+			finally{
+				//every seek registers a new position, this one is done with once its player hangs up
+				synchronized(streams){
+					streams.remove(id);
+				}
+			}
+			return;
+		}
+		boolean isProbed = stream != null;
+		String url = registration.url;
+		String upstreamUrl = registration.upstreamUrl;
+
+		String range = requestHeaders.get("range");
+		MediaCache mediaCache = cache;
+		MediaCache.Entry entry = registration.cacheEntry;
+		if(entry != null && mediaCache != null && (entry = mediaCache.reopen(entry)) != null){
+			//a seek or a retry of something already known to be cacheable
+			if(stream != null)
+				stream.conn.disconnect();
+			try{
+				serveCached(url, upstreamUrl, entry, range, clientOut, null);
+			}
+			finally{
+				mediaCache.release(entry);
+			}
+			return;
+		}
+		if(stream != null && range != null && !range.equals("bytes=0-")){
+			//the player is seeking, the probed connection starts at the wrong offset
+			stream.conn.disconnect();
+			stream = null;
+			isProbed = false;
+		}
+		if(stream == null){
+			if(HlsPlaylist.isHlsUrl(upstreamUrl)){
+				new HlsStreamer(connector, upstreamUrl, listener).stream(clientOut);
+				return;
+			}
+			stream = connect(url, upstreamUrl, range);
+		}
+
+		HttpURLConnection conn = stream.conn;
+		boolean isHandedOff = false;
+		try{
+			int responseCode = conn.getResponseCode();
+			//a probed stream knows what it is, only trust the content type of an unprobed one
+			boolean isHls = stream.content == StreamSniffer.CONTENT_HLS || (stream.content == StreamSniffer.CONTENT_UNKNOWN && HlsPlaylist.isHlsContentType(conn.getContentType()));
+			if(responseCode < 300 && isHls){
+				//the playlist is already on its way, HlsStreamer starts from it rather than fetching it again
+				String playlist;
+				try{
+					playlist = readText(stream.in, MAX_PLAYLIST_SIZE);
+				}
+				finally{
+					conn.disconnect();
+				}
+				new HlsStreamer(connector, upstreamUrl, listener).stream(clientOut, conn.getURL().toString(), playlist);
+				return;
+			}
+
+			//without a length or byte ranges there is nothing to resume, so a drop can just reconnect to the live edge
+			boolean isLive = responseCode == HttpURLConnection.HTTP_OK && conn.getHeaderField("Content-Length") == null && !"bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+			if(!isLive && responseCode == HttpURLConnection.HTTP_OK && mediaCache != null && (entry = openCacheEntry(mediaCache, upstreamUrl, conn)) != null){
+				registration.cacheEntry = entry;
+				//serveCached() disconnects it as soon as it is no longer needed
+				isHandedOff = true;
+				try{
+					serveCached(url, upstreamUrl, entry, range, clientOut, stream);
+				}
+				finally{
+					mediaCache.release(entry);
+				}
+				return;
+			}
+
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 ").append(responseCode).append(' ').append(conn.getResponseMessage() == null ? "" : conn.getResponseMessage()).append("\r\n");
+			appendHeader(response, "Content-Type", conn.getContentType());
+			//the metadata is stripped on the way through, so the upstream lengths and offsets don't hold for what the player gets
+			if(conn.getHeaderFieldInt("icy-metaint", 0) <= 0){
+				appendHeader(response, "Content-Length", conn.getHeaderField("Content-Length"));
+				appendHeader(response, "Content-Range", conn.getHeaderField("Content-Range"));
+				appendHeader(response, "Accept-Ranges", conn.getHeaderField("Accept-Ranges"));
+			}
+			response.append("Connection: close\r\n\r\n");
+			clientOut.write(response.toString().getBytes("US-ASCII"));
+
+			if(responseCode < 300)
+				PlayerDiagnostics.setBitrate(conn.getHeaderFieldInt("icy-br", 0));
+
+			//only the player's first connection starts a buffer, a retry must not throw the old one away
+			if(isLive && isProbed && !isPreopened && (buffer = startTimeShift(url, conn)) != null){
+				startPump(url, upstreamUrl, stream, buffer);
+				isHandedOff = true;
+				pipe(buffer.openCursor(0), clientOut);
+				return;
+			}
+			pump(url, upstreamUrl, stream, clientOut, isLive, null);
+		}
+		finally{
+			if(!isHandedOff)
+				conn.disconnect();
+		}
+	}
+
+	//---the cache entry for an on-demand response, null if it can't be cached---
+	private static MediaCache.Entry openCacheEntry(MediaCache mediaCache, String upstreamUrl, HttpURLConnection conn){
+		String validator = conn.getHeaderField("ETag");
+		if(validator == null)
+			validator = conn.getHeaderField("Last-Modified");
+		long length = parseLong(conn.getHeaderField("Content-Length"));
+		//gaps are filled with range requests, and icy metadata would end up in the file
+		if(validator == null || length <= 0 || !"bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")) || conn.getHeaderFieldInt("icy-metaint", 0) > 0)
+			return null;
+		return mediaCache.open(upstreamUrl, validator, length, conn.getContentType());
+	}
+
+	/*
+	 * Answers the player's request (range is its Range header, null for all of it) from entry,
+	 * fetching only the ranges that aren't cached yet and caching them on the way through. initial
+	 * is a connection already reading from the start of the resource, null to connect when needed.
+	 */
+	private void serveCached(String url, String upstreamUrl, MediaCache.Entry entry, String range, OutputStream clientOut, UpstreamStream initial) throws IOException{
+		long start = 0;
+		long end = entry.length - 1;
+		long[] bounds = parseRange(range, entry.length);
+		if(bounds != null){
+			start = bounds[0];
+			end = bounds[1];
+		}
+		if(start > end){
+			if(initial != null)
+				initial.conn.disconnect();
+			clientOut.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */" + entry.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			return;
+		}
+
+		StringBuilder response = new StringBuilder(bounds != null ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+		appendHeader(response, "Content-Type", entry.contentType);
+		appendHeader(response, "Content-Length", Long.toString(end - start + 1));
+		if(bounds != null)
+			appendHeader(response, "Content-Range", "bytes " + start + "-" + end + "/" + entry.length);
+		appendHeader(response, "Accept-Ranges", "bytes");
+		response.append("Connection: close\r\n\r\n");
+		clientOut.write(response.toString().getBytes("US-ASCII"));
+
+		BurstFetcher fetcher = null;
+		if(isBurstMode){
+			//the fetcher does all the network reading, the loop below only waits on it
+			fetcher = new BurstFetcher(url, upstreamUrl, entry, start, end, initial);
+			initial = null;
+			new Thread(fetcher, "BurstFetcher").start();
+		}
+		HttpURLConnection conn = initial != null ? initial.conn : null;
+		InputStream upstream = initial != null ? new UpstreamInputStream(initial.in) : null;
+		//what upstream will read next, and where its response ends
+		long upstreamPosition = 0;
+		long upstreamEnd = initial != null ? entry.length : 0;
+		byte[] buffer = BufferPool.acquire();
+		long position = start;
+		try{
+			while(isRunning && position <= end){
+				int read = entry.read(position, buffer, (int) Math.min(buffer.length, end + 1 - position));
+				if(read > 0){
+					clientOut.write(buffer, 0, read);
+					position += read;
+					if(fetcher != null)
+						fetcher.setPosition(position);
+					if(conn != null && upstreamPosition != position){
+						//don't hold a connection open while the disk serves
+						conn.disconnect();
+						conn = null;
+						upstream = null;
+					}
+					continue;
+				}
+
+				if(fetcher != null){
+					fetcher.wake();
+					try{
+						if(entry.waitForData(position, BURST_WAIT))
+							continue;
+					}
+					catch(InterruptedException e){
+						return;
+					}
+					//the fetcher can't keep up, the player gets this gap straight from upstream
+					Log.i(TAG, "StreamProxy.serveCached() - No burst data at " + position + " of " + url + " after " + BURST_WAIT + "ms");
+				}
+
+				long gapEnd = Math.min(entry.getNextCachedStart(position), end + 1);
+				//only enough to get going again, the fetcher is still meant to do the rest
+				if(fetcher != null)
+					gapEnd = Math.min(gapEnd, position + BURST_LOW_WATER);
+				if(upstream == null || upstreamPosition != position || position >= upstreamEnd){
+					if(conn != null)
+						conn.disconnect();
+					upstream = null;
+					UpstreamStream stream = connect(url, upstreamUrl, "bytes=" + position + "-" + (gapEnd - 1));
+					conn = stream.conn;
+					if(conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+						throw new UpstreamException(upstreamUrl + " answered a range request with " + conn.getResponseCode());
+					upstream = new UpstreamInputStream(stream.in);
+					upstreamPosition = position;
+					upstreamEnd = gapEnd;
+				}
+				read = upstream.read(buffer, 0, (int) Math.min(buffer.length, gapEnd - position));
+				if(read == -1)
+					throw new UpstreamException(upstreamUrl + " ended at " + position + " of " + entry.length);
+				if(listener != null)
+					listener.onBytesReceived(url, read);
+				entry.write(position, buffer, read);
+				clientOut.write(buffer, 0, read);
+				position += read;
+				upstreamPosition += read;
+			}
+			clientOut.flush();
+		}
+		finally{
+			if(fetcher != null)
+				fetcher.stop();
+			if(conn != null)
+				conn.disconnect();
+			BufferPool.release(buffer);
+		}
+	}
+
+	//---{first, last} byte of a single range header like bytes=100- or bytes=100-199, null for anything else---
+	private static long[] parseRange(String range, long length){
+		if(range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0)
+			return null;
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if(dash < 0)
+			return null;
+		long first = parseLong(spec.substring(0, dash).trim());
+		String last = spec.substring(dash + 1).trim();
+		if(dash == 0){
+			//bytes=-500, the last 500 bytes
+			long suffix = parseLong(last);
+			return suffix < 0 ? null : new long[] {Math.max(0, length - suffix), length - 1};
+		}
+		if(first < 0)
+			return null;
+		long lastByte = last.length() == 0 ? length - 1 : parseLong(last);
+		if(lastByte < 0)
+			return null;
+		return new long[] {first, Math.min(lastByte, length - 1)};
+	}
+
+	private static long parseLong(String value){
+		if(value == null)
+			return -1;
+		try{
+			return Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/*
+	 * Copies stream to out until it ends. A live stream that drops is reconnected until that fails
+	 * too, or until buffer (if there is one) is closed.
+	 */
+	private void pump(String url, String upstreamUrl, UpstreamStream stream, OutputStream out, boolean isLive, Sink sink) throws IOException{
+		HttpURLConnection conn = stream.conn;
+		InputStream upstream = conn.getResponseCode() >= 400 ? conn.getErrorStream() : stream.in;
+		if(upstream == null)
+			return;
+		RecordingTee tee = null;
+		if(isLive){
+			tee = new RecordingTee(url, conn.getContentType(), out);
+			out = tee;
+			synchronized(streams){
+				Integer count = livePumps.get(url);
+				livePumps.put(url, count == null ? 1 : count + 1);
+			}
+		}
+		try{
+			int attempts = 0;
+			while(true){
+				long connectedAt = SystemClock.elapsedRealtime();
+				try{
+					transfer(url, new UpstreamInputStream(upstream), out, conn.getHeaderFieldInt("icy-metaint", 0));
+				}
+				catch(UpstreamException e){
+					if(!isLive)
+						throw e;
+					Log.i(TAG, "StreamProxy.pump() - Lost " + upstreamUrl + ": " + e.getMessage());
+				}
+				out.flush();
+				if(!isLive || !isRunning || (sink != null && sink.isClosed()))
+					break;
+
+				long lostAt = SystemClock.elapsedRealtime();
+				attempts = lostAt - connectedAt >= HEALTHY_CONNECTION_TIME ? 0 : attempts + 1;
+				PlayerDiagnostics.transition("RECONNECTING", upstreamUrl);
+				conn.disconnect();
+				stream = reconnect(url, upstreamUrl, attempts);
+				if(stream == null){
+					PlayerDiagnostics.transition("RECONNECT_FAILED", upstreamUrl);
+					break;
+				}
+				PlayerDiagnostics.transition("RECOVERED", "after " + (SystemClock.elapsedRealtime() - lostAt) + "ms");
+				conn = stream.conn;
+				upstream = stream.in;
+			}
+		}
+		finally{
+			conn.disconnect();
+			if(tee != null)
+				onLivePumpEnded(url, tee, sink);
+		}
+	}
+
+	//---keeps a recording going when the pump feeding it goes away---
+	private void onLivePumpEnded(String url, RecordingTee tee, Sink sink){
+		boolean isPumping;
+		synchronized(streams){
+			int count = livePumps.get(url) - 1;
+			if(count == 0)
+				livePumps.remove(url);
+			else
+				livePumps.put(url, count);
+			isPumping = count > 0;
+		}
+		StreamRecorder r = recorder;
+		if(r == null || !r.release(tee) || r.isClosed())
+			return;
+		if(sink == r){
+			//the recording's own connection gave up
+			Log.i(TAG, "StreamProxy.onLivePumpEnded() - Lost " + url + ", stopping the recording");
+			r.close();
+		}
+		else if(!isPumping && isRunning){
+			//the player stopped, the recording carries on by itself
+			startRecordingPump(r);
+		}
+	}
+
+	//---connects to the recorder's url (resolving playlists) and pumps it only for the recording---
+	private void startRecordingPump(final StreamRecorder r){
+		new Thread(new Runnable(){
+			@Override
+			public void run(){
+				UpstreamStream stream = null;
+				try{
+					stream = connect(r.url, r.url, null);
+					if(stream.conn.getResponseCode() >= 400)
+						throw new IOException(r.url + " responded with " + stream.conn.getResponseCode());
+					probe(stream);
+					if(stream.content == StreamSniffer.CONTENT_PLAYLIST)
+						stream = resolvePlaylist(r.url, stream, 1);
+					if(!StreamSniffer.isPlayable(stream.content))
+						throw new IOException(r.url + " is not an audio stream");
+					pump(r.url, stream.upstreamUrl, stream, r.getOutputStream(), true, r);
+				}
+				catch(IOException e){
+					if(!r.isClosed()){
+						Log.e(TAG, "StreamProxy - Error recording " + r.url, e);
+						r.close();
+					}
+					if(stream != null)
+						stream.conn.disconnect();
+				}
+			}
+		}, "RecordingPump").start();
+	}
+
+	//---a fresh buffer for the stream on conn, sized for the configured time and the space left---
+	private TimeShiftBuffer startTimeShift(String url, HttpURLConnection conn){
+		stopTimeShift();
+		File dir = timeShiftDir;
+		int seconds = timeShiftSeconds;
+		if(dir == null || seconds <= 0)
+			return null;
+
+		int bitrate = conn.getHeaderFieldInt("icy-br", 0);
+		long size = Math.min(MAX_TIME_SHIFT_SIZE, seconds * (bitrate > 0 ? bitrate * 125L : DEFAULT_BYTES_PER_SECOND));
+		try{
+			dir.mkdirs();
+			StatFs stat = new StatFs(dir.getPath());
+			size = Math.min(size, (long) stat.getAvailableBlocks() * stat.getBlockSize() - MIN_FREE_SPACE);
+			if(size < MIN_TIME_SHIFT_SIZE){
+				Log.i(TAG, "StreamProxy.startTimeShift() - Not enough space for a time-shift buffer");
+				return null;
+			}
+			TimeShiftBuffer buffer = new TimeShiftBuffer(File.createTempFile(TIME_SHIFT_PREFIX, ".buf", dir), (int) size, url, conn.getContentType(), bitrate);
+			synchronized(streams){
+				timeShift = buffer;
+			}
+			Log.i(TAG, "StreamProxy.startTimeShift() - Buffering " + url + " in " + size / 1024 + "KB");
+			return buffer;
+		}
+		catch(Exception e){
+			Log.e(TAG, "StreamProxy.startTimeShift() - Error creating the time-shift buffer", e);
+			return null;
+		}
+	}
+
+	private void startPump(final String url, final String upstreamUrl, final UpstreamStream stream, final TimeShiftBuffer buffer){
+		new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					pump(url, upstreamUrl, stream, buffer.getOutputStream(), true, buffer);
+				}
+				catch(IOException e){
+					if(!buffer.isClosed())
+						Log.e(TAG, "StreamProxy - Error filling the time-shift buffer", e);
+				}
+				finally{
+					buffer.finish();
+				}
+			}
+		}, "TimeShiftPump").start();
+	}
+
+	//---serves a player from a time-shift buffer until it hangs up or the buffer goes away---
+	private void pipe(TimeShiftBuffer.Cursor cursor, OutputStream clientOut) throws IOException{
+		byte[] buffer = BufferPool.acquire();
+		try{
+			int read;
+			while(isRunning && (read = cursor.read(buffer, 0, buffer.length)) != -1){
+				clientOut.write(buffer, 0, read);
+			}
+			clientOut.flush();
+		}
+		catch(InterruptedException e){
+			//shutting down
+		}
+		finally{
+			BufferPool.release(buffer);
+		}
+	}
+
+	//---tries to get a live stream back with exponential backoff, null once it gives up---
+	private UpstreamStream reconnect(String url, String upstreamUrl, int attempt){
+		for(; attempt < MAX_RECONNECT_ATTEMPTS && isRunning; attempt++){
+			try{
+				Thread.sleep(Math.min(MAX_RECONNECT_DELAY, INITIAL_RECONNECT_DELAY << attempt));
+			}
+			catch(InterruptedException e){
+				return null;
+			}
+			try{
+				UpstreamStream stream = connect(url, upstreamUrl, null);
+				if(stream.conn.getResponseCode() == HttpURLConnection.HTTP_OK)
+					return stream;
+				Log.i(TAG, "StreamProxy.reconnect() - " + upstreamUrl + " responded with " + stream.conn.getResponseCode());
+				stream.conn.disconnect();
+			}
+			catch(IOException e){
+				Log.i(TAG, "StreamProxy.reconnect() - Attempt " + (attempt + 1) + " failed: " + e);
+			}
+		}
+		return null;
+	}
+
+	private void transfer(String url, InputStream upstream, OutputStream clientOut, int metaInterval) throws IOException{
+		if(metaInterval > 0)
+			pipeIcy(url, upstream, clientOut, metaInterval);
+		else
+			pipe(url, upstream, clientOut);
+	}
+
+	//---url is what listeners hear about, upstreamUrl is where the bytes come from---
+	private UpstreamStream connect(String url, String upstreamUrl, String range) throws IOException{
+		Map<String, String> upstreamHeaders = new HashMap<String, String>();
+		if(range != null)
+			upstreamHeaders.put("Range", range);
+		//only a request from the start can be a live stream, a range is on-demand media and its
+		//offsets would be wrong with metadata in between
+		if(range == null || range.equals("bytes=0-"))
+			upstreamHeaders.put("Icy-MetaData", "1");
+
+		HttpURLConnection conn = connector.open(upstreamUrl, upstreamHeaders);
+		if(listener != null)
+			listener.onUpstreamConnected(url);
+		InputStream in = conn.getResponseCode() >= 400 ? null : new BufferedInputStream(conn.getInputStream(), StreamSniffer.PROBE_SIZE * 2);
+		return new UpstreamStream(upstreamUrl, conn, in);
+	}
+
+	//---reads the first few KB and puts them back so the player still gets them---
+	private static void probe(UpstreamStream stream) throws IOException{
+		byte[] probe = new byte[StreamSniffer.PROBE_SIZE];
+		int length = 0;
+		stream.in.mark(probe.length);
+		while(length < probe.length){
+			int read = stream.in.read(probe, length, probe.length - length);
+			if(read == -1)
+				break;
+			length += read;
+		}
+		stream.in.reset();
+		stream.content = StreamSniffer.sniff(stream.conn.getContentType(), probe, length);
+	}
+
+	private void pipe(String url, InputStream upstream, OutputStream clientOut) throws IOException{
+		byte[] buffer = BufferPool.acquire();
+		try{
+			int read;
+			while(isRunning && (read = upstream.read(buffer)) != -1){
+				if(listener != null)
+					listener.onBytesReceived(url, read);
+				clientOut.write(buffer, 0, read);
+			}
+		}
+		finally{
+			BufferPool.release(buffer);
+		}
+	}
+
+	/*
+	 * Audio is read straight into the same buffer it is written from, never reading past the next
+	 * metadata block, so stripping the metadata doesn't cost a copy of the audio.
+	 */
+	private void pipeIcy(String url, InputStream upstream, OutputStream clientOut, int metaInterval) throws IOException{
+		byte[] buffer = BufferPool.acquire();
+		//an icy metadata block is at most 255 * 16 bytes, well within a slab
+		byte[] metadata = BufferPool.acquire();
+		try{
+			int untilMetadata = metaInterval;
+			while(isRunning){
+				if(untilMetadata == 0){
+					int length = upstream.read() * 16;
+					if(length < 0)
+						return;
+					if(length > 0){
+						readFully(upstream, metadata, length);
+						if(listener != null)
+							listener.onBytesReceived(url, length + 1);
+						String title = parseStreamTitle(metadata, length);
+						if(title != null && listener != null)
+							listener.onStreamTitle(url, title);
+					}
+					untilMetadata = metaInterval;
+					continue;
+				}
+
+				int read = upstream.read(buffer, 0, Math.min(buffer.length, untilMetadata));
+				if(read == -1)
+					return;
+				if(listener != null)
+					listener.onBytesReceived(url, read);
+				clientOut.write(buffer, 0, read);
+				untilMetadata -= read;
+			}
+		}
+		finally{
+			BufferPool.release(buffer);
+			BufferPool.release(metadata);
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, int length) throws IOException{
+		int offset = 0;
+		while(offset < length){
+			int read = in.read(buffer, offset, length - offset);
+			if(read == -1)
+				throw new UpstreamException("Stream ended inside a metadata block");
+			offset += read;
+		}
+	}
+
+	//---pulls the title out of a block like StreamTitle='Artist - Song';StreamUrl='';---
+	private static String parseStreamTitle(byte[] metadata, int length) throws IOException{
+		//blocks are padded with zeros
+		while(length > 0 && metadata[length - 1] == 0)
+			length--;
+		String block = new String(metadata, 0, length, "UTF-8");
+		int start = block.indexOf(STREAM_TITLE);
+		if(start < 0)
+			return null;
+		start += STREAM_TITLE.length();
+		int end = block.indexOf("';", start);
+		if(end < 0)
+			end = block.lastIndexOf('\'');
+		if(end < start)
+			return null;
+		return block.substring(start, end).trim();
+	}
+
+	private static void appendHeader(StringBuilder response, String name, String value){
+		if(value != null)
+			response.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	private static String readLine(InputStream in) throws IOException{
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while((c = in.read()) != -1){
+			if(c == '\n')
+				break;
+			if(c != '\r')
+				sb.append((char) c);
+			if(sb.length() > MAX_HEADER_LINE)
+				throw new IOException("Request header line too long");
+		}
+		if(c == -1 && sb.length() == 0)
+			return null;
+		return sb.toString();
+	}
+
+	private static void closeQuietly(Socket socket){
+		try{
+			socket.close();
+		}
+		catch(IOException e){}
+	}
+}
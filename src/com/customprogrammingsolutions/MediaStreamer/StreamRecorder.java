@@ -0,0 +1,281 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Writes the raw audio of one station to a series of segment files, starting a new one once a
+ * segment reaches its size or time limit. The proxy copies into one of a few preallocated direct
+ * buffers and a writer thread empties full buffers into the file in one large write each, so
+ * neither side allocates per packet and a slow disk never stalls the player. If the writer falls
+ * more than the whole pool behind, audio is dropped (and counted) rather than blocking playback.
+ */
+/*package*/ class StreamRecorder implements StreamProxy.Sink {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int WRITE_SIZE = 64 * 1024;
+	//4 x 64KB is about 6 seconds of 320 kbps audio the disk can fall behind by
+	private static final int POOL_SIZE = 4;
+	private static final long MAX_SEGMENT_SIZE = 128L * 1024 * 1024;
+	//handed to the writer to tell it nothing else is coming
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	public final String url;
+	private final File dir;
+	private final String name;
+	private final long maxSegmentTime;
+
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+	private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE + 1);
+	private final Thread writer;
+
+	//guarded by this
+	private ByteBuffer current;
+	private Object owner;
+	private String contentType;
+	private boolean isClosed = false;
+	private long bytesReceived = 0;
+	private long bytesDropped = 0;
+
+	//only touched by the writer thread, read for stats
+	private volatile long bytesWritten = 0;
+	private volatile int segments = 0;
+	private volatile String currentFile = null;
+	private FileChannel channel;
+	private long segmentSize;
+	private long segmentStart;
+
+	private final OutputStream outputStream = new OutputStream(){
+		@Override
+		public void write(int b) throws IOException{
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		//nothing is written here, a stream pumped only for the recording goes through the tee
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException{
+			if(isClosed())
+				throw new IOException("Recording stopped");
+		}
+	};
+
+	/*
+	 * Segments of up to maxSegmentTime ms are written to dir, named after name and the time each
+	 * one started.
+	 */
+	public StreamRecorder(File dir, String url, String name, long maxSegmentTime){
+		this.dir = dir;
+		this.url = url;
+		this.name = name.replaceAll("[^A-Za-z0-9._-]+", "_");
+		this.maxSegmentTime = maxSegmentTime;
+		for(int i = 0; i < POOL_SIZE; i++){
+			free.add(ByteBuffer.allocateDirect(WRITE_SIZE));
+		}
+		current = free.poll();
+		writer = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				drain();
+			}
+		}, "StreamRecorder");
+		writer.start();
+	}
+
+	/*
+	 * Only one pump at a time feeds the recording, whichever claims it first. Returns true if owner
+	 * holds it, in which case contentType picks the extension of the next segment.
+	 */
+	public synchronized boolean claim(Object owner, String contentType){
+		if(isClosed)
+			return false;
+		if(this.owner == null){
+			this.owner = owner;
+			this.contentType = contentType;
+		}
+		return this.owner == owner;
+	}
+
+	//---returns true if owner held the recording---
+	public synchronized boolean release(Object owner){
+		if(this.owner != owner)
+			return false;
+		this.owner = null;
+		return true;
+	}
+
+	//---never throws, a recording problem must not take the player down with it---
+	public synchronized void write(byte[] buffer, int offset, int count){
+		if(isClosed)
+			return;
+		bytesReceived += count;
+		while(count > 0){
+			if(current == null){
+				current = free.poll();
+				if(current == null){
+					bytesDropped += count;
+					return;
+				}
+			}
+			int chunk = Math.min(count, current.remaining());
+			current.put(buffer, offset, chunk);
+			offset += chunk;
+			count -= chunk;
+			if(!current.hasRemaining()){
+				current.flip();
+				full.add(current);
+				current = null;
+			}
+		}
+	}
+
+	public OutputStream getOutputStream(){
+		return outputStream;
+	}
+
+	@Override
+	public synchronized boolean isClosed(){
+		return isClosed;
+	}
+
+	//---writes out what is still buffered and closes the last segment---
+	public void close(){
+		synchronized(this){
+			if(isClosed)
+				return;
+			isClosed = true;
+			if(current != null && current.position() > 0){
+				current.flip();
+				full.add(current);
+			}
+			current = null;
+			full.add(END);
+		}
+		Log.i(TAG, "StreamRecorder.close() - Stopped recording " + url);
+	}
+
+	public synchronized long getBytesReceived(){
+		return bytesReceived;
+	}
+
+	//---received but thrown away because the writer was too far behind---
+	public synchronized long getBytesDropped(){
+		return bytesDropped;
+	}
+
+	public long getBytesWritten(){
+		return bytesWritten;
+	}
+
+	public int getSegmentCount(){
+		return segments;
+	}
+
+	public void appendStatus(StringBuilder sb){
+		long received, dropped;
+		synchronized(this){
+			received = bytesReceived;
+			dropped = bytesDropped;
+		}
+		sb.append("Recording: ").append(url).append(isClosed() ? " (stopped)" : "").append('\n');
+		sb.append("  ").append(segments).append(" segments, ").append(bytesWritten / 1024).append("KB written of ").append(received / 1024).append("KB received, ").append(dropped / 1024).append("KB dropped\n");
+		if(currentFile != null)
+			sb.append("  current segment: ").append(currentFile).append('\n');
+	}
+
+	//writer thread
+	private void drain(){
+		boolean isFailed = false;
+		try{
+			while(true){
+				ByteBuffer buffer = full.take();
+				if(buffer == END)
+					break;
+				try{
+					if(isFailed)
+						continue;
+					if(channel == null || segmentSize >= MAX_SEGMENT_SIZE || SystemClock.elapsedRealtime() - segmentStart >= maxSegmentTime)
+						startSegment();
+					while(buffer.hasRemaining()){
+						segmentSize += channel.write(buffer);
+					}
+					bytesWritten += buffer.limit();
+				}
+				catch(IOException e){
+					Log.e(TAG, "StreamRecorder - Error writing " + currentFile + ", stopping the recording", e);
+					isFailed = true;
+					close();
+				}
+				finally{
+					buffer.clear();
+					free.add(buffer);
+				}
+			}
+		}
+		catch(InterruptedException e){
+			//shutting down
+		}
+		finally{
+			closeSegment();
+		}
+	}
+
+	private void startSegment() throws IOException{
+		closeSegment();
+		dir.mkdirs();
+		File file = new File(dir, name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + getExtension());
+		channel = new FileOutputStream(file).getChannel();
+		segmentSize = 0;
+		segmentStart = SystemClock.elapsedRealtime();
+		segments++;
+		currentFile = file.getPath();
+		Log.i(TAG, "StreamRecorder.startSegment() - Recording to " + file);
+	}
+
+	private void closeSegment(){
+		if(channel == null)
+			return;
+		try{
+			channel.close();
+		}
+		catch(IOException e){
+			Log.e(TAG, "StreamRecorder.closeSegment() - Error closing " + currentFile, e);
+		}
+		channel = null;
+	}
+
+	private synchronized String getExtension(){
+		String type = contentType == null ? "" : contentType.toLowerCase();
+		if(type.contains("aac") || type.contains("mp4"))
+			return ".aac";
+		if(type.contains("ogg"))
+			return ".ogg";
+		return ".mp3";
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+/*
+ * Decides from the content type and the first bytes of a response whether it is worth handing to
+ * MediaPlayer at all.
+ */
+/*package*/ class StreamSniffer {
+	public static final int PROBE_SIZE = 4096;
+
+	public static final int CONTENT_UNKNOWN = 0;
+	public static final int CONTENT_MP3 = 1;
+	public static final int CONTENT_AAC = 2;
+	public static final int CONTENT_OGG = 3;
+	public static final int CONTENT_HLS = 4;
+	public static final int CONTENT_OTHER_AUDIO = 5;
+	public static final int CONTENT_HTML = 6;
+	//a pls or plain m3u file pointing at the actual stream
+	public static final int CONTENT_PLAYLIST = 7;
+
+	private StreamSniffer(){}
+
+	public static boolean isPlayable(int content){
+		return content != CONTENT_HTML;
+	}
+
+	//---looks at the magic bytes first and only falls back on the (often wrong) content type---
+	public static int sniff(String contentType, byte[] data, int length){
+		contentType = contentType == null ? "" : contentType.toLowerCase();
+
+		if(startsWithIgnoreCase(data, length, "[playlist]") || StationPlaylist.isPlaylistContentType(contentType))
+			return CONTENT_PLAYLIST;
+		if(startsWith(data, length, "#EXTM3U") || HlsPlaylist.isHlsContentType(contentType)){
+			//hls and plain m3u share the header and the content types, only hls has #EXT-X- tags
+			if(contains(data, length, "#EXT-X-"))
+				return CONTENT_HLS;
+			if(startsWith(data, length, "#") || startsWithIgnoreCase(data, length, "http"))
+				return CONTENT_PLAYLIST;
+		}
+		if(startsWith(data, length, "OggS"))
+			return CONTENT_OGG;
+		if(startsWith(data, length, "ID3"))
+			return CONTENT_MP3;
+		if(startsWith(data, length, "fLaC") || startsWith(data, length, "RIFF") || (length >= 8 && startsWith(data, 4, length, "ftyp")))
+			return CONTENT_OTHER_AUDIO;
+		if(isMarkup(data, length))
+			return CONTENT_HTML;
+
+		int frame = findFrameSync(data, length);
+		if(frame != CONTENT_UNKNOWN)
+			return frame;
+
+		if(contentType.startsWith("text/html") || contentType.startsWith("application/xhtml"))
+			return CONTENT_HTML;
+		if(contentType.startsWith("audio/") || contentType.startsWith("video/") || contentType.startsWith("application/ogg"))
+			return CONTENT_OTHER_AUDIO;
+		//a text response without anything that looks like audio in it is an error or a web page
+		if(contentType.startsWith("text/") || contentType.startsWith("application/json") || contentType.startsWith("application/xml"))
+			return CONTENT_HTML;
+		return CONTENT_UNKNOWN;
+	}
+
+	private static boolean isMarkup(byte[] data, int length){
+		int i = 0;
+		//skip a utf-8 byte order mark and leading whitespace
+		if(length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF)
+			i = 3;
+		while(i < length && Character.isWhitespace((char) data[i]))
+			i++;
+		if(i >= length || data[i] != '<')
+			return false;
+		String start = new String(data, i, Math.min(length - i, 16)).toLowerCase();
+		return start.startsWith("<!doctype") || start.startsWith("<html") || start.startsWith("<?xml") || start.startsWith("<head") || start.startsWith("<body");
+	}
+
+	private static int findFrameSync(byte[] data, int length){
+		int i = findFrameStart(data, 0, length);
+		if(i < 0)
+			return CONTENT_UNKNOWN;
+		return isAdts(data[i + 1]) ? CONTENT_AAC : CONTENT_MP3;
+	}
+
+	/*
+	 * A live stream can start in the middle of a frame, so look for two consecutive frame headers
+	 * anywhere in the data rather than only at offset 0. Returns the index of the first one, or -1.
+	 */
+	/*package*/ static int findFrameStart(byte[] data, int offset, int length){
+		for(int i = offset; i + 4 <= length; i++){
+			if((data[i] & 0xFF) != 0xFF || (data[i + 1] & 0xE0) != 0xE0)
+				continue;
+
+			if(isAdts(data[i + 1])){
+				//adts - the frame length is 13 bits spread over bytes 3 to 5
+				if(i + 6 > length)
+					continue;
+				int frameLength = ((data[i + 3] & 0x03) << 11) | ((data[i + 4] & 0xFF) << 3) | ((data[i + 5] & 0xE0) >> 5);
+				if(isSyncAt(data, length, i + frameLength, true))
+					return i;
+			}
+			else{
+				int frameLength = mpegFrameLength(data[i + 1], data[i + 2]);
+				if(frameLength > 0 && isSyncAt(data, length, i + frameLength, false))
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isAdts(byte b1){
+		return (b1 & 0xF6) == 0xF0;
+	}
+
+	private static boolean isSyncAt(byte[] data, int length, int i, boolean adts){
+		if(i <= 0)
+			return false;
+		//the next header is past the probe, accept the single header we found
+		if(i + 2 > length)
+			return true;
+		if((data[i] & 0xFF) != 0xFF || (data[i + 1] & 0xE0) != 0xE0)
+			return false;
+		return adts == isAdts(data[i + 1]);
+	}
+
+	private static final int[] MPEG1_LAYER3_BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0};
+	private static final int[] MPEG2_LAYER3_BITRATES = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0};
+	private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000, 0};
+
+	//---length of an mpeg audio layer 3 frame, or 0 if the header isn't a valid layer 3 header---
+	/*package*/ static int mpegFrameLength(byte b1, byte b2){
+		int version = (b1 >> 3) & 0x03;
+		int layer = (b1 >> 1) & 0x03;
+		int bitrateIndex = (b2 >> 4) & 0x0F;
+		int sampleRateIndex = (b2 >> 2) & 0x03;
+		int padding = (b2 >> 1) & 0x01;
+		if(version == 1 || layer != 1 || sampleRateIndex == 3)
+			return 0;
+
+		boolean isMpeg1 = version == 3;
+		int bitrate = (isMpeg1 ? MPEG1_LAYER3_BITRATES : MPEG2_LAYER3_BITRATES)[bitrateIndex] * 1000;
+		//mpeg 2 halves the sample rate, mpeg 2.5 quarters it
+		int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex] >> (isMpeg1 ? 0 : (version == 2 ? 1 : 2));
+		if(bitrate == 0)
+			return 0;
+		return (isMpeg1 ? 144 : 72) * bitrate / sampleRate + padding;
+	}
+
+	private static boolean startsWith(byte[] data, int length, String magic){
+		return startsWith(data, 0, length, magic);
+	}
+
+	private static boolean startsWithIgnoreCase(byte[] data, int length, String magic){
+		if(length < magic.length())
+			return false;
+		return new String(data, 0, magic.length()).equalsIgnoreCase(magic);
+	}
+
+	private static boolean contains(byte[] data, int length, String text){
+		for(int i = 0; i + text.length() <= length; i++){
+			if(startsWith(data, i, length, text))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length, String magic){
+		if(length - offset < magic.length())
+			return false;
+		for(int i = 0; i < magic.length(); i++){
+			if(data[offset + i] != magic.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.SystemClock;
+
+/*
+ * A fixed size ring of the most recent bytes of a live stream, kept in a memory mapped file so the
+ * page cache holds it rather than the heap. Positions are absolute byte counts since the stream
+ * started; everything older than capacity bytes behind the head has been overwritten.
+ * One writer, any number of readers, each with its own Cursor.
+ */
+/*package*/ class TimeShiftBuffer implements StreamProxy.Sink {
+	//used until the stream has run long enough to measure it
+	private static final int DEFAULT_BYTES_PER_SECOND = 24000;
+	private static final long MIN_MEASURE_TIME = 10000;
+	//how far a new cursor looks for a frame header to start on
+	private static final int ALIGN_WINDOW = 8192;
+
+	public final String url;
+	public final String contentType;
+	private final int bitrate;
+	private final int capacity;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer ring;
+	private final long createdAt = SystemClock.elapsedRealtime();
+
+	//all guarded by this
+	private long head = 0;
+	private boolean isFinished = false;
+	private boolean isClosed = false;
+
+	private final OutputStream outputStream = new OutputStream(){
+		@Override
+		public void write(int b) throws IOException{
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException{
+			TimeShiftBuffer.this.write(buffer, offset, count);
+		}
+	};
+
+	public TimeShiftBuffer(File file, int capacity, String url, String contentType, int bitrate) throws IOException{
+		this.file = file;
+		this.capacity = capacity;
+		this.url = url;
+		this.contentType = contentType;
+		this.bitrate = bitrate;
+		raf = new RandomAccessFile(file, "rw");
+		try{
+			raf.setLength(capacity);
+			ring = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+		catch(IOException e){
+			raf.close();
+			file.delete();
+			throw e;
+		}
+	}
+
+	public synchronized void write(byte[] buffer, int offset, int count) throws IOException{
+		if(isClosed || isFinished)
+			throw new IOException("Time-shift buffer is closed");
+		if(count > capacity){
+			//only the newest capacity bytes would survive anyway
+			offset += count - capacity;
+			head += count - capacity;
+			count = capacity;
+		}
+		int position = (int) (head % capacity);
+		int first = Math.min(count, capacity - position);
+		ring.position(position);
+		ring.put(buffer, offset, first);
+		if(first < count){
+			ring.position(0);
+			ring.put(buffer, offset + first, count - first);
+		}
+		head += count;
+		notifyAll();
+	}
+
+	public OutputStream getOutputStream(){
+		return outputStream;
+	}
+
+	public synchronized long getHead(){
+		return head;
+	}
+
+	//---the oldest position that hasn't been overwritten yet---
+	public synchronized long getTail(){
+		return Math.max(0, head - capacity);
+	}
+
+	public long getBytesPerSecond(){
+		if(bitrate > 0)
+			return bitrate * 125L;
+		long elapsed = SystemClock.elapsedRealtime() - createdAt;
+		long written = getHead();
+		if(elapsed < MIN_MEASURE_TIME || written == 0)
+			return DEFAULT_BYTES_PER_SECOND;
+		return Math.max(1, written * 1000 / elapsed);
+	}
+
+	//---clamps position to what is still in the buffer---
+	public synchronized long clamp(long position){
+		return Math.min(head, Math.max(getTail(), position));
+	}
+
+	public Cursor openCursor(long position){
+		return new Cursor(clamp(position));
+	}
+
+	//---a cursor at or just after position that starts on an audio frame, so the decoder can sync---
+	public Cursor openAlignedCursor(long position){
+		Cursor cursor = new Cursor(clamp(position));
+		byte[] window = new byte[ALIGN_WINDOW];
+		int length = cursor.peek(window);
+		int frame = StreamSniffer.findFrameStart(window, 0, length);
+		if(frame > 0)
+			cursor.position += frame;
+		return cursor;
+	}
+
+	//---no more writes are coming, readers get what is left and then the end of the stream---
+	public synchronized void finish(){
+		isFinished = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized boolean isClosed(){
+		return isClosed;
+	}
+
+	//---drops the buffer, readers see the end of the stream right away---
+	public void close(){
+		synchronized(this){
+			if(isClosed)
+				return;
+			isClosed = true;
+			notifyAll();
+		}
+		try{
+			raf.close();
+		}
+		catch(IOException e){}
+		//the mapping itself goes away once it is garbage collected
+		file.delete();
+	}
+
+	public class Cursor{
+		private long position;
+		private int overruns = 0;
+
+		private Cursor(long position){
+			this.position = position;
+		}
+
+		public long getPosition(){
+			return position;
+		}
+
+		//---how many times the writer lapped this cursor and it had to skip ahead---
+		public int getOverruns(){
+			return overruns;
+		}
+
+		//---blocks until there is something to read, -1 once the stream is over---
+		public int read(byte[] buffer, int offset, int count) throws InterruptedException{
+			synchronized(TimeShiftBuffer.this){
+				while(!isClosed && !isFinished && position >= head)
+					TimeShiftBuffer.this.wait();
+				if(isClosed || position >= head)
+					return -1;
+				long tail = getTail();
+				if(position < tail){
+					position = tail;
+					overruns++;
+				}
+				int available = copy(position, buffer, offset, (int) Math.min(count, head - position));
+				position += available;
+				return available;
+			}
+		}
+
+		private int peek(byte[] buffer){
+			synchronized(TimeShiftBuffer.this){
+				if(isClosed)
+					return 0;
+				return copy(position, buffer, 0, (int) Math.min(buffer.length, head - position));
+			}
+		}
+	}
+
+	//must hold the lock
+	private int copy(long from, byte[] buffer, int offset, int count){
+		int position = (int) (from % capacity);
+		int first = Math.min(count, capacity - position);
+		ring.position(position);
+		ring.get(buffer, offset, first);
+		if(first < count){
+			ring.position(0);
+			ring.get(buffer, offset + first, count - first);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.lang.reflect.Method;
+
+import android.os.Build;
+
+/*
+ * Systrace sections. android.os.Trace only exists from API 18 on and we build against 16, so it is
+ * looked up once by reflection and every call is a no-op on older devices.
+ * Sections nest per thread: always pair begin() with end() in a finally block on the same thread.
+ */
+/*package*/ class Tracing {
+	private static final Method beginSection;
+	private static final Method endSection;
+
+	static{
+		Method begin = null;
+		Method end = null;
+		if(Build.VERSION.SDK_INT >= 18){
+			try{
+				Class<?> trace = Class.forName("android.os.Trace");
+				begin = trace.getMethod("beginSection", String.class);
+				end = trace.getMethod("endSection");
+			}
+			catch(Exception e){
+				begin = null;
+				end = null;
+			}
+		}
+		beginSection = begin;
+		endSection = end;
+	}
+
+	private Tracing(){}
+
+	public static void begin(String sectionName){
+		if(beginSection == null)
+			return;
+		try{
+			beginSection.invoke(null, sectionName);
+		}
+		catch(Exception e){}
+	}
+
+	public static void end(){
+		if(endSection == null)
+			return;
+		try{
+			endSection.invoke(null);
+		}
+		catch(Exception e){}
+	}
+}
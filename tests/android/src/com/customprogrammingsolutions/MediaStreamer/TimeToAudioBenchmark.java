@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import com.customprogrammingsolutions.MediaStreamer.fixture.StreamFixtureServer;
+
+/*
+ * Times the whole path from a tap to audio on a device: the play intent, onStartCommand, the proxy
+ * opening and probing the station, setDataSource/prepareAsync and MediaPlayer starting, measured
+ * from the moment the intent is sent to the moment the service says it is playing. Stations come
+ * from a StreamFixtureServer in this process, so the network is the same every run.
+ *
+ *   ant debug install && adb shell am instrument -r -w -e iterations 30 \
+ *       com.customprogrammingsolutions.MediaStreamer.tests/android.test.InstrumentationTestRunner
+ *
+ * -e latency <ms> adds that much to every response from the station. Results are logged and reported
+ * as instrumentation status (timeToAudio.p50 and so on, in ms), so -r output can be parsed.
+ */
+public class TimeToAudioBenchmark extends InstrumentationTestCase {
+	private final static String TAG = "MediaStreamer";
+
+	private static final int DEFAULT_ITERATIONS = 30;
+	private static final long AUDIO_TIMEOUT = 30000;
+	private static final long STOP_TIMEOUT = 10000;
+
+	private StreamFixtureServer server;
+	private Context context;
+	private int iterations;
+	private String query;
+
+	//guarded by this, what the service last said
+	private int stateSerial = 0;
+
+	private final BroadcastReceiver stateReceiver = new BroadcastReceiver(){
+		@Override
+		public void onReceive(Context context, Intent intent){
+			PlaybackState.read(intent);
+			synchronized(TimeToAudioBenchmark.this){
+				stateSerial++;
+				TimeToAudioBenchmark.this.notifyAll();
+			}
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		context = getInstrumentation().getTargetContext();
+		Bundle args = getArguments();
+		iterations = args != null && args.getString("iterations") != null ? Integer.parseInt(args.getString("iterations")) : DEFAULT_ITERATIONS;
+		String latency = args != null ? args.getString("latency") : null;
+		query = latency != null ? "&latency=" + latency : "";
+		server = new StreamFixtureServer();
+		server.start();
+		context.registerReceiver(stateReceiver, new IntentFilter(PlaybackState.STATE_INTENT), PlaybackState.PERMISSION, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		context.startService(new Intent(MainActivity.KILL_SERVICE_INTENT));
+		context.unregisterReceiver(stateReceiver);
+		server.stop();
+		super.tearDown();
+	}
+
+	//---a play from idle, then a switch to another station while that one plays---
+	public void testTimeToAudio() throws Exception{
+		String[] stations = {
+				server.url("/stream.mp3?kbps=128&metaint=16000" + query),
+				server.url("/stream.aac?kbps=64" + query),
+				server.url("/station.pls?to=" + StreamFixtureServer.encode("/stream.mp3?kbps=128" + query) + query),
+		};
+		long[] timeToAudio = new long[iterations];
+		long[] switchLatency = new long[iterations];
+		for(int i = 0; i < iterations; i++){
+			stopService();
+			//a fresh url every time, so nothing is remembered from the last round
+			String first = stations[i % stations.length] + "&session=" + i + "a";
+			String second = stations[(i + 1) % stations.length] + "&session=" + i + "b";
+			timeToAudio[i] = play(first);
+			switchLatency[i] = play(second);
+			Log.i(TAG, "TimeToAudioBenchmark - Round " + (i + 1) + ": " + timeToAudio[i] + "ms to audio, " + switchLatency[i] + "ms to switch");
+		}
+		stopService();
+
+		Bundle results = new Bundle();
+		report(results, "timeToAudio", timeToAudio);
+		report(results, "switchLatency", switchLatency);
+		getInstrumentation().sendStatus(0, results);
+	}
+
+	//---sends a tap for url and waits for the service to play it, returns the ms in between---
+	private long play(String url) throws InterruptedException{
+		long tap = SystemClock.elapsedRealtime();
+		Intent i = new Intent(MainActivity.PLAY_INTENT);
+		i.putExtra(MainActivity.URL_EXTRA, url);
+		i.putExtra(MainActivity.TAP_TIME_EXTRA, tap);
+		context.startService(i);
+		synchronized(this){
+			while(!(PlaybackState.isPlaying() && url.equals(PlaybackState.getUrlToStream()))){
+				long left = AUDIO_TIMEOUT - (SystemClock.elapsedRealtime() - tap);
+				assertTrue("No audio from " + url + " after " + AUDIO_TIMEOUT + "ms", left > 0);
+				assertFalse("Stream error playing " + url, PlaybackState.isStreamError() && url.equals(PlaybackState.getUrlToStream()));
+				wait(left);
+			}
+		}
+		return SystemClock.elapsedRealtime() - tap;
+	}
+
+	private void stopService() throws InterruptedException{
+		context.startService(new Intent(MainActivity.STOP_INTENT));
+		long start = SystemClock.elapsedRealtime();
+		synchronized(this){
+			while(PlaybackState.isPlaying() || PlaybackState.isPreparing()){
+				long left = STOP_TIMEOUT - (SystemClock.elapsedRealtime() - start);
+				assertTrue("Playback didn't stop", left > 0);
+				wait(left);
+			}
+		}
+	}
+
+	private static void report(Bundle results, String name, long[] samples){
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		List<String> line = new ArrayList<String>();
+		int[] percentiles = {50, 95, 99};
+		for(int p : percentiles){
+			long value = percentile(sorted, p);
+			results.putLong(name + ".p" + p, value);
+			line.add("p" + p + " " + value + "ms");
+		}
+		results.putLong(name + ".max", sorted[sorted.length - 1]);
+		results.putInt(name + ".samples", sorted.length);
+		Log.i(TAG, "TimeToAudioBenchmark - " + name + ": " + line + ", max " + sorted[sorted.length - 1] + "ms over " + sorted.length + " runs");
+	}
+
+	//---nearest rank, p99 needs 100 runs before it is anything but the worst one---
+	private static long percentile(long[] sorted, int p){
+		int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private Bundle getArguments(){
+		if(getInstrumentation() instanceof InstrumentationTestRunner)
+			return ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+		return null;
+	}
+}
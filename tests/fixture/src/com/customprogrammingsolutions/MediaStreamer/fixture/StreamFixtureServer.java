@@ -0,0 +1,537 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer.fixture;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/*
+ * A local radio station for tests and benchmarks. Everything about a response is in its url, so the
+ * same server serves every scenario at once and a device on the network can play them too:
+ *
+ *   /stream.mp3, /stream.aac   live synthetic audio (SyntheticAudio), with
+ *       kbps=128          bitrate (mp3: a Layer III bitrate, default 128; aac: default 64)
+ *       metaint=16000     ICY metadata every this many bytes, for clients that ask for it
+ *       title=Fixture     StreamTitle, numbered and changed every titleEvery=10 seconds
+ *       latency=0         ms before the response headers
+ *       jitter=0          up to this many ms added at random to each write, the average rate holds
+ *       throttle=1.0      the link's speed as a fraction of the bitrate
+ *       burst=0           seconds of audio sent at once on connect, as Icecast does
+ *       drop=0            seconds of audio after which the connection is cut mid-frame
+ *       drops=1           how many connections are cut, -1 for every one
+ *       fail=0            requests answered 503 after each cut, before one gets through again
+ *       type=             a content type to send instead of the right one
+ *       session=          what the connection, cut and failure counts are kept under, the path
+ *                         and query by default
+ *   /redirect?hops=2&to=/stream.mp3%3Fkbps%3D64   that many 302s and then to
+ *   /station.pls?to=..., /station.m3u?to=...       a playlist listing to; dead=1 lists an
+ *                                                  unreachable stream first
+ *   /live.m3u8?kbps=64&target=2&window=6&failEvery=0   a live HLS playlist of AAC segments, every
+ *                                                      failEvery-th segment answers 404
+ *
+ * to= is a path on this server or an absolute url, url encoded. All timestamps are System.nanoTime().
+ */
+public class StreamFixtureServer implements Runnable {
+	private static final int MAX_HEADER_LINE = 8192;
+	//pacing granularity for live streams
+	private static final long WRITE_INTERVAL = 20;
+
+	private final InetAddress bindAddress;
+	private final int requestedPort;
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+	private volatile boolean isRunning = false;
+	private final long startTime = System.nanoTime();
+	private final Set<Socket> clients = new HashSet<Socket>();
+
+	//guarded by sessions
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	private final List<Long> cutTimes = new ArrayList<Long>();
+	private final List<String> requests = new ArrayList<String>();
+
+	private static class Session{
+		int connections = 0;
+		int cuts = 0;
+		int failuresLeft = 0;
+	}
+
+	//---listens on loopback, on a free port---
+	public StreamFixtureServer(){
+		this(null, 0);
+	}
+
+	//---listens on bindAddress (all interfaces if null) and port (a free one if 0)---
+	public StreamFixtureServer(InetAddress bindAddress, int port){
+		this.bindAddress = bindAddress;
+		this.requestedPort = port;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+		StreamFixtureServer server = new StreamFixtureServer(InetAddress.getByName("0.0.0.0"), port);
+		server.start();
+		System.out.println("Serving on port " + server.getPort() + ", try " + server.url("/stream.mp3?metaint=16000"));
+		server.acceptThread.join();
+	}
+
+	public void start() throws IOException{
+		InetAddress address = bindAddress != null ? bindAddress : InetAddress.getByAddress(new byte[] {127, 0, 0, 1});
+		serverSocket = new ServerSocket(requestedPort, 32, address);
+		isRunning = true;
+		acceptThread = new Thread(this, "StreamFixtureServer");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public void stop(){
+		isRunning = false;
+		closeQuietly(serverSocket);
+		synchronized(clients){
+			for(Socket client : clients){
+				closeQuietly(client);
+			}
+			clients.clear();
+		}
+	}
+
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+
+	//---an absolute url on this server for path, through loopback---
+	public String url(String path){
+		return "http://127.0.0.1:" + getPort() + path;
+	}
+
+	//---url encodes a path or url to pass as to=---
+	public static String encode(String value){
+		try{
+			return URLEncoder.encode(value, "UTF-8");
+		}
+		catch(UnsupportedEncodingException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	//---when each cut happened---
+	public List<Long> getCutTimes(){
+		synchronized(sessions){
+			return new ArrayList<Long>(cutTimes);
+		}
+	}
+
+	//---how many requests session has had, 503s included---
+	public int getConnectionCount(String session){
+		synchronized(sessions){
+			Session s = sessions.get(session);
+			return s != null ? s.connections : 0;
+		}
+	}
+
+	//---every request line so far, oldest first---
+	public List<String> getRequests(){
+		synchronized(sessions){
+			return new ArrayList<String>(requests);
+		}
+	}
+
+	//---forgets every session, cut and request, for the next scenario---
+	public void reset(){
+		synchronized(sessions){
+			sessions.clear();
+			cutTimes.clear();
+			requests.clear();
+		}
+	}
+
+	@Override
+	public void run(){
+		while(isRunning){
+			final Socket client;
+			try{
+				client = serverSocket.accept();
+			}
+			catch(IOException e){
+				break;
+			}
+			synchronized(clients){
+				clients.add(client);
+			}
+			Thread t = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						serve(client);
+					}
+					catch(IOException e){
+						//the client went away
+					}
+					finally{
+						synchronized(clients){
+							clients.remove(client);
+						}
+						closeQuietly(client);
+					}
+				}
+			}, "StreamFixtureClient");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(Socket client) throws IOException{
+		InputStream in = client.getInputStream();
+		String requestLine = readLine(in);
+		if(requestLine == null)
+			return;
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while((line = readLine(in)) != null && line.length() > 0){
+			int colon = line.indexOf(':');
+			if(colon > 0)
+				headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+		}
+
+		String[] parts = requestLine.split(" ");
+		String target = parts.length > 1 ? parts[1] : "/";
+		int question = target.indexOf('?');
+		String path = question >= 0 ? target.substring(0, question) : target;
+		Map<String, String> params = parseQuery(question >= 0 ? target.substring(question + 1) : "");
+		String host = headers.containsKey("host") ? headers.get("host") : "127.0.0.1:" + getPort();
+		synchronized(sessions){
+			requests.add(requestLine);
+		}
+
+		OutputStream out = new BufferedOutputStream(client.getOutputStream(), 16 * 1024);
+		if(path.equals("/stream.mp3") || path.equals("/stream.aac")){
+			serveLive(client, out, SyntheticAudio.formatOf(path), target, params, "1".equals(headers.get("icy-metadata")));
+		}
+		else if(path.equals("/redirect")){
+			int hops = getInt(params, "hops", 1);
+			String to = params.containsKey("to") ? params.get("to") : "/stream.mp3";
+			String location = hops > 1 ? "/redirect?hops=" + (hops - 1) + "&to=" + encode(to) : to;
+			respond(out, "302 Found", "text/plain", null, "Location: " + location + "\r\n");
+		}
+		else if(path.equals("/station.pls") || path.equals("/station.m3u")){
+			String to = absolute(host, params.containsKey("to") ? params.get("to") : "/stream.mp3");
+			boolean hasDeadEntry = "1".equals(params.get("dead"));
+			respond(out, "200 OK", path.endsWith("pls") ? "audio/x-scpls" : "audio/x-mpegurl", path.endsWith("pls") ? pls(to, hasDeadEntry) : m3u(to, hasDeadEntry), null);
+		}
+		else if(path.equals("/live.m3u8")){
+			respond(out, "200 OK", "application/vnd.apple.mpegurl", hlsPlaylist(params), null);
+		}
+		else if(path.equals("/segment.aac")){
+			serveSegment(out, params);
+		}
+		else{
+			respond(out, "404 Not Found", "text/html", "<html><body>Not found</body></html>", null);
+		}
+		out.flush();
+	}
+
+	private void serveLive(Socket client, OutputStream out, int format, String target, Map<String, String> params, boolean wantsMetadata) throws IOException{
+		SyntheticAudio audio = new SyntheticAudio(format, getInt(params, "kbps", format == SyntheticAudio.MP3 ? 128 : 64));
+		String key = params.containsKey("session") ? params.get("session") : target;
+		int drops = getInt(params, "drops", 1);
+		boolean isCut;
+		boolean isFailed;
+		Session session;
+		synchronized(sessions){
+			session = sessions.get(key);
+			if(session == null){
+				session = new Session();
+				sessions.put(key, session);
+			}
+			session.connections++;
+			isFailed = session.failuresLeft > 0;
+			if(isFailed)
+				session.failuresLeft--;
+			isCut = !isFailed && getDouble(params, "drop", 0) > 0 && (drops < 0 || session.cuts < drops);
+		}
+		if(isFailed){
+			respond(out, "503 Service Unavailable", "text/plain", "Stream unavailable", null);
+			return;
+		}
+
+		sleep(getInt(params, "latency", 0));
+		int metaInterval = wantsMetadata ? getInt(params, "metaint", 0) : 0;
+		String contentType = params.containsKey("type") ? params.get("type") : SyntheticAudio.contentType(format);
+		StringBuilder extra = new StringBuilder();
+		extra.append("icy-br: ").append(audio.getBytesPerSecond() / 125).append("\r\n");
+		extra.append("icy-name: Fixture ").append(format == SyntheticAudio.MP3 ? "MP3" : "AAC").append("\r\n");
+		extra.append("Cache-Control: no-cache\r\n");
+		if(metaInterval > 0)
+			extra.append("icy-metaint: ").append(metaInterval).append("\r\n");
+		out.write(("HTTP/1.0 200 OK\r\nContent-Type: " + contentType + "\r\n" + extra + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+
+		IcyWriter writer = new IcyWriter(out, metaInterval, params.containsKey("title") ? params.get("title") : "Fixture", getInt(params, "titleEvery", 10));
+		Random random = new Random(getInt(params, "seed", 1));
+		double throttle = getDouble(params, "throttle", 1);
+		int jitter = getInt(params, "jitter", 0);
+		long bytesPerSecond = audio.getBytesPerSecond();
+		long burstBytes = (long) (getDouble(params, "burst", 0) * bytesPerSecond);
+		long cutAt = isCut ? (long) (getDouble(params, "drop", 0) * bytesPerSecond) : Long.MAX_VALUE;
+		byte[] frame = new byte[audio.getMaxFrameSize()];
+		long sent = 0;
+		long start = System.nanoTime();
+		while(isRunning){
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			long due = burstBytes + (long) (elapsed * bytesPerSecond * throttle / 1000);
+			while(sent < due){
+				int length = audio.nextFrame(frame, 0);
+				if(sent + length > cutAt){
+					//half a frame and gone, as a dropped connection leaves it
+					writer.write(frame, 0, length / 2);
+					out.flush();
+					synchronized(sessions){
+						session.cuts++;
+						session.failuresLeft = getInt(params, "fail", 0);
+						cutTimes.add(System.nanoTime());
+					}
+					client.setSoLinger(true, 0);
+					client.close();
+					return;
+				}
+				writer.write(frame, 0, length);
+				sent += length;
+			}
+			out.flush();
+			sleep(WRITE_INTERVAL + (jitter > 0 ? random.nextInt(jitter + 1) : 0));
+		}
+	}
+
+	/*
+	 * Passes audio through, putting a metadata block in after every interval bytes: a length byte
+	 * in units of 16 and the padded StreamTitle, or just a zero byte when the title hasn't changed.
+	 */
+	private class IcyWriter{
+		private final OutputStream out;
+		private final int interval;
+		private final String title;
+		private final int titleEvery;
+		private int untilMetadata;
+		private String lastTitle = null;
+
+		IcyWriter(OutputStream out, int interval, String title, int titleEvery){
+			this.out = out;
+			this.interval = interval;
+			this.title = title;
+			this.titleEvery = Math.max(1, titleEvery);
+			this.untilMetadata = interval;
+		}
+
+		void write(byte[] data, int offset, int length) throws IOException{
+			if(interval <= 0){
+				out.write(data, offset, length);
+				return;
+			}
+			while(length > 0){
+				int count = Math.min(length, untilMetadata);
+				out.write(data, offset, count);
+				offset += count;
+				length -= count;
+				untilMetadata -= count;
+				if(untilMetadata == 0){
+					writeMetadata();
+					untilMetadata = interval;
+				}
+			}
+		}
+
+		private void writeMetadata() throws IOException{
+			long seconds = (System.nanoTime() - startTime) / 1000000000L;
+			String current = title + " " + (seconds / titleEvery + 1);
+			if(current.equals(lastTitle)){
+				out.write(0);
+				return;
+			}
+			lastTitle = current;
+			byte[] text = ("StreamTitle='" + current + "';").getBytes("UTF-8");
+			int blocks = Math.min(255, (text.length + 15) / 16);
+			out.write(blocks);
+			byte[] padded = new byte[blocks * 16];
+			System.arraycopy(text, 0, padded, 0, Math.min(text.length, padded.length));
+			out.write(padded);
+		}
+	}
+
+	//---a sliding window of the segments whose time has passed, as a live encoder publishes them---
+	private String hlsPlaylist(Map<String, String> params){
+		int target = Math.max(1, getInt(params, "target", 2));
+		int window = Math.max(1, getInt(params, "window", 6));
+		long latest = (System.nanoTime() - startTime) / 1000000000L / target;
+		long first = Math.max(0, latest - window + 1);
+		String query = "kbps=" + getInt(params, "kbps", 64) + "&target=" + target + "&failEvery=" + getInt(params, "failEvery", 0);
+		StringBuilder sb = new StringBuilder();
+		sb.append("#EXTM3U\n#EXT-X-VERSION:3\n");
+		sb.append("#EXT-X-TARGETDURATION:").append(target).append('\n');
+		sb.append("#EXT-X-MEDIA-SEQUENCE:").append(first).append('\n');
+		for(long seq = first; seq <= latest; seq++){
+			sb.append("#EXTINF:").append(target).append(".0,\n");
+			sb.append("/segment.aac?").append(query).append("&seq=").append(seq).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private void serveSegment(OutputStream out, Map<String, String> params) throws IOException{
+		int failEvery = getInt(params, "failEvery", 0);
+		long seq = getInt(params, "seq", 0);
+		if(failEvery > 0 && seq % failEvery == failEvery - 1){
+			respond(out, "404 Not Found", "text/plain", "Segment " + seq + " is gone", null);
+			return;
+		}
+		SyntheticAudio audio = new SyntheticAudio(SyntheticAudio.AAC, getInt(params, "kbps", 64));
+		long frames = Math.round(getInt(params, "target", 2) * 1000 / audio.getFrameMillis());
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		byte[] frame = new byte[audio.getMaxFrameSize()];
+		for(long i = 0; i < frames; i++){
+			segment.write(frame, 0, audio.nextFrame(frame, 0));
+		}
+		out.write(("HTTP/1.1 200 OK\r\nContent-Type: audio/aac\r\nContent-Length: " + segment.size() + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+		segment.writeTo(out);
+	}
+
+	private static String pls(String to, boolean hasDeadEntry){
+		StringBuilder sb = new StringBuilder("[playlist]\n");
+		int n = 1;
+		if(hasDeadEntry)
+			sb.append("File").append(n).append("=http://127.0.0.1:1/dead\nTitle").append(n++).append("=Dead\nLength1=-1\n");
+		sb.append("File").append(n).append('=').append(to).append("\nTitle").append(n).append("=Fixture\nLength").append(n).append("=-1\n");
+		sb.append("NumberOfEntries=").append(n).append("\nVersion=2\n");
+		return sb.toString();
+	}
+
+	private static String m3u(String to, boolean hasDeadEntry){
+		StringBuilder sb = new StringBuilder("#EXTM3U\n");
+		if(hasDeadEntry)
+			sb.append("#EXTINF:-1,Dead\nhttp://127.0.0.1:1/dead\n");
+		sb.append("#EXTINF:-1,Fixture\n").append(to).append('\n');
+		return sb.toString();
+	}
+
+	private static String absolute(String host, String to){
+		return to.startsWith("/") ? "http://" + host + to : to;
+	}
+
+	private static void respond(OutputStream out, String status, String contentType, String body, String extraHeaders) throws IOException{
+		byte[] content = (body != null ? body : "").getBytes("UTF-8");
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Type: ").append(contentType).append("\r\n");
+		sb.append("Content-Length: ").append(content.length).append("\r\n");
+		if(extraHeaders != null)
+			sb.append(extraHeaders);
+		sb.append("Connection: close\r\n\r\n");
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+		out.write(content);
+	}
+
+	private static Map<String, String> parseQuery(String query){
+		Map<String, String> params = new HashMap<String, String>();
+		for(String pair : query.split("&")){
+			int equals = pair.indexOf('=');
+			if(equals <= 0)
+				continue;
+			try{
+				params.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+			catch(UnsupportedEncodingException e){
+				throw new RuntimeException(e);
+			}
+			catch(IllegalArgumentException e){
+				//a malformed escape, leave the parameter out
+			}
+		}
+		return params;
+	}
+
+	private static int getInt(Map<String, String> params, String name, int defaultValue){
+		try{
+			return params.containsKey(name) ? Integer.parseInt(params.get(name)) : defaultValue;
+		}
+		catch(NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+	private static double getDouble(Map<String, String> params, String name, double defaultValue){
+		try{
+			return params.containsKey(name) ? Double.parseDouble(params.get(name)) : defaultValue;
+		}
+		catch(NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException{
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while((c = in.read()) != -1 && c != '\n'){
+			if(sb.length() >= MAX_HEADER_LINE)
+				throw new IOException("Header line too long");
+			if(c != '\r')
+				sb.append((char) c);
+		}
+		return c == -1 && sb.length() == 0 ? null : sb.toString();
+	}
+
+	private static void sleep(long ms){
+		if(ms <= 0)
+			return;
+		try{
+			Thread.sleep(ms);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//Socket and ServerSocket are only Closeable from API 19 on
+	private static void closeQuietly(Socket s){
+		try{
+			if(s != null)
+				s.close();
+		}
+		catch(IOException e){}
+	}
+
+	private static void closeQuietly(ServerSocket s){
+		try{
+			if(s != null)
+				s.close();
+		}
+		catch(IOException e){}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer.fixture;
+
+/*
+ * Endless silence as MP3 or AAC frames at a constant bitrate, so a test stream needs no media files
+ * and every decoder accepts it. MP3 is MPEG-1 Layer III mono at 44.1kHz with empty granules; AAC is
+ * ADTS AAC-LC mono at 44.1kHz, one silent channel element padded out with fill elements.
+ * frameLength() recognises the same frames again, for checking that a stream arrived intact.
+ */
+public class SyntheticAudio {
+	public static final int MP3 = 1;
+	public static final int AAC = 2;
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int[] MP3_BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+	private static final int MP3_SAMPLES_PER_FRAME = 1152;
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+	private static final int ADTS_HEADER_SIZE = 7;
+	//the silent channel element and the end element, in bits
+	private static final int AAC_SILENCE_BITS = 32;
+
+	private final int format;
+	private final int kbps;
+	private final int bitrateIndex;
+	private final int samplesPerFrame;
+	//frame sizes alternate so that the average comes out at exactly kbps
+	private final long bytesPerFrameNumerator;
+	private long remainder = 0;
+	private long frames = 0;
+
+	public SyntheticAudio(int format, int kbps){
+		this.format = format;
+		this.kbps = kbps;
+		if(format == MP3){
+			int index = -1;
+			for(int i = 1; i < MP3_BITRATES.length; i++){
+				if(MP3_BITRATES[i] == kbps)
+					index = i;
+			}
+			if(index == -1)
+				throw new IllegalArgumentException(kbps + " kbps isn't an MPEG-1 Layer III bitrate");
+			bitrateIndex = index;
+			samplesPerFrame = MP3_SAMPLES_PER_FRAME;
+		}
+		else if(format == AAC){
+			if(kbps < 8 || kbps > 320)
+				throw new IllegalArgumentException(kbps + " kbps is out of range for AAC");
+			bitrateIndex = 0;
+			samplesPerFrame = AAC_SAMPLES_PER_FRAME;
+		}
+		else{
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+		bytesPerFrameNumerator = (long) kbps * 125 * samplesPerFrame;
+	}
+
+	//---MP3 for names ending in mp3, AAC for aac, 0 for anything else---
+	public static int formatOf(String name){
+		if(name.endsWith("mp3"))
+			return MP3;
+		if(name.endsWith("aac"))
+			return AAC;
+		return 0;
+	}
+
+	public static String contentType(int format){
+		return format == MP3 ? "audio/mpeg" : "audio/aac";
+	}
+
+	public int getFormat(){
+		return format;
+	}
+
+	public int getBytesPerSecond(){
+		return kbps * 125;
+	}
+
+	public long getFrameCount(){
+		return frames;
+	}
+
+	//---the largest frame nextFrame() can write---
+	public int getMaxFrameSize(){
+		return (int) (bytesPerFrameNumerator / SAMPLE_RATE) + 1;
+	}
+
+	//---writes the next frame to out at offset and returns its length---
+	public int nextFrame(byte[] out, int offset){
+		remainder += bytesPerFrameNumerator;
+		int length = (int) (remainder / SAMPLE_RATE);
+		remainder -= (long) length * SAMPLE_RATE;
+		frames++;
+		if(format == MP3)
+			return mp3Frame(out, offset, length);
+		return adtsFrame(out, offset, Math.max(length, ADTS_HEADER_SIZE + AAC_SILENCE_BITS / 8));
+	}
+
+	private int mp3Frame(byte[] out, int offset, int length){
+		//144 * bitrate / sample rate bytes, one more with the padding bit set
+		int unpadded = 144000 * kbps / SAMPLE_RATE;
+		int padding = length > unpadded ? 1 : 0;
+		length = unpadded + padding;
+		out[offset] = (byte) 0xFF;
+		//MPEG-1, Layer III, no CRC
+		out[offset + 1] = (byte) 0xFB;
+		//44.1kHz
+		out[offset + 2] = (byte) ((bitrateIndex << 4) | (padding << 1));
+		//mono, original
+		out[offset + 3] = (byte) 0xC4;
+		//zero side info and main data, every granule is empty
+		for(int i = 4; i < length; i++){
+			out[offset + i] = 0;
+		}
+		return length;
+	}
+
+	private static int adtsFrame(byte[] out, int offset, int length){
+		for(int i = 0; i < length; i++){
+			out[offset + i] = 0;
+		}
+		BitWriter w = new BitWriter(out, offset);
+		w.write(0xFFF, 12);
+		//MPEG-4, layer 0, no CRC
+		w.write(0, 1);
+		w.write(0, 2);
+		w.write(1, 1);
+		//AAC LC, 44.1kHz, private bit
+		w.write(1, 2);
+		w.write(4, 4);
+		w.write(0, 1);
+		//mono, original/copy, home, copyright bits
+		w.write(1, 3);
+		w.write(0, 4);
+		w.write(length, 13);
+		//variable bitrate buffer fullness, one raw data block
+		w.write(0x7FF, 11);
+		w.write(0, 2);
+
+		//a single channel element with no scale factor bands is silence
+		w.write(0, 3);
+		w.write(0, 4);
+		//global gain
+		w.write(100, 8);
+		//ics_info: reserved bit, only long window, window shape, max_sfb 0, no prediction
+		w.write(0, 1);
+		w.write(0, 2);
+		w.write(0, 1);
+		w.write(0, 6);
+		w.write(0, 1);
+		//no pulse, tns or gain control data
+		w.write(0, 3);
+
+		//fill elements up to the frame length, what is left over is the byte alignment
+		int left = (length - ADTS_HEADER_SIZE) * 8 - AAC_SILENCE_BITS;
+		while(left >= 7){
+			int count;
+			w.write(6, 3);
+			if(left >= 15 + 8 * 15){
+				count = Math.min(269, (left - 15) / 8);
+				w.write(15, 4);
+				w.write(count - 14, 8);
+				left -= 15 + 8 * count;
+			}
+			else{
+				count = Math.min(14, (left - 7) / 8);
+				w.write(count, 4);
+				left -= 7 + 8 * count;
+			}
+			if(count > 0){
+				//EXT_FILL, fill nibble, fill bytes
+				w.write(0, 8);
+				for(int i = 1; i < count; i++){
+					w.write(0xA5, 8);
+				}
+			}
+		}
+		w.write(7, 3);
+		return length;
+	}
+
+	/*
+	 * The length of the frame that starts at offset in data if it is one of the given format, -1 if
+	 * no frame starts there and 0 if there aren't enough bytes left to tell.
+	 */
+	public static int frameLength(int format, byte[] data, int offset, int length){
+		int left = length - offset;
+		if(format == MP3){
+			if(left < 4)
+				return 0;
+			if((data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xFE) != 0xFA)
+				return -1;
+			int index = (data[offset + 2] >> 4) & 0x0F;
+			if(index == 0 || index == 15 || ((data[offset + 2] >> 2) & 0x03) != 0)
+				return -1;
+			return 144000 * MP3_BITRATES[index] / SAMPLE_RATE + ((data[offset + 2] >> 1) & 0x01);
+		}
+		if(left < ADTS_HEADER_SIZE)
+			return 0;
+		if((data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xF6) != 0xF0)
+			return -1;
+		int frameLength = ((data[offset + 3] & 0x03) << 11) | ((data[offset + 4] & 0xFF) << 3) | ((data[offset + 5] & 0xFF) >> 5);
+		return frameLength >= ADTS_HEADER_SIZE ? frameLength : -1;
+	}
+
+	//---milliseconds of audio in one frame---
+	public double getFrameMillis(){
+		return samplesPerFrame * 1000.0 / SAMPLE_RATE;
+	}
+
+	private static class BitWriter{
+		private final byte[] out;
+		private int bit;
+
+		BitWriter(byte[] out, int offset){
+			this.out = out;
+			this.bit = offset * 8;
+		}
+
+		void write(int value, int bits){
+			for(int i = bits - 1; i >= 0; i--){
+				if(((value >> i) & 1) != 0)
+					out[bit >> 3] |= 0x80 >> (bit & 7);
+				bit++;
+			}
+		}
+	}
+}
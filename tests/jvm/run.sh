@@ -0,0 +1,49 @@
+#!/bin/sh
+#
+# Builds the plain-JVM tests and tools against the app's own sources, with tests/jvm/shims standing
+# in for the few Android classes the stream engine and the database helpers touch, and runs one.
+#
+#   tests/jvm/run.sh StreamScenarios -Dseconds=20 mp3-128 cut-once
+#
+# -D options go to the JVM, everything else to the tool. Jars a tool needs at run time (the SQLite
+# JDBC driver for PersistenceBenchmark) go on EXTRA_CLASSPATH. Sources on EXTRA_SOURCEPATH are used
+# in place of the app's own, to build a tool against another version of a class:
+#
+#   git show <commit>:src/com/.../RecentsDBHelper.java > /tmp/old/com/.../RecentsDBHelper.java
+#   EXTRA_SOURCEPATH=/tmp/old tests/jvm/run.sh PersistenceBenchmark -Dlabel=old
+#
+# Needs a JDK 7 or later.
+
+set -e
+
+ROOT=$(cd "$(dirname "$0")/../.." && pwd)
+JVM="$ROOT/tests/jvm"
+OUT=$(mktemp -d "${TMPDIR:-/tmp}/mediastreamer-jvm.XXXXXX")
+trap 'rm -rf "$OUT"' EXIT
+
+if [ $# -lt 1 ]; then
+	echo "usage: $0 <tool> [-Dname=value...] [args...]" >&2
+	exit 2
+fi
+MAIN=$1
+shift
+case "$MAIN" in
+	*.*) ;;
+	*) MAIN=com.customprogrammingsolutions.MediaStreamer.$MAIN ;;
+esac
+
+JVM_OPTS=""
+ARGS=""
+for arg in "$@"; do
+	case "$arg" in
+		-D*|-X*) JVM_OPTS="$JVM_OPTS $arg" ;;
+		*) ARGS="$ARGS $arg" ;;
+	esac
+done
+
+# the shims come first so they win over the app's own MediaStreamerService, then any replacements
+find "$JVM/src" "$ROOT/tests/fixture/src" -name '*.java' > "$OUT/sources"
+javac -nowarn -encoding UTF-8 -d "$OUT" \
+	-sourcepath "$JVM/shims:${EXTRA_SOURCEPATH:+$EXTRA_SOURCEPATH:}$ROOT/src:$ROOT/tests/fixture/src:$JVM/src" @"$OUT/sources"
+
+java $JVM_OPTS -cp "$OUT${EXTRA_CLASSPATH:+:$EXTRA_CLASSPATH}" "$MAIN" $ARGS
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+//---stand-in for android.content.ComponentCallbacks2 on a plain JVM, the levels are the platform's---
+public interface ComponentCallbacks2 {
+	int TRIM_MEMORY_COMPLETE = 80;
+	int TRIM_MEMORY_MODERATE = 60;
+	int TRIM_MEMORY_BACKGROUND = 40;
+	int TRIM_MEMORY_UI_HIDDEN = 20;
+	int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	int TRIM_MEMORY_RUNNING_LOW = 10;
+	int TRIM_MEMORY_RUNNING_MODERATE = 5;
+
+	void onTrimMemory(int level);
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.io.File;
+
+/*
+ * Stand-in for android.content.Context on a plain JVM. Only the file locations are there, all of
+ * them under one scratch directory.
+ */
+public class Context {
+	private final File dir;
+
+	public Context(File dir){
+		this.dir = dir;
+	}
+
+	public File getCacheDir(){
+		return mkdir(new File(dir, "cache"));
+	}
+
+	public File getFilesDir(){
+		return mkdir(new File(dir, "files"));
+	}
+
+	public File getDatabasePath(String name){
+		return new File(mkdir(new File(dir, "databases")), name);
+	}
+
+	private static File mkdir(File f){
+		f.mkdirs();
+		return f;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import java.io.Closeable;
+
+//---stand-in for android.database.Cursor on a plain JVM, the part the database helpers use---
+public interface Cursor extends Closeable {
+	int getCount();
+
+	int getPosition();
+
+	boolean moveToPosition(int position);
+
+	boolean moveToFirst();
+
+	boolean moveToNext();
+
+	boolean isAfterLast();
+
+	int getColumnCount();
+
+	int getColumnIndex(String columnName);
+
+	int getColumnIndexOrThrow(String columnName);
+
+	String getString(int columnIndex);
+
+	int getInt(int columnIndex);
+
+	long getLong(int columnIndex);
+
+	double getDouble(int columnIndex);
+
+	boolean isNull(int columnIndex);
+
+	void close();
+
+	boolean isClosed();
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/*
+ * Stand-in for android.database.sqlite.SQLiteCursor on a plain JVM. The whole result is read when
+ * the query runs, as getCount() makes the real one do by filling its window.
+ */
+public class SQLiteCursor implements Cursor {
+	private final String[] columns;
+	private final List<Object[]> rows = new ArrayList<Object[]>();
+	private int position = -1;
+	private boolean isClosed = false;
+
+	/*package*/ SQLiteCursor(ResultSet rs) throws SQLException{
+		ResultSetMetaData meta = rs.getMetaData();
+		columns = new String[meta.getColumnCount()];
+		for(int i = 0; i < columns.length; i++){
+			columns[i] = meta.getColumnLabel(i + 1);
+		}
+		while(rs.next()){
+			Object[] row = new Object[columns.length];
+			for(int i = 0; i < columns.length; i++){
+				row[i] = rs.getObject(i + 1);
+			}
+			rows.add(row);
+		}
+	}
+
+	@Override
+	public int getCount(){
+		return rows.size();
+	}
+
+	@Override
+	public int getPosition(){
+		return position;
+	}
+
+	@Override
+	public boolean moveToPosition(int newPosition){
+		position = Math.max(-1, Math.min(rows.size(), newPosition));
+		return position >= 0 && position < rows.size();
+	}
+
+	@Override
+	public boolean moveToFirst(){
+		return moveToPosition(0);
+	}
+
+	@Override
+	public boolean moveToNext(){
+		return moveToPosition(position + 1);
+	}
+
+	@Override
+	public boolean isAfterLast(){
+		return rows.isEmpty() || position >= rows.size();
+	}
+
+	@Override
+	public int getColumnCount(){
+		return columns.length;
+	}
+
+	@Override
+	public int getColumnIndex(String columnName){
+		for(int i = 0; i < columns.length; i++){
+			if(columns[i].equalsIgnoreCase(columnName))
+				return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public int getColumnIndexOrThrow(String columnName){
+		int index = getColumnIndex(columnName);
+		if(index < 0)
+			throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+		return index;
+	}
+
+	private Object get(int columnIndex){
+		if(position < 0 || position >= rows.size())
+			throw new IllegalStateException("Index " + position + " requested, with a size of " + rows.size());
+		return rows.get(position)[columnIndex];
+	}
+
+	@Override
+	public String getString(int columnIndex){
+		Object value = get(columnIndex);
+		return value != null ? value.toString() : null;
+	}
+
+	@Override
+	public int getInt(int columnIndex){
+		return (int) getLong(columnIndex);
+	}
+
+	@Override
+	public long getLong(int columnIndex){
+		Object value = get(columnIndex);
+		if(value instanceof Number)
+			return ((Number) value).longValue();
+		try{
+			return value != null ? Long.parseLong(value.toString()) : 0;
+		}
+		catch(NumberFormatException e){
+			return 0;
+		}
+	}
+
+	@Override
+	public double getDouble(int columnIndex){
+		Object value = get(columnIndex);
+		if(value instanceof Number)
+			return ((Number) value).doubleValue();
+		try{
+			return value != null ? Double.parseDouble(value.toString()) : 0;
+		}
+		catch(NumberFormatException e){
+			return 0;
+		}
+	}
+
+	@Override
+	public boolean isNull(int columnIndex){
+		return get(columnIndex) == null;
+	}
+
+	@Override
+	public void close(){
+		isClosed = true;
+		rows.clear();
+	}
+
+	@Override
+	public boolean isClosed(){
+		return isClosed;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+
+/*
+ * Stand-in for android.database.sqlite.SQLiteDatabase on a plain JVM, on the SQLite JDBC driver
+ * (org.xerial sqlite-jdbc). Set up the way Android 4.1 sets up a database: the PERSIST journal,
+ * FULL sync, and a cache of the 25 most recently used prepared statements per connection.
+ */
+public class SQLiteDatabase {
+	private static final int STATEMENT_CACHE_SIZE = 25;
+
+	public interface CursorFactory{}
+
+	private final Connection connection;
+	private int transactionDepth = 0;
+	private boolean isTransactionSuccessful = false;
+	private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(STATEMENT_CACHE_SIZE, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+			if(size() <= STATEMENT_CACHE_SIZE)
+				return false;
+			closeQuietly(eldest.getValue());
+			return true;
+		}
+	};
+
+	private SQLiteDatabase(Connection connection){
+		this.connection = connection;
+	}
+
+	public static SQLiteDatabase openOrCreateDatabase(String path, CursorFactory factory){
+		try{
+			Class.forName("org.sqlite.JDBC");
+			Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+			Statement s = connection.createStatement();
+			s.execute("PRAGMA journal_mode=PERSIST");
+			s.execute("PRAGMA synchronous=FULL");
+			s.close();
+			return new SQLiteDatabase(connection);
+		}
+		catch(ClassNotFoundException e){
+			throw new SQLiteException("The SQLite JDBC driver isn't on the classpath", e);
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	/*package*/ static SQLiteException wrap(SQLException e){
+		return new SQLiteException(e.getMessage(), e);
+	}
+
+	//---a prepared statement from the cache, with its parameters cleared---
+	private PreparedStatement prepare(String sql) throws SQLException{
+		PreparedStatement statement = statements.get(sql);
+		if(statement == null){
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		}
+		else{
+			statement.clearParameters();
+		}
+		return statement;
+	}
+
+	public void execSQL(String sql){
+		execSQL(sql, new Object[0]);
+	}
+
+	public void execSQL(String sql, Object[] bindArgs){
+		try{
+			PreparedStatement statement = prepare(sql);
+			for(int i = 0; i < bindArgs.length; i++){
+				statement.setObject(i + 1, bindArgs[i]);
+			}
+			statement.execute();
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	public Cursor rawQuery(String sql, String[] selectionArgs){
+		try{
+			PreparedStatement statement = prepare(sql);
+			if(selectionArgs != null){
+				for(int i = 0; i < selectionArgs.length; i++){
+					statement.setString(i + 1, selectionArgs[i]);
+				}
+			}
+			ResultSet rs = statement.executeQuery();
+			try{
+				return new SQLiteCursor(rs);
+			}
+			finally{
+				rs.close();
+			}
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	public SQLiteStatement compileStatement(String sql){
+		try{
+			return new SQLiteStatement(this, prepare(sql));
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	/*package*/ long lastInsertRowId(){
+		try{
+			PreparedStatement statement = prepare("SELECT last_insert_rowid()");
+			ResultSet rs = statement.executeQuery();
+			try{
+				return rs.next() ? rs.getLong(1) : -1;
+			}
+			finally{
+				rs.close();
+			}
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	public void beginTransaction(){
+		try{
+			if(transactionDepth++ == 0){
+				connection.setAutoCommit(false);
+				isTransactionSuccessful = false;
+			}
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	public void setTransactionSuccessful(){
+		isTransactionSuccessful = true;
+	}
+
+	public void endTransaction(){
+		try{
+			if(--transactionDepth > 0)
+				return;
+			if(isTransactionSuccessful)
+				connection.commit();
+			else
+				connection.rollback();
+			connection.setAutoCommit(true);
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	public boolean inTransaction(){
+		return transactionDepth > 0;
+	}
+
+	public int getVersion(){
+		try{
+			Statement s = connection.createStatement();
+			try{
+				ResultSet rs = s.executeQuery("PRAGMA user_version");
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+			finally{
+				s.close();
+			}
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	public void setVersion(int version){
+		execSQL("PRAGMA user_version = " + version);
+	}
+
+	public boolean isOpen(){
+		try{
+			return !connection.isClosed();
+		}
+		catch(SQLException e){
+			return false;
+		}
+	}
+
+	public void close(){
+		for(PreparedStatement statement : statements.values()){
+			closeQuietly(statement);
+		}
+		statements.clear();
+		try{
+			connection.close();
+		}
+		catch(SQLException e){
+			throw wrap(e);
+		}
+	}
+
+	private static void closeQuietly(Statement statement){
+		try{
+			statement.close();
+		}
+		catch(SQLException e){}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.Context;
+
+//---stand-in for android.database.sqlite.SQLiteOpenHelper on a plain JVM---
+public abstract class SQLiteOpenHelper {
+	private final Context context;
+	private final String name;
+	private final int version;
+	private SQLiteDatabase db;
+
+	public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version){
+		this.context = context;
+		this.name = name;
+		this.version = version;
+	}
+
+	public synchronized SQLiteDatabase getWritableDatabase(){
+		if(db != null && db.isOpen())
+			return db;
+		SQLiteDatabase opened = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name).getPath(), null);
+		int current = opened.getVersion();
+		if(current != version){
+			opened.beginTransaction();
+			try{
+				if(current == 0)
+					onCreate(opened);
+				else
+					onUpgrade(opened, current, version);
+				opened.setVersion(version);
+				opened.setTransactionSuccessful();
+			}
+			finally{
+				opened.endTransaction();
+			}
+		}
+		onOpen(opened);
+		db = opened;
+		return db;
+	}
+
+	public SQLiteDatabase getReadableDatabase(){
+		return getWritableDatabase();
+	}
+
+	public synchronized void close(){
+		if(db != null && db.isOpen())
+			db.close();
+		db = null;
+	}
+
+	public abstract void onCreate(SQLiteDatabase db);
+
+	public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+	public void onOpen(SQLiteDatabase db){}
+}
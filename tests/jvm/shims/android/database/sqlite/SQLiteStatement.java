@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+//---stand-in for android.database.sqlite.SQLiteStatement on a plain JVM---
+public class SQLiteStatement {
+	private final SQLiteDatabase db;
+	private final PreparedStatement statement;
+
+	/*package*/ SQLiteStatement(SQLiteDatabase db, PreparedStatement statement){
+		this.db = db;
+		this.statement = statement;
+	}
+
+	public void bindNull(int index){
+		try{
+			statement.setObject(index, null);
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public void bindLong(int index, long value){
+		try{
+			statement.setLong(index, value);
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public void bindString(int index, String value){
+		try{
+			statement.setString(index, value);
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public void clearBindings(){
+		try{
+			statement.clearParameters();
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public void execute(){
+		try{
+			statement.execute();
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public long executeInsert(){
+		execute();
+		return db.lastInsertRowId();
+	}
+
+	public long simpleQueryForLong(){
+		try{
+			ResultSet rs = statement.executeQuery();
+			try{
+				if(!rs.next())
+					throw new SQLiteException("query returned no rows");
+				return rs.getLong(1);
+			}
+			finally{
+				rs.close();
+			}
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public String simpleQueryForString(){
+		try{
+			ResultSet rs = statement.executeQuery();
+			try{
+				if(!rs.next())
+					throw new SQLiteException("query returned no rows");
+				return rs.getString(1);
+			}
+			finally{
+				rs.close();
+			}
+		}
+		catch(SQLException e){
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	//---the prepared statement stays in the database's cache for the next compileStatement()---
+	public void close(){
+		clearBindings();
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import javax.net.ssl.SSLSocketFactory;
+
+//---stand-in for android.net.SSLCertificateSocketFactory on a plain JVM, the default factory---
+public final class SSLCertificateSocketFactory {
+	private SSLCertificateSocketFactory(){}
+
+	public static SSLSocketFactory getDefault(int handshakeTimeoutMillis, SSLSessionCache cache){
+		return (SSLSocketFactory) SSLSocketFactory.getDefault();
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+//---stand-in for android.os.Handler on a plain JVM, runnables only---
+public class Handler {
+	private final Looper looper;
+
+	public Handler(){
+		this(Looper.myLooper());
+	}
+
+	public Handler(Looper looper){
+		if(looper == null)
+			throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+		this.looper = looper;
+	}
+
+	public final Looper getLooper(){
+		return looper;
+	}
+
+	public final boolean post(Runnable r){
+		return looper.enqueue(r, SystemClock.uptimeMillis());
+	}
+
+	public final boolean postDelayed(Runnable r, long delayMillis){
+		return looper.enqueue(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+	}
+
+	public final void removeCallbacks(Runnable r){
+		looper.remove(r);
+	}
+}
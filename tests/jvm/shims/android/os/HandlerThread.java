@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+//---stand-in for android.os.HandlerThread on a plain JVM---
+public class HandlerThread extends Thread {
+	private Looper looper;
+
+	public HandlerThread(String name){
+		super(name);
+	}
+
+	public HandlerThread(String name, int priority){
+		super(name);
+	}
+
+	@Override
+	public void run(){
+		Looper.prepare();
+		synchronized(this){
+			looper = Looper.myLooper();
+			notifyAll();
+		}
+		Looper.loop();
+	}
+
+	public Looper getLooper(){
+		if(!isAlive())
+			return null;
+		synchronized(this){
+			while(isAlive() && looper == null){
+				try{
+					wait();
+				}
+				catch(InterruptedException e){}
+			}
+			return looper;
+		}
+	}
+
+	public boolean quit(){
+		Looper l = getLooper();
+		if(l == null)
+			return false;
+		l.quit();
+		return true;
+	}
+}
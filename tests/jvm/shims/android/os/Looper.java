@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/*
+ * Stand-in for android.os.Looper on a plain JVM: a queue of runnables ordered by due time, run one
+ * at a time on the thread that called loop().
+ */
+public final class Looper {
+	private static final ThreadLocal<Looper> current = new ThreadLocal<Looper>();
+
+	private static class Message implements Comparable<Message>{
+		final long when;
+		final long order;
+		final Runnable r;
+
+		Message(long when, long order, Runnable r){
+			this.when = when;
+			this.order = order;
+			this.r = r;
+		}
+
+		@Override
+		public int compareTo(Message other){
+			if(when != other.when)
+				return when < other.when ? -1 : 1;
+			return order < other.order ? -1 : order == other.order ? 0 : 1;
+		}
+	}
+
+	//guarded by queue
+	private final PriorityQueue<Message> queue = new PriorityQueue<Message>();
+	private long nextOrder = 0;
+	private boolean isQuitting = false;
+
+	private Looper(){}
+
+	public static void prepare(){
+		if(current.get() != null)
+			throw new RuntimeException("Only one Looper may be created per thread");
+		current.set(new Looper());
+	}
+
+	public static Looper myLooper(){
+		return current.get();
+	}
+
+	public static void loop(){
+		Looper me = current.get();
+		if(me == null)
+			throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+		while(true){
+			Runnable r;
+			synchronized(me.queue){
+				while(true){
+					if(me.isQuitting)
+						return;
+					Message next = me.queue.peek();
+					long now = SystemClock.uptimeMillis();
+					if(next != null && next.when <= now){
+						me.queue.poll();
+						r = next.r;
+						break;
+					}
+					try{
+						me.queue.wait(next == null ? 0 : next.when - now);
+					}
+					catch(InterruptedException e){
+						return;
+					}
+				}
+			}
+			r.run();
+		}
+	}
+
+	public void quit(){
+		synchronized(queue){
+			isQuitting = true;
+			queue.clear();
+			queue.notifyAll();
+		}
+	}
+
+	/*package*/ boolean enqueue(Runnable r, long when){
+		synchronized(queue){
+			if(isQuitting)
+				return false;
+			queue.add(new Message(when, nextOrder++, r));
+			queue.notifyAll();
+			return true;
+		}
+	}
+
+	/*package*/ void remove(Runnable r){
+		synchronized(queue){
+			for(Iterator<Message> it = queue.iterator(); it.hasNext();){
+				if(it.next().r == r)
+					it.remove();
+			}
+		}
+	}
+}
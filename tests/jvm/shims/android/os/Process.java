@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+//---stand-in for android.os.Process on a plain JVM, priorities are accepted and ignored---
+public final class Process {
+	public static final int THREAD_PRIORITY_DEFAULT = 0;
+	public static final int THREAD_PRIORITY_BACKGROUND = 10;
+	public static final int THREAD_PRIORITY_AUDIO = -16;
+	public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+	private Process(){}
+
+	public static int myPid(){
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		try{
+			return Integer.parseInt(name.substring(0, name.indexOf('@')));
+		}
+		catch(RuntimeException e){
+			return 0;
+		}
+	}
+
+	public static void setThreadPriority(int priority){}
+
+	public static long getElapsedCpuTime(){
+		return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() / 1000000;
+	}
+}
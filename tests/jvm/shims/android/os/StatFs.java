@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.io.File;
+
+//---stand-in for android.os.StatFs on a plain JVM, in 4KB blocks---
+public class StatFs {
+	private static final int BLOCK_SIZE = 4096;
+
+	private final File path;
+
+	public StatFs(String path){
+		this.path = new File(path);
+	}
+
+	public int getBlockSize(){
+		return BLOCK_SIZE;
+	}
+
+	public int getAvailableBlocks(){
+		return (int) Math.min(Integer.MAX_VALUE, path.getUsableSpace() / BLOCK_SIZE);
+	}
+
+	public int getBlockCount(){
+		return (int) Math.min(Integer.MAX_VALUE, path.getTotalSpace() / BLOCK_SIZE);
+	}
+}
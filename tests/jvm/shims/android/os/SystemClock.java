@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+//---stand-in for android.os.SystemClock on a plain JVM, monotonic like the real one---
+public final class SystemClock {
+	private static final long origin = System.nanoTime();
+
+	private SystemClock(){}
+
+	public static long elapsedRealtime(){
+		return (System.nanoTime() - origin) / 1000000 + 1;
+	}
+
+	public static long uptimeMillis(){
+		return elapsedRealtime();
+	}
+
+	public static void sleep(long ms){
+		try{
+			Thread.sleep(ms);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+/*
+ * Stand-in for android.util.Log on a plain JVM. Quiet unless the tools are run with -Dlog=true,
+ * the fault scenarios log plenty of expected errors.
+ */
+public final class Log {
+	private static final boolean isEnabled = Boolean.getBoolean("log");
+
+	private Log(){}
+
+	public static int d(String tag, String msg){
+		return print("D", tag, msg, null);
+	}
+
+	public static int i(String tag, String msg){
+		return print("I", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg){
+		return print("W", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr){
+		return print("W", tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg){
+		return print("E", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr){
+		return print("E", tag, msg, tr);
+	}
+
+	private static int print(String level, String tag, String msg, Throwable tr){
+		if(!isEnabled)
+			return 0;
+		System.err.println(level + "/" + tag + ": " + msg + (tr != null ? " - " + tr : ""));
+		return 0;
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+/*
+ * Takes the place of the service on a plain JVM. PlayerDiagnostics.snapshot() asks it what is
+ * playing, everything else the stream engine needs is outside the service.
+ */
+public class MediaStreamerService {
+	private static volatile String urlToStream;
+	private static volatile String nowPlaying;
+
+	public static String getUrlToStream(){
+		return urlToStream;
+	}
+
+	public static String getNowPlaying(){
+		return nowPlaying;
+	}
+
+	public static void setNowPlaying(String url, String title){
+		urlToStream = url;
+		nowPlaying = title;
+	}
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.content.Context;
+import android.database.Cursor;
+
+/*
+ * Times the recents and favorites queries the app runs, through RecentsDBHelper and
+ * FavoritesDBHelper themselves, on tables of 10k and 100k rows. Laid out like a JMH run: every
+ * benchmark runs in fresh JVMs (forks) on a fresh copy of the table, warmup iterations are thrown
+ * away, and the measured operations are reported as mean and percentiles.
+ *
+ * The tests/jvm/shims stand-ins run the helpers' SQL on desktop SQLite through the sqlite-jdbc
+ * driver, with the journal and sync settings of Android 4.1:
+ *
+ *   EXTRA_CLASSPATH=sqlite-jdbc.jar:slf4j-api.jar tests/jvm/run.sh PersistenceBenchmark \
+ *       [-Drows=10000,100000] [-Dforks=3] [-Dwarmup=5] [-Diterations=10] [-Dops=100] \
+ *       [-Ddrop=all|index,...] [-Dlabel=name] [-Dout=results.jsonl] [benchmark...]
+ *
+ * -Ddrop drops indexes from the copied table before the helper opens it, to time the same code
+ * without them. Every line of -Dout is one benchmark at one table size.
+ */
+public class PersistenceBenchmark {
+	private static final String[] BENCHMARKS = {
+		"recents.insertNew", "recents.insertExisting", "recents.update", "recents.getByUrl", "recents.listAll", "recents.delete",
+		"favorites.insertNew", "favorites.update", "favorites.getByUrl", "favorites.listAll", "favorites.delete"
+	};
+	//reading every row is thousands of times slower than anything else, fewer of them still make enough samples
+	private static final int LIST_OPS_DIVISOR = 25;
+	private static final int MAX_COUNT = 100;
+	private static final long MAX_AGE_MILLIS = 365L * 24 * 60 * 60 * 1000;
+
+	public static void main(String[] args) throws Exception{
+		if(args.length > 0 && args[0].equals("--fork")){
+			fork(args[1], Integer.parseInt(args[2]), new File(args[3]), Integer.parseInt(args[4]), new File(args[5]));
+			return;
+		}
+		String[] rowCounts = System.getProperty("rows", "10000,100000").split(",");
+		int forks = Integer.getInteger("forks", 3);
+		String label = System.getProperty("label", "current");
+		String out = System.getProperty("out");
+		List<String> benchmarks = args.length > 0 ? Arrays.asList(args) : Arrays.asList(BENCHMARKS);
+
+		File dir = File.createTempFile("persistence", "");
+		dir.delete();
+		dir.mkdirs();
+		Writer json = out != null ? new FileWriter(out) : null;
+		System.out.println(String.format("%-24s %7s %9s %9s %9s %9s %9s %9s %8s", "benchmark (us)", "rows", "mean", "p50", "p90", "p99", "p99.9", "max", "samples"));
+		try{
+			for(String rowCount : rowCounts){
+				int rows = Integer.parseInt(rowCount.trim());
+				File template = new File(dir, "template-" + rows);
+				populate(template, rows);
+				for(String benchmark : benchmarks){
+					List<long[]> samples = new ArrayList<long[]>();
+					for(int i = 0; i < forks; i++){
+						File samplesFile = new File(dir, "samples");
+						runFork(benchmark, rows, template, i, samplesFile);
+						samples.add(readSamples(samplesFile));
+					}
+					Stats stats = new Stats(samples);
+					System.out.println(String.format(Locale.US, "%-24s %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %8d", benchmark, rows,
+							stats.mean, stats.percentile(0.5), stats.percentile(0.9), stats.percentile(0.99), stats.percentile(0.999), stats.max(), stats.count()));
+					if(json != null){
+						json.write(toJson(label, benchmark, rows, forks, stats) + "\n");
+						json.flush();
+					}
+				}
+			}
+		}
+		finally{
+			if(json != null)
+				json.close();
+			delete(dir);
+		}
+	}
+
+	//---a fresh JVM with the same classpath and settings for one fork of one benchmark---
+	private static void runFork(String benchmark, int rows, File template, int fork, File samplesFile) throws Exception{
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for(String name : new String[] {"warmup", "iterations", "ops", "drop", "log"}){
+			if(System.getProperty(name) != null)
+				command.add("-D" + name + "=" + System.getProperty(name));
+		}
+		command.add(PersistenceBenchmark.class.getName());
+		command.add("--fork");
+		command.add(benchmark);
+		command.add(Integer.toString(rows));
+		command.add(template.getPath());
+		command.add(Integer.toString(fork));
+		command.add(samplesFile.getPath());
+		//the driver's logging complains on stderr every time it loads, it's only shown when a fork fails
+		File errors = new File(samplesFile.getParentFile(), "errors");
+		Process p = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.INHERIT).redirectError(errors).start();
+		if(p.waitFor() != 0){
+			copy(errors, System.err);
+			throw new IllegalStateException(benchmark + " fork " + fork + " at " + rows + " rows failed");
+		}
+	}
+
+	//---one fork: warms up, then writes the measured samples to samplesFile---
+	private static void fork(String name, int rows, File template, int fork, File samplesFile) throws Exception{
+		int warmup = Integer.getInteger("warmup", 5);
+		int iterations = Integer.getInteger("iterations", 10);
+		int ops = Integer.getInteger("ops", 100);
+		if(name.endsWith(".listAll"))
+			ops = Math.max(1, ops / LIST_OPS_DIVISOR);
+
+		File dir = File.createTempFile("fork", "", template.getParentFile());
+		dir.delete();
+		Context context = new Context(dir);
+		String table = name.substring(0, name.indexOf('.'));
+		File db = context.getDatabasePath(table);
+		copy(new Context(template).getDatabasePath(table), db);
+		dropIndexes(db, System.getProperty("drop", ""));
+
+		Benchmark benchmark = create(name, context, rows, new Random(fork));
+		benchmark.open();
+		long[] samples = new long[iterations * ops];
+		try{
+			for(int i = 0; i < warmup + iterations; i++){
+				for(int j = 0; j < ops; j++){
+					long t = benchmark.run();
+					if(i >= warmup)
+						samples[(i - warmup) * ops + j] = t;
+				}
+			}
+		}
+		finally{
+			benchmark.close();
+			delete(dir);
+		}
+		DataOutputStream dos = new DataOutputStream(new FileOutputStream(samplesFile));
+		try{
+			dos.writeInt(samples.length);
+			for(long sample : samples){
+				dos.writeLong(sample);
+			}
+		}
+		finally{
+			dos.close();
+		}
+	}
+
+	/*
+	 * One benchmark on an open helper. run() does one operation and returns how long it took in
+	 * nanoseconds; whatever it does afterwards to keep the table the same size isn't counted.
+	 */
+	private static abstract class Benchmark{
+		final Context context;
+		final int rows;
+		final Random random;
+
+		Benchmark(Context context, int rows, Random random){
+			this.context = context;
+			this.rows = rows;
+			this.random = random;
+		}
+
+		abstract void open();
+		abstract long run();
+		abstract void close();
+
+		int nextRow(){
+			return random.nextInt(rows);
+		}
+	}
+
+	private static abstract class RecentsBenchmark extends Benchmark{
+		RecentsDBHelper recents;
+
+		RecentsBenchmark(Context context, int rows, Random random){
+			super(context, rows, random);
+		}
+
+		void open(){
+			recents = new RecentsDBHelper(context).open();
+		}
+
+		void close(){
+			recents.close();
+		}
+	}
+
+	private static abstract class FavoritesBenchmark extends Benchmark{
+		FavoritesDBHelper favorites;
+
+		FavoritesBenchmark(Context context, int rows, Random random){
+			super(context, rows, random);
+		}
+
+		void open(){
+			favorites = new FavoritesDBHelper(context).open();
+		}
+
+		void close(){
+			favorites.close();
+		}
+	}
+
+	private static Benchmark create(String name, Context context, int rows, Random random){
+		if(name.equals("recents.insertNew")){
+			return new RecentsBenchmark(context, rows, random){
+				private int next = 0;
+				long run(){
+					String url = newUrl(next++);
+					long t = System.nanoTime();
+					recents.insertRecent(url);
+					t = System.nanoTime() - t;
+					recents.deleteRecent(url);
+					return t;
+				}
+			};
+		}
+		else if(name.equals("recents.insertExisting")){
+			return new RecentsBenchmark(context, rows, random){
+				long run(){
+					String url = url(nextRow());
+					long t = System.nanoTime();
+					recents.insertRecent(url);
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("recents.update")){
+			return new RecentsBenchmark(context, rows, random){
+				long run(){
+					String url = url(nextRow());
+					int count = 1 + random.nextInt(MAX_COUNT);
+					long t = System.nanoTime();
+					recents.updateRecent(url, count);
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("recents.getByUrl")){
+			return new RecentsBenchmark(context, rows, random){
+				long run(){
+					String url = url(nextRow());
+					long t = System.nanoTime();
+					Cursor c = recents.getRecent(url);
+					c.getCount();
+					c.close();
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("recents.listAll")){
+			return new RecentsBenchmark(context, rows, random){
+				long run(){
+					long t = System.nanoTime();
+					readAll(recents.getAllRecents(), rows);
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("recents.delete")){
+			return new RecentsBenchmark(context, rows, random){
+				long run(){
+					String url = url(nextRow());
+					long t = System.nanoTime();
+					recents.deleteRecent(url);
+					t = System.nanoTime() - t;
+					recents.insertRecent(url);
+					return t;
+				}
+			};
+		}
+		else if(name.equals("favorites.insertNew")){
+			return new FavoritesBenchmark(context, rows, random){
+				private int next = 0;
+				long run(){
+					String url = newUrl(next);
+					String name = newName(next++);
+					long t = System.nanoTime();
+					favorites.insertFavorite(url, name);
+					t = System.nanoTime() - t;
+					favorites.deleteFavorite(url);
+					return t;
+				}
+			};
+		}
+		else if(name.equals("favorites.update")){
+			//the template's rows were inserted in order, row i has id i + 1
+			return new FavoritesBenchmark(context, rows, random){
+				long run(){
+					int row = nextRow();
+					long t = System.nanoTime();
+					favorites.updateFavorite(row + 1, url(row), name(row));
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("favorites.getByUrl")){
+			return new FavoritesBenchmark(context, rows, random){
+				long run(){
+					String url = url(nextRow());
+					long t = System.nanoTime();
+					Cursor c = favorites.getFavorite(url);
+					c.getCount();
+					c.close();
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("favorites.listAll")){
+			return new FavoritesBenchmark(context, rows, random){
+				long run(){
+					long t = System.nanoTime();
+					readAll(favorites.getAllFavorites(), rows);
+					return System.nanoTime() - t;
+				}
+			};
+		}
+		else if(name.equals("favorites.delete")){
+			return new FavoritesBenchmark(context, rows, random){
+				long run(){
+					int row = nextRow();
+					long t = System.nanoTime();
+					favorites.deleteFavorite(url(row));
+					t = System.nanoTime() - t;
+					favorites.insertFavorite(url(row), name(row));
+					return t;
+				}
+			};
+		}
+		throw new IllegalArgumentException("no benchmark " + name + ", there are " + Arrays.toString(BENCHMARKS));
+	}
+
+	//---walks the list the way the list adapter does, reading the url of every row---
+	private static void readAll(Cursor c, int rows){
+		int read = 0;
+		for(c.moveToFirst(); !c.isAfterLast(); c.moveToNext()){
+			c.getString(1);
+			read++;
+		}
+		c.close();
+		if(read != rows)
+			throw new IllegalStateException("listed " + read + " rows of " + rows);
+	}
+
+	private static String url(int row){
+		return "http://station-" + row + ".example.com:8000/stream";
+	}
+
+	private static String name(int row){
+		return "Station " + row;
+	}
+
+	private static String newUrl(int i){
+		return "http://new-" + i + ".example.com:8000/stream";
+	}
+
+	private static String newName(int i){
+		return "New station " + i;
+	}
+
+	/*
+	 * Both databases of the given size, in template/databases. The helpers create their own schema
+	 * and the rows go in through JDBC in one transaction, with play counts and dates spread over a
+	 * year so the sorted lists have real work to do.
+	 */
+	private static void populate(File template, int rows) throws Exception{
+		Context context = new Context(template);
+		new RecentsDBHelper(context).open().close();
+		new FavoritesDBHelper(context).open().close();
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		long now = System.currentTimeMillis();
+		Random random = new Random(rows);
+
+		Connection recents = connect(context.getDatabasePath("recents"));
+		Connection favorites = connect(context.getDatabasePath("favorites"));
+		try{
+			recents.setAutoCommit(false);
+			favorites.setAutoCommit(false);
+			PreparedStatement recent = recents.prepareStatement("INSERT INTO recents (url, count, date) VALUES (?, ?, ?)");
+			PreparedStatement favorite = favorites.prepareStatement("INSERT INTO favorites (url, name, count, date) VALUES (?, ?, ?, ?)");
+			for(int i = 0; i < rows; i++){
+				recent.setString(1, url(i));
+				recent.setInt(2, 1 + random.nextInt(MAX_COUNT));
+				recent.setString(3, dateFormat.format(new Date(now - (long) (random.nextDouble() * MAX_AGE_MILLIS))));
+				recent.addBatch();
+				favorite.setString(1, url(i));
+				favorite.setString(2, name(i));
+				favorite.setInt(3, 1 + random.nextInt(MAX_COUNT));
+				favorite.setString(4, dateFormat.format(new Date(now - (long) (random.nextDouble() * MAX_AGE_MILLIS))));
+				favorite.addBatch();
+			}
+			recent.executeBatch();
+			favorite.executeBatch();
+			recents.commit();
+			favorites.commit();
+		}
+		finally{
+			recents.close();
+			favorites.close();
+		}
+	}
+
+	//---drops the named indexes, or every index with "all", before the helper sees the table---
+	private static void dropIndexes(File db, String drop) throws SQLException{
+		if(drop.length() == 0)
+			return;
+		Connection connection = connect(db);
+		try{
+			Statement s = connection.createStatement();
+			List<String> names = new ArrayList<String>();
+			if(drop.equals("all")){
+				ResultSet rs = s.executeQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND sql IS NOT NULL");
+				while(rs.next()){
+					names.add(rs.getString(1));
+				}
+				rs.close();
+			}
+			else{
+				names.addAll(Arrays.asList(drop.split(",")));
+			}
+			for(String name : names){
+				s.execute("DROP INDEX IF EXISTS " + name.trim());
+			}
+			s.close();
+		}
+		finally{
+			connection.close();
+		}
+	}
+
+	private static Connection connect(File db) throws SQLException{
+		try{
+			Class.forName("org.sqlite.JDBC");
+		}
+		catch(ClassNotFoundException e){
+			throw new IllegalStateException("put the sqlite-jdbc jar on EXTRA_CLASSPATH", e);
+		}
+		return DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+	}
+
+	//---all forks' samples together, in microseconds---
+	private static class Stats{
+		private final double[] sorted;
+		final double mean;
+
+		Stats(List<long[]> forks){
+			int count = 0;
+			for(long[] samples : forks){
+				count += samples.length;
+			}
+			sorted = new double[count];
+			int i = 0;
+			double sum = 0;
+			for(long[] samples : forks){
+				for(long sample : samples){
+					sorted[i++] = sample / 1000.0;
+					sum += sample / 1000.0;
+				}
+			}
+			Arrays.sort(sorted);
+			mean = sum / count;
+		}
+
+		double percentile(double p){
+			int index = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+
+		double max(){
+			return sorted[sorted.length - 1];
+		}
+
+		int count(){
+			return sorted.length;
+		}
+	}
+
+	private static String toJson(String label, String benchmark, int rows, int forks, Stats s){
+		return String.format(Locale.US, "{\"label\":\"%s\",\"benchmark\":\"%s\",\"rows\":%d,\"forks\":%d,\"warmupIterations\":%d,\"iterations\":%d,\"drop\":\"%s\","
+				+ "\"samples\":%d,\"unit\":\"us\",\"mean\":%.2f,\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f,\"p99.9\":%.2f,\"max\":%.2f}",
+				label, benchmark, rows, forks, Integer.getInteger("warmup", 5), Integer.getInteger("iterations", 10), System.getProperty("drop", ""),
+				s.count(), s.mean, s.percentile(0.5), s.percentile(0.9), s.percentile(0.99), s.percentile(0.999), s.max());
+	}
+
+	private static long[] readSamples(File f) throws IOException{
+		DataInputStream dis = new DataInputStream(new FileInputStream(f));
+		try{
+			long[] samples = new long[dis.readInt()];
+			for(int i = 0; i < samples.length; i++){
+				samples[i] = dis.readLong();
+			}
+			return samples;
+		}
+		finally{
+			dis.close();
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException{
+		OutputStream out = new FileOutputStream(to);
+		try{
+			copy(from, out);
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	private static void copy(File from, OutputStream out) throws IOException{
+		InputStream in = new FileInputStream(from);
+		try{
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while((n = in.read(buffer)) > 0){
+				out.write(buffer, 0, n);
+			}
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	private static void delete(File f){
+		File[] children = f.listFiles();
+		if(children != null){
+			for(File child : children){
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.customprogrammingsolutions.MediaStreamer.fixture.SyntheticAudio;
+
+/*
+ * Records a 320 kbps station (40KB/s) for several minutes the way the proxy feeds a recording:
+ * reads of a few hundred bytes to 8KB as they arrive, every 20ms. Checks that
+ *   - write() allocates nothing and never holds the player up
+ *   - nothing is dropped with a disk that keeps up, and every byte is accounted for
+ *   - the segments roll over on time and together hold exactly what was fed, in order
+ *
+ *   tests/jvm/run.sh StreamRecorderTest [-Dseconds=180] [-DsegmentSeconds=60]
+ */
+public class StreamRecorderTest {
+	private static final int BYTES_PER_SECOND = 40 * 1024;
+	private static final int TICK = 20;
+	private static final int MIN_READ = 256;
+	private static final int MAX_READ = 8192;
+	//a write buffer's worth, the writer only looks at the clock between buffers
+	private static final long SEGMENT_SLACK = 64 * 1024;
+	//per write() call: handing a buffer over now and then allocates a lock node when the writer
+	//holds the queue, a copy per read would be kilobytes
+	private static final double MAX_ALLOCATED_PER_WRITE = 16;
+	//a file name, a date format and a channel; writing a buffer out allocates nothing
+	private static final long MAX_ALLOCATED_PER_SEGMENT = 32 * 1024;
+	private static final long MAX_ALLOCATED_PER_BUFFER = 64;
+	//a disk that held the proxy up would show as tens of ms, this leaves room for a busy machine
+	private static final long MAX_P99_WRITE_NANOS = 5000000;
+
+	private static final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception{
+		int seconds = Integer.getInteger("seconds", 180);
+		int segmentSeconds = Integer.getInteger("segmentSeconds", 60);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		File dir = File.createTempFile("recorder", "");
+		dir.delete();
+		dir.mkdirs();
+		StreamRecorder recorder = new StreamRecorder(dir, "http://127.0.0.1/stream.mp3", "Fixture Station", segmentSeconds * 1000L);
+		Object owner = new Object();
+		check(recorder.claim(owner, "audio/mpeg"), "the first pump claims the recording");
+		Thread writer = findThread("StreamRecorder");
+		//taken once the first segment is open, that one loads the classes for all of them
+		long writerAllocatedBefore = -1;
+		long writtenBefore = 0;
+		int segmentsBefore = 0;
+
+		//one stream of frames, cut into reads of random size
+		SyntheticAudio audio = new SyntheticAudio(SyntheticAudio.MP3, 320);
+		byte[] frames = new byte[MAX_READ + audio.getMaxFrameSize()];
+		int framesLength = 0;
+		byte[] read = new byte[MAX_READ];
+		Random random = new Random(1);
+		CRC32 fed = new CRC32();
+		long fedBytes = 0;
+		long writes = 0;
+		long[] writeNanos = new long[seconds * (1000 / TICK) * 8];
+		long allocated = 0;
+		long self = Thread.currentThread().getId();
+		//what asking costs, taken off every sample
+		long probeCost = threads.getThreadAllocatedBytes(self);
+		probeCost = threads.getThreadAllocatedBytes(self) - probeCost;
+
+		System.out.println("Recording " + seconds + "s at " + BYTES_PER_SECOND / 1024 + "KB/s in " + segmentSeconds + "s segments to " + dir);
+		long start = System.nanoTime();
+		while(true){
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			if(elapsed >= seconds * 1000L)
+				break;
+			long due = elapsed * BYTES_PER_SECOND / 1000;
+			while(fedBytes < due){
+				int length = MIN_READ + random.nextInt(MAX_READ - MIN_READ + 1);
+				while(framesLength < length){
+					framesLength += audio.nextFrame(frames, framesLength);
+				}
+				System.arraycopy(frames, 0, read, 0, length);
+				System.arraycopy(frames, length, frames, 0, framesLength - length);
+				framesLength -= length;
+
+				long before = threads.getThreadAllocatedBytes(self);
+				long t = System.nanoTime();
+				recorder.write(read, 0, length);
+				t = System.nanoTime() - t;
+				allocated += threads.getThreadAllocatedBytes(self) - before - probeCost;
+				if(writes < writeNanos.length)
+					writeNanos[(int) writes] = t;
+				writes++;
+				fed.update(read, 0, length);
+				fedBytes += length;
+			}
+			Thread.sleep(TICK);
+			if(writerAllocatedBefore < 0 && recorder.getBytesWritten() > 0){
+				writerAllocatedBefore = threads.getThreadAllocatedBytes(writer.getId());
+				writtenBefore = recorder.getBytesWritten();
+				segmentsBefore = recorder.getSegmentCount();
+			}
+		}
+		//a thread that has finished no longer reports what it allocated
+		long writerAllocated = threads.getThreadAllocatedBytes(writer.getId());
+		check(recorder.release(owner), "the owner releases the recording");
+		recorder.close();
+		writer.join(10000);
+		check(!writer.isAlive(), "the writer finishes once the recording is closed");
+
+		Arrays.sort(writeNanos, 0, (int) Math.min(writes, writeNanos.length));
+		long p99 = writeNanos[(int) (Math.min(writes, writeNanos.length) * 99 / 100)];
+		long max = writeNanos[(int) Math.min(writes, writeNanos.length) - 1];
+		System.out.println(writes + " writes, " + fedBytes + " bytes fed, " + recorder.getBytesReceived() + " received, "
+				+ recorder.getBytesWritten() + " written, " + recorder.getBytesDropped() + " dropped");
+		System.out.println(String.format("write(): %.3f bytes allocated per call, p99 %dus, max %dus", (double) allocated / writes, p99 / 1000, max / 1000));
+
+		check(recorder.getBytesReceived() == fedBytes, "every byte fed is counted as received");
+		check(recorder.getBytesDropped() == 0, "nothing is dropped with a disk that keeps up");
+		check(recorder.getBytesWritten() + recorder.getBytesDropped() == recorder.getBytesReceived(), "every byte received is written or dropped");
+		check((double) allocated / writes <= MAX_ALLOCATED_PER_WRITE, "write() doesn't allocate");
+		check(p99 <= MAX_P99_WRITE_NANOS, "write() returns at once (p99 " + p99 / 1000 + "us)");
+
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		long expectedSegmentSize = (long) segmentSeconds * BYTES_PER_SECOND;
+		int expectedSegments = (int) ((fedBytes + expectedSegmentSize - 1) / expectedSegmentSize);
+		System.out.println(files.length + " segment files, " + recorder.getSegmentCount() + " segments started");
+		check(files.length == recorder.getSegmentCount(), "one file per segment, no name reused");
+		check(Math.abs(files.length - expectedSegments) <= 1, files.length + " segments, expected about " + expectedSegments);
+		CRC32 recorded = new CRC32();
+		long recordedBytes = 0;
+		byte[] buffer = new byte[64 * 1024];
+		for(int i = 0; i < files.length; i++){
+			File f = files[i];
+			System.out.println("  " + f.getName() + " " + f.length() + " bytes");
+			check(f.getName().startsWith("Fixture_Station-") && f.getName().endsWith(".mp3"), f.getName() + " is named after the station and the content type");
+			if(i < files.length - 1)
+				check(Math.abs(f.length() - expectedSegmentSize) <= SEGMENT_SLACK, f.getName() + " holds about " + segmentSeconds + "s");
+			InputStream in = new FileInputStream(f);
+			try{
+				int count;
+				while((count = in.read(buffer)) != -1){
+					recorded.update(buffer, 0, count);
+					recordedBytes += count;
+				}
+			}
+			finally{
+				in.close();
+			}
+			f.delete();
+		}
+		dir.delete();
+		check(recordedBytes == recorder.getBytesWritten(), "the segments hold every byte written");
+		check(recorded.getValue() == fed.getValue(), "the segments in order are exactly what was fed");
+		long writerBuffers = (recorder.getBytesWritten() - writtenBefore) / (64 * 1024);
+		int newSegments = recorder.getSegmentCount() - segmentsBefore;
+		System.out.println(String.format("writer thread after the first segment: %d bytes allocated over %d buffers and %d new segments", writerAllocated - writerAllocatedBefore, writerBuffers, newSegments));
+		check(writerAllocated - writerAllocatedBefore <= MAX_ALLOCATED_PER_SEGMENT * newSegments + MAX_ALLOCATED_PER_BUFFER * writerBuffers, "the writer only allocates when it starts a segment");
+
+		if(failures.isEmpty()){
+			System.out.println("StreamRecorderTest passed");
+			System.exit(0);
+		}
+		for(String failure : failures){
+			System.out.println("FAILED: " + failure);
+		}
+		System.exit(1);
+	}
+
+	private static void check(boolean condition, String what){
+		if(!condition)
+			failures.add(what);
+	}
+
+	private static Thread findThread(String name) throws IOException{
+		for(Thread t : Thread.getAllStackTraces().keySet()){
+			if(name.equals(t.getName()))
+				return t;
+		}
+		throw new IOException("No " + name + " thread");
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2012 Eliezer Graber (Custom Programming Solutions)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.customprogrammingsolutions.MediaStreamer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import com.customprogrammingsolutions.MediaStreamer.fixture.StreamFixtureServer;
+import com.customprogrammingsolutions.MediaStreamer.fixture.SyntheticAudio;
+
+/*
+ * Plays the fixture server's stations through a real StreamProxy on a plain JVM, each with a
+ * simulated player in place of MediaPlayer, and reports per scenario:
+ *   startup    ms from open() to the player holding START_BUFFER seconds of audio
+ *   rebuffers  times the player ran dry and waited for RESUME_BUFFER seconds again, and for how long
+ *   recovery   ms from the server cutting a connection to the first byte of the reconnected stream
+ * The player also checks every frame it gets, so metadata leaking through or a stream spliced
+ * anywhere but at a reconnect shows up as frame errors.
+ *
+ *   tests/jvm/run.sh StreamScenarios [-Dseconds=20] [-Dout=scenarios.jsonl] [-Dlog=true] [name...]
+ *
+ * Exits with 1 if a scenario didn't behave, the numbers themselves are for comparing runs.
+ */
+public class StreamScenarios {
+	//what MediaPlayer roughly waits for before it starts, and again after running dry
+	private static final double START_BUFFER = 2.0;
+	private static final double RESUME_BUFFER = 2.0;
+	private static final int OPEN_TIMEOUT = 30;
+	//ms after a cut that the proxy still passes on what it read before it, no reconnect is this quick
+	private static final long CUT_FLUSH_TIME = 100;
+
+	private static class Scenario{
+		final String name;
+		final String path;
+		final int format;
+		final int kbps;
+		boolean expectsTitles = false;
+		boolean expectsRejection = false;
+		//expected cuts, each must be followed by a reconnect that brings the audio back
+		int cuts = 0;
+
+		Scenario(String name, String path, int format, int kbps){
+			this.name = name;
+			this.path = path;
+			this.format = format;
+			this.kbps = kbps;
+		}
+
+		Scenario titles(){
+			expectsTitles = true;
+			return this;
+		}
+
+		Scenario cuts(int count){
+			cuts = count;
+			return this;
+		}
+
+		Scenario rejected(){
+			expectsRejection = true;
+			return this;
+		}
+	}
+
+	private static List<Scenario> scenarios(){
+		String mp3 = StreamFixtureServer.encode("/stream.mp3?kbps=128&metaint=8000");
+		String aac = StreamFixtureServer.encode("/stream.aac?kbps=64");
+		List<Scenario> list = new ArrayList<Scenario>();
+		list.add(new Scenario("mp3-128", "/stream.mp3?kbps=128", SyntheticAudio.MP3, 128));
+		list.add(new Scenario("aac-64", "/stream.aac?kbps=64", SyntheticAudio.AAC, 64));
+		list.add(new Scenario("mp3-320-icy", "/stream.mp3?kbps=320&metaint=16000&titleEvery=3", SyntheticAudio.MP3, 320).titles());
+		list.add(new Scenario("aac-icy-small-metaint", "/stream.aac?kbps=48&metaint=100&titleEvery=2", SyntheticAudio.AAC, 48).titles());
+		list.add(new Scenario("icecast-burst", "/stream.mp3?kbps=128&burst=4", SyntheticAudio.MP3, 128));
+		list.add(new Scenario("latency-jitter", "/stream.mp3?kbps=128&latency=600&jitter=400", SyntheticAudio.MP3, 128));
+		list.add(new Scenario("throttled-80", "/stream.mp3?kbps=128&throttle=0.8", SyntheticAudio.MP3, 128));
+		list.add(new Scenario("wrong-content-type", "/stream.mp3?kbps=128&type=text/html", SyntheticAudio.MP3, 128));
+		list.add(new Scenario("cut-once", "/stream.mp3?kbps=128&metaint=8000&drop=6", SyntheticAudio.MP3, 128).titles().cuts(1));
+		list.add(new Scenario("cut-twice", "/stream.mp3?kbps=128&metaint=8000&drop=6&drops=2", SyntheticAudio.MP3, 128).titles().cuts(2));
+		list.add(new Scenario("cut-then-503s", "/stream.aac?kbps=64&drop=4&fail=2", SyntheticAudio.AAC, 64).cuts(1));
+		list.add(new Scenario("redirects", "/redirect?hops=3&to=" + aac, SyntheticAudio.AAC, 64));
+		list.add(new Scenario("pls", "/station.pls?to=" + mp3, SyntheticAudio.MP3, 128).titles());
+		list.add(new Scenario("m3u-dead-first-entry", "/station.m3u?dead=1&to=" + aac, SyntheticAudio.AAC, 64));
+		list.add(new Scenario("pls-to-m3u-to-redirect", "/station.pls?to=" + StreamFixtureServer.encode("/station.m3u?to=" + StreamFixtureServer.encode("/redirect?to=" + mp3)), SyntheticAudio.MP3, 128).titles());
+		list.add(new Scenario("pls-cut", "/station.pls?to=" + StreamFixtureServer.encode("/stream.mp3?kbps=128&drop=6"), SyntheticAudio.MP3, 128).cuts(1));
+		list.add(new Scenario("hls-live", "/live.m3u8?kbps=64&target=2", SyntheticAudio.AAC, 64));
+		list.add(new Scenario("hls-live-missing-segments", "/live.m3u8?kbps=64&target=2&failEvery=4", SyntheticAudio.AAC, 64));
+		list.add(new Scenario("not-found", "/nothing", SyntheticAudio.MP3, 128).rejected());
+		return list;
+	}
+
+	private static class Result{
+		boolean isOpened;
+		boolean isRejected;
+		long openMs = -1;
+		long startupMs = -1;
+		int rebuffers = 0;
+		long rebufferMs = 0;
+		long worstRecoveryMs = -1;
+		int recoveries = 0;
+		int upstreamConnections = 0;
+		int titles = 0;
+		long bytes = 0;
+		int frames = 0;
+		int frameErrors = 0;
+		List<String> problems = new ArrayList<String>();
+	}
+
+	public static void main(String[] args) throws Exception{
+		int seconds = Integer.getInteger("seconds", 20);
+		String out = System.getProperty("out");
+		List<String> only = new ArrayList<String>();
+		for(String arg : args){
+			only.add(arg);
+		}
+
+		File scratch = File.createTempFile("scenarios", "");
+		scratch.delete();
+		scratch.mkdirs();
+		StreamFixtureServer server = new StreamFixtureServer();
+		server.start();
+
+		Writer json = out != null ? new FileWriter(out) : null;
+		int failed = 0;
+		System.out.println(String.format(Locale.US, "%-26s %7s %8s %9s %8s %9s %5s %6s %6s %6s", "scenario", "open", "startup", "rebuffers", "stalled", "recovery", "cuts", "conns", "titles", "errors"));
+		for(Scenario s : scenarios()){
+			if(!only.isEmpty() && !only.contains(s.name))
+				continue;
+			server.reset();
+			Result r = run(server, s, seconds, new Context(scratch));
+			check(s, r, server);
+			System.out.println(String.format(Locale.US, "%-26s %5dms %6dms %9d %6dms %7dms %3d/%d %6d %6d %6d",
+					s.name, r.openMs, r.startupMs, r.rebuffers, r.rebufferMs, r.worstRecoveryMs, r.recoveries, s.cuts, r.upstreamConnections, r.titles, r.frameErrors));
+			for(String problem : r.problems){
+				System.out.println("    FAILED: " + problem);
+			}
+			if(!r.problems.isEmpty())
+				failed++;
+			if(json != null)
+				json.write(toJson(s, r, seconds) + "\n");
+		}
+		if(json != null)
+			json.close();
+		server.stop();
+		System.out.println(failed == 0 ? "All scenarios passed" : failed + " scenarios failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	private static Result run(StreamFixtureServer server, Scenario s, int seconds, Context ctx) throws Exception{
+		final Result r = new Result();
+		final List<String> titles = new ArrayList<String>();
+		StreamProxy proxy = new StreamProxy(new StreamConnector(ctx), new StreamProxy.Listener(){
+			@Override
+			public void onStreamTitle(String url, String title){
+				synchronized(titles){
+					if(!titles.contains(title))
+						titles.add(title);
+				}
+			}
+
+			@Override
+			public void onUpstreamConnected(String url){
+				synchronized(titles){
+					r.upstreamConnections++;
+				}
+			}
+
+			@Override
+			public void onBytesReceived(String url, int count){}
+
+			@Override
+			public void onBurstStarted(String url){}
+
+			@Override
+			public void onBurstEnded(String url, long bytes, long time){}
+		});
+		proxy.start();
+
+		final String[] localUrl = new String[1];
+		final CountDownLatch opened = new CountDownLatch(1);
+		long tap = System.nanoTime();
+		proxy.open(server.url(s.path), new StreamProxy.OpenCallback(){
+			@Override
+			public void onStreamOpened(String url, String local){
+				localUrl[0] = local;
+				opened.countDown();
+			}
+
+			@Override
+			public void onStreamRejected(String url, boolean isUnsupportedContent){
+				r.isRejected = true;
+				opened.countDown();
+			}
+		});
+		if(!opened.await(OPEN_TIMEOUT, TimeUnit.SECONDS) || r.isRejected){
+			proxy.stop();
+			return r;
+		}
+		r.isOpened = true;
+		r.openMs = (System.nanoTime() - tap) / 1000000;
+
+		SimulatedPlayer player = new SimulatedPlayer(localUrl[0], s.format);
+		player.start();
+		Thread.sleep(seconds * 1000L - r.openMs);
+		player.stopPlayer();
+		proxy.stop();
+		player.join();
+
+		r.bytes = player.bytes;
+		r.frames = player.frames;
+		r.frameErrors = player.frameErrors;
+		synchronized(titles){
+			r.titles = titles.size();
+		}
+		player.simulatePlayback(r, tap, s.kbps * 125, server.getCutTimes());
+		return r;
+	}
+
+	private static void check(Scenario s, Result r, StreamFixtureServer server){
+		if(s.expectsRejection){
+			if(!r.isRejected)
+				r.problems.add("expected the stream to be rejected");
+			return;
+		}
+		if(!r.isOpened){
+			r.problems.add(r.isRejected ? "rejected" : "never opened");
+			return;
+		}
+		if(r.startupMs < 0)
+			r.problems.add("never started playing");
+		if(s.expectsTitles && r.titles == 0)
+			r.problems.add("no stream titles");
+		if(server.getCutTimes().size() != s.cuts)
+			r.problems.add(server.getCutTimes().size() + " cuts, expected " + s.cuts);
+		if(r.recoveries != s.cuts)
+			r.problems.add("recovered from " + r.recoveries + " of " + s.cuts + " cuts");
+		//a cut leaves half a frame behind, anything more is metadata or garbage in the audio
+		if(r.frameErrors > s.cuts)
+			r.problems.add(r.frameErrors + " frame errors");
+	}
+
+	private static String toJson(Scenario s, Result r, int seconds){
+		return String.format(Locale.US, "{\"scenario\":\"%s\",\"seconds\":%d,\"opened\":%b,\"rejected\":%b,\"openMs\":%d,\"startupMs\":%d,\"rebuffers\":%d,\"rebufferMs\":%d,"
+				+ "\"cuts\":%d,\"recoveries\":%d,\"worstRecoveryMs\":%d,\"upstreamConnections\":%d,\"titles\":%d,\"bytes\":%d,\"frames\":%d,\"frameErrors\":%d,\"passed\":%b}",
+				s.name, seconds, r.isOpened, r.isRejected, r.openMs, r.startupMs, r.rebuffers, r.rebufferMs,
+				s.cuts, r.recoveries, r.worstRecoveryMs, r.upstreamConnections, r.titles, r.bytes, r.frames, r.frameErrors, r.problems.isEmpty());
+	}
+
+	/*
+	 * Reads the proxy's local url the way MediaPlayer does, as fast as it is sent, and keeps when
+	 * each read arrived. Playback is simulated afterwards from those arrival times.
+	 */
+	private static class SimulatedPlayer extends Thread{
+		private final String url;
+		private final int format;
+		private volatile boolean isRunning = true;
+		private HttpURLConnection conn;
+
+		//guarded by this
+		private long[] arrivalTimes = new long[1024];
+		private long[] arrivalBytes = new long[1024];
+		private int arrivals = 0;
+		long bytes = 0;
+		int frames = 0;
+		int frameErrors = 0;
+
+		//frame checking state
+		private final byte[] pending = new byte[64 * 1024];
+		private int pendingLength = 0;
+		private boolean isInSync = true;
+
+		SimulatedPlayer(String url, int format){
+			super("SimulatedPlayer");
+			this.url = url;
+			this.format = format;
+		}
+
+		@Override
+		public void run(){
+			byte[] buffer = new byte[8192];
+			try{
+				conn = (HttpURLConnection) new URL(url).openConnection();
+				InputStream in = conn.getInputStream();
+				int read;
+				while(isRunning && (read = in.read(buffer)) != -1){
+					synchronized(this){
+						if(arrivals == arrivalTimes.length){
+							arrivalTimes = grow(arrivalTimes);
+							arrivalBytes = grow(arrivalBytes);
+						}
+						bytes += read;
+						arrivalTimes[arrivals] = System.nanoTime();
+						arrivalBytes[arrivals++] = bytes;
+					}
+					checkFrames(buffer, read);
+				}
+			}
+			catch(IOException e){
+				//stopped
+			}
+		}
+
+		void stopPlayer(){
+			isRunning = false;
+			if(conn != null)
+				conn.disconnect();
+		}
+
+		//---walks the frame headers, counting every place the stream loses sync---
+		private void checkFrames(byte[] data, int length){
+			if(pendingLength + length > pending.length){
+				//can't happen with real frames, a header claiming this much is garbage
+				frameErrors++;
+				pendingLength = 0;
+			}
+			System.arraycopy(data, 0, pending, pendingLength, length);
+			pendingLength += length;
+			int offset = 0;
+			while(offset < pendingLength){
+				int frameLength = SyntheticAudio.frameLength(format, pending, offset, pendingLength);
+				if(frameLength == 0)
+					break;
+				if(frameLength > 0 && (offset + frameLength >= pendingLength || SyntheticAudio.frameLength(format, pending, offset + frameLength, pendingLength) != -1)){
+					//a frame, and where it ends is another one (or the end of what we have)
+					if(offset + frameLength > pendingLength)
+						break;
+					offset += frameLength;
+					frames++;
+					isInSync = true;
+					continue;
+				}
+				if(isInSync)
+					frameErrors++;
+				isInSync = false;
+				offset++;
+			}
+			System.arraycopy(pending, offset, pending, 0, pendingLength - offset);
+			pendingLength -= offset;
+		}
+
+		/*
+		 * Plays back what arrived: waits for START_BUFFER seconds, then drains bytesPerSecond
+		 * until it runs out, waits for RESUME_BUFFER seconds and carries on.
+		 */
+		synchronized void simulatePlayback(Result r, long tap, long bytesPerSecond, List<Long> cutTimes){
+			double startBytes = START_BUFFER * bytesPerSecond;
+			double resumeBytes = RESUME_BUFFER * bytesPerSecond;
+			boolean isPlaying = false;
+			boolean hasStarted = false;
+			double played = 0;
+			long playingSince = 0;
+			double playedAtStart = 0;
+			long stalledSince = 0;
+			for(int i = 0; i < arrivals; i++){
+				long t = arrivalTimes[i];
+				if(isPlaying){
+					double playedNow = playedAtStart + (t - playingSince) * bytesPerSecond / 1e9;
+					double available = i > 0 ? arrivalBytes[i - 1] : 0;
+					if(playedNow > available){
+						//ran dry before this read arrived
+						long dryAt = playingSince + (long) ((available - playedAtStart) * 1e9 / bytesPerSecond);
+						played = available;
+						isPlaying = false;
+						stalledSince = dryAt;
+						r.rebuffers++;
+					}
+				}
+				if(!isPlaying && arrivalBytes[i] - played >= (hasStarted ? resumeBytes : startBytes)){
+					if(!hasStarted)
+						r.startupMs = (t - tap) / 1000000;
+					else
+						r.rebufferMs += (t - stalledSince) / 1000000;
+					hasStarted = true;
+					isPlaying = true;
+					playingSince = t;
+					playedAtStart = played;
+				}
+			}
+
+			for(long cut : cutTimes){
+				for(int i = 0; i < arrivals; i++){
+					//what the proxy had before the cut arrives right away, the reconnect takes longer
+					if(arrivalTimes[i] - cut > CUT_FLUSH_TIME * 1000000L){
+						r.recoveries++;
+						r.worstRecoveryMs = Math.max(r.worstRecoveryMs, (arrivalTimes[i] - cut) / 1000000);
+						break;
+					}
+				}
+			}
+		}
+
+		private static long[] grow(long[] array){
+			long[] bigger = new long[array.length * 2];
+			System.arraycopy(array, 0, bigger, 0, array.length);
+			return bigger;
+		}
+	}
+}